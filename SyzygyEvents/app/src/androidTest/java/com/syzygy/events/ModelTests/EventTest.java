@@ -172,6 +172,11 @@ public class EventTest {
                 .addOnSuccessListener(aVoid -> Log.d("Delete", "DocumentSnapshot successfully deleted!"))
                 .addOnFailureListener(e -> Log.w("Delete", "Error deleting document", e));
 
+        TestDatabase.firestore.collection("event_counters").document(testEvent.getDocumentID())
+                .delete()
+                .addOnSuccessListener(aVoid -> Log.d("Delete", "DocumentSnapshot successfully deleted!"))
+                .addOnFailureListener(e -> Log.w("Delete", "Error deleting document", e));
+
         TestDatabase.firestore.collection("event_associations").document(invitedUser.getDocumentID())
                 .delete()
                 .addOnSuccessListener(aVoid -> Log.d("Delete", "DocumentSnapshot successfully deleted!"))
@@ -260,4 +265,18 @@ public class EventTest {
         }
         assertEquals("Enrolled", invitedUser.getStatus());
     }
+
+    @Test
+    public void testCountersMatchAggregates() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        db.testDB.getEventCounters().reconcile(testEvent.getDocumentID(), (drift, success) -> {
+            assertTrue(success);
+            assertNotNull(drift);
+            assertFalse(drift.toString(), drift.hasDrift());
+            latch.countDown();
+        });
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            fail("Operation timed out");
+        }
+    }
 }
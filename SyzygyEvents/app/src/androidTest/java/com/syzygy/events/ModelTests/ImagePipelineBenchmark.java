@@ -0,0 +1,101 @@
+package com.syzygy.events.ModelTests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.util.Log;
+
+import com.squareup.picasso.Callback;
+import com.squareup.picasso.MemoryPolicy;
+import com.squareup.picasso.RequestCreator;
+import com.syzygy.events.R;
+import com.syzygy.events.database.BitmapPool;
+import com.syzygy.events.database.Image;
+import com.syzygy.events.database.ImagePipeline;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures drawing list avatars on a device, the work repeated for each row while a list of users or events scrolls.
+ * Reports the time and the bitmaps allocated per avatar. The frame time of scrolling a list is not measured, as it needs the
+ * lists filled with real users and events
+ * @see ImagePipeline
+ * @see BitmapPool
+ */
+public class ImagePipelineBenchmark {
+    private static final int AVATARS = 200;
+
+    /**
+     * Draws avatars without the memory cache, so each is decoded, resized and cropped to a circle
+     */
+    @Test
+    public void testTransformedAvatars() throws IOException {
+        BitmapPool pool = ImagePipeline.getBitmapPool();
+        //Warm up the pool and the picasso threads
+        for (int i = 0; i < 10; i++) avatar(true);
+
+        long misses = pool.getMisses();
+        long hits = pool.getHits();
+        long nativeBytes = Debug.getNativeHeapAllocatedSize();
+        long start = System.nanoTime();
+        for (int i = 0; i < AVATARS; i++) {
+            assertNotNull(avatar(true));
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = pool.getMisses() - misses;
+        long reused = pool.getHits() - hits;
+
+        Log.println(Log.INFO, "benchmark", "avatar: " + nanos / AVATARS / 1000 + "us, bitmaps allocated by transformations: "
+                + allocated + ", reused: " + reused + ", native heap change: " + (Debug.getNativeHeapAllocatedSize() - nativeBytes) / 1024 + "KB");
+        assertTrue("The transformations should reuse pooled bitmaps", reused > allocated);
+    }
+
+    /**
+     * Draws the same avatar with the memory cache, so it is transformed once then served from memory
+     */
+    @Test
+    public void testCachedAvatars() throws InterruptedException, IOException {
+        CountDownLatch latch = new CountDownLatch(1);
+        request().fetch(new Callback() {
+            @Override
+            public void onSuccess() {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                fail("The avatar was not loaded: " + e);
+            }
+        });
+        if (!latch.await(10, TimeUnit.SECONDS)) fail("The avatar timed out");
+
+        BitmapPool pool = ImagePipeline.getBitmapPool();
+        long transformed = pool.getHits() + pool.getMisses();
+        long start = System.nanoTime();
+        for (int i = 0; i < AVATARS; i++) {
+            assertNotNull(request().get());
+        }
+        long nanos = System.nanoTime() - start;
+
+        Log.println(Log.INFO, "benchmark", "cached avatar: " + nanos / AVATARS / 1000 + "us");
+        assertEquals("The cached avatar should not be transformed again", transformed, pool.getHits() + pool.getMisses());
+    }
+
+    private static RequestCreator request(){
+        return Image.formatImage(R.drawable.default_user, Image.Options.Circle(Image.Options.Sizes.ICON));
+    }
+
+    private static Bitmap avatar(boolean skipCache) throws IOException {
+        RequestCreator request = request();
+        if (skipCache) request.memoryPolicy(MemoryPolicy.NO_CACHE, MemoryPolicy.NO_STORE);
+        return request.get();
+    }
+}
@@ -0,0 +1,148 @@
+package com.syzygy.events.ModelTests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.syzygy.events.database.DatabaseInfLoadQuery;
+import com.syzygy.events.database.DatabaseQuery;
+import com.syzygy.events.database.Notification;
+import com.syzygy.events.database.User;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Tests loading, prefetching and releasing pages of a query
+ * @see DatabaseInfLoadQuery#incrementData(com.syzygy.events.database.Database.Querrier.Listener)
+ */
+public class PaginationTest {
+    private static final int NOTIFICATIONS = 5;
+    private static final int PAGE_SIZE = 2;
+
+    private static boolean setUpComplete = false;
+    private static User testUser;
+    private static final List<String> notificationIDs = new ArrayList<>();
+    private static final TestDatabase db = new TestDatabase();
+
+    @Before
+    public void createDb() throws InterruptedException {
+        if (setUpComplete) return;
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        db.createDb(context);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        User.NewInstance(db.testDB, UUID.randomUUID().toString(), "testName", "TEST", null, "", "abc@xyz.com", "1234567890", false, false, false, (instance, success) -> {
+            if (!success) fail("User was not created in db");
+            testUser = instance;
+            latch.countDown();
+        });
+        if (!latch.await(60, TimeUnit.SECONDS)) {
+            fail("User creation timed out");
+        }
+
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            final CountDownLatch nlatch = new CountDownLatch(1);
+            Notification.NewInstance(db.testDB, "Subject" + i, "Body", "", testUser.getDocumentID(), "", false, (instance, success) -> {
+                if (!success) fail("Notification was not created in db");
+                notificationIDs.add(instance.getDocumentID());
+                nlatch.countDown();
+            });
+            if (!nlatch.await(60, TimeUnit.SECONDS)) {
+                fail("Notification creation timed out");
+            }
+        }
+        setUpComplete = true;
+    }
+
+    @AfterClass
+    public static void closeDb() {
+        for (String id : notificationIDs) {
+            TestDatabase.firestore.collection("notifications").document(id).delete();
+        }
+        TestDatabase.firestore.collection("users").document(testUser.getDocumentID()).delete();
+    }
+
+    /**
+     * Runs an operation on the query on the main thread and waits for it to complete successfully
+     */
+    private static void run(String what, DatabaseInfLoadQuery<Notification> query, Consumer<DatabaseInfLoadQuery.Listener<DatabaseInfLoadQuery<Notification>>> operation) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> operation.accept((q, s) -> {
+            assertTrue(what + " failed", s);
+            latch.countDown();
+        }));
+        if (!latch.await(30, TimeUnit.SECONDS)) {
+            fail(what + " timed out");
+        }
+    }
+
+    /**
+     * Loads every page in order. Each page must follow the previous without gaps or repeats
+     */
+    @Test
+    public void testPagesFollowEachOther() throws InterruptedException {
+        DatabaseInfLoadQuery<Notification> query = new DatabaseInfLoadQuery<>(DatabaseQuery.getMyNotifications(db.testDB, testUser, PAGE_SIZE));
+        run("Refresh", query, query::refreshData);
+        assertEquals(PAGE_SIZE, query.getInstances().size());
+        assertTrue(query.hasUnloadedData());
+
+        while (query.hasUnloadedData()) {
+            run("Increment", query, query::incrementData);
+        }
+        assertEquals(NOTIFICATIONS, query.getInstances().size());
+        Set<String> ids = new HashSet<>();
+        query.getInstances().forEach(n -> ids.add(n.getDocumentID()));
+        assertEquals(NOTIFICATIONS, ids.size());
+        for (int i = 1; i < NOTIFICATIONS; i++) {
+            assertTrue(query.getInstances().get(i - 1).getSentTime().compareTo(query.getInstances().get(i).getSentTime()) >= 0);
+        }
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(query::dissolve);
+    }
+
+    /**
+     * Releases the first page and loads it back
+     */
+    @Test
+    public void testReleasedPagesLoadBack() throws InterruptedException {
+        DatabaseInfLoadQuery<Notification> query = new DatabaseInfLoadQuery<>(DatabaseQuery.getMyNotifications(db.testDB, testUser, PAGE_SIZE))
+                .setRetainedPages(1);
+        run("Refresh", query, query::refreshData);
+        while (query.hasUnloadedData()) {
+            run("Increment", query, query::incrementData);
+        }
+        List<Notification> all = new ArrayList<>(query.getInstances());
+
+        final int[] removed = new int[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> removed[0] = query.releaseOutside(NOTIFICATIONS - 1, NOTIFICATIONS - 1));
+        assertEquals(PAGE_SIZE, removed[0]);
+        assertEquals(NOTIFICATIONS - PAGE_SIZE, query.getInstances().size());
+        assertEquals(all.get(PAGE_SIZE).getDocumentID(), query.getInstances().get(0).getDocumentID());
+        assertTrue(query.hasReleasedData());
+
+        run("Decrement", query, query::decrementData);
+        assertFalse(query.hasReleasedData());
+        assertEquals(NOTIFICATIONS, query.getInstances().size());
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            assertEquals(all.get(i).getDocumentID(), query.getInstances().get(i).getDocumentID());
+        }
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(query::dissolve);
+    }
+}
@@ -14,6 +14,7 @@ import com.google.firebase.storage.FirebaseStorage;
 import com.google.firebase.storage.StorageReference;
 import com.syzygy.events.BuildConfig;
 import com.syzygy.events.database.Database;
+import com.syzygy.events.database.FirestoreBackend;
 
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -59,7 +60,7 @@ public class TestDatabase {
         }
         firestore = FirebaseFirestore.getInstance(firebaseApp);
         storage = FirebaseStorage.getInstance().getReference();
-        testDB = new Database(constants, firestore, storage);
+        testDB = new Database(constants, new FirestoreBackend(firestore, storage));
         System.out.println("Created");
 
         // Decrement the latch count to signal task completion
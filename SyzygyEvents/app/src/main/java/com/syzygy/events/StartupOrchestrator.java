@@ -0,0 +1,277 @@
+package com.syzygy.events;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs the work of starting the application in stages, and times each piece of work.
+ * <p>
+ *     {@link Stage#CRITICAL} tasks are started as soon as {@link #start()} is called, as the first activity depends on them.
+ *     {@link Stage#DEFERRED} tasks are started once the first activity is shown, and {@link Stage#IDLE} tasks the first time
+ *     the main thread is idle after that. Tasks of a stage are independent and are all started together. A task may finish
+ *     asynchronously, and background tasks run on a background executor, so the tasks of a stage run in parallel.
+ * </p>
+ * <p>
+ *     Once every task has finished, the {@link Report} of the start is passed to the completion listener.
+ * </p>
+ * @see SyzygyApplication#onCreate()
+ */
+public class StartupOrchestrator {
+
+    /**
+     * When a task is started
+     */
+    public enum Stage {
+        /**
+         * Needed to show the first activity. Started immediately
+         */
+        CRITICAL,
+        /**
+         * Needed soon after the first activity is shown. Started once it is shown
+         */
+        DEFERRED,
+        /**
+         * Not needed by any screen yet. Started when the main thread is first idle after the first activity is shown
+         */
+        IDLE
+    }
+
+    /**
+     * A piece of startup work
+     */
+    public interface Task {
+        /**
+         * Runs the work
+         * @param done Must be called once the work has finished, from any thread
+         */
+        void run(@NonNull Runnable done);
+    }
+
+    private final Executor main;
+    private final Executor background;
+    private final Consumer<Runnable> idle;
+    private final long origin = System.nanoTime();
+    private final List<Step> steps = new ArrayList<>();
+
+    private boolean started = false;
+    private long firstActivity = -1;
+    private int remaining = 0;
+    private Consumer<Report> onComplete = r -> {};
+
+    /**
+     * @param main Runs work on the main thread
+     * @param background Runs background tasks
+     * @param idle Runs work the next time the main thread is idle
+     */
+    public StartupOrchestrator(@NonNull Executor main, @NonNull Executor background, @NonNull Consumer<Runnable> idle) {
+        this.main = main;
+        this.background = background;
+        this.idle = idle;
+    }
+
+    /**
+     * Creates an orchestrator for the main looper, with two background threads. Must be called on the main thread
+     * @return The orchestrator
+     */
+    public static StartupOrchestrator forMainLooper(){
+        Handler handler = new Handler(Looper.getMainLooper());
+        return new StartupOrchestrator(handler::post, Executors.newFixedThreadPool(2), r -> Looper.myQueue().addIdleHandler(() -> {
+            r.run();
+            return false;
+        }));
+    }
+
+    /**
+     * Adds a task that runs on the main thread
+     * @param stage When the task is started
+     * @param name The name of the task in the report
+     * @param task The task
+     * @return This orchestrator
+     * @throws IllegalStateException If the start has begun
+     */
+    public StartupOrchestrator add(@NonNull Stage stage, @NonNull String name, @NonNull Task task) throws IllegalStateException{
+        return add(new Step(stage, name, false, task));
+    }
+
+    /**
+     * Adds a task that runs on a background thread and is finished when it returns
+     * @param stage When the task is started
+     * @param name The name of the task in the report
+     * @param task The task
+     * @return This orchestrator
+     * @throws IllegalStateException If the start has begun
+     */
+    public StartupOrchestrator addBackground(@NonNull Stage stage, @NonNull String name, @NonNull Runnable task) throws IllegalStateException{
+        return add(new Step(stage, name, true, done -> {
+            task.run();
+            done.run();
+        }));
+    }
+
+    private StartupOrchestrator add(Step step){
+        if(started) throw new IllegalStateException("Startup has already begun");
+        steps.add(step);
+        return this;
+    }
+
+    /**
+     * Sets the listener called on the main thread with the report once every task has finished
+     * @param onComplete The listener
+     * @return This orchestrator
+     */
+    public StartupOrchestrator setOnComplete(@NonNull Consumer<Report> onComplete){
+        this.onComplete = onComplete;
+        return this;
+    }
+
+    /**
+     * Starts the critical tasks on the calling thread, which should be the main thread
+     */
+    public void start(){
+        if(started) return;
+        started = true;
+        synchronized (this){
+            remaining = steps.size();
+        }
+        if(steps.isEmpty()) main.execute(() -> onComplete.accept(getReport()));
+        runStage(Stage.CRITICAL);
+    }
+
+    /**
+     * Marks the first activity as shown and starts the deferred tasks. The idle tasks are started once the main thread is next idle.
+     * Only the first call has an effect
+     */
+    public void firstActivityShown(){
+        if(!started || firstActivity >= 0) return;
+        firstActivity = System.nanoTime();
+        main.execute(() -> runStage(Stage.DEFERRED));
+        idle.accept(() -> runStage(Stage.IDLE));
+    }
+
+    private void runStage(Stage stage){
+        for(Step s : steps){
+            if(s.stage != stage) continue;
+            if(s.background) background.execute(() -> runStep(s));
+            else runStep(s);
+        }
+    }
+
+    private void runStep(Step s){
+        s.start = System.nanoTime();
+        s.task.run(() -> finish(s));
+    }
+
+    private void finish(Step s){
+        boolean last;
+        synchronized (this){
+            if(s.end >= 0) return;
+            s.end = System.nanoTime();
+            remaining --;
+            last = remaining == 0;
+        }
+        if(last) main.execute(() -> onComplete.accept(getReport()));
+    }
+
+    /**
+     * @return The timings of the start so far
+     */
+    @NonNull
+    public synchronized Report getReport(){
+        List<Timing> timings = new ArrayList<>(steps.size());
+        for(Step s : steps){
+            timings.add(new Timing(s.name, s.stage, s.start < 0 ? -1 : s.start - origin, s.end < 0 ? -1 : s.end - origin));
+        }
+        return new Report(timings, firstActivity < 0 ? -1 : firstActivity - origin);
+    }
+
+    /**
+     * A task and its timing
+     */
+    private static class Step {
+        final Stage stage;
+        final String name;
+        final boolean background;
+        final Task task;
+        long start = -1;
+        long end = -1;
+
+        Step(Stage stage, String name, boolean background, Task task) {
+            this.stage = stage;
+            this.name = name;
+            this.background = background;
+            this.task = task;
+        }
+    }
+
+    /**
+     * When a task started and finished, in nanoseconds since the orchestrator was created
+     */
+    public static final class Timing {
+        public final String name;
+        public final Stage stage;
+        /**
+         * -1 if not yet started or finished
+         */
+        public final long startNanos, endNanos;
+
+        Timing(String name, Stage stage, long startNanos, long endNanos) {
+            this.name = name;
+            this.stage = stage;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+
+        /**
+         * @return How long the task took, -1 if it has not finished
+         */
+        public long getDurationNanos(){
+            return startNanos < 0 || endNanos < 0 ? -1 : endNanos - startNanos;
+        }
+    }
+
+    /**
+     * The timings of every task of a start
+     */
+    public static final class Report {
+        private final List<Timing> timings;
+        private final long firstActivityNanos;
+
+        Report(List<Timing> timings, long firstActivityNanos) {
+            this.timings = timings;
+            this.firstActivityNanos = firstActivityNanos;
+        }
+
+        @NonNull
+        public List<Timing> getTimings() {
+            return timings;
+        }
+
+        /**
+         * @return The time from the orchestrator being created to the first activity being shown, -1 if it has not been shown
+         */
+        public long getFirstActivityNanos() {
+            return firstActivityNanos;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Startup{firstActivity=").append(TimeUnit.NANOSECONDS.toMillis(firstActivityNanos)).append("ms");
+            for(Timing t : timings){
+                sb.append(", ").append(t.stage.name().toLowerCase()).append('/').append(t.name)
+                        .append("=[start=").append(TimeUnit.NANOSECONDS.toMillis(t.startNanos))
+                        .append("ms, took=").append(TimeUnit.NANOSECONDS.toMillis(t.getDurationNanos())).append("ms]");
+            }
+            return sb.append('}').toString();
+        }
+    }
+}
@@ -54,6 +54,14 @@ public abstract class SyzygyActivity extends AppCompatActivity implements Databa
         app.registerActivity(this);
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        //Held writes are sent right away, as the process may be stopped before their write window ends
+        Database db = ((SyzygyApplication) getApplication()).getDatabase();
+        if (db != null) db.flushWrites();
+    }
+
     @Override
     public <T extends DatabaseInstance<T>> void onUpdate(DatabaseInstance<T> instance, Type type) {
         SyzygyApplication app = (SyzygyApplication) getApplication();
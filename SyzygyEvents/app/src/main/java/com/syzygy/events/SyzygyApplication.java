@@ -28,9 +28,13 @@ import androidx.core.app.NotificationManagerCompat;
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.LocationServices;
 import com.google.firebase.Timestamp;
+import com.syzygy.events.database.CascadeDelete;
 import com.syzygy.events.database.Database;
 import com.syzygy.events.database.DatabaseInstance;
 import com.syzygy.events.database.Image;
+import com.syzygy.events.database.ImagePipeline;
+import com.syzygy.events.database.ImageVariants;
+import com.syzygy.events.database.LocalInstanceStore;
 import com.syzygy.events.database.Notification;
 import com.syzygy.events.database.User;
 import com.syzygy.events.ui.AdminActivity;
@@ -38,6 +42,7 @@ import com.syzygy.events.ui.EntrantActivity;
 import com.syzygy.events.ui.OrganizerActivity;
 import com.syzygy.events.ui.SignupActivity;
 
+import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -65,6 +70,11 @@ public class SyzygyApplication extends Application implements Consumer<RuntimeEx
      */
     public static final int LOCATION_REQUEST_CODE = 359;
 
+    /**
+     * The file, in the app's files directory, that the local store of documents is kept in
+     */
+    private static final String LOCAL_STORE_FILE = "instances.log";
+
     /**
      * The database instance for this appp
      */
@@ -86,9 +96,22 @@ public class SyzygyApplication extends Application implements Consumer<RuntimeEx
      */
     private SyzygyActivity currentActivity;
     /**
-     * The client to get the location
+     * The client to get the location. Created when the main thread is first idle, or on first use
+     * @see #getLocationClient()
      */
     private FusedLocationProviderClient location;
+    /**
+     * Runs the startup work in stages
+     */
+    private StartupOrchestrator startup;
+    /**
+     * The activity to open once the loading activity is shown, {@code null} if not yet known or already opened
+     */
+    private Class<? extends SyzygyActivity> startActivity;
+    /**
+     * If the activity chosen by the start has been opened
+     */
+    private boolean switchedToStartActivity = false;
 
     /**
      * Set of listeners that are waiting on receiving the device's location
@@ -111,25 +134,54 @@ public class SyzygyApplication extends Application implements Consumer<RuntimeEx
     @Override
     public void onCreate() {
         super.onCreate();
+        ImagePipeline.install(this);
+        startup = StartupOrchestrator.forMainLooper();
         if(!NO_DATABASE){
             db = new Database(getResources());
             db.addErrorListener(this);
+            //The user is shown from the last launch's data while the database is still being reached
+            LocalInstanceStore localStore = new LocalInstanceStore(new File(getFilesDir(), LOCAL_STORE_FILE));
+            db.setLocalStore(localStore);
+            //Lists load small variants of images rather than the images as picked
+            db.setImageVariants(new ImageVariants(getContentResolver()));
             deviceID = Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);
-            db.<User>getInstance(Database.Collections.USERS, deviceID, (instance, success) -> {
-                if(success) setUser(instance);
-                switchToActivity(success ? EntrantActivity.class : SignupActivity.class);
+            db.setDeviceID(deviceID);
+            //The user is read once the store is loaded in the background, so it can be served from it
+            startup.add(StartupOrchestrator.Stage.CRITICAL, "user", done -> localStore.whenLoaded(r -> db.getBackend().post(r, 0), () -> {
+                db.<User>getInstance(Database.Collections.USERS, deviceID, (instance, success) -> {
+                    if(success) user = instance;
+                    startActivity = success ? EntrantActivity.class : SignupActivity.class;
+                    done.run();
+                    switchToStartActivity();
+                });
+            }));
+            startup.add(StartupOrchestrator.Stage.DEFERRED, "notificationListener", done -> {
+                if(user != null && notificationListener == null) listenForNotifications(user);
+                done.run();
             });
+            //Deletions that were interrupted are finished once the app is idle
+            startup.add(StartupOrchestrator.Stage.IDLE, "cascadeDeletes", done -> CascadeDelete.resumeAll(db, success -> done.run()));
+        }else{
+            //There is no start activity to wait on
+            switchedToStartActivity = true;
         }
 
-        Image.loadAsDrawable(Image.formatImage(R.drawable.default_user, Image.Options.Circle(Image.Options.Sizes.ICON)), getResources(), (s,d) -> {
-            menuAdminIcon = d;
+        startup.add(StartupOrchestrator.Stage.DEFERRED, "menuAdminIcon", done -> {
+            Image.loadAsDrawable(Image.formatImage(R.drawable.default_user, Image.Options.Circle(Image.Options.Sizes.ICON)), getResources(), (s,d) -> {
+                menuAdminIcon = d;
+                done.run();
+            });
         });
-        Image.loadAsDrawable(Image.formatImage(R.drawable.create_facility, Image.Options.Circle(Image.Options.Sizes.ICON)), getResources(), (s,d) -> {
-            menuAddFacilityIcon = d;
+        startup.add(StartupOrchestrator.Stage.DEFERRED, "menuAddFacilityIcon", done -> {
+            Image.loadAsDrawable(Image.formatImage(R.drawable.create_facility, Image.Options.Circle(Image.Options.Sizes.ICON)), getResources(), (s,d) -> {
+                menuAddFacilityIcon = d;
+                done.run();
+            });
         });
+        startup.addBackground(StartupOrchestrator.Stage.IDLE, "locationClient", this::getLocationClient);
 
-        location = LocationServices.getFusedLocationProviderClient(this);
-
+        startup.setOnComplete(report -> Log.println(Log.INFO, "startup", report.toString()));
+        startup.start();
     }
 
     /**
@@ -137,9 +189,37 @@ public class SyzygyApplication extends Application implements Consumer<RuntimeEx
      */
     private void setUser(@Database.Stirs User u){
         this.user = u;
+        listenForNotifications(u);
+    }
+
+    /**
+     * Registers the notification listener of the user
+     * @param u The user
+     */
+    private void listenForNotifications(@Database.Observes User u){
+        if(notificationListener != null) notificationListener.dissolve();
         this.notificationListener = u.new NotificationListener(this::sendNotification);
     }
 
+    /**
+     * Opens the activity chosen by the start once both it is known and the loading activity is shown
+     */
+    private void switchToStartActivity(){
+        if(startActivity == null || currentActivity == null) return;
+        Class<? extends SyzygyActivity> to = startActivity;
+        startActivity = null;
+        switchedToStartActivity = true;
+        switchToActivity(to);
+    }
+
+    /**
+     * @return The location client, which is created on first use
+     */
+    private synchronized FusedLocationProviderClient getLocationClient(){
+        if(location == null) location = LocationServices.getFusedLocationProviderClient(this);
+        return location;
+    }
+
     /**
      * Loads the icon for the account menu
      * @param menu The menu
@@ -176,6 +256,14 @@ public class SyzygyApplication extends Application implements Consumer<RuntimeEx
         menu.findItem(R.id.add_organizer_item).setIcon(menuAddFacilityIcon);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if(level >= TRIM_MEMORY_UI_HIDDEN){
+            ImagePipeline.getBitmapPool().clear();
+        }
+    }
+
     @Override
     public void onTerminate() {
         if(user != null)user.dissolve();
@@ -186,7 +274,8 @@ public class SyzygyApplication extends Application implements Consumer<RuntimeEx
 
     /**
      * Called on create of activities to register that this activity is the current activity.
-     * Switches the update listener over to the new activity
+     * Switches the update listener over to the new activity.
+     * The loading activity being shown lets the start open its chosen activity, which being shown starts the deferred startup work
      * @param activity The now current activity
      */
     void registerActivity(SyzygyActivity activity){
@@ -197,6 +286,11 @@ public class SyzygyApplication extends Application implements Consumer<RuntimeEx
         if(user != null){
             user.addListener(activity);
         }
+        if(switchedToStartActivity){
+            startup.firstActivityShown();
+        }else{
+            switchToStartActivity();
+        }
     }
 
     /**
@@ -240,7 +334,7 @@ public class SyzygyApplication extends Application implements Consumer<RuntimeEx
     @SuppressLint("MissingPermission")
     private void retrieveLocation(){
         if(canGetLocation()){
-            location.getLastLocation().addOnCompleteListener(task -> {
+            getLocationClient().getLastLocation().addOnCompleteListener(task -> {
                 if(!task.isSuccessful()){
                     pingLocation(false);
                     return;
@@ -0,0 +1,439 @@
+package com.syzygy.events.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The document and file storage underneath the database.
+ * <p>
+ *     Documents are identified by their collection name and id, and hold a name-value map. Every operation completes
+ *     asynchronously through its listener. Only plain Java types are used, so an implementation does not need the Firebase SDK.
+ * </p>
+ * @see FirestoreBackend
+ * @see InMemoryBackend
+ */
+public interface Backend {
+
+    /**
+     * The field name that refers to the id of a document in filters and orderings
+     */
+    String DOCUMENT_ID = "__name__";
+
+    /**
+     * Reads a document
+     * @param collection The collection name
+     * @param id The document id
+     * @param fromServer If the read must not be answered from a local cache
+     * @param listener Called with the document and if the read was successful. The document is null if the read failed
+     */
+    void get(String collection, String id, boolean fromServer, BiConsumer<Document, Boolean> listener);
+
+    /**
+     * Creates or replaces a document
+     * @param collection The collection name
+     * @param id The document id
+     * @param data The fields of the document. May contain {@link Increment} values
+     * @param listener Called with if the write was successful
+     */
+    void set(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener);
+
+    /**
+     * Creates a document or changes fields of it, keeping the fields that are not given
+     * @param collection The collection name
+     * @param id The document id
+     * @param data The fields to write. May contain {@link Increment} values
+     * @param listener Called with if the write was successful
+     */
+    void merge(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener);
+
+    /**
+     * Changes fields of an existing document. Fails if the document does not exist
+     * @param collection The collection name
+     * @param id The document id
+     * @param data The fields to change. May contain {@link Increment} values
+     * @param listener Called with if the write was successful
+     */
+    void update(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener);
+
+    /**
+     * Deletes a document. Succeeds if the document does not exist
+     * @param collection The collection name
+     * @param id The document id
+     * @param listener Called with if the delete was successful
+     */
+    void delete(String collection, String id, Consumer<Boolean> listener);
+
+    /**
+     * Reads the documents that match a query
+     * @param query The query
+     * @param listener Called with the documents in order and if the read was successful
+     */
+    void query(Query query, BiConsumer<List<Document>, Boolean> listener);
+
+    /**
+     * Counts the documents that match a query without reading them
+     * @param query The query
+     * @param listener Called with the count and if the count was successful
+     */
+    void count(Query query, BiConsumer<Long, Boolean> listener);
+
+    /**
+     * @return A new batch of writes that are committed together
+     */
+    Batch batch();
+
+    /**
+     * The number of times a transaction is attempted unless specified
+     */
+    int DEFAULT_TRANSACTION_ATTEMPTS = 5;
+
+    /**
+     * Runs a function that reads and writes documents atomically, attempting it up to {@value #DEFAULT_TRANSACTION_ATTEMPTS} times
+     * @param function The function. Its result is passed to the listener
+     * @param listener Called with the result of the function and if the transaction committed
+     * @param <R> The type of result
+     * @see #runTransaction(int, Function, BiConsumer)
+     */
+    default <R> void runTransaction(Function<Transaction, R> function, BiConsumer<R, Boolean> listener){
+        runTransaction(DEFAULT_TRANSACTION_ATTEMPTS, function, listener);
+    }
+
+    /**
+     * Runs a function that reads and writes documents atomically. The function may be run more than once if
+     * the documents it read change before it commits, so it must not have other side effects
+     * @param maxAttempts The number of times the transaction is attempted before it fails
+     * @param function The function. Its result is passed to the listener
+     * @param listener Called with the result of the function and if the transaction committed
+     * @param <R> The type of result
+     */
+    <R> void runTransaction(int maxAttempts, Function<Transaction, R> function, BiConsumer<R, Boolean> listener);
+
+    /**
+     * Listens to the documents that match a query. The listener is called with the current documents, then each time they change
+     * @param query The query
+     * @param listener Called with each snapshot and if it was received successfully
+     * @return The registration, removed to stop listening
+     */
+    Registration listen(Query query, BiConsumer<Snapshot, Boolean> listener);
+
+    /**
+     * @param collection The collection name
+     * @return A new id that is not used by any document of the collection
+     */
+    String newId(String collection);
+
+    /**
+     * Runs a task on the thread that listeners are called on
+     * @param task The task
+     * @param delayMillis How long to wait before running the task
+     * @return {@code false} if the task could not be scheduled, in which case it is not run
+     */
+    boolean post(Runnable task, long delayMillis);
+
+    /**
+     * Uploads a file
+     * @param name The name of the file in the storage
+     * @param uri The uri of the local file
+     * @param listener Called with the download url of the file, or null if the upload failed
+     */
+    void putFile(String name, String uri, Consumer<String> listener);
+
+    /**
+     * Uploads the contents of a file
+     * @param name The name of the file in the storage
+     * @param data The contents of the file
+     * @param contentType The mime type of the contents
+     * @param listener Called with the download url of the file, or null if the upload failed
+     */
+    void putBytes(String name, byte[] data, String contentType, Consumer<String> listener);
+
+    /**
+     * Deletes a file
+     * @param name The name of the file in the storage
+     * @param listener Called with if the delete was successful
+     */
+    void deleteFile(String name, Consumer<Boolean> listener);
+
+    /**
+     * @param amount The amount to add
+     * @return A field value that adds the amount to the current value of the field, treating a missing field as 0
+     */
+    static Increment increment(long amount){
+        return new Increment(amount);
+    }
+
+    /**
+     * A field value that adds to the current value of the field
+     */
+    final class Increment {
+        public final long amount;
+
+        Increment(long amount) {
+            this.amount = amount;
+        }
+    }
+
+    /**
+     * A document read from the backend
+     */
+    final class Document {
+        public final String collection;
+        public final String id;
+        /**
+         * The fields of the document. Null if the document does not exist
+         */
+        public final Map<String, Object> data;
+
+        public Document(String collection, String id, Map<String, Object> data) {
+            this.collection = collection;
+            this.id = id;
+            this.data = data == null ? null : Collections.unmodifiableMap(data);
+        }
+
+        /**
+         * @return {@code true} if the document exists
+         */
+        public boolean exists(){
+            return data != null;
+        }
+
+        /**
+         * @param field The field name
+         * @return The value of the field, or null if it or the document does not exist
+         */
+        public Object get(String field){
+            if(data == null) return null;
+            return DOCUMENT_ID.equals(field) ? id : data.get(field);
+        }
+
+        /**
+         * @param field The field name
+         * @return The value of the field, or null if it does not exist or is not a string
+         */
+        public String getString(String field){
+            Object value = get(field);
+            return value instanceof String ? (String) value : null;
+        }
+
+        /**
+         * @param field The field name
+         * @return The value of the field, or null if it does not exist or is not a number
+         */
+        public Long getLong(String field){
+            Object value = get(field);
+            return value instanceof Number ? ((Number) value).longValue() : null;
+        }
+
+        /**
+         * @param field The field name
+         * @return The value of the field, or null if it does not exist or is not a boolean
+         */
+        public Boolean getBoolean(String field){
+            Object value = get(field);
+            return value instanceof Boolean ? (Boolean) value : null;
+        }
+    }
+
+    /**
+     * A query on a single collection. Queries are immutable, each method returns a new query
+     */
+    final class Query {
+        public final String collection;
+        public final List<Filter> filters;
+        /**
+         * The field the results are ordered by. Null to order by document id
+         */
+        public final String orderBy;
+        public final boolean descending;
+        /**
+         * The maximum number of results. 0 if unlimited
+         */
+        public final int limit;
+        /**
+         * If the limit keeps the last results rather than the first
+         */
+        public final boolean limitToLast;
+        /**
+         * The document the results start at. Null to start at the beginning
+         */
+        public final Document startAt;
+        /**
+         * The document the results start after. Null to start at the beginning
+         */
+        public final Document startAfter;
+        /**
+         * The document the results end before. Null to end at the end
+         */
+        public final Document endBefore;
+
+        private Query(String collection, List<Filter> filters, String orderBy, boolean descending, int limit, boolean limitToLast, Document startAt, Document startAfter, Document endBefore) {
+            this.collection = collection;
+            this.filters = Collections.unmodifiableList(filters);
+            this.orderBy = orderBy;
+            this.descending = descending;
+            this.limit = limit;
+            this.limitToLast = limitToLast;
+            this.startAt = startAt;
+            this.startAfter = startAfter;
+            this.endBefore = endBefore;
+        }
+
+        /**
+         * @param collection The collection name
+         * @return A query for every document of the collection, ordered by document id
+         */
+        public static Query of(String collection){
+            return new Query(collection, new ArrayList<>(), null, false, 0, false, null, null, null);
+        }
+
+        private Query where(Filter filter){
+            List<Filter> f = new ArrayList<>(filters);
+            f.add(filter);
+            return new Query(collection, f, orderBy, descending, limit, limitToLast, startAt, startAfter, endBefore);
+        }
+
+        public Query whereEqualTo(String field, Object value){
+            return where(new Filter(field, Filter.Op.EQUAL, value));
+        }
+
+        public Query whereNotEqualTo(String field, Object value){
+            return where(new Filter(field, Filter.Op.NOT_EQUAL, value));
+        }
+
+        public Query whereIn(String field, List<?> values){
+            return where(new Filter(field, Filter.Op.IN, values));
+        }
+
+        public Query orderBy(String field, boolean descending){
+            return new Query(collection, filters, field, descending, limit, limitToLast, startAt, startAfter, endBefore);
+        }
+
+        public Query limit(int limit){
+            return new Query(collection, filters, orderBy, descending, limit, false, startAt, startAfter, endBefore);
+        }
+
+        public Query limitToLast(int limit){
+            return new Query(collection, filters, orderBy, descending, limit, true, startAt, startAfter, endBefore);
+        }
+
+        public Query startAt(Document document){
+            return new Query(collection, filters, orderBy, descending, limit, limitToLast, document, null, endBefore);
+        }
+
+        public Query startAfter(Document document){
+            return new Query(collection, filters, orderBy, descending, limit, limitToLast, null, document, endBefore);
+        }
+
+        public Query endBefore(Document document){
+            return new Query(collection, filters, orderBy, descending, limit, limitToLast, startAt, startAfter, document);
+        }
+
+        /**
+         * @return {@code true} if the results start or end at a document
+         */
+        public boolean hasCursor(){
+            return startAt != null || startAfter != null || endBefore != null;
+        }
+    }
+
+    /**
+     * A condition on a field of a document
+     */
+    final class Filter {
+        public enum Op { EQUAL, NOT_EQUAL, IN }
+
+        public final String field;
+        public final Op op;
+        /**
+         * The value compared against. A list for {@link Op#IN}
+         */
+        public final Object value;
+
+        Filter(String field, Op op, Object value) {
+            this.field = field;
+            this.op = op;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Writes that are committed together. Either all are applied or none are
+     */
+    interface Batch {
+        Batch set(String collection, String id, Map<String, Object> data);
+        Batch update(String collection, String id, Map<String, Object> data);
+        Batch delete(String collection, String id);
+
+        /**
+         * Commits the writes
+         * @param listener Called with if the writes were applied
+         */
+        void commit(Consumer<Boolean> listener);
+    }
+
+    /**
+     * The reads and writes of a transaction. All reads must happen before any write
+     */
+    interface Transaction {
+        /**
+         * @throws RuntimeException if the read fails, which fails the transaction
+         */
+        Document get(String collection, String id);
+        void set(String collection, String id, Map<String, Object> data);
+        void update(String collection, String id, Map<String, Object> data);
+        void delete(String collection, String id);
+    }
+
+    /**
+     * The documents of a listened query and the changes since the previous snapshot
+     */
+    final class Snapshot {
+        public final List<Document> documents;
+        public final List<Change> changes;
+
+        public Snapshot(List<Document> documents, List<Change> changes) {
+            this.documents = Collections.unmodifiableList(documents);
+            this.changes = Collections.unmodifiableList(changes);
+        }
+    }
+
+    /**
+     * A change to the results of a listened query. Changes apply in order, so each index accounts for the changes before it
+     */
+    final class Change {
+        public enum Type { ADDED, MODIFIED, REMOVED }
+
+        public final Type type;
+        public final Document document;
+        /**
+         * The previous index of the document. -1 if added
+         */
+        public final int oldIndex;
+        /**
+         * The new index of the document. -1 if removed
+         */
+        public final int newIndex;
+
+        public Change(Type type, Document document, int oldIndex, int newIndex) {
+            this.type = type;
+            this.document = document;
+            this.oldIndex = oldIndex;
+            this.newIndex = newIndex;
+        }
+    }
+
+    /**
+     * A listener registration
+     */
+    interface Registration {
+        /**
+         * Stops listening. No more snapshots are received
+         */
+        void remove();
+    }
+}
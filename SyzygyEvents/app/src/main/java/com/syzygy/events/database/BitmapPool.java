@@ -0,0 +1,156 @@
+package com.syzygy.events.database;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pool of bitmaps that are no longer shown, reused by the image transformations instead of allocating a new bitmap per call.
+ * <p>
+ *     Only bitmaps that nothing else refers to may be put in the pool, such as the source of a transformation once it has
+ *     drawn its result. Bitmaps are reused for the exact same width, height and config, which is the common case as images
+ *     are resized to one of a few {@link Image.Options.Sizes} before they are transformed. Once the pool holds more than its
+ *     maximum bytes, the bitmaps of the least recently used shape are recycled.
+ * </p>
+ * @see Image.Options#modifyImage(com.squareup.picasso.RequestCreator)
+ */
+public final class BitmapPool {
+
+    /**
+     * The default maximum bytes held by the pool
+     */
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * The pooled bitmaps by shape, least recently used shape first
+     */
+    private final Map<String, ArrayDeque<Bitmap>> pooled = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes = 0;
+    private long hits = 0, misses = 0;
+
+    public BitmapPool() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes The maximum bytes held by the pool
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static String shape(int width, int height, Bitmap.Config config){
+        return width + "x" + height + ":" + config;
+    }
+
+    /**
+     * Returns a cleared bitmap of the shape, from the pool if one is held
+     * @param width The width
+     * @param height The height
+     * @param config The config, null for {@link Bitmap.Config#ARGB_8888}
+     * @return The bitmap, which is mutable and transparent
+     */
+    @NonNull
+    public Bitmap get(int width, int height, Bitmap.Config config){
+        if(config == null) config = Bitmap.Config.ARGB_8888;
+        Bitmap b = null;
+        synchronized (this){
+            ArrayDeque<Bitmap> q = pooled.get(shape(width, height, config));
+            if(q != null){
+                b = q.pollLast();
+                if(q.isEmpty()) pooled.remove(shape(width, height, config));
+            }
+            if(b != null){
+                hits++;
+                bytes -= b.getAllocationByteCount();
+            }else{
+                misses++;
+            }
+        }
+        if(b == null) return Bitmap.createBitmap(width, height, config);
+        b.eraseColor(Color.TRANSPARENT);
+        return b;
+    }
+
+    /**
+     * Returns a bitmap to the pool. It must not be used or shown afterwards.
+     * Bitmaps that cannot be reused, or that do not fit in the pool, are recycled
+     * @param bitmap The bitmap
+     */
+    public void put(@NonNull Bitmap bitmap){
+        if(bitmap.isRecycled()) return;
+        long size = bitmap.getAllocationByteCount();
+        if(!bitmap.isMutable() || bitmap.getConfig() == null || size > maxBytes){
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this){
+            String key = shape(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> q = pooled.get(key);
+            if(q == null){
+                q = new ArrayDeque<>();
+                pooled.put(key, q);
+            }
+            q.addLast(bitmap);
+            bytes += size;
+            trim(maxBytes);
+        }
+    }
+
+    private void trim(long max){
+        Iterator<ArrayDeque<Bitmap>> it = pooled.values().iterator();
+        while(bytes > max && it.hasNext()){
+            ArrayDeque<Bitmap> q = it.next();
+            while(bytes > max && !q.isEmpty()){
+                Bitmap b = q.pollFirst();
+                bytes -= b.getAllocationByteCount();
+                b.recycle();
+            }
+            if(q.isEmpty()) it.remove();
+        }
+    }
+
+    /**
+     * Sets the maximum bytes held by the pool, recycling bitmaps if it now holds more
+     * @param maxBytes The maximum bytes
+     */
+    public synchronized void setMaxBytes(long maxBytes){
+        this.maxBytes = maxBytes;
+        trim(maxBytes);
+    }
+
+    /**
+     * Recycles every pooled bitmap
+     */
+    public synchronized void clear(){
+        trim(0);
+    }
+
+    /**
+     * @return The bytes held by the pool
+     */
+    public synchronized long getBytes(){
+        return bytes;
+    }
+
+    /**
+     * @return The number of requested bitmaps that were reused
+     */
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    /**
+     * @return The number of requested bitmaps that had to be allocated
+     */
+    public synchronized long getMisses(){
+        return misses;
+    }
+}
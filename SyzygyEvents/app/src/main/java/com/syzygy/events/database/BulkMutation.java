@@ -0,0 +1,287 @@
+package com.syzygy.events.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Applies the same change to many documents without loading their instances.
+ * <p>
+ *     The documents of a query are read one page at a time, ordered by id and continuing after the last document of the
+ *     previous page, so documents that stop matching the query once they are changed are neither skipped nor changed twice.
+ *     Each page is split into write batches of at most {@link ChunkedCommitter#MAX_BATCH_OPERATIONS} documents, which are
+ *     committed in parallel and retried if they fail. Progress is reported after every batch and the totals once every page is done.
+ * </p>
+ * <p>
+ *     A batch commits all of its documents or none of them. An update of a document that was deleted after it was read fails
+ *     its whole batch, so the other documents of that batch fail with it. The documents of every failed batch are reported in
+ *     {@link Result#failedDocuments}, so they can be applied again on their own.
+ * </p>
+ * <p>
+ *     Given the database, the local data of every changed document is forgotten and the reads and writes are counted.
+ *     The instances of the documents are not notified, they are updated by their snapshot listeners.
+ * </p>
+ * @see ChunkedCommitter
+ * @see Database#bulkModifyField(Backend.Query, int, Object, Consumer)
+ */
+public class BulkMutation {
+
+    /**
+     * The number of documents read per page
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * Deletes each document
+     */
+    public static final Mutation DELETE = Backend.Batch::delete;
+
+    private final Backend backend;
+    @Nullable
+    private final Database db;
+    private final int pageSize;
+    private final ChunkedCommitter<Backend.Document> committer;
+
+    /**
+     * Creates a mutation of the documents of the database with the default page size, batch size, parallelism and retries
+     * @param db The database the documents are in
+     */
+    public BulkMutation(@NonNull Database db){
+        this(db.getBackend(), db, DEFAULT_PAGE_SIZE, ChunkedCommitter.MAX_BATCH_OPERATIONS, ChunkedCommitter.DEFAULT_PARALLELISM, ChunkedCommitter.DEFAULT_RETRIES);
+    }
+
+    /**
+     * @param backend The storage the documents are in
+     * @param db The model of the database, null if the documents are not part of it
+     * @param pageSize The number of documents read per page
+     * @param batchSize The maximum number of documents per write batch, at most {@link ChunkedCommitter#MAX_BATCH_OPERATIONS}
+     * @param parallelism The maximum number of batches in flight at once
+     * @param retries The number of times a failed batch is committed again
+     * @throws IllegalArgumentException if a size or the parallelism is not positive, the batch size is above the limit, or the retries are negative
+     */
+    public BulkMutation(@NonNull Backend backend, @Nullable Database db, int pageSize, int batchSize, int parallelism, int retries) throws IllegalArgumentException{
+        if(pageSize <= 0) throw new IllegalArgumentException("Page size must be positive");
+        if(batchSize <= 0) throw new IllegalArgumentException("Batch size must be positive");
+        if(batchSize > ChunkedCommitter.MAX_BATCH_OPERATIONS) throw new IllegalArgumentException("A write batch holds at most " + ChunkedCommitter.MAX_BATCH_OPERATIONS + " operations");
+        if(parallelism <= 0) throw new IllegalArgumentException("Parallelism must be positive");
+        if(retries < 0) throw new IllegalArgumentException("Retries must not be negative");
+        this.backend = backend;
+        this.db = db;
+        this.pageSize = pageSize;
+        this.committer = new ChunkedCommitter<>(batchSize, parallelism, retries);
+    }
+
+    /**
+     * @param fields The field-value map of the update
+     * @return A mutation that updates the fields of each document
+     */
+    public static Mutation update(Map<String, Object> fields){
+        return (batch, collection, id) -> batch.update(collection, id, fields);
+    }
+
+    /**
+     * @param field The field to update
+     * @param value The new value of the field
+     * @return A mutation that updates the field of each document
+     */
+    public static Mutation update(String field, Object value){
+        return update(Collections.singletonMap(field, value));
+    }
+
+    /**
+     * Applies the mutation to every document matching the query
+     * @param query The query. Documents are read in pages ordered by id, replacing any order of the query
+     * @param mutation The change made to each document
+     * @param listener Called after each batch and once every page is done
+     */
+    public void apply(@NonNull Backend.Query query, @NonNull Mutation mutation, @NonNull Listener listener){
+        Progress progress = new Progress(listener);
+        Tracer.Span span = db == null ? null : db.tracer.begin("bulkMutation", null);
+        applyPage(query.orderBy(Backend.DOCUMENT_ID, false).limit(pageSize), null, mutation, progress, success -> {
+            if(span != null) span.end();
+            Result r = progress.result();
+            if(span == null){
+                listener.onComplete(r, success);
+                return;
+            }
+            try(Tracer.Scope sc = span.parent().enter()){
+                listener.onComplete(r, success);
+            }
+        });
+    }
+
+    /**
+     * Applies the mutation to each document
+     * @param documents The documents
+     * @param mutation The change made to each document
+     * @param listener Called after each batch and once every batch is done
+     */
+    public void apply(@NonNull List<Backend.Document> documents, @NonNull Mutation mutation, @NonNull Listener listener){
+        Progress progress = new Progress(listener);
+        progress.matched += documents.size();
+        commit(documents, mutation, progress, success -> listener.onComplete(progress.result(), success));
+    }
+
+    private void applyPage(Backend.Query query, @Nullable Backend.Document after, Mutation mutation, Progress progress, Consumer<Boolean> onComplete){
+        Backend.Query page = after == null ? query : query.startAfter(after);
+        backend.query(page, (docs, read) -> {
+            if(!read){
+                onComplete.accept(false);
+                return;
+            }
+            for(Backend.Document d : docs){
+                count(d, DatabaseMetrics.Operation.READ);
+            }
+            progress.matched += docs.size();
+            commit(docs, mutation, progress, success -> {
+                if(docs.size() < pageSize){
+                    onComplete.accept(success && progress.failed == 0);
+                    return;
+                }
+                applyPage(query, docs.get(docs.size() - 1), mutation, progress, onComplete);
+            });
+        });
+    }
+
+    private void commit(List<Backend.Document> refs, Mutation mutation, Progress progress, Consumer<Boolean> onComplete){
+        committer.commit(refs, (chunk, onCommitted) -> {
+            Backend.Batch batch = backend.batch();
+            for(Backend.Document doc : chunk){
+                if(db != null) db.invalidateLocally(doc.collection + '/' + doc.id);
+                mutation.apply(batch, doc.collection, doc.id);
+            }
+            batch.commit(onCommitted);
+        }, new ChunkedCommitter.Listener<Backend.Document>() {
+            @Override
+            public void onChunk(int index, boolean success) {
+                int size = Math.min(committer.getChunkSize(), refs.size() - index * committer.getChunkSize());
+                progress.chunks ++;
+                if(success){
+                    progress.changed += size;
+                }else{
+                    progress.failed += size;
+                    progress.failedChunks ++;
+                }
+                progress.listener.onProgress(progress.changed, progress.failed);
+            }
+
+            @Override
+            public void onComplete(ChunkedCommitter.Result<Backend.Document> r) {
+                for(Backend.Document doc : r.committed){
+                    count(doc, DatabaseMetrics.Operation.WRITE);
+                }
+                progress.retries += r.retries;
+                progress.failedDocuments.addAll(r.failed);
+                onComplete.accept(r.failedChunks == 0);
+            }
+        });
+    }
+
+    private void count(Backend.Document doc, DatabaseMetrics.Operation operation){
+        if(db == null) return;
+        db.metrics.count(Database.Collections.fromCollectionID(doc.collection), operation, 1);
+    }
+
+    /**
+     * A change made to each document
+     */
+    public interface Mutation {
+        /**
+         * @param batch The batch the change is added to
+         * @param collection The collection of the document
+         * @param id The id of the document
+         */
+        void apply(Backend.Batch batch, String collection, String id);
+    }
+
+    /**
+     * Listens to the progress of a mutation
+     */
+    public interface Listener {
+        /**
+         * Called each time a batch finishes, after any retries
+         * @param changed The number of documents changed so far
+         * @param failed The number of documents whose batch failed so far
+         */
+        default void onProgress(int changed, int failed){}
+
+        /**
+         * Called once every document has been attempted
+         * @param result The totals of the mutation
+         * @param success If every document was read and changed
+         */
+        void onComplete(Result result, boolean success);
+    }
+
+    /**
+     * The running totals of a mutation
+     */
+    private static class Progress {
+        final Listener listener;
+        final long start = System.nanoTime();
+        int matched = 0, changed = 0, failed = 0, chunks = 0, failedChunks = 0, retries = 0;
+        final List<Backend.Document> failedDocuments = new ArrayList<>();
+
+        Progress(Listener listener) {
+            this.listener = listener;
+        }
+
+        Result result(){
+            return new Result(matched, changed, failed, failedDocuments, chunks, failedChunks, retries, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The totals of a mutation
+     */
+    public static class Result {
+        /**
+         * The number of documents read or given
+         */
+        public final int matched;
+        /**
+         * The number of documents changed
+         */
+        public final int changed;
+        /**
+         * The number of documents whose batch failed
+         */
+        public final int failed;
+        /**
+         * The documents whose batch failed. A batch fails as a whole, so some of them may have been fine on their own
+         */
+        public final List<Backend.Document> failedDocuments;
+        /**
+         * The number of write batches
+         */
+        public final int batches;
+        /**
+         * The number of write batches that failed after their retries
+         */
+        public final int failedBatches;
+        /**
+         * The number of times a failed batch was committed again
+         */
+        public final int retries;
+        /**
+         * The time from the start of the mutation until the last batch finished
+         */
+        public final long elapsedNanos;
+
+        Result(int matched, int changed, int failed, List<Backend.Document> failedDocuments, int batches, int failedBatches, int retries, long elapsedNanos) {
+            this.matched = matched;
+            this.changed = changed;
+            this.failed = failed;
+            this.failedDocuments = Collections.unmodifiableList(failedDocuments);
+            this.batches = batches;
+            this.failedBatches = failedBatches;
+            this.retries = retries;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.syzygy.events.database;
+
+import android.util.Log;
+
+import com.google.firebase.Timestamp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Deletes the documents found by the cascade delete queries of an instance without loading their instances.
+ * <p>
+ *     The documents of a query are read page by page, keeping only their references and the fields their deletion depends on,
+ *     and deleted in parallel write batches. Only collections whose documents cascade no further are deleted this way, see
+ *     {@link #deletesWithoutInstances(Database.Collections)}; the documents of any other collection are still loaded and deleted
+ *     through their instances. Once a chunk is deleted, the local data and any live instance of its documents are forgotten.
+ * </p>
+ * <p>
+ *     Before anything is deleted a checkpoint naming the instance is written, and it is only removed once the instance itself is
+ *     deleted. The queries only find the documents that are left, so an interrupted cascade is finished by deleting the instance
+ *     again, which {@link #resumeAll(Database, Consumer)} does for every checkpoint the device abandoned.
+ * </p>
+ * @see DatabaseInstance#deleteInstance(int, Consumer)
+ * @see DatabaseInstance#subInstanceCascadeDeleteQuery()
+ */
+public class CascadeDelete {
+
+    /**
+     * The Firestore identifier for the collection of checkpoints
+     */
+    static final String COLLECTION = "cascade_deletes";
+    /**
+     * The number of documents read per page
+     */
+    static final int PAGE_SIZE = 1000;
+    /**
+     * The number of associations removed per transaction, leaving room for the update of the count of each of their events
+     */
+    static final int COUNTED_CHUNK_SIZE = 200;
+    /**
+     * How long a checkpoint is left alone before it is thought abandoned, in milliseconds
+     */
+    static final long STALE_MILLIS = 10 * 60 * 1000;
+
+    private static final String FIELD_COLLECTION = "Collection";
+    private static final String FIELD_DOCUMENT = "DocumentID";
+    private static final String FIELD_TYPE = "DeletionType";
+    private static final String FIELD_STARTED = "StartedTime";
+    private static final String FIELD_DELETED = "Deleted";
+    private static final String FIELD_DEVICE = "DeviceID";
+
+    /**
+     * The collections whose instances have no cascade delete queries, no cascading properties and nothing to delete first
+     */
+    private static final Set<Database.Collections> LEAVES = EnumSet.of(Database.Collections.EVENT_ASSOCIATIONS, Database.Collections.NOTIFICATIONS);
+
+    private final Database db;
+    private final Database.Collections collection;
+    private final String documentID;
+    private final Backend backend;
+    private int deleted = 0;
+    private boolean failed = false;
+
+    /**
+     * @param db The database
+     * @param instance The instance being deleted
+     */
+    CascadeDelete(Database db, @Database.Observes DatabaseInstance<?> instance) {
+        this.db = db;
+        this.collection = instance.getCollection();
+        this.documentID = instance.getDocumentID();
+        this.backend = db.getBackend();
+    }
+
+    /**
+     * @param collection The collection of a cascaded document
+     * @return {@code true} if the documents of the collection can be deleted without loading their instances
+     */
+    static boolean deletesWithoutInstances(Database.Collections collection){
+        if(!LEAVES.contains(collection)) return false;
+        for(DatabaseInstance.PropertyField<?,?> f : DatabaseInstance.getFields(collection)){
+            if(f.cascadeDelete) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The id of the checkpoint of the deletion of the instance
+     */
+    private String getCheckpointID(){
+        return collection.getCollectionID() + "-" + documentID;
+    }
+
+    /**
+     * Writes the checkpoint, naming the device that deletes the instance. The write is not waited on, it is applied before the deletes that follow it
+     * @param deletionType The {@link DatabaseInstance.DeletionType} of the deletion
+     */
+    void begin(int deletionType){
+        Map<String, Object> data = new HashMap<>();
+        data.put(FIELD_COLLECTION, collection.getCollectionID());
+        data.put(FIELD_DOCUMENT, documentID);
+        data.put(FIELD_TYPE, deletionType);
+        data.put(FIELD_STARTED, Timestamp.now());
+        data.put(FIELD_DEVICE, db.getDeviceID());
+        backend.merge(COLLECTION, getCheckpointID(), data, s -> {});
+    }
+
+    /**
+     * Removes the checkpoint once the instance is deleted
+     */
+    void finish(){
+        backend.delete(COLLECTION, getCheckpointID(), s -> {});
+    }
+
+    /**
+     * @return {@code true} if every document found by the queries was deleted
+     */
+    boolean isComplete(){
+        return !failed;
+    }
+
+    /**
+     * @return The number of documents deleted so far
+     */
+    int getDeleted(){
+        return deleted;
+    }
+
+    /**
+     * Deletes every document found by the query, one page at a time
+     * @param query The cascade delete query
+     * @param cascaded The collection of the documents, which must {@link #deletesWithoutInstances(Database.Collections) not need their instances}
+     * @param onComplete Called once every page has been attempted, with if every document was deleted
+     */
+    void deleteDocuments(Backend.Query query, Database.Collections cascaded, Consumer<Boolean> onComplete){
+        Tracer.Span span = db.tracer.begin("cascadeDelete", cascaded.getCollectionID());
+        deletePage(query.orderBy(Backend.DOCUMENT_ID, false).limit(PAGE_SIZE), null, cascaded, true, success -> {
+            span.end();
+            if(!success) failed = true;
+            try(Tracer.Scope sc = span.parent().enter()){
+                onComplete.accept(success);
+            }
+        });
+    }
+
+    /**
+     * Deletes a page of documents, then the pages after it
+     * @param query The ordered and limited query
+     * @param after The last document of the previous page, null for the first page
+     * @param cascaded The collection of the documents
+     * @param succeeded If every previous page was deleted
+     * @param onComplete Called once the last page has been attempted
+     */
+    private void deletePage(Backend.Query query, Backend.Document after, Database.Collections cascaded, boolean succeeded, Consumer<Boolean> onComplete){
+        Backend.Query page = after == null ? query : query.startAfter(after);
+        backend.query(page, (docs, read) -> {
+            if(!read){
+                onComplete.accept(false);
+                return;
+            }
+            db.metrics.count(cascaded, DatabaseMetrics.Operation.READ, docs.size());
+            if(docs.isEmpty()){
+                onComplete.accept(succeeded);
+                return;
+            }
+            //The counts of an event are removed with it, so only the associations of other instances move the counts
+            boolean counted = cascaded == Database.Collections.EVENT_ASSOCIATIONS && collection != Database.Collections.EVENTS;
+            List<String> targets = new ArrayList<>(docs.size());
+            for(Backend.Document d : docs){
+                targets.add(d.id);
+            }
+            int chunkSize = counted ? COUNTED_CHUNK_SIZE : ChunkedCommitter.MAX_BATCH_OPERATIONS;
+            new ChunkedCommitter<String>(chunkSize, ChunkedCommitter.DEFAULT_PARALLELISM, ChunkedCommitter.DEFAULT_RETRIES).commit(targets, (chunk, onCommitted) -> {
+                if(counted){
+                    db.getEventCounters().removeAssociations(chunk, onCommitted);
+                    return;
+                }
+                Backend.Batch batch = backend.batch();
+                for(String id : chunk){
+                    batch.delete(cascaded.getCollectionID(), id);
+                }
+                batch.commit(onCommitted);
+            }, r -> {
+                for(String id : r.committed){
+                    db.forgetDeleted(cascaded, id);
+                }
+                db.metrics.count(cascaded, DatabaseMetrics.Operation.DELETE, r.committed.size());
+                deleted += r.committed.size();
+                if(!r.committed.isEmpty()){
+                    backend.merge(COLLECTION, getCheckpointID(), Collections.singletonMap(FIELD_DELETED, Backend.increment(r.committed.size())), s -> {});
+                }
+                if(r.failedChunks > 0){
+                    Log.println(Log.WARN, "cascadeDelete", r.failed.size() + " " + cascaded.getCollectionID() + " of " + documentID + " were not deleted");
+                }
+                boolean s = succeeded && r.failedChunks == 0;
+                if(docs.size() < PAGE_SIZE){
+                    onComplete.accept(s);
+                    return;
+                }
+                deletePage(query, docs.get(docs.size() - 1), cascaded, s, onComplete);
+            });
+        });
+    }
+
+    /**
+     * Finishes every cascade that this device abandoned, by deleting its instance again. If the instance no longer exists its checkpoint is removed.
+     * Only the checkpoints written with the {@link Database#getDeviceID() device id} of the database are resumed, so a device never
+     * deletes on behalf of another, and two devices never resume the same cascade
+     * @param db The database
+     * @param listener Called once every abandoned cascade has been attempted, with if all of them finished
+     */
+    public static void resumeAll(Database db, Consumer<Boolean> listener){
+        String deviceID = db.getDeviceID();
+        if(deviceID == null){
+            listener.accept(true);
+            return;
+        }
+        db.getBackend().query(Backend.Query.of(COLLECTION).whereEqualTo(FIELD_DEVICE, deviceID), (checkpoints, success) -> {
+            if(!success){
+                listener.accept(false);
+                return;
+            }
+            long now = System.currentTimeMillis();
+            List<Backend.Document> abandoned = new ArrayList<>();
+            for(Backend.Document d : checkpoints){
+                Object started = d.get(FIELD_STARTED);
+                if(!(started instanceof Timestamp) || now - ((Timestamp) started).toDate().getTime() >= STALE_MILLIS) abandoned.add(d);
+            }
+            //Resumes the checkpoints one after another, each once the previous one is done
+            Consumer<Boolean> next = new Consumer<Boolean>() {
+                private int i = -1;
+                private boolean s = true;
+                @Override
+                public void accept(Boolean success) {
+                    s = s && success;
+                    i++;
+                    if(i >= abandoned.size()){
+                        listener.accept(s);
+                        return;
+                    }
+                    resume(db, abandoned.get(i), this);
+                }
+            };
+            next.accept(true);
+        });
+    }
+
+    /**
+     * Deletes the instance of a checkpoint again
+     * @param db The database
+     * @param checkpoint The checkpoint
+     * @param listener Called once the instance is deleted, or its checkpoint removed
+     */
+    private static void resume(Database db, Backend.Document checkpoint, Consumer<Boolean> listener){
+        Database.Collections collection = Database.Collections.fromCollectionID(checkpoint.getString(FIELD_COLLECTION));
+        String documentID = checkpoint.getString(FIELD_DOCUMENT);
+        Long type = checkpoint.getLong(FIELD_TYPE);
+        if(collection == null || documentID == null){
+            db.throwE(new IllegalStateException("Cascade delete checkpoint is corrupt: " + checkpoint.id));
+            db.getBackend().delete(COLLECTION, checkpoint.id, s -> {});
+            listener.accept(false);
+            return;
+        }
+        Log.println(Log.INFO, "cascadeDelete", "resuming " + checkpoint.id);
+        db.getInstance(collection, documentID, (instance, success) -> {
+            if(!success){
+                db.getBackend().delete(COLLECTION, checkpoint.id, s -> {});
+                listener.accept(true);
+                return;
+            }
+            instance.deleteInstance(type == null ? DatabaseInstance.DeletionType.HARD_DELETE : type.intValue(), listener);
+        });
+    }
+}
@@ -0,0 +1,223 @@
+package com.syzygy.events.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Commits a list of items in chunks, with a bounded number of chunks in flight at once.
+ * <p>
+ *     The items are split into chunks of at most {@link #getChunkSize()} in order. Each chunk is handed to a {@link Sink},
+ *     which writes it, usually as one write batch, and reports if it succeeded. Once every chunk has finished, the items
+ *     are partitioned by whether their chunk succeeded. A chunk that fails is handed to the sink again, up to
+ *     {@link #getRetries()} times, before it is counted as failed.
+ * </p>
+ * @param <X> The type of item
+ */
+public class ChunkedCommitter<X> {
+
+    /**
+     * The maximum number of operations in a Firestore write batch
+     */
+    public static final int MAX_BATCH_OPERATIONS = 500;
+    /**
+     * The default number of chunks in flight at once
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+    /**
+     * The default number of times a failed chunk is retried
+     */
+    public static final int DEFAULT_RETRIES = 2;
+
+    private final int chunkSize;
+    private final int parallelism;
+    private final int retries;
+
+    /**
+     * Creates a committer that does not retry failed chunks
+     * @param chunkSize The maximum number of items in a chunk
+     * @param parallelism The maximum number of chunks in flight at once
+     * @throws IllegalArgumentException if either is not positive
+     */
+    public ChunkedCommitter(int chunkSize, int parallelism) throws IllegalArgumentException {
+        this(chunkSize, parallelism, 0);
+    }
+
+    /**
+     * @param chunkSize The maximum number of items in a chunk
+     * @param parallelism The maximum number of chunks in flight at once
+     * @param retries The number of times a failed chunk is committed again
+     * @throws IllegalArgumentException if the chunk size or parallelism is not positive, or the retries are negative
+     */
+    public ChunkedCommitter(int chunkSize, int parallelism, int retries) throws IllegalArgumentException {
+        if(chunkSize <= 0 || parallelism <= 0) throw new IllegalArgumentException("Chunk size and parallelism must be positive");
+        if(retries < 0) throw new IllegalArgumentException("Retries must not be negative");
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.retries = retries;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Commits the items
+     * @param items The items to commit
+     * @param sink Writes each chunk
+     * @param listener Called as chunks finish and once all have finished
+     */
+    public void commit(List<X> items, Sink<X> sink, Listener<X> listener){
+        int chunks = (items.size() + chunkSize - 1) / chunkSize;
+        long start = System.nanoTime();
+        if(chunks == 0){
+            listener.onComplete(new Result<>(new ArrayList<>(), new ArrayList<>(), 0, 0, 0, 0));
+            return;
+        }
+        boolean[] succeeded = new boolean[chunks];
+
+        Runnable next = new Runnable() {
+            private int started = 0;
+            private int finished = 0;
+            private int failed = 0;
+            private int retried = 0;
+
+            @Override
+            public void run() {
+                int i;
+                synchronized (this){
+                    if(started >= chunks) return;
+                    i = started ++;
+                }
+                attempt(i, 0);
+            }
+
+            private void attempt(int i, int attempt){
+                List<X> chunk = items.subList(i * chunkSize, Math.min(items.size(), (i + 1) * chunkSize));
+                sink.commit(chunk, success -> {
+                    if(!success && attempt < retries){
+                        synchronized (this){
+                            retried ++;
+                        }
+                        attempt(i, attempt + 1);
+                        return;
+                    }
+                    boolean done;
+                    int f;
+                    int rt;
+                    synchronized (this){
+                        succeeded[i] = success;
+                        finished ++;
+                        if(!success) failed ++;
+                        done = finished == chunks;
+                        f = failed;
+                        rt = retried;
+                    }
+                    listener.onChunk(i, success);
+                    if(done){
+                        List<X> committed = new ArrayList<>();
+                        List<X> notCommitted = new ArrayList<>();
+                        for(int c = 0; c < chunks; c++){
+                            List<X> part = items.subList(c * chunkSize, Math.min(items.size(), (c + 1) * chunkSize));
+                            (succeeded[c] ? committed : notCommitted).addAll(part);
+                        }
+                        listener.onComplete(new Result<>(committed, notCommitted, chunks, f, rt, System.nanoTime() - start));
+                        return;
+                    }
+                    run();
+                });
+            }
+        };
+        for(int i = 0; i < Math.min(parallelism, chunks); i++){
+            next.run();
+        }
+    }
+
+    /**
+     * Writes a chunk of items
+     * @param <X> The type of item
+     */
+    public interface Sink<X> {
+        /**
+         * @param chunk The items of the chunk
+         * @param onComplete Must be called exactly once with if the chunk was written
+         */
+        void commit(List<X> chunk, Consumer<Boolean> onComplete);
+    }
+
+    /**
+     * Listens to the progress of a commit
+     * @param <X> The type of item
+     */
+    public interface Listener<X> {
+        /**
+         * Called each time a chunk finishes, after any retries
+         * @param index The index of the chunk
+         * @param success If the chunk was written
+         */
+        default void onChunk(int index, boolean success){}
+
+        /**
+         * Called once every chunk has finished
+         * @param result The partition of the items and the throughput
+         */
+        void onComplete(Result<X> result);
+    }
+
+    /**
+     * The outcome of a commit
+     * @param <X> The type of item
+     */
+    public static class Result<X> {
+        /**
+         * The items whose chunk was written
+         */
+        public final List<X> committed;
+        /**
+         * The items whose chunk failed
+         */
+        public final List<X> failed;
+        /**
+         * The number of chunks
+         */
+        public final int chunks;
+        /**
+         * The number of chunks that failed
+         */
+        public final int failedChunks;
+        /**
+         * The number of times a failed chunk was committed again
+         */
+        public final int retries;
+        /**
+         * The time from the start of the commit until the last chunk finished
+         */
+        public final long elapsedNanos;
+
+        Result(List<X> committed, List<X> failed, int chunks, int failedChunks, int retries, long elapsedNanos) {
+            this.committed = Collections.unmodifiableList(committed);
+            this.failed = Collections.unmodifiableList(failed);
+            this.chunks = chunks;
+            this.failedChunks = failedChunks;
+            this.retries = retries;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return The number of committed items per second
+         */
+        public double getItemsPerSecond(){
+            if(elapsedNanos == 0) return 0;
+            return committed.size() * 1e9 / elapsedNanos;
+        }
+    }
+}
@@ -9,26 +9,17 @@ import android.webkit.MimeTypeMap;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.Task;
-import com.google.firebase.firestore.CollectionReference;
-import com.google.firebase.firestore.DocumentReference;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.FirebaseFirestoreException;
-import com.google.firebase.firestore.Query;
-import com.google.firebase.firestore.WriteBatch;
 import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
-import com.google.firestore.v1.Write;
 import com.syzygy.events.R;
 
 import java.lang.annotation.Documented;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Target;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -45,7 +36,7 @@ import java.util.function.Consumer;
  *     Provides methods to retrieve data and update data within the database
  * </p>
  */
-public class Database implements EventListener<DocumentSnapshot> {
+public class Database {
 
     /**
      * Set of listeners which are called whenever an error occurs
@@ -61,38 +52,158 @@ public class Database implements EventListener<DocumentSnapshot> {
      */
     private final HashMap<String, DatabaseInstance<?>> cache = new HashMap<>();
 
-    @NonNull Resources constants;
+    /**
+     * Documents that have already been read in bulk but not yet turned into instances.
+     * <p>
+     *     Each document is identified by its database id. When an instance is requested without a snapshot,
+     *     a seeded document is used instead of reading from the database. Several queries can prefetch the same document
+     *     at once, so each seed counts the queries holding it and is only removed once all of them have released it.
+     * </p>
+     * @see #seedDocument(Collections, Backend.Document)
+     * @see #acquireSeededDocument(Collections, String)
+     */
+    private final HashMap<String, SeededDocument> seededDocuments = new HashMap<>();
+
+    /**
+     * The listeners waiting on instances whose document has been requested but has not yet been received.
+     * <p>
+     *     Each entry is identified by the database id of the instance. All requests for the same instance
+     *     that arrive while the document is being read share the single read.
+     * </p>
+     * @see #getInstance(Collections, String, InitializationListener, Backend.Document)
+     */
+    private final HashMap<String, List<InitializationListener<?>>> inFlight = new HashMap<>();
+
+    /**
+     * The data of recently dereferenced instances
+     * @see #returnInstance(DatabaseInstance)
+     */
+    private final RetainedInstanceCache retainedCache = new RetainedInstanceCache(RetainedInstanceCache.DEFAULT_MAX_ENTRIES, RetainedInstanceCache.DEFAULT_TTL_MILLIS);
+
+    /**
+     * The last known data of documents, kept across launches. Null if there is no local store
+     * @see #setLocalStore(LocalInstanceStore)
+     */
+    @Nullable
+    private LocalInstanceStore localStore;
+    /**
+     * Encodes uploaded images into their sized variants. Null if images are uploaded without variants
+     * @see #setImageVariants(ImageVariants)
+     */
+    @Nullable
+    private ImageVariants imageVariants;
+    /**
+     * The id of the device using the database. Null if it is not known
+     * @see #setDeviceID(String)
+     */
+    @Nullable
+    private String deviceID;
 
+    @NonNull Resources constants;
     /**
-     * The firestore database
+     * The database names of every property and status, resolved from the constants
      */
-    private final FirebaseFirestore db;
+    @NonNull SchemaRegistry schema;
+
     /**
-     * The firebase storage for images
+     * The storage underneath the database
      */
-    private final StorageReference storage;
+    private final Backend backend;
     /**
      * If all created instances should be tracked
      */
     private final boolean trackCreatedInstances;
     private final List<DatabaseInstance<?>> trackedInstances = new ArrayList<>();
+    /**
+     * The status counts of every event
+     */
+    private final EventCounters counters;
+    /**
+     * The counts and latencies of the work done by the database
+     */
+    final DatabaseMetrics metrics = new DatabaseMetrics(cache::size, this::countReferences);
+    /**
+     * Records spans across the callbacks of the model. Disabled by default
+     */
+    final Tracer tracer = new Tracer();
+
+    /**
+     * How long changes to an instance are held before they are written, in milliseconds
+     */
+    public static final long DEFAULT_WRITE_WINDOW_MILLIS = 50;
+    /**
+     * The instances with changes that have not been written yet, in the order they were changed
+     * @see #updateDatabase(DatabaseInstance)
+     */
+    private final LinkedHashSet<DatabaseInstance<?>> pendingWrites = new LinkedHashSet<>();
+    /**
+     * The fields of each instance that were sent and not yet acknowledged, and the number of writes carrying them
+     * @see #isOwnEcho(DatabaseInstance, Backend.Document)
+     */
+    private final Map<DatabaseInstance<?>, SentFields> sentWrites = new HashMap<>();
+    private long writeWindowMillis = DEFAULT_WRITE_WINDOW_MILLIS;
+    /**
+     * The depth of nested edit scopes. Writes are held until it returns to 0
+     * @see #edit(Runnable)
+     */
+    private int editDepth = 0;
+    private boolean flushScheduled = false;
+    private final Runnable flush = () -> {
+        flushScheduled = false;
+        if(editDepth == 0) flushWrites();
+    };
+    /**
+     * Holds the update notifications of instances until the next tick
+     */
+    private final UpdateDispatcher updates = new UpdateDispatcher(metrics, r -> getBackend().post(r, 0));
+    /**
+     * Groups the snapshot listeners of the cached instances
+     */
+    private final WatchManager watches = new WatchManager(this, r -> getBackend().post(r, 0));
 
     public Database(@NonNull Resources constants){
-        db = FirebaseFirestore.getInstance();
-        storage = FirebaseStorage.getInstance().getReference();
+        backend = new FirestoreBackend(FirebaseFirestore.getInstance(), FirebaseStorage.getInstance().getReference());
         this.constants = constants;
+        this.schema = new SchemaRegistry(constants);
         trackCreatedInstances = false;
+        counters = new EventCounters(this);
     }
 
-    public Database(@NonNull Resources constants, FirebaseFirestore db, StorageReference storage) {
+    /**
+     * Creates a database that tracks its instances over the given backend
+     * @param constants The resources
+     * @param backend The backend
+     */
+    public Database(@NonNull Resources constants, Backend backend) {
         this.constants = constants;
-        this.db = db;
-        this.storage = storage;
+        this.schema = new SchemaRegistry(constants);
+        this.backend = backend;
         trackCreatedInstances = true;
+        counters = new EventCounters(this);
     }
 
     public void setConstants(@NonNull Resources constants){
         this.constants = constants;
+        this.schema = new SchemaRegistry(constants);
+    }
+
+    /**
+     * Returns the database names of every property and status
+     * @return The schema registry
+     */
+    public SchemaRegistry getSchemaRegistry(){
+        return schema;
+    }
+
+    /**
+     * Returns the property layout shared by every instance of the collection
+     * @param collection The collection
+     * @param fields The property fields of the collection
+     * @return The schema of the collection
+     * @see PropertySchema
+     */
+    PropertySchema getSchema(Collections collection, DatabaseInstance.PropertyField<?,?>[] fields){
+        return schema.getSchema(collection, fields);
     }
 
     /**
@@ -104,26 +215,565 @@ public class Database implements EventListener<DocumentSnapshot> {
     }
 
     /**
-     * Deletes the instance from cache
+     * Returns the storage underneath the database
+     * @return The backend
+     */
+    public Backend getBackend(){
+        return backend;
+    }
+
+    /**
+     * Returns the second level cache of dereferenced instances
+     * @return The retained instance cache
+     */
+    public RetainedInstanceCache getRetainedCache(){
+        return retainedCache;
+    }
+
+    /**
+     * Sets the durable store of document data.
+     * <p>
+     *     Instances that are not cached, seeded or retained are then initialized from their stored data without waiting
+     *     on the database, and brought up to date by their snapshot listener once it is attached. Every document read
+     *     and every snapshot received is written to the store.
+     * </p>
+     * @param store The store, or null to stop using one
+     */
+    public void setLocalStore(@Nullable LocalInstanceStore store){
+        this.localStore = store;
+    }
+
+    /**
+     * Returns the durable store of document data
+     * @return The store, null if there is none
+     */
+    @Nullable
+    public LocalInstanceStore getLocalStore(){
+        return localStore;
+    }
+
+    /**
+     * Sets the encoder of uploaded images. Images are then uploaded as picked along with a variant for each size they are shown at
+     * @param variants The encoder, or null to upload images without variants
+     * @see #addImageToStorage(String, Uri, BiConsumer)
+     */
+    public void setImageVariants(@Nullable ImageVariants variants){
+        this.imageVariants = variants;
+    }
+
+    /**
+     * Sets the id of the device using the database. Cascade deletes are marked with it so that only this device resumes them
+     * @param deviceID The id, or null if it is not known
+     * @see CascadeDelete#resumeAll(Database, Consumer)
+     */
+    public void setDeviceID(@Nullable String deviceID){
+        this.deviceID = deviceID;
+    }
+
+    /**
+     * Returns the id of the device using the database
+     * @return The id, null if it is not known
+     */
+    @Nullable
+    public String getDeviceID(){
+        return deviceID;
+    }
+
+    /**
+     * Sets how long changes to an instance are held so that later changes are written with them
+     * @param millis The window in milliseconds, 0 to write every change right away
+     * @see #DEFAULT_WRITE_WINDOW_MILLIS
+     */
+    public void setWriteWindow(long millis){
+        this.writeWindowMillis = millis;
+    }
+
+    /**
+     * Writes the data of a document read through the backend to the local store, or forgets it if the document does not exist
+     * @param databaseId The database id of the document
+     * @param doc The document
+     */
+    private void storeLocally(String databaseId, Backend.Document doc){
+        if(localStore == null) return;
+        if(doc.exists()) localStore.put(databaseId, doc.data);
+        else localStore.remove(databaseId);
+    }
+
+    /**
+     * Forgets the local data of a document that was changed without its instance
+     * @param databaseId The database id of the document
+     */
+    void invalidateLocally(String databaseId){
+        retainedCache.invalidate(databaseId);
+        if(localStore != null) localStore.remove(databaseId);
+    }
+
+    /**
+     * Forgets a document that was deleted without its instance. A live instance of the document is deleted as if its
+     * snapshot listener had reported the deletion
+     * @param collection The collection of the document
+     * @param documentId The id of the document
+     * @see CascadeDelete
+     */
+    void forgetDeleted(Collections collection, String documentId){
+        String databaseId = collection.getDatabaseID(documentId);
+        invalidateLocally(databaseId);
+        DatabaseInstance<?> instance = cache.get(databaseId);
+        if(instance != null && instance.isLegalState()){
+            instance.deleteInstance(DatabaseInstance.DeletionType.FROM_DATABASE, s -> {});
+        }
+    }
+
+    /**
+     * Reads a document once and applies it to its instance. If the document no longer exists, it is forgotten as deleted.
+     * Used for instances whose data may be stale and that no listener is guaranteed to update
+     * @param collection The collection of the document
+     * @param documentId The id of the document
+     * @see #forgetDeleted(Collections, String)
+     */
+    void revalidate(Collections collection, String documentId){
+        metrics.count(collection, DatabaseMetrics.Operation.READ, 1);
+        backend.get(collection.getCollectionID(), documentId, false, (doc, success) -> {
+            if(!success) return;
+            if(!doc.exists()){
+                forgetDeleted(collection, documentId);
+                return;
+            }
+            String databaseId = collection.getDatabaseID(documentId);
+            storeLocally(databaseId, doc);
+            DatabaseInstance<?> instance = cache.get(databaseId);
+            if(instance == null || !instance.isLegalState()) return;
+            //Held changes are sent before they would be overwritten by the document
+            flushWrite(instance);
+            if(instance.differsFrom(doc.data)) instance.updateDataFromDatabase(new HashMap<>(doc.data), s -> {});
+        });
+    }
+
+    /**
+     * Checks that stored data can still initialize an instance, as the properties of a collection may have changed since it was stored
+     * @param collection The collection of the instance
+     * @param data The stored data
+     * @return {@code true} if every stored property is a property of the collection
+     */
+    private boolean isStoredDataUsable(Collections collection, Map<String, Object> data){
+        PropertySchema s = getSchema(collection, DatabaseInstance.getFields(collection));
+        for(String name : data.keySet()){
+            if(s.slotOf(name) < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the status counts of every event
+     * @return The event counters
+     */
+    public EventCounters getEventCounters(){
+        return counters;
+    }
+
+    /**
+     * Returns the counts and latencies of the work done by the database
+     * @return The metrics
+     */
+    public DatabaseMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Returns the tracer of the database, which is disabled until enabled
+     * @return The tracer
+     */
+    public Tracer getTracer(){
+        return tracer;
+    }
+
+    /**
+     * @return The total reference count of the instances in cache
+     */
+    private long countReferences(){
+        long total = 0;
+        for(DatabaseInstance<?> instance : cache.values()){
+            total += instance.getReferenceCount();
+        }
+        return total;
+    }
+
+    /**
+     * Deletes the instance from cache. If the instance is in a legal state, its data is retained so that it
+     * can be revived without reading from the database
      * @param instance The instance that should be removed from cache
      * @param <T> The type of the instance
      * @throws IllegalStateException If the instance still has references
+     * @see RetainedInstanceCache
      */
     <T extends DatabaseInstance<T>> void returnInstance(@Observes DatabaseInstance<T> instance) throws IllegalStateException{
         if(instance.isReferenced()) throw new IllegalStateException("Instance is still referenced: " + instance.toString());
-        cache.remove(instance.getDatabaseID());
+        flushWrite(instance);
+        if(cache.remove(instance.getDatabaseID()) != null) metrics.cacheEviction();
+        if(instance.isLegalState()){
+            retainedCache.retain(instance.getDatabaseID(), instance.getData());
+        }
     }
 
     /**
-     * Updates the database to match the instance
+     * Stores a document that was read ahead of time so that the next request for its instance does not read from the database.
+     * If the document is already seeded, another reference to it is held instead.
+     * @param collection The collection of the document
+     * @param document The document
+     * @return {@code true} if the caller now holds a reference to the seed, {@code false} if the instance is already cached
+     * @see #releaseSeededDocuments(Collection)
+     */
+    boolean seedDocument(Collections collection, Backend.Document document){
+        String databaseId = collection.getDatabaseID(document.id);
+        if(cache.containsKey(databaseId)) return false;
+        SeededDocument seed = seededDocuments.get(databaseId);
+        if(seed != null){
+            seed.references ++;
+            return true;
+        }
+        seededDocuments.put(databaseId, new SeededDocument(document));
+        return true;
+    }
+
+    /**
+     * Holds another reference to a document that was already seeded, so it is kept until the caller releases it
+     * @param collection The collection of the document
+     * @param documentID The id of the document
+     * @return The seeded document, or null if it is not seeded and no reference was taken
+     * @see #releaseSeededDocuments(Collection)
+     */
+    @Nullable
+    Backend.Document acquireSeededDocument(Collections collection, String documentID){
+        SeededDocument seed = seededDocuments.get(collection.getDatabaseID(documentID));
+        if(seed == null) return null;
+        seed.references ++;
+        return seed.document;
+    }
+
+    /**
+     * Releases one reference to each of the seeded documents. A document is removed once every reference has been released
+     * @param databaseIds The database ids of the documents, each released once
+     * @see #seedDocument(Collections, Backend.Document)
+     * @see #acquireSeededDocument(Collections, String)
+     */
+    void releaseSeededDocuments(Collection<String> databaseIds){
+        for(String databaseId : databaseIds){
+            SeededDocument seed = seededDocuments.get(databaseId);
+            if(seed == null) continue;
+            seed.references --;
+            if(seed.references <= 0) seededDocuments.remove(databaseId);
+        }
+    }
+
+    /**
+     * Checks if an instance exists for the document
+     * @param collection The collection of the document
+     * @param documentID The id of the document
+     * @return {@code true} if the instance is cached
+     */
+    boolean isCached(Collections collection, String documentID){
+        return cache.containsKey(collection.getDatabaseID(documentID));
+    }
+
+    /**
+     * A document read ahead of time and the number of queries holding it
+     */
+    private static class SeededDocument {
+        final Backend.Document document;
+        int references = 1;
+
+        SeededDocument(Backend.Document document) {
+            this.document = document;
+        }
+    }
+
+    /**
+     * Updates the database to match the instance.
+     * <p>
+     *     The write is held for the {@link #setWriteWindow(long) write window}, or until the outermost {@link #edit(Runnable) edit}
+     *     ends, so that every change made to the instance in that time is sent as one update of only the changed properties.
+     * </p>
      * @param instance The database instance
      * @param <T> The instance type
      * @throws IllegalStateException if the instance is in an illegal state {@link DatabaseInstance#assertNotIllegalState()}
      * @see DatabaseInstance#getDocumentReference()
-     * @see DatabaseInstance#getData()
+     * @see DatabaseInstance#takeChanges()
+     * @see #flushWrites()
      */
     <T extends DatabaseInstance<T>> void updateDatabase(@Observes DatabaseInstance<T> instance) throws IllegalStateException{
-        instance.getDocumentReference().set(instance.getData());
+        if(!pendingWrites.add(instance)){
+            metrics.writeCoalesced();
+            return;
+        }
+        if(editDepth > 0) return;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush(){
+        if(flushScheduled) return;
+        if(writeWindowMillis <= 0){
+            flushWrites();
+            return;
+        }
+        flushScheduled = backend.post(flush, writeWindowMillis);
+        //If the backend cannot run it later, the write is sent now
+        if(!flushScheduled) flushWrites();
+    }
+
+    UpdateDispatcher getUpdateDispatcher(){
+        return updates;
+    }
+
+    WatchManager getWatches(){
+        return watches;
+    }
+
+    /**
+     * Sets the number of queries that may watch the documents of the cached instances at once. Each query watches up to
+     * {@value WatchManager#MAX_GROUP_SIZE} documents of one collection. Instances that do not fit are not updated until there is room
+     * @param budget The number of watch queries
+     * @throws IllegalArgumentException if the budget is not positive
+     * @see WatchManager
+     */
+    public void setWatchBudget(int budget) throws IllegalArgumentException{
+        watches.setBudget(budget);
+    }
+
+    /**
+     * Adds a listener that is called once per tick with every instance whose update listeners were notified
+     * @param listener The listener
+     * @see UpdateDispatcher
+     */
+    public void addUpdateBatchListener(@NonNull UpdateBatchListener listener){
+        updates.addBatchListener(listener);
+    }
+
+    /**
+     * Removes a batch listener
+     * @param listener The listener
+     * @return If the listener was removed
+     */
+    public boolean removeUpdateBatchListener(@NonNull UpdateBatchListener listener){
+        return updates.removeBatchListener(listener);
+    }
+
+    /**
+     * Delivers every held update notification right away
+     * @see UpdateDispatcher
+     */
+    public void flushUpdates(){
+        updates.dispatch();
+    }
+
+    /**
+     * Runs edits to instances, holding their writes until the edits are done. Each edited instance is then written once,
+     * with every property that was changed. Edits may be nested, the writes are sent when the outermost edit ends
+     * @param edits Changes the instances
+     */
+    public void edit(@NonNull Runnable edits){
+        editDepth++;
+        try {
+            edits.run();
+        } finally {
+            editDepth--;
+            if(editDepth == 0) flushWrites();
+        }
+    }
+
+    /**
+     * Sends every held write right away. The held associations are written together
+     * @see #flushWrites(Consumer)
+     */
+    public void flushWrites(){
+        flushWrites(success -> {});
+    }
+
+    /**
+     * Sends every held write right away. The held associations are written together.
+     * An association that could not be written is held again, to be written whole with the next writes
+     * @param onComplete Called once every write has been attempted, with if every write was successful
+     * @see #updateDatabase(DatabaseInstance)
+     * @see #writeAssociations(List, Consumer)
+     */
+    public void flushWrites(@NonNull Consumer<Boolean> onComplete){
+        if(pendingWrites.isEmpty()){
+            onComplete.accept(true);
+            return;
+        }
+        List<DatabaseInstance<?>> instances = new ArrayList<>(pendingWrites);
+        pendingWrites.clear();
+        List<EventAssociation> assocs = new ArrayList<>();
+        List<DatabaseInstance<?>> others = new ArrayList<>();
+        for(DatabaseInstance<?> instance : instances){
+            if(instance.getCollection() == Collections.EVENT_ASSOCIATIONS) assocs.add((EventAssociation) instance);
+            else others.add(instance);
+        }
+        boolean[] failed = {false};
+        Runnable onWritten = new Runnable() {
+            private int remaining = others.size() + (assocs.isEmpty() ? 0 : 1);
+            @Override
+            public void run() {
+                remaining --;
+                if(remaining == 0) onComplete.accept(!failed[0]);
+            }
+        };
+        for(DatabaseInstance<?> instance : others){
+            writeNow(instance, success -> {
+                if(!success) failed[0] = true;
+                onWritten.run();
+            });
+        }
+        if(!assocs.isEmpty()) writeAssociations(assocs, unwritten -> {
+            if(!unwritten.isEmpty()) failed[0] = true;
+            onWritten.run();
+        });
+    }
+
+    /**
+     * Holds the write of an instance that failed again, so that its changes are sent with the next writes.
+     * A flush is not scheduled, so a write that keeps failing is not retried in a loop
+     * @param instance The instance
+     * @param changes The changes that were not written. Null if the whole document was not written
+     * @see DatabaseInstance#restoreChanges(Map)
+     */
+    private void requeue(DatabaseInstance<?> instance, @Nullable Map<String, Object> changes){
+        if(!instance.isLegalState()) return;
+        instance.restoreChanges(changes);
+        pendingWrites.add(instance);
+    }
+
+    /**
+     * Records fields of an instance as sent, so that the snapshots echoing them are recognized
+     * @param instance The instance
+     * @param fields The fields that are written
+     * @see #acknowledged(DatabaseInstance)
+     */
+    private void sending(DatabaseInstance<?> instance, Map<String, Object> fields){
+        SentFields sent = sentWrites.get(instance);
+        if(sent == null){
+            sent = new SentFields();
+            sentWrites.put(instance, sent);
+        }
+        sent.fields.putAll(fields);
+        sent.writes ++;
+    }
+
+    /**
+     * Records that a write of an instance completed. Its fields are forgotten once no write of the instance is in flight
+     * @param instance The instance
+     */
+    private void acknowledged(DatabaseInstance<?> instance){
+        SentFields sent = sentWrites.get(instance);
+        if(sent == null) return;
+        sent.writes --;
+        if(sent.writes <= 0) sentWrites.remove(instance);
+    }
+
+    /**
+     * Sends the held writes of associations right away, moving the counts of their events in as few transactions as possible.
+     * Associations without changes are not written, and those that could not be written are held again
+     * @param assocs The associations
+     * @param onComplete Called once every write has been attempted, with the associations that were not written
+     * @see EventCounters#writeAssociations(List, Consumer)
+     */
+    void writeAssociations(@Observes List<EventAssociation> assocs, Consumer<List<EventAssociation>> onComplete){
+        List<EventAssociation> changed = new ArrayList<>(assocs.size());
+        for(EventAssociation assoc : assocs){
+            pendingWrites.remove(assoc);
+            if(!assoc.isLegalState()) continue;
+            Map<String, Object> changes = assoc.takeChanges();
+            if(changes != null && changes.isEmpty()) continue;
+            changed.add(assoc);
+        }
+        if(changed.isEmpty()){
+            onComplete.accept(new ArrayList<>());
+            return;
+        }
+        metrics.count(Collections.EVENT_ASSOCIATIONS, DatabaseMetrics.Operation.WRITE, changed.size());
+        for(EventAssociation assoc : changed){
+            sending(assoc, assoc.getData());
+        }
+        counters.writeAssociations(changed, unwritten -> {
+            for(EventAssociation assoc : changed){
+                acknowledged(assoc);
+            }
+            for(EventAssociation assoc : unwritten){
+                requeue(assoc, null);
+            }
+            onComplete.accept(unwritten);
+        });
+    }
+
+    /**
+     * Sends the held write of an instance right away
+     * @param instance The instance
+     */
+    void flushWrite(DatabaseInstance<?> instance){
+        if(pendingWrites.remove(instance)) writeNow(instance, success -> {});
+    }
+
+    /**
+     * @param instance The instance
+     * @return {@code true} if the instance has changes that have not been written yet
+     */
+    boolean hasPendingWrite(DatabaseInstance<?> instance){
+        return pendingWrites.contains(instance);
+    }
+
+    /**
+     * Sends the changes of an instance
+     * @param instance The instance
+     * @param onComplete Called on completion with if the write was successful. Called with true if there was nothing to write
+     */
+    private void writeNow(DatabaseInstance<?> instance, Consumer<Boolean> onComplete){
+        if(!instance.isLegalState()){
+            onComplete.accept(true);
+            return;
+        }
+        Map<String, Object> changes = instance.takeChanges();
+        if(changes != null && changes.isEmpty()){
+            onComplete.accept(true);
+            return;
+        }
+        metrics.count(instance.getCollection(), DatabaseMetrics.Operation.WRITE, 1);
+        Map<String, Object> fields = changes == null ? instance.getData() : changes;
+        sending(instance, fields);
+        Consumer<Boolean> onWritten = success -> {
+            acknowledged(instance);
+            //The changes are sent again with the next writes rather than lost
+            if(!success) requeue(instance, changes);
+            onComplete.accept(success);
+        };
+        if(instance.getCollection() == Collections.EVENT_ASSOCIATIONS){
+            //The status counts are kept in the same transaction as the association
+            counters.writeAssociation((EventAssociation) instance, onWritten);
+            return;
+        }
+        String collectionID = instance.getCollection().getCollectionID();
+        if(changes == null){
+            backend.set(collectionID, instance.getDocumentID(), fields, onWritten);
+        }else{
+            backend.update(collectionID, instance.getDocumentID(), changes, onWritten);
+        }
+    }
+
+    /**
+     * Checks if a snapshot of the document of an instance only echoes writes made through the instance, in which case it
+     * already matches the instance. The snapshot must hold every field of the writes in flight with the value that was sent,
+     * and no field that differs from the instance
+     * @param instance The instance of the document
+     * @param value The snapshot
+     * @return {@code true} if the snapshot should not update the instance
+     */
+    boolean isOwnEcho(DatabaseInstance<?> instance, Backend.Document value){
+        SentFields sent = sentWrites.get(instance);
+        if(sent == null || !value.exists()) return false;
+        for(Map.Entry<String, Object> ent : sent.fields.entrySet()){
+            if(!Objects.equals(value.data.get(ent.getKey()), ent.getValue())) return false;
+        }
+        if(instance.differsFrom(value.data)) return false;
+        metrics.echoSuppressed();
+        return true;
     }
 
     /**
@@ -132,9 +782,25 @@ public class Database implements EventListener<DocumentSnapshot> {
      * @param <T> The instance type
      * @throws IllegalStateException if the instance is in an illegal state {@link DatabaseInstance#assertNotIllegalState()}
      * @see DatabaseInstance#getDocumentReference()
+     * @see EventCounters
      */
     <T extends DatabaseInstance<T>> void deleteFromDatabase(@Observes DatabaseInstance<T> instance) throws IllegalStateException{
-        instance.getDocumentReference().delete();
+        pendingWrites.remove(instance);
+        invalidateLocally(instance.getDatabaseID());
+        metrics.count(instance.getCollection(), DatabaseMetrics.Operation.DELETE, 1);
+        if(instance.getCollection() == Collections.EVENT_ASSOCIATIONS){
+            counters.removeAssociation((EventAssociation) instance);
+            return;
+        }
+        String collectionID = instance.getCollection().getCollectionID();
+        if(instance.getCollection() == Collections.EVENTS){
+            Backend.Batch b = backend.batch();
+            b.delete(collectionID, instance.getDocumentID());
+            counters.removeEvent(b, instance.getDocumentID());
+            b.commit(s -> {});
+            return;
+        }
+        backend.delete(collectionID, instance.getDocumentID(), s -> {});
     }
 
     /**
@@ -144,9 +810,25 @@ public class Database implements EventListener<DocumentSnapshot> {
      * @throws IllegalStateException if the instance is in an illegal state {@link DatabaseInstance#assertNotIllegalState()}
      * @see DatabaseInstance#getDocumentReference()
      * @see DatabaseInstance#getData()
+     * @see EventCounters
      */
     <T extends DatabaseInstance<T>> void addToDatabase(@Observes DatabaseInstance<T> instance) throws IllegalStateException{
-        instance.getDocumentReference().set(instance.getData());
+        metrics.count(instance.getCollection(), DatabaseMetrics.Operation.WRITE, 1);
+        if(instance.getCollection() == Collections.EVENT_ASSOCIATIONS){
+            counters.writeAssociation((EventAssociation) instance, success -> {
+                if(!success) requeue(instance, null);
+            });
+            return;
+        }
+        String collectionID = instance.getCollection().getCollectionID();
+        if(instance.getCollection() == Collections.EVENTS){
+            Backend.Batch b = backend.batch();
+            b.set(collectionID, instance.getDocumentID(), instance.getData());
+            counters.addEvent(b, instance.getDocumentID());
+            b.commit(s -> {});
+            return;
+        }
+        backend.set(collectionID, instance.getDocumentID(), instance.getData(), s -> {});
     }
 
     /**
@@ -161,34 +843,36 @@ public class Database implements EventListener<DocumentSnapshot> {
      * @param onComplete called on completion with if the update occurred successfully.
      */
     void modifyField(@NonNull Collections collection, @NonNull String documentId, int propertyNameId, Object newValue, Consumer<Boolean> onComplete){
-        DocumentReference doc = collection.getDocument(this, documentId);
-        doc.update(constants.getString(propertyNameId), newValue).addOnCompleteListener(task -> {
-            onComplete.accept(task.isSuccessful());
+        invalidateLocally(collection.getDatabaseID(documentId));
+        metrics.count(collection, DatabaseMetrics.Operation.WRITE, 1);
+        Tracer.Span span = tracer.begin("firestore.update", documentId);
+        Map<String, Object> change = new HashMap<>();
+        change.put(schema.name(propertyNameId), newValue);
+        backend.update(collection.getCollectionID(), documentId, change, success -> {
+            span.end();
+            try(Tracer.Scope sc = span.parent().enter()){
+                onComplete.accept(success);
+            }
         });
     }
 
     /**
      * Updates the field in all instances returned by the query without loading the instances
      * <p>
-     *     Does not do any cascading.
+     *     Does not do any cascading. The documents are read page by page and updated in parallel write batches, so there is
+     *     no limit on how many documents the query returns.
      * </p>
      * @param q The query which returns all documents that should be updated
      * @param propertyNameId The id of the property to update
      * @param newValue The new value to be put in the property
      * @param onComplete called on completion with if the update occurred successfully.
+     * @see BulkMutation
      */
-    void bulkModifyField(Query q, int propertyNameId, Object newValue, Consumer<Boolean> onComplete){
-        WriteBatch b = db.batch();
-        String prop = constants.getString(propertyNameId);
-        q.get().addOnCompleteListener(t -> {
-            if(!t.isSuccessful()){
-                onComplete.accept(false);
-                return;
-            }
-            t.getResult().getDocuments().forEach(d -> {
-                b.update(d.getReference(), prop, newValue);
-            });
-            b.commit().addOnCompleteListener(t2 -> onComplete.accept(t2.isSuccessful()));
+    void bulkModifyField(Backend.Query q, int propertyNameId, Object newValue, Consumer<Boolean> onComplete){
+        String prop = schema.name(propertyNameId);
+        new BulkMutation(this).apply(q, BulkMutation.update(prop, newValue), (result, success) -> {
+            if(!success) Log.println(Log.WARN, "bulkModifyField", prop + ": " + result.failed + " of " + result.matched + " documents were not updated");
+            onComplete.accept(success);
         });
     }
 
@@ -201,19 +885,20 @@ public class Database implements EventListener<DocumentSnapshot> {
      * @see DatabaseInstance#getDocumentReference()
      */
     <T extends DatabaseInstance<T>> void updateFromDatabase(@Observes DatabaseInstance<T> instance) throws IllegalStateException{
-        instance.getDocumentReference().get().addOnCompleteListener(new OnCompleteListener<DocumentSnapshot>() {
-            @Override
-            public void onComplete(@NonNull Task<DocumentSnapshot> task) {
-                if(!task.isSuccessful()) {
-                    throwE(new IllegalStateException("Failed to get document from database"));
-                    return;
-                }
-                DocumentSnapshot doc = task.getResult();
-                if(!doc.exists()) {
-                    throwE(new IllegalStateException("Document no longer exists in database"));
-                    return;
-                }
-                instance.updateDataFromDatabase(task.getResult().getData(), s ->{
+        metrics.count(instance.getCollection(), DatabaseMetrics.Operation.READ, 1);
+        Tracer.Span span = tracer.begin("firestore.get", instance.getDocumentID());
+        backend.get(instance.getCollection().getCollectionID(), instance.getDocumentID(), false, (doc, success) -> {
+            span.end();
+            if(!success) {
+                throwE(new IllegalStateException("Failed to get document from database"));
+                return;
+            }
+            if(!doc.exists()) {
+                throwE(new IllegalStateException("Document no longer exists in database"));
+                return;
+            }
+            try(Tracer.Scope sc = span.parent().enter()){
+                instance.updateDataFromDatabase(new HashMap<>(doc.data), s ->{
                     if(!s){
                         throwE(new IllegalStateException("Failed to update instance from database"));
                     }
@@ -232,36 +917,41 @@ public class Database implements EventListener<DocumentSnapshot> {
      * @see DatabaseInstance#getDocumentReference()
      */
     <T extends DatabaseInstance<T>> void initializeFromDatabase(@Observes DatabaseInstance<T> instance, InitializationListener<T> onComplete) throws IllegalStateException{
-        instance.getDocumentReference().get().addOnCompleteListener(task -> {
-            if(!task.isSuccessful()) {
-                Log.println(Log.DEBUG, "failedGet", instance.getDocumentID());
-                throwE(new IllegalStateException("Failed to get document from database"));
-                onComplete.onInitialization(null, false);
-                return;
+        metrics.count(instance.getCollection(), DatabaseMetrics.Operation.READ, 1);
+        Tracer.Span span = tracer.begin("firestore.get", instance.getDocumentID());
+        backend.get(instance.getCollection().getCollectionID(), instance.getDocumentID(), false, (doc, success) -> {
+            span.end();
+            try(Tracer.Scope sc = span.parent().enter()){
+                if(!success) {
+                    Log.println(Log.DEBUG, "failedGet", instance.getDocumentID());
+                    throwE(new IllegalStateException("Failed to get document from database"));
+                    onComplete.onInitialization(null, false);
+                    return;
+                }
+                Log.println(Log.DEBUG, "successGet", instance.getDocumentID());
+                initializeFromDatabase(instance, doc, onComplete);
             }
-            Log.println(Log.DEBUG, "successGet", instance.getDocumentID());
-            DocumentSnapshot doc = task.getResult();
-            instance.initializeData(doc.getData(), doc.exists(), onComplete);
         });
     }
 
     /**
-     * Initializes and instance using the data in the given snapshot
+     * Initializes and instance using the data in the given document
      * @param instance The instance
-     * @param snapshot The document snapshot
+     * @param document The document
      * @param <T> The instance type
      * @param onComplete called when complete
      * @throws IllegalStateException If the instance is already initialized
      * @throws IllegalArgumentException If the document does not match the instance
      * @see DatabaseInstance#initializeData(Map, boolean, InitializationListener)
      */
-    <T extends DatabaseInstance<T>> void initializeFromDatabase(@Observes DatabaseInstance<T> instance, DocumentSnapshot snapshot, InitializationListener<T> onComplete) throws IllegalStateException, IllegalArgumentException{
-        if(!Objects.equals(snapshot.getId(), instance.getDocumentID())) {
-            throwE(new IllegalArgumentException("Snapshot id does not match instance id: "+snapshot.getId()+"|"+instance.getDocumentID()));
+    <T extends DatabaseInstance<T>> void initializeFromDatabase(@Observes DatabaseInstance<T> instance, Backend.Document document, InitializationListener<T> onComplete) throws IllegalStateException, IllegalArgumentException{
+        if(!Objects.equals(document.id, instance.getDocumentID())) {
+            throwE(new IllegalArgumentException("Snapshot id does not match instance id: "+document.id+"|"+instance.getDocumentID()));
             onComplete.onInitialization(null, false);
             return;
         }
-        instance.initializeData(snapshot.getData(), snapshot.exists(), onComplete);
+        storeLocally(instance.getDatabaseID(), document);
+        instance.initializeData(document.exists() ? new HashMap<>(document.data) : null, document.exists(), onComplete);
     }
 
     /**
@@ -301,6 +991,14 @@ public class Database implements EventListener<DocumentSnapshot> {
      *     If the {@code DatabaseInstance} does not exists in the cache, a new instance is created using the given document.
      *     The instance is added to the database
      * </p>
+     * <p>
+     *     If no document is given, a seeded document or the data retained from a recently dereferenced instance is
+     *     used before reading from the database
+     * </p>
+     * <p>
+     *     Only one read is made per instance at a time. Requests that arrive while the document is being read
+     *     wait on that read and are each notified exactly once of its result
+     * </p>
      * If provided, the {@code }initializeListener} will be triggered once the instance has been
      * populated.
      * <p>
@@ -316,45 +1014,79 @@ public class Database implements EventListener<DocumentSnapshot> {
      */
     @SuppressWarnings("unchecked")
     @MustStir
-    public <T extends DatabaseInstance<T>> void getInstance(Collections collection, String documentID, InitializationListener<T> listener, @Nullable DocumentSnapshot document) throws IllegalArgumentException{
+    public <T extends DatabaseInstance<T>> void getInstance(Collections collection, String documentID, InitializationListener<T> listener, @Nullable Backend.Document document) throws IllegalArgumentException{
         //TODO deal with no exists
         String databaseId = collection.getDatabaseID(documentID);
 
         DatabaseInstance<T> instance = (DatabaseInstance<T>)cache.get(databaseId);
         if(instance!=null){
+            List<InitializationListener<?>> waiting = inFlight.get(databaseId);
+            if(waiting != null && !instance.isInitializingData()){
+                //The document is still being read, wait on that read
+                Log.println(Log.DEBUG, "joinInstance", documentID + " " + collection.toString());
+                waiting.add(listener);
+                return;
+            }
+            //Initialized, or loading its sub-instances in which case this may be a reference cycle so it is returned now
             Log.println(Log.DEBUG, "foundInstance", documentID + " " + collection.toString());
+            metrics.cacheHit();
             instance.addInitializationListener(listener);
             return;
         }
         Log.println(Log.DEBUG, "computeNewInstance", documentID + " " + collection.toString());
+        metrics.cacheMiss();
+        long start = metrics.start();
+        SeededDocument seed = seededDocuments.get(databaseId);
+        Backend.Document doc = document != null ? document : seed == null ? null : seed.document;
         DatabaseInstance<T> inst = collection.newInstance(this, documentID);
         cache.put(databaseId, inst);
-
-        if(document != null){
-            Log.println(Log.DEBUG, "computeFromSnapshot", documentID + " " + collection.toString());
-
-            initializeFromDatabase(inst,document, (i, s) -> {
+        List<InitializationListener<?>> waiting = new ArrayList<>();
+        waiting.add(listener);
+        inFlight.put(databaseId, waiting);
+
+        Tracer.Span span = tracer.begin("getInstance", databaseId);
+        InitializationListener<T> onInit = (i, s) -> {
+            metrics.stop(DatabaseMetrics.Timer.GET_INSTANCE, start);
+            span.end();
+            inFlight.remove(databaseId, waiting);
+            //The waiting listeners continue the work of whoever requested the instance
+            try(Tracer.Scope sc = span.parent().enter()){
                 if(!s){
-                    Log.println(Log.DEBUG, "failedCompute", documentID + " " + collection.toString());
-                    cache.remove(databaseId);
-                    listener.onInitialization(null, false);
+                    Log.println(Log.DEBUG, "failedCompute", documentID + " " + collection.toString() + " " + waiting.size());
+                    if(cache.get(databaseId) == inst) cache.remove(databaseId);
+                    waiting.forEach(l -> ((InitializationListener<T>) l).onInitialization(null, false));
                     return;
                 }
-                Log.println(Log.DEBUG, "goodCompute", documentID + " " + collection.toString());
-                inst.addInitializationListener(listener);
-            });
-        }else{
-            Log.println(Log.DEBUG, "computeFromDatabase", documentID + " " + collection.toString());
-            initializeFromDatabase(inst, (i,s)->{
-                if(!s){
-                    Log.println(Log.DEBUG, "failedCompute", documentID + " " + collection.toString());
-                    cache.remove(databaseId);
-                    listener.onInitialization(null, false);
-                    return;
-                }
-                Log.println(Log.DEBUG, "goodCompute", documentID + " " + collection.toString());
-                inst.addInitializationListener(listener);
-            });
+                Log.println(Log.DEBUG, "goodCompute", documentID + " " + collection.toString() + " " + waiting.size());
+                waiting.forEach(l -> inst.addInitializationListener((InitializationListener<T>) l));
+            }
+        };
+
+        try(Tracer.Scope sc = span.enter()){
+            if(doc != null){
+                Log.println(Log.DEBUG, "computeFromSnapshot", documentID + " " + collection.toString());
+                retainedCache.invalidate(databaseId);
+                initializeFromDatabase(inst, doc, onInit);
+                return;
+            }
+            Map<String, Object> retained = retainedCache.revive(databaseId);
+            if(retained != null){
+                Log.println(Log.DEBUG, "computeFromRetained", documentID + " " + collection.toString());
+                inst.initializeData(retained, true, onInit);
+                return;
+            }
+            Map<String, Object> stored = localStore == null ? null : localStore.get(databaseId);
+            if(stored != null && isStoredDataUsable(collection, stored)){
+                //Served now and read once afterwards, as the instance may not get a watch to revalidate it
+                Log.println(Log.DEBUG, "computeFromStore", documentID + " " + collection.toString());
+                inst.initializeData(stored, true, (i, s) -> {
+                    onInit.onInitialization(i, s);
+                    if(s) revalidate(collection, documentID);
+                });
+            }else{
+                Log.println(Log.DEBUG, "computeFromDatabase", documentID + " " + collection.toString());
+                initializeFromDatabase(inst, onInit);
+            }
         }
     };
 
@@ -574,27 +1306,32 @@ public class Database implements EventListener<DocumentSnapshot> {
         if(!invalidProperties.isEmpty()) {
             Log.println(Log.DEBUG, "NewInstance", "invalid properties");
             for(int i : invalidProperties){
-                Log.println(Log.DEBUG, "NewInstance", "\t"+constants.getString(i));
+                Log.println(Log.DEBUG, "NewInstance", "\t"+schema.name(i));
             }
             return invalidProperties;
         }
 
+        retainedCache.invalidate(collection.getDatabaseID(documentID));
         DatabaseInstance<T> instance = (DatabaseInstance<T>) cache.computeIfAbsent(collection.getDatabaseID(documentID), k -> collection.newInstance(this, documentID));
-        instance.getDocumentReference().get().addOnCompleteListener(task -> {
-            if(!task.isSuccessful()) return;
-            DocumentSnapshot doc = task.getResult();
-            if(doc.exists()){
-                instance.fullDissolve();
-                listener.onInitialization(instance.cast(), false);
-            }else{
-                instance.addInitializationListener(listener);
-                instance.initializeData(convertIDMapToNames(data), true, (instance1, success) -> {
-                    if(success)
-                        addToDatabase(instance);
-                    else{
-                        throwE(new IllegalStateException("Failed to initialize instance"));
-                    }
-                });
+        metrics.count(collection, DatabaseMetrics.Operation.READ, 1);
+        Tracer.Span span = tracer.begin("firestore.get", documentID);
+        backend.get(collection.getCollectionID(), documentID, false, (doc, read) -> {
+            span.end();
+            if(!read) return;
+            try(Tracer.Scope sc = span.parent().enter()){
+                if(doc.exists()){
+                    instance.fullDissolve();
+                    listener.onInitialization(instance.cast(), false);
+                }else{
+                    instance.addInitializationListener(listener);
+                    instance.initializeData(convertIDMapToNames(data), true, (instance1, success) -> {
+                        if(success)
+                            addToDatabase(instance);
+                        else{
+                            throwE(new IllegalStateException("Failed to initialize instance"));
+                        }
+                    });
+                }
             }
         });
         return invalidProperties;
@@ -608,7 +1345,7 @@ public class Database implements EventListener<DocumentSnapshot> {
     public Map<String,Object> convertIDMapToNames(Map<Integer,Object> data){
         Map<String,Object> map = new HashMap<>();
         for(Map.Entry<Integer,Object> ent : data.entrySet()){
-            map.put(constants.getString(ent.getKey()), ent.getValue());
+            map.put(schema.name(ent.getKey()), ent.getValue());
         }
         return map;
     }
@@ -621,23 +1358,87 @@ public class Database implements EventListener<DocumentSnapshot> {
      */
     public void addFileToStorage(String fileName, Uri file, Consumer<Uri> listener){
         Log.println(Log.DEBUG, "add file", fileName);
-        StorageReference ref = storage.child(fileName);
-        ref.putFile(file).addOnCompleteListener(task -> {
-            if(!task.isSuccessful()){
-                listener.accept(null);
+        backend.putFile(fileName, file.toString(), url -> listener.accept(url == null ? null : Uri.parse(url)));
+    }
+
+    /**
+     * Adds an image and its sized variants to the storage. The image is uploaded as picked while the variants are encoded,
+     * and each variant is uploaded under the name of the image followed by its size. If the image cannot be encoded,
+     * or there is no encoder, it has no variants
+     * @param imageID The name of the image in the storage
+     * @param image The picked image
+     * @param listener Called on completion with the download url of the image, null if the upload failed,
+     *                 and the download url of each variant by size, null if there are none
+     * @see ImageVariants
+     */
+    void addImageToStorage(String imageID, Uri image, BiConsumer<Uri, Map<String, Object>> listener){
+        if(imageVariants == null){
+            addFileToStorage(imageID, image, address -> listener.accept(address, null));
+            return;
+        }
+        Tracer.Span span = tracer.begin("storage.putImage", imageID);
+        Uri[] address = new Uri[1];
+        Map<String, Object> variants = new HashMap<>();
+        Runnable uploaded = new Runnable() {
+            //The image and its variants
+            private int remaining = 2;
+            @Override
+            public void run() {
+                if(--remaining > 0) return;
+                span.end();
+                if(address[0] == null){
+                    deleteImageFiles(imageID, variants, s -> {});
+                    listener.accept(null, null);
+                    return;
+                }
+                listener.accept(address[0], variants.isEmpty() ? null : variants);
+            }
+        };
+        addFileToStorage(imageID, image, a -> {
+            address[0] = a;
+            uploaded.run();
+        });
+        imageVariants.encode(image, encoded -> {
+            if(encoded == null || encoded.isEmpty()){
+                uploaded.run();
                 return;
             }
-            ref.getDownloadUrl().addOnCompleteListener(task1 -> {
-                if(!task.isSuccessful()){
-                    ref.delete().addOnFailureListener(task2 -> {
-                        Log.println(Log.ERROR, "image", "hanging image " + fileName);
-                    });
-                    listener.accept(null);
+            Log.println(Log.DEBUG, "add image variants", imageID + " " + encoded.size());
+            Runnable variantUploaded = new Runnable() {
+                private int remaining = encoded.size();
+                @Override
+                public void run() {
+                    if(--remaining == 0) uploaded.run();
                 }
-                listener.accept(task1.getResult());
-            });
+            };
+            for(ImageVariants.Encoded e : encoded){
+                backend.putBytes(ImageVariants.fileName(imageID, e.size), e.data, e.contentType, url -> {
+                    //A variant that failed is left out, its size is served by a larger one or the image
+                    if(url != null) variants.put(ImageVariants.key(e.size), url);
+                    variantUploaded.run();
+                });
+            }
         });
     }
+
+    /**
+     * Deletes an image and its variants from the storage. The variants are deleted on a best effort basis
+     * @param imageID The name of the image in the storage
+     * @param variants The variants of the image by size, null if there are none
+     * @param listener Called on completion. true if the image was deleted
+     */
+    void deleteImageFiles(String imageID, @Nullable Map<String, Object> variants, Consumer<Boolean> listener){
+        if(variants != null){
+            for(String size : variants.keySet()){
+                String name = ImageVariants.fileName(imageID, Integer.parseInt(size));
+                backend.deleteFile(name, success -> {
+                    if(!success) Log.println(Log.WARN, "image", "hanging image variant " + name);
+                });
+            }
+        }
+        deleteFile(imageID, listener);
+    }
+
     @Deprecated
     private String getFileExtension(Uri fileUri, ContentResolver contentResolver){
         MimeTypeMap mime = MimeTypeMap.getSingleton();
@@ -654,30 +1455,41 @@ public class Database implements EventListener<DocumentSnapshot> {
             listener.accept(false);
             return;
         }
-        StorageReference ref = storage.child(fileName);
-        ref.delete().addOnCompleteListener(runnable -> {
-            listener.accept(runnable.isSuccessful());
-        });
+        backend.deleteFile(fileName, listener);
     }
 
 
-    @Override
-    public void onEvent(@Nullable DocumentSnapshot value, @Nullable FirebaseFirestoreException error) {
-
-        if(error != null || value == null) {
-            return;
-        }
+    /**
+     * Applies a snapshot of a document to its instance, deleting the instance if the document no longer exists
+     * @param value The snapshot
+     * @see WatchManager
+     */
+    void onDocument(Backend.Document value) {
+        Collections collection = Collections.fromCollectionID(value.collection);
+        if(collection == null) return;
+        String databaseId = collection.getDatabaseID(value.id);
+        storeLocally(databaseId, value);
 
-        DatabaseInstance<?> instance = cache.get(value.getReference().getPath());
+        DatabaseInstance<?> instance = cache.get(databaseId);
 
         if(instance == null || !instance.isLegalState()){
             return;
         }
+        metrics.count(instance.getCollection(), DatabaseMetrics.Operation.READ, 1);
+        if(isOwnEcho(instance, value)){
+            return;
+        }
+        if(value.exists() && !instance.differsFrom(value.data)){
+            //Nothing to apply
+            return;
+        }
+        //Held changes are sent before they would be overwritten by the snapshot
+        flushWrite(instance);
 
         if(!value.exists()){
             instance.deleteInstance(DatabaseInstance.DeletionType.FROM_DATABASE, s->{});
         }else{
-            instance.updateDataFromDatabase(value.getData(), s->{});
+            instance.updateDataFromDatabase(new HashMap<>(value.data), s->{});
         }
     }
 
@@ -711,7 +1523,7 @@ public class Database implements EventListener<DocumentSnapshot> {
      * Called to cleanup the database
      */
     public void cleanup(){
-
+        retainedCache.clear();
     };
 
 
@@ -771,22 +1583,25 @@ public class Database implements EventListener<DocumentSnapshot> {
         }
 
         /**
-         * Returns the database collection object
-         * @param db The database
-         * @return The {@code CollectionReference} for the collection
+         * Returns the collection with the Firestore identifier
+         * @param collectionID The Firestore identifier of the collection
+         * @return The collection, null if no collection has the identifier
+         * @see #getCollectionID()
          */
-        public CollectionReference getCollection(Database db){
-            return db.db.collection(dbIdentifier);
+        @Nullable
+        public static Collections fromCollectionID(String collectionID){
+            for(Collections c : values()){
+                if(c.dbIdentifier.equals(collectionID)) return c;
+            }
+            return null;
         }
 
         /**
-         * Gets the document within the collection. If no document exists, creates a new document.
-         * @param db The database
-         * @param documentID The document identifier within the collection
-         * @return The {@code DocumentReference} for the document
+         * Returns a query for every document of the collection
+         * @return The query
          */
-        public DocumentReference getDocument(Database db, String documentID) {
-            return getCollection(db).document(documentID);
+        public Backend.Query query(){
+            return Backend.Query.of(dbIdentifier);
         }
 
         /**
@@ -794,7 +1609,7 @@ public class Database implements EventListener<DocumentSnapshot> {
          * @return A new unique id for the collection
          */
         String getNewID(Database db){
-            return getCollection(db).document().getId();
+            return db.backend.newId(dbIdentifier);
         }
 
         /**
@@ -889,6 +1704,17 @@ public class Database implements EventListener<DocumentSnapshot> {
         public <T extends DatabaseInstance <T>> void onUpdate(@Observes DatabaseInstance<T> instance, Type type);
     }
 
+    /**
+     * Listens to the instances updated together in a tick, after their update listeners were notified
+     * @see Database#addUpdateBatchListener(UpdateBatchListener)
+     */
+    public interface UpdateBatchListener {
+        /**
+         * @param instances Every instance that was updated or subupdated in the tick, each before the instances listening to it
+         */
+        void onUpdates(@Observes Set<DatabaseInstance<?>> instances);
+    }
+
     /**
      * Called when the {@code DatabaseInstance} is initialized and enters a valid state
      * @author Gareth Kmet
@@ -961,6 +1787,15 @@ public class Database implements EventListener<DocumentSnapshot> {
         }
     }
 
+    /**
+     * The fields of an instance that were sent in writes that are still in flight
+     * @see #isOwnEcho(DatabaseInstance, Backend.Document)
+     */
+    private static class SentFields {
+        final Map<String, Object> fields = new HashMap<>();
+        int writes = 0;
+    }
+
     /**
      * Represents a class which must call {@code .dissolve} when no longer used
      */
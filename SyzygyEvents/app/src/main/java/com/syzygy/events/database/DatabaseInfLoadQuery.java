@@ -4,12 +4,15 @@ package com.syzygy.events.database;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.jetbrains.annotations.Unmodifiable;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Stores a query that is executed on a collection within the database. Loads instances returned from this query by pages compounding
@@ -38,6 +41,56 @@ public class DatabaseInfLoadQuery<T extends DatabaseInstance<T>> implements Data
      */
     private final List<T> instances = new ArrayList<>();
 
+    /**
+     * Receives the changes to the instances while live. {@code null} if not live
+     */
+    @Nullable
+    private DatabaseQuery.ChangeListener<T> changeListener;
+
+    /**
+     * The number of results listened to while live
+     */
+    private int liveLimit = 0;
+
+    /**
+     * The pages currently in {@link #instances}, in order
+     */
+    private final List<LoadedPage<T>> pages = new ArrayList<>();
+    /**
+     * The first documents of the pages released from the start of the list. The most recently released is last
+     */
+    private final ArrayDeque<Backend.Document> releasedStarts = new ArrayDeque<>();
+    /**
+     * The page following the last page, loaded ahead of being asked for. Not yet in {@link #instances}
+     */
+    @Nullable
+    private LoadedPage<T> prefetched;
+    /**
+     * If the last page was not full, so there is nothing after it
+     */
+    private boolean reachedEnd = false;
+    /**
+     * If a page is currently being loaded. Only one page is loaded at a time
+     */
+    private boolean loading = false;
+    /**
+     * The operations waiting for the current page to finish loading
+     */
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+    /**
+     * If the page after the last page is loaded in the background
+     */
+    private boolean prefetchAhead = true;
+    /**
+     * The number of pages kept on either side of the visible results
+     */
+    private int retainedPages = DEFAULT_RETAINED_PAGES;
+
+    /**
+     * The default number of pages kept on either side of the visible results
+     */
+    public static final int DEFAULT_RETAINED_PAGES = 3;
+
     @Database.MustStir
     public DatabaseInfLoadQuery(@NonNull @Database.Stirs DatabaseQuery<T> query) {
         this.query = query;
@@ -52,31 +105,259 @@ public class DatabaseInfLoadQuery<T extends DatabaseInstance<T>> implements Data
     @Database.Titrates(what = "Result Instances", when = "All success")
     @Database.StirsDeep(what = "Previous Instances", when = "All success")
     public void refreshData(Listener<DatabaseInfLoadQuery<T>> listener){
-        query.gotoFirstPage((query, success) -> {
-            if(!success){
-                listener.onCompletion(DatabaseInfLoadQuery.this, false);
+        if(isLive()){
+            //The instances already follow the listened results
+            listener.onCompletion(this, true);
+            return;
+        }
+        whenIdle(() -> {
+            loading = true;
+            loadPage(null, null, page -> {
+                if(page == null){
+                    listener.onCompletion(DatabaseInfLoadQuery.this, false);
+                    idle();
+                    return;
+                }
+                clearInstances();
+                appendPage(page);
+                Log.d("QueryInf", "Complete Query");
+                instances.forEach(i -> Log.d("QueryInf", "\t"+i.getDocumentID()));
+                listener.onCompletion(DatabaseInfLoadQuery.this, true);
+                idle();
+            });
+        });
+    }
+
+    /**
+     * Adds a page of data to the end of the current list and loads the instances.
+     * <p>
+     *     The page starts after the last loaded document. If it was already loaded ahead, it is added immediately
+     *     and the page after it starts loading in the background.
+     * </p>
+     * @param listener The listener that will called on completion.
+     */
+    @Database.Titrates(what = "Result Instances", when = "All success")
+    public void incrementData(Listener<DatabaseInfLoadQuery<T>> listener){
+        if(isLive()){
+            Integer perPage = query.getResultsPerPage();
+            if(perPage == null){
+                listener.onCompletion(this, true);
                 return;
             }
-            clearInstances();
-            addAllInstances();
-            Log.d("QueryInf", "Complete Query");
-            instances.forEach(i -> Log.d("QueryInf", "\t"+i.getDocumentID()));
-            listener.onCompletion(DatabaseInfLoadQuery.this, true);
+            liveLimit += perPage;
+            listenToWindow(listener);
+            return;
+        }
+        whenIdle(() -> {
+            if(pages.isEmpty() && !reachedEnd){
+                refreshData(listener);
+                return;
+            }
+            if(prefetched != null){
+                LoadedPage<T> page = prefetched;
+                prefetched = null;
+                appendPage(page);
+                listener.onCompletion(DatabaseInfLoadQuery.this, true);
+                prefetchNextPage();
+                return;
+            }
+            if(reachedEnd){
+                listener.onCompletion(DatabaseInfLoadQuery.this, true);
+                return;
+            }
+            loading = true;
+            loadPage(pages.get(pages.size() - 1).last, null, page -> {
+                if(page != null) appendPage(page);
+                listener.onCompletion(DatabaseInfLoadQuery.this, page != null);
+                idle();
+            });
         });
     }
 
     /**
-     * Adds a page of data to the current list and loads the instances
+     * Loads the most recently released page back to the start of the list.
+     * The instances shift by the size of the page, which can be found by comparing the size of the list before and after
      * @param listener The listener that will called on completion.
+     * @see #releaseOutside(int, int)
      */
     @Database.Titrates(what = "Result Instances", when = "All success")
-    public void incrementData(Listener<DatabaseInfLoadQuery<T>> listener){
-        query.gotoNextPage((query, success) -> {
-            if(success) addAllInstances();
-            listener.onCompletion(DatabaseInfLoadQuery.this, success);
+    public void decrementData(Listener<DatabaseInfLoadQuery<T>> listener){
+        whenIdle(() -> {
+            Backend.Document start = releasedStarts.pollLast();
+            if(start == null || isLive()){
+                listener.onCompletion(DatabaseInfLoadQuery.this, true);
+                return;
+            }
+            loading = true;
+            loadPage(null, start, page -> {
+                if(page == null){
+                    releasedStarts.addLast(start);
+                }else if(page.first != null){
+                    pages.add(0, page);
+                    instances.addAll(0, page.instances);
+                }
+                listener.onCompletion(DatabaseInfLoadQuery.this, page != null);
+                idle();
+            });
         });
     }
 
+    /**
+     * Releases the pages that are more than {@link #getRetainedPages()} pages away from the visible results, dissolving their instances.
+     * Pages released from the start can be loaded back with {@link #decrementData(Listener)} and pages released from the end
+     * with {@link #incrementData(Listener)}.
+     * <p>
+     *     Nothing is released while a page is loading, while live or if results are not paged. At least one page is always kept.
+     * </p>
+     * @param firstVisible The index of the first visible result
+     * @param lastVisible The index of the last visible result
+     * @return The number of results removed from the start of the list, by which the visible indices have shifted
+     */
+    @Database.StirsDeep(what = "Released Instances")
+    public int releaseOutside(int firstVisible, int lastVisible){
+        Integer perPage = query.getResultsPerPage();
+        if(perPage == null || loading || isLive()) return 0;
+        int margin = retainedPages * perPage;
+        int removed = 0;
+        while(pages.size() > 1){
+            LoadedPage<T> page = pages.get(0);
+            int size = page.instances.size();
+            if(size > firstVisible - removed - margin) break;
+            pages.remove(0);
+            releasedStarts.addLast(page.first);
+            instances.subList(0, size).clear();
+            page.instances.forEach(i -> i.dissolve(this));
+            removed += size;
+        }
+        while(pages.size() > 1){
+            LoadedPage<T> page = pages.get(pages.size() - 1);
+            int start = instances.size() - page.instances.size();
+            if(start < lastVisible - removed + 1 + margin) break;
+            pages.remove(pages.size() - 1);
+            instances.subList(start, instances.size()).clear();
+            page.instances.forEach(i -> i.dissolve(this));
+            reachedEnd = false;
+            //The page loaded ahead no longer follows the last page
+            if(prefetched != null){
+                prefetched.instances.forEach(i -> i.dissolve(this));
+                prefetched = null;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return {@code true} if pages have been released from the start of the list
+     * @see #decrementData(Listener)
+     */
+    public boolean hasReleasedData(){
+        return !releasedStarts.isEmpty();
+    }
+
+    /**
+     * Sets if the page after the last page is loaded in the background, so that the next {@link #incrementData(Listener)}
+     * completes without waiting on the database
+     * @param prefetchAhead If pages are loaded ahead
+     * @return This query
+     */
+    public DatabaseInfLoadQuery<T> setPrefetchAhead(boolean prefetchAhead){
+        this.prefetchAhead = prefetchAhead;
+        return this;
+    }
+
+    /**
+     * Sets the number of pages kept on either side of the visible results
+     * @param retainedPages The number of pages
+     * @return This query
+     * @see #releaseOutside(int, int)
+     */
+    public DatabaseInfLoadQuery<T> setRetainedPages(int retainedPages){
+        this.retainedPages = Math.max(retainedPages, 1);
+        return this;
+    }
+
+    /**
+     * @return The number of pages kept on either side of the visible results
+     */
+    public int getRetainedPages(){
+        return retainedPages;
+    }
+
+    /**
+     * Loads a page of the query and fetches its instances
+     * @param after The document the page starts after. If both are null, the first page is loaded
+     * @param at The document the page starts at
+     * @param onLoaded Called with the page, or null if it failed
+     */
+    @Database.Titrates(what = "Page Instances")
+    private void loadPage(@Nullable Backend.Document after, @Nullable Backend.Document at, Consumer<LoadedPage<T>> onLoaded){
+        Listener<DatabaseQuery<T>> l = (q, success) -> {
+            if(!success){
+                onLoaded.accept(null);
+                return;
+            }
+            List<T> loaded = new ArrayList<>();
+            query.getCurrentInstances().forEach(i -> loaded.add(i.fetch(this)));
+            onLoaded.accept(new LoadedPage<>(query.getFirstDocument(), query.getLastDocument(), loaded));
+        };
+        if(at != null){
+            query.gotoPageAt(at, l);
+        }else{
+            query.gotoPageAfter(after, l);
+        }
+    }
+
+    /**
+     * Adds a page to the end of the list
+     * @param page The page
+     */
+    private void appendPage(LoadedPage<T> page){
+        Integer perPage = query.getResultsPerPage();
+        reachedEnd = perPage == null || page.instances.size() < perPage;
+        if(page.first == null) return;
+        pages.add(page);
+        instances.addAll(page.instances);
+    }
+
+    /**
+     * Loads the page after the last page in the background, if enabled and not already loaded
+     */
+    private void prefetchNextPage(){
+        if(!prefetchAhead || loading || prefetched != null || reachedEnd || pages.isEmpty() || isLive()) return;
+        loading = true;
+        loadPage(pages.get(pages.size() - 1).last, null, page -> {
+            if(page != null && page.first == null){
+                reachedEnd = true;
+            }else{
+                prefetched = page;
+            }
+            idle();
+        });
+    }
+
+    /**
+     * Runs the operation once no page is loading
+     * @param operation The operation
+     */
+    private void whenIdle(Runnable operation){
+        if(loading){
+            waiting.add(operation);
+        }else{
+            operation.run();
+        }
+    }
+
+    /**
+     * Marks the current load as complete and runs the waiting operations. Once there are none, loads ahead
+     */
+    private void idle(){
+        loading = false;
+        while(!loading && !waiting.isEmpty()){
+            waiting.poll().run();
+        }
+        prefetchNextPage();
+    }
+
     /**
      * If an item from the current set of instances has been deleted or updated
      * @return {@code true} if an item has been deleted or updated
@@ -90,6 +371,7 @@ public class DatabaseInfLoadQuery<T extends DatabaseInstance<T>> implements Data
      */
     @Database.AutoStir
     public void dissolve(){
+        changeListener = null;
         query.dissolve();
         clearInstances();
     }
@@ -102,7 +384,98 @@ public class DatabaseInfLoadQuery<T extends DatabaseInstance<T>> implements Data
      * @return {@code true} if there is more data to load
      */
     public boolean hasUnloadedData(){
-        return !query.isLastPage();
+        if(isLive()){
+            return query.getResultsPerPage() != null && instances.size() >= liveLimit;
+        }
+        return !reachedEnd;
+    }
+
+    /**
+     * Starts listening to the loaded results instead of reloading them on each refresh. At least the first page is listened to.
+     * <p>
+     *     Each snapshot is applied to the instances in place and each change is passed on to {@code changes}, so adapters
+     *     can update single rows. {@link #incrementData(Listener)} extends the listened results by a page.
+     * </p>
+     * @param changes Receives each change to the instances
+     * @param onLoaded Called once the first snapshot has been applied
+     * @see DatabaseQuery#listen(DatabaseQuery.ChangeListener, Listener)
+     */
+    @Database.Titrates(what = "Added Instances")
+    @Database.StirsDeep(what = "Removed Instances")
+    public void listen(@NonNull DatabaseQuery.ChangeListener<T> changes, Listener<DatabaseInfLoadQuery<T>> onLoaded){
+        Integer perPage = query.getResultsPerPage();
+        liveLimit = perPage == null ? 0 : Math.max(perPage, instances.size());
+        changeListener = changes;
+        //Mirror the query's instances, the first snapshot adds back any earlier pages
+        if(!instances.equals(query.getCurrentInstances())){
+            clearInstances();
+            addAllInstances();
+            changes.onReset();
+            changes.onChanged();
+        }
+        listenToWindow(onLoaded);
+    }
+
+    /**
+     * Stops listening. The instances are kept but are no longer updated
+     */
+    public void stopListening(){
+        changeListener = null;
+        query.stopListening();
+    }
+
+    /**
+     * @return {@code true} if the instances follow a snapshot listener
+     */
+    public boolean isLive(){
+        return changeListener != null;
+    }
+
+    /**
+     * Listens to the first {@link #liveLimit} results, applying each change to the instances before passing it on
+     * @param onLoaded Called once the first snapshot has been applied
+     */
+    private void listenToWindow(Listener<DatabaseInfLoadQuery<T>> onLoaded){
+        query.listen(query.getResultsPerPage() == null ? null : liveLimit, new DatabaseQuery.ChangeListener<T>() {
+            @Override
+            public void onInserted(int index, T instance) {
+                instances.add(index, instance.fetch(DatabaseInfLoadQuery.this));
+                if(changeListener != null) changeListener.onInserted(index, instance);
+            }
+
+            @Override
+            public void onUpdated(int index, T instance) {
+                if(changeListener != null) changeListener.onUpdated(index, instance);
+            }
+
+            @Override
+            public void onRemoved(int index, T instance) {
+                instances.remove(index);
+                if(changeListener != null) changeListener.onRemoved(index, instance);
+                instance.dissolve(DatabaseInfLoadQuery.this);
+            }
+
+            @Override
+            public void onMoved(int from, int to, T instance) {
+                instances.add(to, instances.remove(from));
+                if(changeListener != null) changeListener.onMoved(from, to, instance);
+            }
+
+            @Override
+            public void onReset() {
+                clearInstances();
+                addAllInstances();
+                if(changeListener != null) changeListener.onReset();
+            }
+
+            @Override
+            public void onChanged() {
+                outOfDate = false;
+                if(changeListener != null) changeListener.onChanged();
+                //The listener failed and the query was read once instead, so the instances are no longer live
+                if(!query.isLive()) changeListener = null;
+            }
+        }, (q, success) -> onLoaded.onCompletion(DatabaseInfLoadQuery.this, success));
     }
 
     /**
@@ -123,7 +496,7 @@ public class DatabaseInfLoadQuery<T extends DatabaseInstance<T>> implements Data
      */
     @Database.MustStir
     public static EventAssociation.Methods<DatabaseInfLoadQuery<EventAssociation>> methods(DatabaseInfLoadQuery<EventAssociation> query){
-        return DatabaseQuery.methods(query, query.query, query.instances);
+        return DatabaseQuery.methods(query, query.query, new ArrayList<>(query.instances));
     }
 
     /**
@@ -135,6 +508,13 @@ public class DatabaseInfLoadQuery<T extends DatabaseInstance<T>> implements Data
             i.dissolve(this);
         });
         instances.clear();
+        pages.clear();
+        releasedStarts.clear();
+        reachedEnd = false;
+        if(prefetched != null){
+            prefetched.instances.forEach(i -> i.dissolve(this));
+            prefetched = null;
+        }
         outOfDate = false;
     }
 
@@ -146,6 +526,30 @@ public class DatabaseInfLoadQuery<T extends DatabaseInstance<T>> implements Data
         query.getCurrentInstances().forEach(i -> instances.add(i.fetch(this)));
     }
 
+    /**
+     * A page of loaded instances and the documents it starts and ends with
+     * @param <T> The type of instance
+     */
+    private static class LoadedPage<T> {
+        /**
+         * The first document of the page. Null if the page is empty
+         */
+        @Nullable
+        final Backend.Document first;
+        /**
+         * The last document of the page. Null if the page is empty
+         */
+        @Nullable
+        final Backend.Document last;
+        final List<T> instances;
+
+        LoadedPage(@Nullable Backend.Document first, @Nullable Backend.Document last, List<T> instances) {
+            this.first = first;
+            this.last = last;
+            this.instances = instances;
+        }
+    }
+
     @Override
     public <S extends DatabaseInstance<S>> void onUpdate(DatabaseInstance<S> instance, Type type) {
         if(type == Type.DELETE || type == Type.UPDATE){
@@ -2,17 +2,12 @@ package com.syzygy.events.database;
 
 import android.net.Uri;
 import android.util.Log;
-import android.util.Pair;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
-import com.google.firebase.firestore.ListenerRegistration;
-import com.google.firebase.firestore.Query;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -67,25 +62,35 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      */
     private final String documentID;
 
-    /**
-     * The snapshot listener that is associated with the database. This listener is called whenever
-     * the associated document is updated.
-     */
-    private ListenerRegistration snapshotListener = null;
-
     /**
      * The database collection which the instance belongs to
      */
     private final Database.Collections collection;
 
     /**
-     * The set of properties that don't need to load
+     * The layout of the properties of the collection, shared by every instance of the collection
+     */
+    private final PropertySchema schema;
+    /**
+     * The current value of each property, by slot. For instance properties this is the id of the instance
+     * @see PropertySchema
+     */
+    private final Object[] values;
+    /**
+     * The current instance of each instance property, by instance index
+     * @see PropertySchema#instanceIndexOf(int)
+     */
+    private final DatabaseInstance<?>[] instances;
+    /**
+     * The values last read from or written to the database, by slot. Null until the instance is initialized
+     * @see #takeChanges()
      */
-    protected final Map<String, PropertyWrapper<?, ?>> properties = new HashMap<>();
+    private Object[] persisted;
     /**
-     * The set of properties that need to load
+     * Marks a persisted slot whose value was not written, so that it differs from every value
+     * @see #restoreChanges(Map)
      */
-    protected final List<String> iproperties = new ArrayList<>();
+    private static final Object UNWRITTEN = new Object();
 
 
     /**
@@ -124,14 +129,29 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
         this.db = db;
         this.documentID = documentID;
         this.collection = collection;
-        for(PropertyField<?,?> prop : properties){
-            String name = db.constants.getString(prop.propertyNameID);
+        this.schema = db.getSchema(collection, properties);
+        this.values = new Object[schema.size()];
+        this.instances = new DatabaseInstance<?>[schema.instanceCount()];
+    }
 
-            this.properties.put(name, prop.getWrapper());
-            if(prop.loads){
-                this.iproperties.add(name);
-            }
-        }
+    /**
+     * Returns the slot of the property
+     * @param resID The res id of the property name
+     * @return The slot of the property, -1 if it is not a property of this instance
+     * @see PropertySchema#slotOf(int)
+     */
+    private int slotOf(int resID){
+        return schema.slotOf(resID);
+    }
+
+    /**
+     * Returns the current instance of the instance property
+     * @param slot The slot of the property
+     * @return The instance, null if the property does not load an instance or is not loaded
+     */
+    private DatabaseInstance<?> instanceAt(int slot){
+        int i = schema.instanceIndexOf(slot);
+        return i < 0 ? null : instances[i];
     }
 
     /**
@@ -206,15 +226,31 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
     }
 
     /**
-     * Notifies each listener
+     * Notifies each listener. Updates and subupdates are held and delivered with the others of the same tick
      * @param type The type of update that occurred
      * @see Database.UpdateListener
+     * @see UpdateDispatcher
      * @throws IllegalStateException if the instance is in an illegal state {@link DatabaseInstance#assertNotIllegalState()}
      */
     protected final void notifyUpdate(Database.UpdateListener.Type type) throws IllegalStateException{
+        db.getUpdateDispatcher().enqueue(this, type);
+    }
+
+    /**
+     * Calls each listener right away
+     * @param type The type of update that occurred
+     */
+    final void deliverUpdate(Database.UpdateListener.Type type){
         updateListeners.forEach(l -> l.onUpdate(cast(), type));
     }
 
+    /**
+     * @return The listeners of this instance
+     */
+    final Set<Database.UpdateListener> getUpdateListeners(){
+        return Collections.unmodifiableSet(updateListeners);
+    }
+
     /**
      * Increases the reference count of this instance.
      * @return This instance casted to the generic type
@@ -292,6 +328,14 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
         return referenceCount > 0 && !isDereferenced;
     }
 
+    /**
+     * @return The number of objects referencing this instance
+     * @see DatabaseMetrics.Snapshot#getReferences()
+     */
+    final int getReferenceCount(){
+        return isDereferenced ? 0 : referenceCount;
+    }
+
     /**
      * Returns if the object is in a legal state
      * @return If the object is in a legal state
@@ -301,6 +345,14 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
         return !isDereferenced && isInitialized && !isDeleted;
     }
 
+    /**
+     * Returns if the data of the instance has been received and its sub-instances are being loaded
+     * @return {@code true} if the instance is initializing
+     */
+    final boolean isInitializingData(){
+        return isInitializing && !isInitialized;
+    }
+
     /**
      * Checks if the instance is in a legal state
      * The instance is in an illegal state if
@@ -334,7 +386,7 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
         db.returnInstance(this);
         notifyUpdate(Database.UpdateListener.Type.DEREFERENCED);
         updateListeners.clear();
-        if(snapshotListener != null) snapshotListener.remove();
+        if(isInitialized) db.getWatches().unwatch(this);
         isDereferenced = true;
     }
 
@@ -343,15 +395,13 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      */
     @Database.StirsDeep(what="Property Instances")
     protected void subDereferenceInstance() {
-        for(String name : iproperties){
-            PropertyWrapper<?,?> prop = properties.get(name);
-            assert prop != null;
-            InstancePropertyWrapper<?> iprop = prop.iS();
-            if(iprop.instance == this){
+        for(int i = 0; i < instances.length; i++){
+            DatabaseInstance<?> instance = instances[i];
+            if(instance == this){
                 Log.println(Log.ERROR, "SubDereference", "Recurse");
-                throw new IllegalStateException("Reference " + getDocumentID() + " " + name + " " + collection);
+                throw new IllegalStateException("Reference " + getDocumentID() + " " + schema.names[schema.instanceSlots[i]] + " " + collection);
             }
-            if(iprop.instance != null) iprop.instance.dissolve();
+            if(instance != null) instance.dissolve();
         }
     }
 
@@ -395,17 +445,17 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
     @Database.AutoStir(when="Property is not nullable")
     @Database.StirsDeep(what="Property Instances", when="Property is not nullable")
     private void onSubInstanceDelete(@Database.Observes DatabaseInstance<?> instance){
-        for(Map.Entry<String,PropertyWrapper<?,?>> ent : properties.entrySet()){
-            PropertyWrapper<?,?> prop = ent.getValue();
-            if(!prop.meta.loads || prop.meta.loadsCollection != instance.collection) continue;
-            InstancePropertyWrapper<?> iprop = prop.iS();
-            if(!Objects.equals(iprop.value, instance.getDocumentID())){
+        for(int i = 0; i < instances.length; i++){
+            int slot = schema.instanceSlots[i];
+            PropertyField<?,?> meta = schema.fields[slot];
+            if(meta.loadsCollection != instance.collection) continue;
+            if(!Objects.equals(values[slot], instance.getDocumentID())){
                 continue;
             }
             //Delete
-            iprop.value = "";
-            iprop.instance = null;
-            if(!prop.meta.loadsNullable){
+            values[slot] = "";
+            instances[i] = null;
+            if(!meta.loadsNullable){
                 deleteInstance(DeletionType.UP_FALL, success -> {});
             }else{
                 processUpdate();
@@ -441,59 +491,59 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
 
     /**
      * Exchanges a instance property's value with the given id. Loads the new ID.
-     * @param p The property to edit
+     * @param slot The slot of the property to edit
      * @param newID The ID of the new instance
      * @param <W> The type of the instance
      * @param onComplete called on completion, true if no errors occurred, might not be called before return
      * @throws IllegalArgumentException If the property is not an instance property
-     * @throws ClassCastException If the type does not match the properties type
      */
-    @SuppressWarnings("unchecked")
     @Database.StirsDeep(what="Previous Instance")
-    private <W extends DatabaseInstance<W>> void exchangeInstance(PropertyWrapper<?,?> p, @Database.Dilutes String newID, Consumer<Boolean> onComplete) throws IllegalArgumentException, ClassCastException{
-        if(!p.meta.loads) {
-            db.throwE(new IllegalArgumentException("Invalid property : " + p.meta.propertyNameID));
+    private <W extends DatabaseInstance<W>> void exchangeInstance(int slot, @Database.Dilutes String newID, Consumer<Boolean> onComplete) throws IllegalArgumentException{
+        PropertyField<?,?> meta = schema.fields[slot];
+        int index = schema.instanceIndexOf(slot);
+        if(index < 0) {
+            db.throwE(new IllegalArgumentException("Invalid property : " + meta.propertyNameID));
             onComplete.accept(false);
             return;
         }
-        InstancePropertyWrapper<W> prop = (InstancePropertyWrapper<W>) p;
 
-        if(Objects.equals(newID, prop.value)) {
+        if(Objects.equals(newID, values[slot])) {
             onComplete.accept(true);
             return;
         }
-        Log.println(Log.DEBUG, "modPropExchange", getDocumentID() + " " + db.constants.getString(prop.meta.propertyNameID) + " " + String.valueOf(newID));
+        String name = schema.names[slot];
+        Log.println(Log.DEBUG, "modPropExchange", getDocumentID() + " " + name + " " + String.valueOf(newID));
 
         if(!newID.isBlank()){
-            Log.println(Log.DEBUG, "modPropLoading", getDocumentID() + " " + db.constants.getString(prop.meta.propertyNameID) + " " + String.valueOf(newID));
-            db.<W>getInstance(prop.meta.loadsCollection, newID, (i, s) -> {
+            Log.println(Log.DEBUG, "modPropLoading", getDocumentID() + " " + name + " " + String.valueOf(newID));
+            db.<W>getInstance(meta.loadsCollection, newID, (i, s) -> {
                 if(!s){
-                    Log.println(Log.DEBUG, "modPropLoadFail", getDocumentID() + " " + db.constants.getString(prop.meta.propertyNameID) + " " + String.valueOf(newID));
+                    Log.println(Log.DEBUG, "modPropLoadFail", getDocumentID() + " " + name + " " + String.valueOf(newID));
                     onComplete.accept(false);
                     return;
                 }
-                Log.println(Log.DEBUG, "modPropLoadSuccess", getDocumentID() + " " + db.constants.getString(prop.meta.propertyNameID) + " " + String.valueOf(newID));
-                if(prop.instance != null){
-                    prop.instance.dissolve(this);
+                Log.println(Log.DEBUG, "modPropLoadSuccess", getDocumentID() + " " + name + " " + String.valueOf(newID));
+                if(instances[index] != null){
+                    instances[index].dissolve(this);
                 }
-                prop.instance = i;
+                instances[index] = i;
                 i.addListener(this);
-                prop.value = newID;
+                values[slot] = newID;
                 onComplete.accept(true);
             });
         }else {
-            Log.println(Log.DEBUG, "modPropNulling", getDocumentID() + " " + db.constants.getString(prop.meta.propertyNameID) + " " + String.valueOf(newID));
-            if (!prop.meta.loadsNullable)
+            Log.println(Log.DEBUG, "modPropNulling", getDocumentID() + " " + name + " " + String.valueOf(newID));
+            if (!meta.loadsNullable)
             {
-                db.throwE(new IllegalArgumentException("The value is null but the property is not nullable: " + db.constants.getString(prop.meta.propertyNameID) + " - " + newID));
+                db.throwE(new IllegalArgumentException("The value is null but the property is not nullable: " + name + " - " + newID));
                 onComplete.accept(false);
                 return;
             }
-            if(prop.instance != null){
-                prop.instance.dissolve(this);
+            if(instances[index] != null){
+                instances[index].dissolve(this);
             }
-            prop.instance = null;
-            prop.value = newID;
+            instances[index] = null;
+            values[slot] = newID;
             onComplete.accept(true);
         }
 
@@ -501,31 +551,35 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
 
     /**
      * Exchanges a instance property's instance and id with the given new instance. Fetches a reference to the newInstance
-     * @param prop The property to edit
+     * @param slot The slot of the property to edit
      * @param newInstance The new Instance
-     * @param <W> The type of the instance
      * @return If success full
      * @throws IllegalArgumentException If the property is not an instance property
-     * @throws ClassCastException If the type does not match the properties type
      */
     @Database.AutoStir
     @Database.StirsDeep(what="Previous Instance")
-    private <W extends DatabaseInstance<W>> boolean exchangeInstance(InstancePropertyWrapper<W> prop, @Database.Dilutes W newInstance) throws ClassCastException{
-        if(Objects.equals(newInstance, prop.instance)){
+    private boolean exchangeInstance(int slot, @Database.Dilutes DatabaseInstance<?> newInstance){
+        PropertyField<?,?> meta = schema.fields[slot];
+        int index = schema.instanceIndexOf(slot);
+        if(index < 0){
+            db.throwE(new IllegalArgumentException("Invalid property : " + meta.propertyNameID));
+            return false;
+        }
+        if(Objects.equals(newInstance, instances[index])){
             return true;
         }
-        if (!prop.meta.loadsNullable && newInstance == null)
+        if (!meta.loadsNullable && newInstance == null)
         {
-            db.throwE(new IllegalArgumentException("The value is null but the property is not nullable: " + prop.meta.propertyNameID));
+            db.throwE(new IllegalArgumentException("The value is null but the property is not nullable: " + meta.propertyNameID));
             return false;
         }
         if(newInstance!=null)newInstance.fetch(this);
-        if(prop.instance != null){
-            prop.instance.dissolve();
+        if(instances[index] != null){
+            instances[index].dissolve();
         }
 
-        prop.instance = newInstance;
-        prop.value = newInstance == null?"":newInstance.getDocumentID();
+        instances[index] = newInstance;
+        values[slot] = newInstance == null?"":newInstance.getDocumentID();
         return true;
     }
 
@@ -542,48 +596,53 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      * @throws IllegalArgumentException if a key is not one of the available properties, or if the value is not valid
      * @throws ClassCastException if a value does not match an properties type
      */
-    @SuppressWarnings({"unchecked", "rawtypes"})
     @Database.StirsDeep(what="Old Instances of Instance properties that are modified")
     protected final boolean modifyData(@Database.Dilutes Map<String, Object> data, Consumer<Boolean> onComplete) throws IllegalArgumentException, ClassCastException{
         boolean diff = false;
 
-        List<Pair<PropertyWrapper<?,?>, String>> loadIds = new ArrayList<>();
+        int[] loadSlots = new int[instances.length];
+        String[] loadIds = new String[instances.length];
+        int loads = 0;
 
         for(Map.Entry<String,Object> ent : data.entrySet()){
-            PropertyWrapper<?,?> prop = properties.get(ent.getKey());
-            if(prop == null){
+            int slot = schema.slotOf(ent.getKey());
+            if(slot < 0){
                 db.throwE(new IllegalArgumentException("Invalid property"));
                 onComplete.accept(false);
                 return diff;
             }
             Log.println(Log.DEBUG, "modProp", getDocumentID() + " " + ent.getKey() + " " + String.valueOf(ent.getValue()));
-            if(Objects.equals(prop.value, ent.getValue())) {
+            if(Objects.equals(values[slot], ent.getValue())) {
                 Log.println(Log.DEBUG, "modEqual", getDocumentID() + " " + ent.getKey() + " " + String.valueOf(ent.getValue()));
                 continue;
             };
             diff = true;
-            if(prop.meta.loads){
+            if(schema.fields[slot].loads){
                 if(ent.getValue() instanceof DatabaseInstance){
                     Log.println(Log.DEBUG, "modPropLoadsI", getDocumentID() + " " + ent.getKey() + " " + String.valueOf(ent.getValue()));
-                    if(!exchangeInstance((InstancePropertyWrapper)prop, (DatabaseInstance)ent.getValue())){
+                    if(!exchangeInstance(slot, (DatabaseInstance<?>)ent.getValue())){
                         onComplete.accept(false);
                         return diff;
                     };
                 }else{
                     Log.println(Log.DEBUG, "modPropLoadsId", getDocumentID() + " " + ent.getKey() + " " + String.valueOf(ent.getValue()));
-                    loadIds.add(new Pair<>(prop, String.valueOf(ent.getValue())));
+                    loadSlots[loads] = slot;
+                    loadIds[loads] = String.valueOf(ent.getValue());
+                    loads++;
                 }
             }else{
                 Log.println(Log.DEBUG, "modPropVal", getDocumentID() + " " + ent.getKey() + " " + String.valueOf(ent.getValue()));
-                prop.setValue(ent.getValue());
+                setValue(slot, ent.getValue());
             }
 
         }
-        if(loadIds.isEmpty()){
+        if(loads == 0){
             onComplete.accept(true);
             return diff;
         }
 
+        int loadCount = loads;
+        Tracer.Span span = db.tracer.begin("modifyData.exchange", getDocumentID());
         Consumer<Boolean> l = new Consumer<Boolean>() {
             private int i = -1;
             private boolean s = true;
@@ -591,21 +650,37 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
             public void accept(Boolean success) {
                 i ++;
                 s = s || success;
-                if(i >= loadIds.size()){
-                    onComplete.accept(s);
+                if(i >= loadCount){
+                    span.end();
+                    try(Tracer.Scope sc = span.parent().enter()){
+                        onComplete.accept(s);
+                    }
                     return;
                 }
-                Pair<PropertyWrapper<?,?>, String> instance = loadIds.get(i);
-                Log.println(Log.DEBUG, "modPropExchangeAsync", getDocumentID() + " " + db.constants.getString(instance.first.meta.propertyNameID) + " " + instance.second);
-                exchangeInstance(instance.first, instance.second, this);
+                Log.println(Log.DEBUG, "modPropExchangeAsync", getDocumentID() + " " + schema.names[loadSlots[i]] + " " + loadIds[i]);
+                exchangeInstance(loadSlots[i], loadIds[i], this);
             }
         };
-        l.accept(true);
+        try(Tracer.Scope sc = span.enter()){
+            l.accept(true);
+        }
         return diff;
     }
 
 
 
+    /**
+     * Sets the value of a property that does not load an instance
+     * @param slot The slot of the property
+     * @param value The value
+     * @throws ClassCastException if the value is not valid for the property
+     */
+    private void setValue(int slot, @Database.Observes Object value) throws ClassCastException{
+        PropertyField<?,?> meta = schema.fields[slot];
+        if(!meta.isValid.test(value)) throw new ClassCastException("Invalid value: " + value + " for property id " + meta.propertyNameID);
+        values[slot] = value;
+    }
+
     /**
      * Edits the value of a property. If the property is an instance, loads the property and fetches the reference
      * @param resID The res id of the property name
@@ -617,39 +692,38 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      * @throws IllegalStateException if the instance is in an illegal state {@link DatabaseInstance#assertNotIllegalState()}
      * @throws ClassCastException if the value type does not match the properties type
      */
-    @SuppressWarnings({"unchecked", "rawtypes"})
     @Database.StirsDeep(what="The previous instance", when="Modifying an instance property")
     public final boolean setPropertyValue(int resID, @Database.Dilutes Object newValue, Consumer<Boolean> onComplete) throws IllegalArgumentException, IllegalStateException{
         assertNotIllegalState();
-        String name = db.constants.getString(resID);
-        PropertyWrapper<?,?> prop = properties.get(name);
-        if(prop==null){
-            db.throwE(new IllegalArgumentException("Invalid property: " + name));
+        int slot = slotOf(resID);
+        if(slot < 0){
+            db.throwE(new IllegalArgumentException("Invalid property: " + db.schema.name(resID)));
             onComplete.accept(false);
             return false;
         }
-        if(!prop.meta.canEdit){
-            db.throwE(new IllegalArgumentException("Invalid property - cannot edit: " + name));
+        PropertyField<?,?> meta = schema.fields[slot];
+        if(!meta.canEdit){
+            db.throwE(new IllegalArgumentException("Invalid property - cannot edit: " + schema.names[slot]));
             onComplete.accept(false);
             return false;
         }
-        if(!isPropertyValid(prop, newValue)){
-            db.throwE(new IllegalArgumentException("Invalid value for " + name + ": " + newValue.toString()));
+        if(!meta.isValid.test(newValue)){
+            db.throwE(new IllegalArgumentException("Invalid value for " + schema.names[slot] + ": " + newValue));
             onComplete.accept(false);
             return false;
         }
-        if(Objects.equals(prop.value, newValue)) {
+        if(Objects.equals(values[slot], newValue)) {
             onComplete.accept(true);
             return false;
         }
-        if(!prop.meta.loads){
-            prop.setValue(newValue);
+        if(!meta.loads){
+            setValue(slot, newValue);
             processUpdate();
             onComplete.accept(true);
             return true;
         }
         if(newValue instanceof DatabaseInstance) {
-            if(!exchangeInstance((InstancePropertyWrapper)prop, (DatabaseInstance) newValue)){
+            if(!exchangeInstance(slot, (DatabaseInstance<?>) newValue)){
                 onComplete.accept(false);
                 return false;
             };
@@ -658,7 +732,7 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
             return true;
         }
 
-        exchangeInstance(prop, (String)newValue, s -> {
+        exchangeInstance(slot, (String)newValue, s -> {
             if(s){
                 processUpdate();
                 onComplete.accept(true);
@@ -680,22 +754,22 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      * @throws IllegalStateException if the instance is in an illegal state {@link DatabaseInstance#assertNotIllegalState()}
      * @throws ClassCastException if the instance type does not match the properties type
      */
-    @SuppressWarnings("unchecked")
     @Database.StirsDeep(what="The previous instance")
     public final <W extends DatabaseInstance<W>> Boolean setPropertyInstance(int resID, @Nullable @Database.Dilutes W instance) throws IllegalArgumentException, ClassCastException, IllegalStateException{
         assertNotIllegalState();
-        String name = db.constants.getString(resID);
-        Log.println(Log.DEBUG, "setPropertyStart", getDocumentID() + " " + getCollection() + " " + name + " : " + (instance == null ? "" : (instance.getDocumentID() + " " + instance.getCollection())));
-        PropertyWrapper<?,?> prop = properties.get(name);
-        if(prop==null || !prop.meta.loads){
-            db.throwE(new IllegalArgumentException("Invalid property: " + name));
+        int slot = slotOf(resID);
+        if(slot < 0 || !schema.fields[slot].loads){
+            db.throwE(new IllegalArgumentException("Invalid property: " + db.schema.name(resID)));
             return null;
         }
-        if(!prop.meta.canEdit){
+        PropertyField<?,?> meta = schema.fields[slot];
+        String name = schema.names[slot];
+        Log.println(Log.DEBUG, "setPropertyStart", getDocumentID() + " " + getCollection() + " " + name + " : " + (instance == null ? "" : (instance.getDocumentID() + " " + instance.getCollection())));
+        if(!meta.canEdit){
             db.throwE(new IllegalArgumentException("Invalid property - cannot edit: " + name));
             return null;
         }
-        if(instance == null && !prop.meta.loadsNullable){
+        if(instance == null && !meta.loadsNullable){
             db.throwE(new IllegalArgumentException("Cannot set to null: " + name));
             return null;
         }
@@ -704,16 +778,15 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
             return null;
         }
         String id = instance == null? "": instance.getDocumentID();
-        if(!isPropertyValid(prop, id)){
-            db.throwE(new IllegalArgumentException("Invalid value for " + name + ": " + instance.toString()));
+        if(!meta.isValid.test(id)){
+            db.throwE(new IllegalArgumentException("Invalid value for " + name + ": " + instance));
             return null;
         }
-        InstancePropertyWrapper<W> iprop = (InstancePropertyWrapper<W>) prop;
-        if(Objects.equals(iprop.instance, instance)) {
+        if(Objects.equals(instanceAt(slot), instance)) {
             Log.println(Log.DEBUG, "setPropertyEqual", getDocumentID() + " " + getCollection() + " " + name + " : " + (instance == null ? "" : (instance.getDocumentID() + " " + instance.getCollection())));
             return false;
         }
-        if(!exchangeInstance(iprop, instance)){
+        if(!exchangeInstance(slot, instance)){
             return null;
         };
         processUpdate();
@@ -730,13 +803,12 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      */
     @Database.Observes
     public final Object getPropertyValue(int resID) throws IllegalArgumentException, ClassCastException{
-        String name = db.constants.getString(resID);
-        PropertyWrapper<?,?> prop = (PropertyWrapper<?, ?>) properties.get(name);
-        if(prop==null){
-            db.throwE(new IllegalArgumentException("Invalid property: " + name));
+        int slot = slotOf(resID);
+        if(slot < 0){
+            db.throwE(new IllegalArgumentException("Invalid property: " + db.schema.name(resID)));
             return null;
         }
-        return prop.value;
+        return values[slot];
     }
 
     /**
@@ -761,13 +833,12 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      */
     @Database.Observes
     public final Object getPropertyInstance(int resID) throws IllegalArgumentException{
-        String name = db.constants.getString(resID);
-        PropertyWrapper<?,?> prop = properties.get(name);
-        if(prop==null){
-            db.throwE(new IllegalArgumentException("Invalid property: " + name));
+        int slot = slotOf(resID);
+        if(slot < 0){
+            db.throwE(new IllegalArgumentException("Invalid property: " + db.schema.name(resID)));
             return null;
         }
-        return prop.iS().instance;
+        return instanceAt(slot);
     }
 
     /**
@@ -791,19 +862,9 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      * @return {@code true} if the value is valid
      */
     public final boolean isPropertyValid(int resID, @Database.Observes Object value){
-        PropertyWrapper<?, ?> prop = properties.get(db.constants.getString(resID));
-        if(prop == null) return false;
-        return isPropertyValid(prop, value);
-    }
-
-    /**
-     * Test if the data is valid for the property
-     * @param prop the property
-     * @param value the value to test
-     * @return {@code true} if the value is valid
-     */
-    public final boolean isPropertyValid(PropertyWrapper<?,?> prop, @Database.Observes Object value){
-        return prop.meta.isValid.test(value);
+        int slot = slotOf(resID);
+        if(slot < 0) return false;
+        return schema.fields[slot].isValid.test(value);
     }
 
     /**
@@ -863,9 +924,9 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      * @return {@code true} if the property is present and editable
      */
     public final boolean isPropertyEditable(int resID){
-        PropertyWrapper<?,?> prop = properties.get(db.constants.getString(resID));
-        if(prop == null) return false;
-        return prop.meta.canEdit;
+        int slot = slotOf(resID);
+        if(slot < 0) return false;
+        return schema.fields[slot].canEdit;
     }
 
     /**
@@ -874,9 +935,9 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      * @return {@code true} if the property is present and loads an instance
      */
     public final boolean doesPropertyLoadInstance(int resID){
-        PropertyWrapper<?,?> prop = properties.get(db.constants.getString(resID));
-        if(prop == null) return false;
-        return prop.meta.loads;
+        int slot = slotOf(resID);
+        if(slot < 0) return false;
+        return schema.fields[slot].loads;
     }
 
     /**
@@ -885,7 +946,7 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      *     This function sets the data.
      *     Then it sets the instance to a valid state.
      *     Then it notifies all initialization listeners and update listeners.
-     *     Finally it adds the snapshot listener to the document
+     *     Finally it asks the database to watch the document, see {@link WatchManager}
      * </p>
      * <p>
      *     If it does not exist, full dissolves and notifies all listeners with null
@@ -926,12 +987,13 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
                 return;
             }
             Log.println(Log.DEBUG, "initDataModified", getDocumentID());
+            persisted = values.clone();
             isInitialized = true;
             onComplete.onInitialization(cast(), true);
             initializationListeners.forEach(l -> l.onInitialization(fetch(), true));
             initializationListeners.clear();
             notifyUpdate(Type.INIT);
-            snapshotListener = getDocumentReference().addSnapshotListener(db);
+            db.getWatches().watch(this);
         });
     }
 
@@ -948,36 +1010,35 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      * @deprecated Modify data already does this, this is never called without modify data being called first
      */
     @Database.Titrates(what="Sub instances")
-    @SuppressWarnings("unchecked")
     @Deprecated
     protected <X extends DatabaseInstance<X>>  void subInitialize(Database.InitializationListener<T> listener, int count) throws IllegalArgumentException{
-        if(count >= iproperties.size()) {
+        if(count >= instances.length) {
             Log.println(Log.DEBUG, "subInitEnd", "endCount");
             listener.onInitialization(this.cast(), true);
             return;
         }
-        PropertyWrapper<?,?> prop = properties.get(iproperties.get(count));
-        assert prop != null;
-        InstancePropertyWrapper<X> iprop = (InstancePropertyWrapper<X>) prop.iS();
-        if(iprop.value.isBlank()){
-            if(!prop.meta.loadsNullable){
-                db.throwE(new IllegalArgumentException("The value is null but the property is not nullable: "+ prop.meta.propertyNameID));
+        int slot = schema.instanceSlots[count];
+        PropertyField<?,?> meta = schema.fields[slot];
+        String id = (String) values[slot];
+        if(id.isBlank()){
+            if(!meta.loadsNullable){
+                db.throwE(new IllegalArgumentException("The value is null but the property is not nullable: "+ meta.propertyNameID));
                 listener.onInitialization(null, false);
                 return;
             }
             subInitialize(listener, count+1);
             return;
         }
-        Database.Collections collection = prop.meta.loadsCollection;
-        db.<X>getInstance(collection, iprop.value, (instance, success) -> {
+        Database.Collections collection = meta.loadsCollection;
+        db.<X>getInstance(collection, id, (instance, success) -> {
             if(!success){
-                iprop.value = "";
-                iprop.instance = null;
+                values[slot] = "";
+                instances[count] = null;
                 Log.println(Log.DEBUG, "subInitEnd", "endSuccess");
                 listener.onInitialization(this.cast(), false);
                 return;
             }
-            iprop.instance = instance;
+            instances[count] = instance;
             subInitialize(listener, count+1);
         });
     }
@@ -994,6 +1055,7 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
     final boolean updateDataFromDatabase(@Database.Dilutes Map<String, Object> data, Consumer<Boolean> onComplete) throws IllegalStateException{
         assertNotIllegalState();
         return modifyData(data, success -> {
+            persisted = values.clone();
             notifyUpdate(Type.UPDATE);
             onComplete.accept(success);
         });
@@ -1044,7 +1106,7 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
         if(!ids.isEmpty()){
             Log.println(Log.DEBUG, "Listener", "skipping udfm");
             for(int i : ids){
-                Log.println(Log.DEBUG, "Listener", "\t"+db.constants.getString(i));
+                Log.println(Log.DEBUG, "Listener", "\t"+db.schema.name(i));
             }
             return ids;
         }
@@ -1080,24 +1142,81 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
 
     /**
      * Returns the data of the instance
-     * @return The property key-value map of the instance
+     * @return An unmodifiable snapshot of the property key-value map of the instance
      * @throws IllegalStateException if the instance is in an illegal state {@link DatabaseInstance#assertNotIllegalState()}
      */
     @Database.Observes
     protected final Map<String, Object> getData() throws IllegalStateException{
         assertNotIllegalState();
-        Map<String, Object> values = new HashMap<>();
-        for(Map.Entry<String, PropertyWrapper<?,?>> ent : properties.entrySet()){
-            values.put(ent.getKey(), ent.getValue().value);
+        return schema.toMap(values);
+    }
+
+    /**
+     * Returns the properties that changed since the values were last read from or written to the database,
+     * and marks them as written. If the write fails, they must be restored with {@link #restoreChanges(Map)}
+     * @return The property key-value map of the changed properties. Null if the values were never read from the database,
+     *         in which case the whole document should be written
+     * @see Database#flushWrites()
+     */
+    @Nullable
+    final Map<String, Object> takeChanges(){
+        if(persisted == null){
+            persisted = values.clone();
+            return null;
+        }
+        Map<String, Object> changes = new HashMap<>();
+        for(int slot = 0; slot < values.length; slot++){
+            if(!Objects.equals(values[slot], persisted[slot])){
+                changes.put(schema.names[slot], values[slot]);
+                persisted[slot] = values[slot];
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Forgets which values were written to the database, so that the next write sends the whole document
+     * @see #takeChanges()
+     */
+    final void markUnwritten(){
+        persisted = null;
+    }
+
+    /**
+     * Marks taken changes whose write failed as not written, so that they are sent again with the next write
+     * @param changes The property key-value map returned by {@link #takeChanges()}. Null if the whole document was to be written
+     */
+    final void restoreChanges(@Nullable Map<String, Object> changes){
+        if(changes == null || persisted == null){
+            markUnwritten();
+            return;
+        }
+        for(String name : changes.keySet()){
+            int slot = schema.slotOf(name);
+            if(slot >= 0) persisted[slot] = UNWRITTEN;
+        }
+    }
+
+    /**
+     * Checks if a document holds different data than this instance. Properties the collection does not have are ignored
+     * @param data The property key-value map of the document
+     * @return {@code true} if any property of the document differs from the value of the instance
+     */
+    final boolean differsFrom(Map<String, Object> data){
+        for(Map.Entry<String, Object> ent : data.entrySet()){
+            int slot = schema.slotOf(ent.getKey());
+            if(slot >= 0 && !Objects.equals(values[slot], ent.getValue())) return true;
         }
-        return values;
+        return false;
     }
 
     /**
-     * Notifies all listeners that an update has occurred and modifies the database to match
+     * Notifies all listeners that an update has occurred and modifies the database to match.
+     * The write is not sent right away: the changed properties are sent together with any other changes made shortly after
      *
      * @throws IllegalStateException if the instance is in an illegal state {@link DatabaseInstance#assertNotIllegalState()}
      * @see Database#updateDatabase(DatabaseInstance)
+     * @see Database#edit(Runnable)
      */
     protected final void processUpdate() throws IllegalStateException{
         notifyUpdate(Database.UpdateListener.Type.UPDATE);
@@ -1148,6 +1267,10 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
 
     /**
      * Dereferences the instance. Then cascade deletes all cascading properties. Then notifies all listeners that the instance was deleted.
+     * <p>
+     *     If the documents found by the cascade delete queries are not all deleted, the instance is kept and the listener is called
+     *     with {@code false}. Deleting the instance again, or {@link CascadeDelete#resumeAll(Database, Consumer)}, finishes the cascade.
+     * </p>
      * @param deletionType The {@link DeletionType} reason this instance is being deleted
      * @param listener called on completion of deletion, returns false if one or more errors occured
      * @see Database#deleteFromDatabase(DatabaseInstance)
@@ -1161,33 +1284,50 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
         };
         Log.println(Log.DEBUG, "DeleteInstance", getDocumentID() + " " + getCollection());
 
-        if((deletionType & (DeletionType.SILENT | DeletionType.FROM_DATABASE)) != 0){
-            isDeleted = true;
-            if((deletionType & DeletionType.SILENT) != 0){
-                db.deleteFromDatabase(this);
-            }
-            if((deletionType & DeletionType.FROM_DATABASE) != 0) {
-                Log.d("Deletion", getDatabaseID());
-                notifyUpdate(Type.DELETE);
-            }
-            fullDissolve();
-            listener.accept(true);
-            return;
-        }
-
-        requiredFirstDelete(deletionType, success -> {
-            if(!success){
-                listener.accept(false);
-                return;
+        Tracer.Span span = db.tracer.begin("deleteInstance", getDocumentID());
+        Consumer<Boolean> done = success -> {
+            span.end();
+            try(Tracer.Scope sc = span.parent().enter()){
+                listener.accept(success);
             }
-            deleteSubInstances(deletionType, success2 -> {
+        };
+        try(Tracer.Scope sc = span.enter()){
+            if((deletionType & (DeletionType.SILENT | DeletionType.FROM_DATABASE)) != 0){
                 isDeleted = true;
-                db.deleteFromDatabase(this);
-                notifyUpdate(Database.UpdateListener.Type.DELETE); //Might need to change which order
+                if((deletionType & DeletionType.SILENT) != 0){
+                    db.deleteFromDatabase(this);
+                }
+                if((deletionType & DeletionType.FROM_DATABASE) != 0) {
+                    Log.d("Deletion", getDatabaseID());
+                    notifyUpdate(Type.DELETE);
+                }
                 fullDissolve();
-                listener.accept(true);//TODO true or success
+                done.accept(true);
+                return;
+            }
+
+            List<Backend.Query> queries = subInstanceCascadeDeleteQuery();
+            CascadeDelete cascade = queries.isEmpty() ? null : new CascadeDelete(db, this);
+            if(cascade != null) cascade.begin(deletionType);
+            requiredFirstDelete(deletionType, success -> {
+                if(!success){
+                    done.accept(false);
+                    return;
+                }
+                deleteSubInstances(deletionType, queries, cascade, success2 -> {
+                    if(cascade != null && !cascade.isComplete()){
+                        done.accept(false);
+                        return;
+                    }
+                    isDeleted = true;
+                    db.deleteFromDatabase(this);
+                    if(cascade != null) cascade.finish();
+                    notifyUpdate(Database.UpdateListener.Type.DELETE); //Might need to change which order
+                    fullDissolve();
+                    done.accept(true);//TODO true or success
+                });
             });
-        });
+        }
     }
 
     /**
@@ -1200,13 +1340,15 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
     }
 
     /**
-     * Deletes all subinstances that are cascaded
+     * Deletes all subinstances that are cascaded. The documents of the queries are deleted by the cascade where they do not need their instances
      * @param deletionType The {@link DeletionType} reason this instance is being deleted
+     * @param queries The cascade delete queries
+     * @param cascade Deletes the documents of the queries, null if there are no queries
      * @param listener called on completion of deletion
+     * @see CascadeDelete#deletesWithoutInstances(Database.Collections)
      */
     @Database.StirsDeep(what = "Sub instances")
-    private void deleteSubInstances(int deletionType, Consumer<Boolean> listener){
-        List<Pair<Query, Database.Collections>> queries = subInstanceCascadeDeleteQuery();
+    private void deleteSubInstances(int deletionType, List<Backend.Query> queries, @Nullable CascadeDelete cascade, Consumer<Boolean> listener){
         //Have I ever mentioned that I hate async
         Consumer<Boolean> l2 = new Consumer<Boolean>() {
             private int i = -1;
@@ -1219,8 +1361,13 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
                     listener.accept(s);
                     return;
                 }
-                Pair<Query, Database.Collections> qc = queries.get(i);
-                DatabaseQuery<?> dq = new DatabaseQuery<>(db, qc.first, qc.second, null);
+                Backend.Query q = queries.get(i);
+                Database.Collections c = Database.Collections.fromCollectionID(q.collection);
+                if(cascade != null && CascadeDelete.deletesWithoutInstances(c)){
+                    cascade.deleteDocuments(q, c, this);
+                    return;
+                }
+                DatabaseQuery<?> dq = new DatabaseQuery<>(db, q, c, null);
                 dq.refreshData((query, success2) -> {
                     if(!success) this.accept(false);
                     Consumer<Boolean> thiser = this;
@@ -1251,15 +1398,13 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
             public void accept(Boolean success) {
                 s = s || success;
                 i ++;
-                if(i >= iproperties.size()){
+                if(i >= instances.length){
                     l2.accept(s);
                     return;
                 }
-                PropertyWrapper<?,?> p = properties.get(iproperties.get(i));
-                assert p != null;
-                InstancePropertyWrapper<?> iprop = p.iS();
-                if(iprop.instance!=null && iprop.meta.cascadeDelete){
-                    iprop.instance.deleteInstance(deletionType | DeletionType.CASCADE, this);
+                DatabaseInstance<?> instance = instances[i];
+                if(instance!=null && schema.fields[schema.instanceSlots[i]].cascadeDelete){
+                    instance.deleteInstance(deletionType | DeletionType.CASCADE, this);
                 }else{
                     accept(true);
                 }
@@ -1271,7 +1416,7 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
     /**
      * @return A list of all querries that should be run whose instances will be deleted when this instance is deleted
      */
-    protected abstract List<Pair<Query, Database.Collections>> subInstanceCascadeDeleteQuery();
+    protected abstract List<Backend.Query> subInstanceCascadeDeleteQuery();
 
     /**
      * Returns the collection that this instance is apart of
@@ -1287,21 +1432,12 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
      *     If the document did not exist, a new document is created
      * </p>
      * @return the database reference to this instance
-     * @see Database.Collections#getCollection(Database)
+     * @throws IllegalStateException if the database is not stored in Firestore
+     * @see FirestoreBackend
      */
-    public final DocumentReference getDocumentReference() {
-        return collection.getDocument(db, documentID);
-    }
-
-    /**
-     * Returns the {@code CollectionReference} associated with this instance
-     * @return the database reference to the collection containing this instance
-     * @throws IllegalStateException if the instance is in an illegal state {@link DatabaseInstance#assertNotIllegalState()}
-     * @see Database.Collections#getDocument(Database, String)
-     */
-    final CollectionReference getCollectionReference() throws IllegalStateException{
-        assertNotIllegalState();
-        return collection.getCollection(db);
+    public final DocumentReference getDocumentReference() throws IllegalStateException{
+        if(!(db.getBackend() instanceof FirestoreBackend)) throw new IllegalStateException("The database is not stored in Firestore");
+        return ((FirestoreBackend) db.getBackend()).document(collection.getCollectionID(), documentID);
     }
 
     /**
@@ -1371,21 +1507,7 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
         }
 
         /**
-         * Gets the associated wrapper object
-         * @return  If the property is a instance {@link InstancePropertyWrapper};
-         *          if the property is a value {@link PropertyWrapper}
-         */
-        @SuppressWarnings("unchecked")
-        PropertyWrapper<?,?> getWrapper(){
-            if(loads){
-                return new InstancePropertyWrapper<>((PropertyField<String,W>)this);
-            }else{
-                return new PropertyWrapper<>((PropertyField<V,NullInstance>)this);
-            }
-        }
-
-        /**
-         * This class exists to fulfill the wildcard for PropertyWrappers
+         * This class exists to fulfill the wildcard for PropertyFields that do not load an instance
          */
         public static class NullInstance extends DatabaseInstance<NullInstance> {
 
@@ -1400,65 +1522,9 @@ public abstract class DatabaseInstance<T extends DatabaseInstance<T>> implements
             }
 
             @Override
-            protected List<Pair<Query, Database.Collections>> subInstanceCascadeDeleteQuery() {
+            protected List<Backend.Query> subInstanceCascadeDeleteQuery() {
                 return Collections.emptyList();
             }
         }
     }
-
-    /**
-     * Designates a property and its current value for a database instance
-     * @param <V> The type of the value
-     * @param <W> The type of the instance if applicable
-     */
-    public static class PropertyWrapper<V,W extends DatabaseInstance<W>>{
-        /**
-         * The property meta data
-         */
-        public final PropertyField<V,W> meta;
-        /**
-         * The current value
-         */
-        public V value;
-
-        PropertyWrapper(PropertyField<V,W> meta) {
-            this.meta = meta;
-        }
-
-        /**
-         * Sets the value from an Object value
-         * @param value The value
-         * @throws ClassCastException if the value is not the correct type
-         */
-        @SuppressWarnings("unchecked")
-        public void setValue(@Database.Observes Object value) throws ClassCastException{
-            if(!meta.isValid.test(value)) throw new ClassCastException("Invalid value: " + value + " for property id " + meta.propertyNameID);
-            this.value = (V) value;
-        }
-
-        /**
-         * Returns the instance property wrapper of this wrapper
-         * @return The casted property wrapper
-         * @throws ClassCastException If this property does not load an instance
-         */
-        @SuppressWarnings("unchecked")
-        public InstancePropertyWrapper<W> iS() throws ClassCastException{
-            return (InstancePropertyWrapper<W>)this;
-        }
-    }
-
-    /**
-     * A property wrapper for Single instance properties
-     * @param <W> The type of the property
-     */
-    public static class InstancePropertyWrapper<W extends DatabaseInstance<W>> extends PropertyWrapper<String,W>{
-        /**
-         * The current instance
-         */
-        public W instance;
-
-        InstancePropertyWrapper(PropertyField<String,W> meta) {
-            super(meta);
-        }
-    }
 }
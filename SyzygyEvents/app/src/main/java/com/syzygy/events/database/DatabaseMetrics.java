@@ -0,0 +1,456 @@
+package com.syzygy.events.database;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts the work done by a database.
+ * <p>
+ *     Keeps the reads, writes and deletes made to each collection, the hits, misses and evictions of the instance cache,
+ *     the snapshot listeners registered, and the latency of the slow paths of the model. The number of live instances and
+ *     their total reference count are read from the database when a snapshot is taken.
+ * </p>
+ * <p>
+ *     Counting does not allocate and is safe from any thread. A {@link Snapshot} is an immutable copy of every metric,
+ *     and can be passed to each registered {@link Exporter}.
+ * </p>
+ * @see Database#getMetrics()
+ */
+public final class DatabaseMetrics {
+
+    /**
+     * An operation made on a collection
+     */
+    public enum Operation {
+        READ,
+        WRITE,
+        DELETE
+    }
+
+    /**
+     * A timed path of the model
+     */
+    public enum Timer {
+        /**
+         * From requesting an instance that is not in cache to it being initialized
+         * @see Database#getInstance(Database.Collections, String, Database.InitializationListener, Backend.Document)
+         */
+        GET_INSTANCE,
+        /**
+         * From refreshing a query to its instances being loaded
+         * @see DatabaseQuery#refreshData(Database.Querrier.Listener)
+         */
+        QUERY_REFRESH,
+        /**
+         * From refreshing an event to its status counts being loaded
+         * @see Event#refreshData(Database.Querrier.Listener)
+         */
+        EVENT_REFRESH,
+        /**
+         * From executing a lottery result to its users being notified
+         * @see Event.LotteryResult#execute(Database.Querrier.DataListener, boolean)
+         */
+        LOTTERY_EXECUTE
+    }
+
+    /**
+     * Receives snapshots of the metrics
+     */
+    public interface Exporter {
+        /**
+         * Exports the metrics
+         * @param snapshot The metrics at the time of the export
+         */
+        void export(@NonNull Snapshot snapshot);
+    }
+
+    private static final int OPERATIONS = Operation.values().length;
+
+    private final AtomicLongArray operations = new AtomicLongArray(Database.Collections.values().length * OPERATIONS);
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cacheEvictions = new AtomicLong();
+    private final AtomicLong listenerRegistrations = new AtomicLong();
+    private final AtomicLong activeListeners = new AtomicLong();
+    private final AtomicLong writesCoalesced = new AtomicLong();
+    private final AtomicLong echoesSuppressed = new AtomicLong();
+    private final AtomicLong updateBatches = new AtomicLong();
+    private final AtomicLong updatesCollapsed = new AtomicLong();
+    private final AtomicLong watchesDeferred = new AtomicLong();
+    private final EnumMap<Timer, LatencyHistogram> latencies = new EnumMap<>(Timer.class);
+    private final List<Exporter> exporters = new CopyOnWriteArrayList<>();
+    private final IntSupplier liveInstances;
+    private final LongSupplier references;
+
+    /**
+     * @param liveInstances Returns the number of instances in cache
+     * @param references Returns the total reference count of the instances in cache
+     */
+    DatabaseMetrics(@NonNull IntSupplier liveInstances, @NonNull LongSupplier references) {
+        this.liveInstances = liveInstances;
+        this.references = references;
+        for(Timer t : Timer.values()){
+            latencies.put(t, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Counts operations on a collection
+     * @param collection The collection, ignored if null
+     * @param operation The operation
+     * @param n The number of documents operated on
+     */
+    void count(Database.Collections collection, @NonNull Operation operation, int n){
+        if(collection == null) return;
+        operations.addAndGet(collection.ordinal() * OPERATIONS + operation.ordinal(), n);
+    }
+
+    /**
+     * Counts an instance request that was answered from cache
+     */
+    void cacheHit(){
+        cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Counts an instance request that had to create the instance
+     */
+    void cacheMiss(){
+        cacheMisses.incrementAndGet();
+    }
+
+    /**
+     * Counts an instance removed from cache
+     */
+    void cacheEviction(){
+        cacheEvictions.incrementAndGet();
+    }
+
+    /**
+     * Counts a snapshot listener being registered
+     */
+    void listenerAdded(){
+        listenerRegistrations.incrementAndGet();
+        activeListeners.incrementAndGet();
+    }
+
+    /**
+     * Counts a snapshot listener being removed
+     */
+    void listenerRemoved(){
+        activeListeners.decrementAndGet();
+    }
+
+    /**
+     * Counts a change to an instance that was merged into a write that had not been sent yet
+     */
+    void writeCoalesced(){
+        writesCoalesced.incrementAndGet();
+    }
+
+    /**
+     * Counts a snapshot that was ignored as it only echoed a write of the instance
+     */
+    void echoSuppressed(){
+        echoesSuppressed.incrementAndGet();
+    }
+
+    /**
+     * Counts a batch of update notifications delivered together
+     */
+    void updateBatch(){
+        updateBatches.incrementAndGet();
+    }
+
+    /**
+     * Counts an update notification that was merged into one already waiting to be delivered
+     */
+    void updateCollapsed(){
+        updatesCollapsed.incrementAndGet();
+    }
+
+    /**
+     * Counts documents left unwatched because the watch budget is full
+     * @param count The number of documents
+     */
+    void watchesDeferred(int count){
+        watchesDeferred.addAndGet(count);
+    }
+
+    /**
+     * Starts timing
+     * @return The start time, to be passed to {@link #stop(Timer, long)}
+     */
+    long start(){
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time since the start
+     * @param timer The timed path
+     * @param start The start time given by {@link #start()}
+     */
+    void stop(@NonNull Timer timer, long start){
+        latencies.get(timer).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Takes a copy of every metric. Should be called from the thread the database is used on
+     * @return The snapshot
+     */
+    @NonNull
+    public Snapshot snapshot(){
+        long[] ops = new long[operations.length()];
+        for(int i = 0; i < ops.length; i++){
+            ops[i] = operations.get(i);
+        }
+        EnumMap<Timer, LatencyHistogram.Snapshot> lat = new EnumMap<>(Timer.class);
+        latencies.forEach((t, h) -> lat.put(t, h.snapshot()));
+        return new Snapshot(ops, cacheHits.get(), cacheMisses.get(), cacheEvictions.get(),
+                liveInstances.getAsInt(), references.getAsLong(),
+                listenerRegistrations.get(), activeListeners.get(), writesCoalesced.get(), echoesSuppressed.get(), updateBatches.get(), updatesCollapsed.get(), watchesDeferred.get(), lat);
+    }
+
+    /**
+     * Registers an exporter
+     * @param exporter The exporter
+     * @see #export()
+     */
+    public void addExporter(@NonNull Exporter exporter){
+        exporters.add(exporter);
+    }
+
+    /**
+     * Unregisters an exporter
+     * @param exporter The exporter
+     */
+    public void removeExporter(@NonNull Exporter exporter){
+        exporters.remove(exporter);
+    }
+
+    /**
+     * Takes a snapshot and passes it to every exporter
+     * @return The snapshot
+     */
+    @NonNull
+    public Snapshot export(){
+        Snapshot s = snapshot();
+        exporters.forEach(e -> e.export(s));
+        return s;
+    }
+
+    /**
+     * Sets every count and latency to zero. The live instances, references and active listeners are kept
+     */
+    public void reset(){
+        for(int i = 0; i < operations.length(); i++){
+            operations.set(i, 0);
+        }
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        cacheEvictions.set(0);
+        listenerRegistrations.set(0);
+        writesCoalesced.set(0);
+        echoesSuppressed.set(0);
+        updateBatches.set(0);
+        updatesCollapsed.set(0);
+        watchesDeferred.set(0);
+        latencies.values().forEach(LatencyHistogram::reset);
+    }
+
+    /**
+     * Returns an exporter that writes each snapshot to the debug log
+     * @param tag The log tag
+     * @return The exporter
+     */
+    public static Exporter logExporter(String tag){
+        return s -> Log.println(Log.DEBUG, tag, s.toString());
+    }
+
+    /**
+     * Every metric of a database at a point in time
+     */
+    public static final class Snapshot {
+        private final long[] operations;
+        private final long cacheHits;
+        private final long cacheMisses;
+        private final long cacheEvictions;
+        private final int liveInstances;
+        private final long references;
+        private final long listenerRegistrations;
+        private final long activeListeners;
+        private final long writesCoalesced;
+        private final long echoesSuppressed;
+        private final long updateBatches;
+        private final long updatesCollapsed;
+        private final long watchesDeferred;
+        private final EnumMap<Timer, LatencyHistogram.Snapshot> latencies;
+
+        private Snapshot(long[] operations, long cacheHits, long cacheMisses, long cacheEvictions, int liveInstances, long references, long listenerRegistrations, long activeListeners, long writesCoalesced, long echoesSuppressed, long updateBatches, long updatesCollapsed, long watchesDeferred, EnumMap<Timer, LatencyHistogram.Snapshot> latencies) {
+            this.operations = operations;
+            this.cacheHits = cacheHits;
+            this.cacheMisses = cacheMisses;
+            this.cacheEvictions = cacheEvictions;
+            this.liveInstances = liveInstances;
+            this.references = references;
+            this.listenerRegistrations = listenerRegistrations;
+            this.activeListeners = activeListeners;
+            this.writesCoalesced = writesCoalesced;
+            this.echoesSuppressed = echoesSuppressed;
+            this.updateBatches = updateBatches;
+            this.updatesCollapsed = updatesCollapsed;
+            this.watchesDeferred = watchesDeferred;
+            this.latencies = latencies;
+        }
+
+        /**
+         * @param collection The collection
+         * @param operation The operation
+         * @return The number of documents of the collection the operation was made on
+         */
+        public long get(@NonNull Database.Collections collection, @NonNull Operation operation){
+            return operations[collection.ordinal() * OPERATIONS + operation.ordinal()];
+        }
+
+        /**
+         * @param operation The operation
+         * @return The number of documents of every collection the operation was made on
+         */
+        public long total(@NonNull Operation operation){
+            long t = 0;
+            for(int i = operation.ordinal(); i < operations.length; i += OPERATIONS){
+                t += operations[i];
+            }
+            return t;
+        }
+
+        public long getCacheHits() {
+            return cacheHits;
+        }
+
+        public long getCacheMisses() {
+            return cacheMisses;
+        }
+
+        public long getCacheEvictions() {
+            return cacheEvictions;
+        }
+
+        /**
+         * @return The fraction of instance requests answered from cache, 0 if there were none
+         */
+        public double getCacheHitRate(){
+            long requests = cacheHits + cacheMisses;
+            return requests == 0 ? 0 : (double) cacheHits / requests;
+        }
+
+        /**
+         * @return The number of instances in cache
+         */
+        public int getLiveInstances() {
+            return liveInstances;
+        }
+
+        /**
+         * @return The total reference count of the instances in cache
+         */
+        public long getReferences() {
+            return references;
+        }
+
+        /**
+         * @return The number of snapshot listeners registered since the last reset
+         */
+        public long getListenerRegistrations() {
+            return listenerRegistrations;
+        }
+
+        /**
+         * @return The number of snapshot listeners currently registered
+         */
+        public long getActiveListeners() {
+            return activeListeners;
+        }
+
+        /**
+         * @return The number of changes to instances that were merged into a pending write rather than written on their own
+         */
+        public long getWritesCoalesced() {
+            return writesCoalesced;
+        }
+
+        /**
+         * @return The number of snapshots ignored as echoes of writes made by the instances
+         */
+        public long getEchoesSuppressed() {
+            return echoesSuppressed;
+        }
+
+        /**
+         * @return The number of batches of update notifications delivered
+         */
+        public long getUpdateBatches() {
+            return updateBatches;
+        }
+
+        /**
+         * @return The number of update notifications that were merged into one already waiting to be delivered
+         */
+        public long getUpdatesCollapsed() {
+            return updatesCollapsed;
+        }
+
+        /**
+         * @return The number of times a document was left unwatched because the watch budget was full
+         */
+        public long getWatchesDeferred() {
+            return watchesDeferred;
+        }
+
+        /**
+         * @param timer The timed path
+         * @return The latencies of the path
+         */
+        @NonNull
+        public LatencyHistogram.Snapshot getLatency(@NonNull Timer timer){
+            return latencies.get(timer);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("DatabaseMetrics{");
+            for(Database.Collections c : Database.Collections.values()){
+                sb.append(c.getCollectionID()).append("=[");
+                for(Operation o : Operation.values()){
+                    if(o.ordinal() > 0) sb.append(", ");
+                    sb.append(o.name().toLowerCase()).append('=').append(get(c, o));
+                }
+                sb.append("], ");
+            }
+            sb.append("cache=[hits=").append(cacheHits)
+                    .append(", misses=").append(cacheMisses)
+                    .append(", evictions=").append(cacheEvictions)
+                    .append("], instances=").append(liveInstances)
+                    .append(", references=").append(references)
+                    .append(", listeners=[registered=").append(listenerRegistrations)
+                    .append(", active=").append(activeListeners).append(']')
+                    .append(", writes=[coalesced=").append(writesCoalesced)
+                    .append(", echoesSuppressed=").append(echoesSuppressed).append(']')
+                    .append(", updates=[batches=").append(updateBatches)
+                    .append(", collapsed=").append(updatesCollapsed).append(']')
+                    .append(", watchesDeferred=").append(watchesDeferred);
+            latencies.forEach((t, l) -> sb.append(", ").append(t.name().toLowerCase()).append("=[").append(l).append(']'));
+            return sb.append('}').toString();
+        }
+    }
+}
@@ -1,26 +1,24 @@
 package com.syzygy.events.database;
 
-import android.app.Application;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.Task;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.FieldPath;
-import com.google.firebase.firestore.Filter;
-import com.google.firebase.firestore.Query;
-import com.google.firebase.firestore.QuerySnapshot;
 import com.syzygy.events.R;
 import com.syzygy.events.SyzygyApplication;
 
 import org.jetbrains.annotations.Unmodifiable;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
@@ -42,11 +40,11 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
     /**
      * The query to evaluate
      */
-    private final @NonNull Query query;
+    private final @NonNull Backend.Query query;
     /**
-     * The current document snapshot
+     * The documents of the current page
      */
-    private @Nullable QuerySnapshot snapshot;
+    private @Nullable List<Backend.Document> snapshot;
 
     /**
      * The number of results returned per page. If null, all results are returned
@@ -60,7 +58,7 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
     /**
      * The current query used to get the page
      */
-    private Query currentPage;
+    private Backend.Query currentPage;
 
     /**
      * The page
@@ -76,6 +74,61 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
      */
     private boolean deletes = false;
 
+    /**
+     * How the documents of a page are turned into instances
+     */
+    private Hydration hydration = Hydration.PARALLEL;
+
+    /**
+     * The registration of the snapshot listener while live. {@code null} if not live
+     */
+    private @Nullable Backend.Registration liveRegistration;
+    /**
+     * The query that is being listened to while live
+     */
+    private @Nullable Backend.Query liveQuery;
+    /**
+     * Receives the changes to the current instances while live
+     */
+    private @Nullable ChangeListener<T> changeListener;
+    /**
+     * The snapshots received while a previous snapshot was being applied
+     */
+    private final ArrayDeque<PendingSnapshot> pendingSnapshots = new ArrayDeque<>();
+    /**
+     * Incremented each time the registration changes, so snapshots of a previous registration are not applied
+     */
+    private int liveGeneration = 0;
+    /**
+     * If a snapshot is currently being applied
+     */
+    private boolean applyingSnapshot = false;
+    /**
+     * Called once the first snapshot of the current registration has been applied
+     */
+    private final List<Listener<DatabaseQuery<T>>> liveLoadListeners = new ArrayList<>();
+
+    /**
+     * The number of levels of referenced instances that are read in bulk before a page is loaded.
+     * If 0, every referenced instance is read on its own
+     */
+    private int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+
+    /**
+     * The default number of levels of referenced instances to prefetch. Covers association -> event -> facility -> organizer
+     */
+    public static final int DEFAULT_PREFETCH_DEPTH = 3;
+
+    /**
+     * The number of results per page used by the lists that load as they scroll
+     */
+    public static final int DEFAULT_PAGE_SIZE = 25;
+
+    /**
+     * The maximum number of values Firestore accepts in a single {@code whereIn} filter
+     */
+    static final int WHERE_IN_LIMIT = 30;
+
     /**
      * Creates a database query which can be refreshed to load the set of instances which are returned by the query
      * @param db The database
@@ -83,7 +136,7 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
      * @param collection The collection which this queries
      */
     @Database.MustStir
-    public DatabaseQuery(@NonNull Database db, @NonNull Query query, @NonNull Database.Collections collection, @Nullable Integer resultsPerPage){
+    public DatabaseQuery(@NonNull Database db, @NonNull Backend.Query query, @NonNull Database.Collections collection, @Nullable Integer resultsPerPage){
         this.db = db;
         this.collection = collection;
         this.query = query;
@@ -107,15 +160,36 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
     @Database.StirsDeep(what = "Previous Instances", when = "All success")
     @Database.Observes
     public void refreshData(Listener<DatabaseQuery<T>> listener){
+        long start = db.metrics.start();
+        Tracer.Span span = db.tracer.begin("query.refreshData", collection.getCollectionID());
+        Listener<DatabaseQuery<T>> timed = (query, success) -> {
+            db.metrics.stop(DatabaseMetrics.Timer.QUERY_REFRESH, start);
+            span.end();
+            try(Tracer.Scope sc = span.parent().enter()){
+                listener.onCompletion(query, success);
+            }
+        };
         if(currentPage == null){
             firstPageQuery();
         }
-        currentPage.get().addOnCompleteListener(task -> {
-            if(!task.isSuccessful()){
-                listener.onCompletion(this, false);
+        if(isLive()){
+            //The instances already follow the listened query
+            if(currentPage == liveQuery){
+                timed.onCompletion(this, true);
+            }else{
+                listen(currentPage, timed);
+            }
+            return;
+        }
+        Tracer.Span read = span.child("firestore.query", collection.getCollectionID());
+        db.getBackend().query(currentPage, (documents, success) -> {
+            read.end();
+            if(!success){
+                timed.onCompletion(this, false);
                 return;
             }
-            snapshot = task.getResult();
+            snapshot = documents;
+            db.metrics.count(collection, DatabaseMetrics.Operation.READ, snapshot.size());
             if(resultsPerPage != null){
                 if(thisPage == Page.NEXT && snapshot.size() < resultsPerPage) {
                     thisPage = Page.LAST;
@@ -127,7 +201,9 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
             }else{
                 thisPage = Page.FIRST_LAST;
             }
-            loadFromSnapshot(listener);
+            try(Tracer.Scope sc = span.enter()){
+                loadFromSnapshot(timed);
+            }
         });
     }
 
@@ -139,7 +215,7 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
      */
     @Database.MustStir
     public static EventAssociation.Methods<DatabaseQuery<EventAssociation>> methods(@Database.Observes DatabaseQuery<EventAssociation> query){
-        return new EventAssociation.Methods<>(query.db, query, query.getCurrentInstances());
+        return new EventAssociation.Methods<>(query.db, query, new ArrayList<>(query.currentInstances));
     }
 
     /**
@@ -311,7 +387,7 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
      */
     private void nextPageQuery(){
         assert snapshot != null;
-        currentPage = resultsPerPage == null ? query : query.startAfter(snapshot.getDocuments().get(snapshot.size())).limit(resultsPerPage);
+        currentPage = resultsPerPage == null ? query : query.startAfter(snapshot.get(snapshot.size() - 1)).limit(resultsPerPage);
     }
 
     /**
@@ -319,7 +395,54 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
      */
     private void previousPageQuery(){
         assert snapshot != null;
-        currentPage = resultsPerPage == null ? query : query.endBefore(snapshot.getDocuments().get(0)).limitToLast(resultsPerPage);
+        currentPage = resultsPerPage == null ? query : query.endBefore(snapshot.get(0)).limitToLast(resultsPerPage);
+    }
+
+    /**
+     * Refreshes the query and loads the page of results that starts after the given document.
+     * Unlike {@link #gotoNextPage(Listener)}, this does not depend on the current page
+     * @param cursor The document the page starts after. If null, loads the first page
+     * @param listener The listener
+     */
+    @Database.Titrates(what = "Result Instances", when = "All success")
+    @Database.StirsDeep(what = "Previous Instances", when = "All success")
+    void gotoPageAfter(@Nullable Backend.Document cursor, Listener<DatabaseQuery<T>> listener){
+        if(cursor == null){
+            gotoFirstPage(listener);
+            return;
+        }
+        thisPage = Page.NEXT;
+        currentPage = resultsPerPage == null ? query : query.startAfter(cursor).limit(resultsPerPage);
+        refreshData(listener);
+    }
+
+    /**
+     * Refreshes the query and loads the page of results that starts at the given document
+     * @param start The first document of the page
+     * @param listener The listener
+     */
+    @Database.Titrates(what = "Result Instances", when = "All success")
+    @Database.StirsDeep(what = "Previous Instances", when = "All success")
+    void gotoPageAt(@NonNull Backend.Document start, Listener<DatabaseQuery<T>> listener){
+        thisPage = Page.NEXT;
+        currentPage = resultsPerPage == null ? query : query.startAt(start).limit(resultsPerPage);
+        refreshData(listener);
+    }
+
+    /**
+     * @return The first document of the current page. Null if there is none
+     */
+    @Nullable
+    Backend.Document getFirstDocument(){
+        return snapshot == null || snapshot.isEmpty() ? null : snapshot.get(0);
+    }
+
+    /**
+     * @return The last document of the current page. Null if there is none
+     */
+    @Nullable
+    Backend.Document getLastDocument(){
+        return snapshot == null || snapshot.isEmpty() ? null : snapshot.get(snapshot.size() - 1);
     }
 
     /**
@@ -362,7 +485,133 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
             listener.onCompletion(this, false);
             return;
         }
-        List<DocumentSnapshot> newInstanceDocuments = snapshot.getDocuments();
+        List<Backend.Document> documents = snapshot;
+        Set<String> seeded = new HashSet<>();
+        Listener<DatabaseQuery<T>> l = (query, success) -> {
+            db.releaseSeededDocuments(seeded);
+            listener.onCompletion(query, success);
+        };
+        Map<Database.Collections, List<Backend.Document>> page = new EnumMap<>(Database.Collections.class);
+        page.put(collection, documents);
+        prefetchReferences(page, prefetchDepth, seeded, () -> {
+            if(hydration == Hydration.PARALLEL){
+                loadFromSnapshotParallel(documents, l);
+            }else{
+                loadFromSnapshotSequential(documents, l);
+            }
+        });
+    }
+
+    /**
+     * Loads the instances of the given snapshot as the current page, as if it was the result of a refresh
+     * @param snapshot The documents of the page
+     * @param listener The listener for the refresh
+     * @see #refreshData(Listener)
+     */
+    @Database.Titrates(what = "Result Instances", when = "All success")
+    @Database.StirsDeep(what = "Previous Instances", when = "All success")
+    void loadFromSnapshot(@NonNull List<Backend.Document> snapshot, Listener<DatabaseQuery<T>> listener){
+        this.snapshot = snapshot;
+        loadFromSnapshot(listener);
+    }
+
+    /**
+     * Reads the documents referenced by the instance properties of the given documents using batched
+     * {@code whereIn} queries, and seeds them in the database so that loading the page does not read each one on its own.
+     * Then repeats for the documents that were just read until {@code depth} levels have been fetched.
+     * <p>
+     *     Documents that are already cached are skipped. Documents already seeded by another query are not read again, but
+     *     this query holds its own reference to them so they are kept until it releases them. A failed batch is ignored,
+     *     those instances are read individually when the page loads.
+     * </p>
+     * @param level The documents of the current level by their collection
+     * @param depth The number of levels left to fetch
+     * @param seeded The database ids of the seeds this query holds a reference to. Added to as references are taken
+     * @param onComplete Called once all levels have been fetched
+     * @see Database#seedDocument(Database.Collections, Backend.Document)
+     * @see Database#acquireSeededDocument(Database.Collections, String)
+     */
+    private void prefetchReferences(Map<Database.Collections, List<Backend.Document>> level, int depth, Set<String> seeded, Runnable onComplete){
+        if(depth <= 0 || level.isEmpty()){
+            onComplete.run();
+            return;
+        }
+        Map<Database.Collections, Set<String>> ids = new EnumMap<>(Database.Collections.class);
+        Map<Database.Collections, List<Backend.Document>> nextLevel = new EnumMap<>(Database.Collections.class);
+        for(Map.Entry<Database.Collections, List<Backend.Document>> ent : level.entrySet()){
+            for(DatabaseInstance.PropertyField<?,?> field : DatabaseInstance.getFields(ent.getKey())){
+                if(!field.loads) continue;
+                String name = db.schema.name(field.propertyNameID);
+                for(Backend.Document doc : ent.getValue()){
+                    Object id = doc.get(name);
+                    if(!(id instanceof String) || ((String) id).isBlank()) continue;
+                    String databaseId = field.loadsCollection.getDatabaseID((String) id);
+                    if(seeded.contains(databaseId) || db.isCached(field.loadsCollection, (String) id)) continue;
+                    Backend.Document seed = db.acquireSeededDocument(field.loadsCollection, (String) id);
+                    if(seed != null){
+                        seeded.add(databaseId);
+                        nextLevel.computeIfAbsent(field.loadsCollection, k -> new ArrayList<>()).add(seed);
+                        continue;
+                    }
+                    ids.computeIfAbsent(field.loadsCollection, k -> new HashSet<>()).add((String) id);
+                }
+            }
+        }
+
+        List<PrefetchChunk> chunks = new ArrayList<>();
+        for(Map.Entry<Database.Collections, Set<String>> ent : ids.entrySet()){
+            List<String> all = new ArrayList<>(ent.getValue());
+            for(int i = 0; i < all.size(); i += WHERE_IN_LIMIT){
+                chunks.add(new PrefetchChunk(ent.getKey(), all.subList(i, Math.min(i + WHERE_IN_LIMIT, all.size()))));
+            }
+        }
+        if(chunks.isEmpty()){
+            prefetchReferences(nextLevel, depth - 1, seeded, onComplete);
+            return;
+        }
+
+        Runnable onChunkComplete = new Runnable() {
+            private int remaining = chunks.size();
+            @Override
+            public void run() {
+                remaining --;
+                if(remaining > 0) return;
+                prefetchReferences(nextLevel, depth - 1, seeded, onComplete);
+            }
+        };
+        for(PrefetchChunk chunk : chunks){
+            Database.Collections c = chunk.collection;
+            Tracer.Span span = db.tracer.begin("firestore.prefetch", c.getCollectionID());
+            Backend.Query query = Backend.Query.of(c.getCollectionID()).whereIn(Backend.DOCUMENT_ID, chunk.ids);
+            db.getBackend().query(query, (documents, success) -> {
+                span.end();
+                try(Tracer.Scope sc = span.parent().enter()){
+                    if(!success){
+                        Log.println(Log.DEBUG, "prefetchFail", c + " " + chunk.ids.size());
+                        onChunkComplete.run();
+                        return;
+                    }
+                    for(Backend.Document doc : documents){
+                        String databaseId = c.getDatabaseID(doc.id);
+                        if(seeded.contains(databaseId) || !db.seedDocument(c, doc)) continue;
+                        seeded.add(databaseId);
+                        nextLevel.computeIfAbsent(c, k -> new ArrayList<>()).add(doc);
+                    }
+                    onChunkComplete.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the documents one at a time. The next document is only requested once the previous has been initialized.
+     * @param newInstanceDocuments The documents of the page
+     * @param listener The listener for the refresh
+     * @see Hydration#SEQUENTIAL
+     */
+    @Database.Titrates(what = "Result Instances", when = "All success")
+    @Database.StirsDeep(what = "Previous Instances", when = "All success")
+    private void loadFromSnapshotSequential(List<Backend.Document> newInstanceDocuments, Listener<DatabaseQuery<T>> listener){
         final List<T> newInstances = new ArrayList<>();
         Database.InitializationListener<T> l = new Database.InitializationListener<T>() {
             private int count = -1;
@@ -382,14 +631,400 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
                     listener.onCompletion(DatabaseQuery.this, true);
                     return;
                 }
-                DocumentSnapshot doc = newInstanceDocuments.get(count);
-                Log.println(Log.DEBUG, "init", doc.getId());
-                db.getInstance(collection, doc.getId(), this, doc);
+                Backend.Document doc = newInstanceDocuments.get(count);
+                Log.println(Log.DEBUG, "init", doc.id);
+                db.getInstance(collection, doc.id, this, doc);
             }
         };
         l.onInitialization(null, true);
     }
 
+    /**
+     * Requests every document of the page at once and waits for all of them to be initialized.
+     * <p>
+     *     Results are kept in the order of the snapshot. Once every document has answered, if any failed,
+     *     all successfully loaded instances are dissolved and the listener is notified of failure.
+     * </p>
+     * @param newInstanceDocuments The documents of the page
+     * @param listener The listener for the refresh
+     * @see Hydration#PARALLEL
+     */
+    @SuppressWarnings("unchecked")
+    @Database.Titrates(what = "Result Instances", when = "All success")
+    @Database.StirsDeep(what = "Previous Instances", when = "All success")
+    private void loadFromSnapshotParallel(List<Backend.Document> newInstanceDocuments, Listener<DatabaseQuery<T>> listener){
+        final int size = newInstanceDocuments.size();
+        if(size == 0){
+            setNewInstances(new ArrayList<>());
+            listener.onCompletion(this, true);
+            return;
+        }
+        final T[] loaded = (T[]) new DatabaseInstance[size];
+        Runnable onAllComplete = new Runnable() {
+            private int remaining = size;
+            @Override
+            public void run() {
+                //Called once per document, the last call completes the page
+                remaining --;
+                if(remaining > 0) return;
+                List<T> newInstances = new ArrayList<>(size);
+                boolean failed = false;
+                for(T i : loaded){
+                    if(i == null) failed = true;
+                    else newInstances.add(i);
+                }
+                if(failed){
+                    newInstances.forEach(DatabaseInstance::dissolve);
+                    listener.onCompletion(DatabaseQuery.this, false);
+                    return;
+                }
+                setNewInstances(newInstances);
+                listener.onCompletion(DatabaseQuery.this, true);
+            }
+        };
+        for(int i = 0; i < size; i++){
+            final int index = i;
+            Backend.Document doc = newInstanceDocuments.get(i);
+            Log.println(Log.DEBUG, "init", doc.id);
+            db.<T>getInstance(collection, doc.id, (instance, success) -> {
+                if(success) loaded[index] = instance;
+                onAllComplete.run();
+            }, doc);
+        }
+    }
+
+    /**
+     * Sets how the documents of each page are turned into instances. Applies from the next refresh.
+     * @param hydration The hydration mode
+     * @return This query
+     */
+    public DatabaseQuery<T> setHydration(@NonNull Hydration hydration){
+        this.hydration = hydration;
+        return this;
+    }
+
+    /**
+     * @return How the documents of each page are turned into instances
+     */
+    public Hydration getHydration(){
+        return hydration;
+    }
+
+    /**
+     * Sets the number of levels of referenced instances that are read in bulk before each page is loaded
+     * @param depth The number of levels. If 0, referenced instances are read individually
+     * @return This query
+     * @see #DEFAULT_PREFETCH_DEPTH
+     */
+    public DatabaseQuery<T> setPrefetchDepth(int depth){
+        this.prefetchDepth = Math.max(depth, 0);
+        return this;
+    }
+
+    /**
+     * Starts listening to the current page (the first page if none has been loaded) instead of reloading it on each refresh.
+     * <p>
+     *     Each snapshot is applied to the current instances in place: added documents are loaded and inserted,
+     *     modified documents update their instance and removed documents are dissolved. Only the added documents are read as instances.
+     *     While live, {@link #refreshData(Listener)} completes immediately unless the page was changed, in which case the new page is listened to.
+     * </p>
+     * <p>
+     *     The first snapshot is matched against the current instances by id, so listening after a refresh does not reload the list.
+     * </p>
+     * <p>
+     *     If the listener errors, the query stops listening, {@code onLoaded} is called with {@code success = false} if it is
+     *     still waiting, and the current page is refreshed once. The changes are then notified as a reset.
+     * </p>
+     * @param changes Receives each change to the current instances
+     * @param onLoaded Called once the first snapshot has been applied
+     * @see #stopListening()
+     */
+    @Database.Titrates(what = "Added Instances")
+    @Database.StirsDeep(what = "Removed Instances")
+    public void listen(@NonNull ChangeListener<T> changes, Listener<DatabaseQuery<T>> onLoaded){
+        if(currentPage == null){
+            thisPage = Page.FIRST;
+            firstPageQuery();
+        }
+        this.changeListener = changes;
+        listen(currentPage, onLoaded);
+    }
+
+    /**
+     * Listens to the first {@code limit} results of the query
+     * @param limit The number of results. If null, all results
+     * @param changes Receives each change to the current instances
+     * @param onLoaded Called once the first snapshot has been applied
+     */
+    void listen(@Nullable Integer limit, @NonNull ChangeListener<T> changes, Listener<DatabaseQuery<T>> onLoaded){
+        thisPage = Page.FIRST;
+        currentPage = limit == null ? query : query.limit(limit);
+        this.changeListener = changes;
+        listen(currentPage, onLoaded);
+    }
+
+    /**
+     * Replaces the current registration with one on the given query
+     * @param q The query to listen to
+     * @param onLoaded Called once the first snapshot has been applied
+     */
+    private void listen(@NonNull Backend.Query q, Listener<DatabaseQuery<T>> onLoaded){
+        if(liveRegistration != null){
+            liveRegistration.remove();
+            db.metrics.listenerRemoved();
+        }
+        pendingSnapshots.clear();
+        liveLoadListeners.add(onLoaded);
+        liveQuery = q;
+        int generation = ++liveGeneration;
+        liveRegistration = db.getBackend().listen(q, new BiConsumer<Backend.Snapshot, Boolean>() {
+            private boolean first = true;
+            @Override
+            public void accept(@Nullable Backend.Snapshot value, Boolean success) {
+                if(generation != liveGeneration) return;
+                if(value == null || !success){
+                    //The registration is dead, so the instances are read once instead of being left stale
+                    Log.println(Log.WARN, "liveQuery", "Listening to " + collection.getCollectionID() + " failed, refreshing once instead");
+                    ChangeListener<T> changes = changeListener;
+                    stopListening();
+                    refreshData((query, refreshed) -> {
+                        if(!refreshed || changes == null) return;
+                        changes.onReset();
+                        changes.onChanged();
+                    });
+                    return;
+                }
+                db.metrics.count(collection, DatabaseMetrics.Operation.READ, value.changes.size());
+                //The results are updated by this registration, so they need no watch of their own
+                List<String> paths = new ArrayList<>(value.documents.size());
+                for(Backend.Document doc : value.documents){
+                    paths.add(collection.getDatabaseID(doc.id));
+                }
+                db.getWatches().cover(DatabaseQuery.this, paths);
+                pendingSnapshots.add(new PendingSnapshot(value, first, generation));
+                first = false;
+                if(!applyingSnapshot) applyNextSnapshot();
+            }
+        });
+        db.metrics.listenerAdded();
+    }
+
+    /**
+     * Stops listening. The current instances are kept but are no longer updated
+     */
+    public void stopListening(){
+        if(liveRegistration != null){
+            liveRegistration.remove();
+            db.metrics.listenerRemoved();
+        }
+        db.getWatches().uncover(this);
+        liveGeneration++;
+        liveRegistration = null;
+        liveQuery = null;
+        changeListener = null;
+        pendingSnapshots.clear();
+        liveLoadListeners.forEach(l -> l.onCompletion(this, false));
+        liveLoadListeners.clear();
+    }
+
+    /**
+     * @return {@code true} if the current instances follow a snapshot listener
+     */
+    public boolean isLive(){
+        return liveRegistration != null;
+    }
+
+    /**
+     * Applies the oldest pending snapshot, then the next once it is complete
+     */
+    private void applyNextSnapshot(){
+        PendingSnapshot next = pendingSnapshots.poll();
+        if(next == null || changeListener == null){
+            applyingSnapshot = false;
+            return;
+        }
+        applyingSnapshot = true;
+        Backend.Snapshot value = next.value;
+        boolean first = next.first;
+        ChangeListener<T> changes = changeListener;
+
+        List<Backend.Document> added = new ArrayList<>();
+        if(first){
+            Set<String> current = new HashSet<>();
+            currentInstances.forEach(i -> current.add(i.getDocumentID()));
+            for(Backend.Document doc : value.documents){
+                if(!current.contains(doc.id)) added.add(doc);
+            }
+        }else{
+            for(Backend.Change c : value.changes){
+                if(c.type == Backend.Change.Type.ADDED) added.add(c.document);
+            }
+        }
+
+        hydrateDocuments(added, loaded -> {
+            if(next.generation != liveGeneration){
+                //The registration changed while loading
+                loaded.values().forEach(DatabaseInstance::dissolve);
+                applyNextSnapshot();
+                return;
+            }
+            snapshot = value.documents;
+            if(resultsPerPage == null) thisPage = Page.FIRST_LAST;
+            boolean applied = first ? matchSnapshot(value, loaded, changes) : applyChanges(value, loaded, changes);
+            loaded.values().forEach(DatabaseInstance::dissolve);
+            if(!applied){
+                //An added document could not be loaded, so the indices no longer match the snapshot
+                Log.println(Log.DEBUG, "liveQuery", "Reloading " + collection);
+                loadFromSnapshot((q, success) -> {
+                    changes.onReset();
+                    completeSnapshot(success);
+                });
+                return;
+            }
+            updates = false;
+            deletes = false;
+            completeSnapshot(true);
+        });
+    }
+
+    /**
+     * Notifies the listeners that a snapshot has been applied, then applies the next
+     * @param success If the snapshot was applied
+     */
+    private void completeSnapshot(boolean success){
+        if(changeListener != null) changeListener.onChanged();
+        List<Listener<DatabaseQuery<T>>> listeners = new ArrayList<>(liveLoadListeners);
+        liveLoadListeners.clear();
+        listeners.forEach(l -> l.onCompletion(this, success));
+        applyNextSnapshot();
+    }
+
+    /**
+     * Applies the document changes of a snapshot in order. Instances that are inserted are removed from {@code loaded}
+     * @param value The snapshot
+     * @param loaded The instances of the added documents by id
+     * @param changes Receives each change
+     * @return {@code false} if an added document was not loaded
+     */
+    @Database.Titrates(what = "Added Instances")
+    @Database.StirsDeep(what = "Removed Instances")
+    private boolean applyChanges(Backend.Snapshot value, Map<String, T> loaded, ChangeListener<T> changes){
+        for(Backend.Change c : value.changes){
+            String id = c.document.id;
+            switch (c.type){
+                case ADDED: {
+                    T instance = loaded.remove(id);
+                    if(instance == null || c.newIndex > currentInstances.size()) return false;
+                    currentInstances.add(c.newIndex, instance);
+                    changes.onInserted(c.newIndex, instance);
+                    break;
+                }
+                case MODIFIED: {
+                    if(c.oldIndex >= currentInstances.size()) return false;
+                    T instance = currentInstances.get(c.oldIndex);
+                    if(c.oldIndex != c.newIndex){
+                        currentInstances.remove(c.oldIndex);
+                        currentInstances.add(c.newIndex, instance);
+                        changes.onMoved(c.oldIndex, c.newIndex, instance);
+                    }
+                    if(instance.isLegalState() && !db.isOwnEcho(instance, c.document) && instance.differsFrom(c.document.data)){
+                        db.flushWrite(instance);
+                        instance.updateDataFromDatabase(new HashMap<>(c.document.data), success -> {});
+                    }
+                    changes.onUpdated(c.newIndex, instance);
+                    break;
+                }
+                case REMOVED: {
+                    if(c.oldIndex >= currentInstances.size()) return false;
+                    T instance = currentInstances.remove(c.oldIndex);
+                    changes.onRemoved(c.oldIndex, instance);
+                    instance.dissolve();
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches the current instances to the documents of a snapshot by id. Instances that are inserted are removed from {@code loaded}
+     * @param value The snapshot
+     * @param loaded The instances of the documents that were not current by id
+     * @param changes Receives each change
+     * @return {@code false} if a document was not loaded
+     */
+    @Database.Titrates(what = "Added Instances")
+    @Database.StirsDeep(what = "Removed Instances")
+    private boolean matchSnapshot(Backend.Snapshot value, Map<String, T> loaded, ChangeListener<T> changes){
+        List<Backend.Document> documents = value.documents;
+        Set<String> ids = new HashSet<>();
+        documents.forEach(d -> ids.add(d.id));
+        for(int i = currentInstances.size() - 1; i >= 0; i--){
+            if(ids.contains(currentInstances.get(i).getDocumentID())) continue;
+            T instance = currentInstances.remove(i);
+            changes.onRemoved(i, instance);
+            instance.dissolve();
+        }
+        for(int i = 0; i < documents.size(); i++){
+            String id = documents.get(i).id;
+            if(i < currentInstances.size() && currentInstances.get(i).getDocumentID().equals(id)) continue;
+            int from = -1;
+            for(int j = i + 1; j < currentInstances.size(); j++){
+                if(currentInstances.get(j).getDocumentID().equals(id)){
+                    from = j;
+                    break;
+                }
+            }
+            if(from >= 0){
+                T instance = currentInstances.remove(from);
+                currentInstances.add(i, instance);
+                changes.onMoved(from, i, instance);
+                continue;
+            }
+            T instance = loaded.remove(id);
+            if(instance == null) return false;
+            currentInstances.add(i, instance);
+            changes.onInserted(i, instance);
+        }
+        return true;
+    }
+
+    /**
+     * Loads the documents into instances in parallel, after prefetching their references.
+     * Documents that fail to load are left out of the result
+     * @param documents The documents to load
+     * @param onComplete Called with the loaded instances by document id. Ownership is passed on
+     */
+    @Database.Titrates(what = "Result Instances")
+    private void hydrateDocuments(List<Backend.Document> documents, Consumer<Map<String, T>> onComplete){
+        Map<String, T> loaded = new HashMap<>();
+        if(documents.isEmpty()){
+            onComplete.accept(loaded);
+            return;
+        }
+        Set<String> seeded = new HashSet<>();
+        Map<Database.Collections, List<Backend.Document>> page = new EnumMap<>(Database.Collections.class);
+        page.put(collection, documents);
+        prefetchReferences(page, prefetchDepth, seeded, () -> {
+            Runnable onAllComplete = new Runnable() {
+                private int remaining = documents.size();
+                @Override
+                public void run() {
+                    remaining --;
+                    if(remaining > 0) return;
+                    db.releaseSeededDocuments(seeded);
+                    onComplete.accept(loaded);
+                }
+            };
+            for(Backend.Document doc : documents){
+                db.<T>getInstance(collection, doc.id, (instance, success) -> {
+                    if(success) loaded.put(doc.id, instance);
+                    onAllComplete.run();
+                }, doc);
+            }
+        });
+    }
+
     /**
      * Sets the new instances. Dissolves all previous instances and clears updates/deletions
      * @param newInstances the new instances
@@ -411,6 +1046,7 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
      */
     @Database.StirsDeep(what = "Previous Instances")
     public void dissolve(){
+        stopListening();
         thisPage = Page.NULL;
         currentInstances.forEach(i -> i.dissolve(this));
         currentInstances.clear();
@@ -473,31 +1109,41 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
 
     @Database.MustStir
     public static DatabaseQuery<EventAssociation> getMyEventsFilter(Database db, @Database.Observes User u){
-        Filter f1 = Filter.equalTo(db.constants.getString(R.string.database_assoc_user), u.getDocumentID());
-        Filter f2 = Filter.notEqualTo(db.constants.getString(R.string.database_assoc_status), db.constants.getString(R.string.event_assoc_status_cancelled));
         Database.Collections c = Database.Collections.EVENT_ASSOCIATIONS;
-        Query q = c.getCollection(db).where(Filter.and(f1,f2)).orderBy(db.constants.getString(R.string.database_assoc_time), Query.Direction.DESCENDING);
+        Backend.Query q = c.query()
+                .whereEqualTo(db.schema.name(R.string.database_assoc_user), u.getDocumentID())
+                .whereNotEqualTo(db.schema.name(R.string.database_assoc_status), db.schema.status(SchemaRegistry.Status.CANCELLED))
+                .orderBy(db.schema.name(R.string.database_assoc_time), true);
         return new DatabaseQuery<>(db, q, c, null);
     }
 
     @Database.MustStir
     public static DatabaseQuery<Event> getFacilityEvents(Database db, @Database.Observes Facility facility){
-        Filter f = Filter.equalTo(db.constants.getString(R.string.database_event_facilityID), facility.getDocumentID());
         Database.Collections c = Database.Collections.EVENTS;
-        Query q = c.getCollection(db).where(f).orderBy(db.constants.getString(R.string.database_event_createdTime), Query.Direction.DESCENDING);
+        Backend.Query q = c.query()
+                .whereEqualTo(db.schema.name(R.string.database_event_facilityID), facility.getDocumentID())
+                .orderBy(db.schema.name(R.string.database_event_createdTime), true);
         return new DatabaseQuery<>(db, q, c, null);
     }
 
     @Database.MustStir
     public static DatabaseQuery<Notification> getMyNotifications(Database db, @Database.Observes User u){
-        Query q = getMyNotificationsQuery(db, u);
-        return new DatabaseQuery<>(db, q, Database.Collections.NOTIFICATIONS, null);
+        return getMyNotifications(db, u, null);
     }
 
-    public static Query getMyNotificationsQuery(Database db, @Database.Observes User u){
-        Filter f = Filter.equalTo(db.constants.getString(R.string.database_not_receiverID), u.getDocumentID());
-        Database.Collections c = Database.Collections.NOTIFICATIONS;
-        return c.getCollection(db).where(f).orderBy(db.constants.getString(R.string.database_not_time), Query.Direction.DESCENDING);
+    /**
+     * @param resultsPerPage The number of results per page. If null, all results are loaded at once
+     */
+    @Database.MustStir
+    public static DatabaseQuery<Notification> getMyNotifications(Database db, @Database.Observes User u, @Nullable Integer resultsPerPage){
+        Backend.Query q = getMyNotificationsQuery(db, u);
+        return new DatabaseQuery<>(db, q, Database.Collections.NOTIFICATIONS, resultsPerPage);
+    }
+
+    public static Backend.Query getMyNotificationsQuery(Database db, @Database.Observes User u){
+        return Database.Collections.NOTIFICATIONS.query()
+                .whereEqualTo(db.schema.name(R.string.database_not_receiverID), u.getDocumentID())
+                .orderBy(db.schema.name(R.string.database_not_time), true);
     }
 
     /**
@@ -505,44 +1151,67 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
      */
     @Database.MustStir
     public static DatabaseQuery<EventAssociation> getAttachedUsers(Database db, @Database.Observes Event e, String status, boolean returnAll){
-        Query q = getAttachedUsersQuery(db, e, status);
+        Backend.Query q = getAttachedUsersQuery(db, e, status);
         return new DatabaseQuery<>(db, q, Database.Collections.EVENT_ASSOCIATIONS, null);
     }
 
     @Database.MustStir
-    public static Query getAttachedUsersQuery(Database db, @Database.Observes Event e, String status){
-        Filter f = Filter.equalTo(db.constants.getString(R.string.database_assoc_event), e.getDocumentID());
+    public static Backend.Query getAttachedUsersQuery(Database db, @Database.Observes Event e, String status){
+        Backend.Query q = Database.Collections.EVENT_ASSOCIATIONS.query()
+                .whereEqualTo(db.schema.name(R.string.database_assoc_event), e.getDocumentID());
         if(status != null && !status.isBlank()){
-            f = Filter.and(f, Filter.equalTo(db.constants.getString(R.string.database_assoc_status), status));
+            q = q.whereEqualTo(db.schema.name(R.string.database_assoc_status), status);
         }
-        return Database.Collections.EVENT_ASSOCIATIONS
-                .getCollection(db)
-                .where(f)
-                .orderBy(db.constants.getString(R.string.database_assoc_time), Query.Direction.DESCENDING);
+        return q.orderBy(db.schema.name(R.string.database_assoc_time), true);
     }
 
     @Database.MustStir
     public static DatabaseQuery<User> getUsers(Database db){
-        Filter f = Filter.notEqualTo(FieldPath.documentId(), SyzygyApplication.SYSTEM_ACCOUNT_ID);
+        return getUsers(db, null);
+    }
+
+    /**
+     * @param resultsPerPage The number of results per page. If null, all results are loaded at once
+     */
+    @Database.MustStir
+    public static DatabaseQuery<User> getUsers(Database db, @Nullable Integer resultsPerPage){
         Database.Collections c = Database.Collections.USERS;
-        Query q = c.getCollection(db).where(f).orderBy(db.constants.getString(R.string.database_user_createdTime), Query.Direction.DESCENDING);
-        return new DatabaseQuery<>(db, q, c, null);
+        Backend.Query q = c.query()
+                .whereNotEqualTo(Backend.DOCUMENT_ID, SyzygyApplication.SYSTEM_ACCOUNT_ID)
+                .orderBy(db.schema.name(R.string.database_user_createdTime), true);
+        return new DatabaseQuery<>(db, q, c, resultsPerPage);
     }
 
     @Database.MustStir
     public static DatabaseQuery<Event> getEvents(Database db){
-        Filter f = Filter.and(); //TODO - does this work
+        return getEvents(db, null);
+    }
+
+    /**
+     * @param resultsPerPage The number of results per page. If null, all results are loaded at once
+     */
+    @Database.MustStir
+    public static DatabaseQuery<Event> getEvents(Database db, @Nullable Integer resultsPerPage){
         Database.Collections c = Database.Collections.EVENTS;
-        Query q = c.getCollection(db).where(f).orderBy(db.constants.getString(R.string.database_event_createdTime), Query.Direction.DESCENDING);
-        return new DatabaseQuery<>(db, q, c, null);
+        Backend.Query q = c.query().orderBy(db.schema.name(R.string.database_event_createdTime), true);
+        return new DatabaseQuery<>(db, q, c, resultsPerPage);
     }
 
     @Database.MustStir
     public static DatabaseQuery<Image> getImages(Database db){
-        Filter f = Filter.notEqualTo(db.constants.getString(R.string.database_img_locID), SyzygyApplication.SYSTEM_ACCOUNT_ID);
+        return getImages(db, null);
+    }
+
+    /**
+     * @param resultsPerPage The number of results per page. If null, all results are loaded at once
+     */
+    @Database.MustStir
+    public static DatabaseQuery<Image> getImages(Database db, @Nullable Integer resultsPerPage){
         Database.Collections c = Database.Collections.IMAGES;
-        Query q = c.getCollection(db).where(f).orderBy(db.constants.getString(R.string.database_img_uploadTime), Query.Direction.DESCENDING);
-        return new DatabaseQuery<>(db, q, c, null);
+        Backend.Query q = c.query()
+                .whereNotEqualTo(db.schema.name(R.string.database_img_locID), SyzygyApplication.SYSTEM_ACCOUNT_ID)
+                .orderBy(db.schema.name(R.string.database_img_uploadTime), true);
+        return new DatabaseQuery<>(db, q, c, resultsPerPage);
     }
 
     /**
@@ -553,60 +1222,135 @@ public class DatabaseQuery <T extends DatabaseInstance<T>> implements Database.U
 
         /**
          * Gets the documents matching the query. Returns all results and does not load the instances
+         * @param db The database
          * @param q The query to evaluate
          * @param listener The on complete listener
          */
-        public static void getDocumentsFromQuery(Query q, BiConsumer<List<DocumentSnapshot>, Boolean> listener){
-            q.get().addOnCompleteListener(t -> {
-                if(!t.isSuccessful()){
-                    listener.accept(null, false);
-                    return;
-                }
-                listener.accept(t.getResult().getDocuments(), true);
-            });
+        public static void getDocumentsFromQuery(Database db, Backend.Query q, BiConsumer<List<Backend.Document>, Boolean> listener){
+            db.getBackend().query(q, (documents, success) -> listener.accept(success ? documents : null, success));
         }
 
         /**
-         * Updates the field on each field
+         * Updates the field on each field, in parallel write batches
          * WARNING!! DOES NOT TEST THE VALIDITY OF THE VALUE
+         * @param db The database
          * @param documents The documents to update
          * @param field The field to change
          * @param value The new value that the field should be
-         * @param onComplete The listener, returns how many errors occured
+         * @param onComplete The listener, returns how many documents were not updated
+         * @see BulkMutation
          */
-        public static void updateFieldOfDocuments(List<DocumentSnapshot> documents, String field, Object value, Consumer<Integer> onComplete){
-            OnCompleteListener<Void> oc = new OnCompleteListener<Void>() {
-                private int i = 0;
-                private int err = 0;
-                @Override
-                public void onComplete(@NonNull Task<Void> task) {
-                    if(!task.isSuccessful()){
-                        err++;
-                    }
-                    i++;
-                    if(i >= documents.size()){
-                        onComplete.accept(err);
-                    }
-                }
-            };
+        public static void updateFieldOfDocuments(Database db, List<Backend.Document> documents, String field, Object value, Consumer<Integer> onComplete){
             if(documents.isEmpty()){
                 onComplete.accept(0);
-            }else{
-                documents.forEach(d -> d.getReference().update(field, value).addOnCompleteListener(oc));
+                return;
             }
+            new BulkMutation(db).apply(documents, BulkMutation.update(field, value), (result, success) -> onComplete.accept(result.failed));
         }
 
         /**
          * Deletes the documents from the database.
          * WARNING!!!
          * DOES NOT DELETE SUB INSTANCES
+         * @param db The database
          * @param documents The documents to delete
          */
-        public static void deleteDocuments(List<DocumentSnapshot> documents){
-            documents.forEach(d -> d.getReference().delete());
+        public static void deleteDocuments(Database db, List<Backend.Document> documents){
+            documents.forEach(d -> db.getBackend().delete(d.collection, d.id, s -> {}));
+        }
+    }
+
+    /**
+     * A snapshot waiting to be applied
+     */
+    private static class PendingSnapshot {
+        final Backend.Snapshot value;
+        /**
+         * If this is the first snapshot of its registration
+         */
+        final boolean first;
+        final int generation;
+
+        PendingSnapshot(Backend.Snapshot value, boolean first, int generation) {
+            this.value = value;
+            this.first = first;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * The ids of one collection that are prefetched by a single query
+     */
+    private static class PrefetchChunk {
+        final Database.Collections collection;
+        final List<String> ids;
+
+        PrefetchChunk(Database.Collections collection, List<String> ids) {
+            this.collection = collection;
+            this.ids = ids;
         }
     }
 
+    /**
+     * Receives the changes applied to the current instances of a live query
+     * @param <T> The type of instance
+     * @see #listen(ChangeListener, Listener)
+     */
+    public interface ChangeListener<T> {
+        /**
+         * Called when an instance is inserted
+         * @param index The index of the new instance
+         * @param instance The instance
+         */
+        default void onInserted(int index, @Database.Observes T instance){}
+
+        /**
+         * Called when the document of an instance is modified. Its data may still be loading
+         * @param index The index of the instance
+         * @param instance The instance
+         */
+        default void onUpdated(int index, @Database.Observes T instance){}
+
+        /**
+         * Called when an instance is removed. The instance is dissolved after the call
+         * @param index The index the instance was at
+         * @param instance The instance
+         */
+        default void onRemoved(int index, @Database.Observes T instance){}
+
+        /**
+         * Called when an instance changes position
+         * @param from The previous index
+         * @param to The new index
+         * @param instance The instance
+         */
+        default void onMoved(int from, int to, @Database.Observes T instance){}
+
+        /**
+         * Called when the instances were reloaded instead of changed in place
+         */
+        default void onReset(){}
+
+        /**
+         * Called once all the changes of a snapshot have been applied
+         */
+        void onChanged();
+    }
+
+    /**
+     * How the documents returned by the query are loaded into instances
+     */
+    public enum Hydration {
+        /**
+         * Each document is loaded only once the previous document, including its sub-instances, has finished
+         */
+        SEQUENTIAL,
+        /**
+         * All documents of a page are loaded at once and joined when the last one finishes
+         */
+        PARALLEL
+    }
+
     public enum Page{
         /**
          * @see #dissolve()
@@ -1,15 +1,11 @@
 package com.syzygy.events.database;
 
 import android.net.Uri;
-import android.util.Pair;
 
 import androidx.annotation.Nullable;
 
 import com.google.firebase.Timestamp;
-import com.google.firebase.firestore.AggregateQuery;
-import com.google.firebase.firestore.AggregateSource;
 import com.google.firebase.firestore.GeoPoint;
-import com.google.firebase.firestore.Query;
 import com.syzygy.events.R;
 
 import java.util.ArrayList;
@@ -18,8 +14,9 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 
 /**
@@ -42,7 +39,7 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
      */
     private int currentInvited = 0;
 
-    private final Query assocUsersQuery;
+    private final Backend.Query assocUsersQuery;
 
     /**
      * Checks to make sure the generic type is the type of this instance
@@ -54,8 +51,8 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
     protected Event(Database db, String eventID) throws ClassCastException {
         super(db, eventID, Database.Collections.EVENTS, fields);
 
-        assocUsersQuery = Database.Collections.EVENT_ASSOCIATIONS.getCollection(db).whereEqualTo(
-                db.constants.getString(R.string.database_assoc_event),
+        assocUsersQuery = Database.Collections.EVENT_ASSOCIATIONS.query().whereEqualTo(
+                db.schema.name(R.string.database_assoc_event),
                 getDocumentID()
         );
     }
@@ -63,8 +60,8 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
     @Override
     protected void requiredFirstDelete(int deletionType, Consumer<Boolean> listener) {
         db.bulkModifyField(
-                Database.Collections.NOTIFICATIONS.getCollection(db)
-                        .whereEqualTo(db.constants.getString(R.string.database_not_eventID), getDocumentID()),
+                Database.Collections.NOTIFICATIONS.query()
+                        .whereEqualTo(db.schema.name(R.string.database_not_eventID), getDocumentID()),
                 R.string.database_not_eventID, "",
                 listener
         );
@@ -73,42 +70,25 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
     /**
      * Refreshes the current enrolled and waitlist counts
      * @param listener The listener that will be called when the counts are loaded
+     * @see EventCounters#load(String, java.util.function.BiConsumer)
      */
     @Override
     public void refreshData(Listener<Event> listener) {
-        AggregateQuery waitlistCountQuery = assocUsersQuery.whereEqualTo(
-                db.constants.getString(R.string.database_assoc_status),
-                db.constants.getString(R.string.event_assoc_status_waitlist)
-        ).count();
-        AggregateQuery enrolledInvitedCountQuery = assocUsersQuery.whereEqualTo(
-                db.constants.getString(R.string.database_assoc_status),
-                db.constants.getString(R.string.event_assoc_status_enrolled)
-        ).count();
-        AggregateQuery invitedCountQuery = assocUsersQuery.whereEqualTo(
-                db.constants.getString(R.string.database_assoc_status),
-                db.constants.getString(R.string.event_assoc_status_invited)
-        ).count();
-        waitlistCountQuery.get(AggregateSource.SERVER).addOnCompleteListener(task -> {
-            if(!task.isSuccessful()){
-                listener.onCompletion(this, false);
-                return;
-            }
-            currentWaitlist = (int) task.getResult().getCount();
-            enrolledInvitedCountQuery.get(AggregateSource.SERVER).addOnCompleteListener(task2 -> {
-                if(!task2.isSuccessful()){
+        long start = db.metrics.start();
+        Tracer.Span span = db.tracer.begin("event.refreshData", getDocumentID());
+        db.getEventCounters().load(getDocumentID(), (counts, success) -> {
+            db.metrics.stop(DatabaseMetrics.Timer.EVENT_REFRESH, start);
+            span.end();
+            try(Tracer.Scope sc = span.parent().enter()){
+                if(!success){
                     listener.onCompletion(this, false);
                     return;
                 }
-                currentEnrolled = (int) task2.getResult().getCount();
-                invitedCountQuery.get(AggregateSource.SERVER).addOnCompleteListener(task3 -> {
-                    if(!task2.isSuccessful()){
-                        listener.onCompletion(this, false);
-                        return;
-                    }
-                    currentInvited = (int) task3.getResult().getCount();
-                    listener.onCompletion(this, true);
-                });
-            });
+                currentWaitlist = (int) counts.waitlist;
+                currentEnrolled = (int) counts.enrolled;
+                currentInvited = (int) counts.invited;
+                listener.onCompletion(this, true);
+            }
         });
     }
 
@@ -135,6 +115,42 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
     }
 
 
+    /**
+     * Refreshes the current counts then runs the lottery over the waitlist without loading the waitlisted associations.
+     * The chosen users are invited and notified, and the rejected users are optionally notified, in batches.
+     * @param count The number of users to randomly select, if {@code count <= 0}, selects enough users to fill all open spots
+     * @param seed The seed of the draw
+     * @param notifyRejected If the users that are not chosen should be notified
+     * @param listener Called as the lottery progresses and on completion.
+     *                 If there are negative empty spots to be filled, completes successfully without selecting anyone
+     * @see Lottery
+     * @see #resumeLottery(Lottery.Listener)
+     */
+    public void runLottery(final int count, long seed, boolean notifyRejected, Lottery.Listener listener){
+        refreshData((query, success) -> {
+            if(!success){
+                listener.onCompletion(null, false);
+                return;
+            }
+            int getCount = count;
+            if(getCount <= 0) getCount = (int) (getCapacity() - currentEnrolled - currentInvited);
+            if(getCount < 0){
+                listener.onCompletion(new Lottery.Result(0, 0, 0), true);
+                return;
+            }
+            new Lottery(db, this).start(getCount, seed, notifyRejected, listener);
+        });
+    }
+
+    /**
+     * Finishes a lottery that was interrupted or had chunks that failed to commit
+     * @param listener Called as the lottery progresses and on completion. Called with {@code success = false} if no lottery is in progress
+     * @see #runLottery(int, long, boolean, Lottery.Listener)
+     */
+    public void resumeLottery(Lottery.Listener listener){
+        new Lottery(db, this).resume(listener);
+    }
+
     /**
      * Queries the waitlist and shuffles the result
      * @param listener Called on completion with the shuffled list
@@ -151,24 +167,29 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
                 return;
             }
             List<EventAssociation> users = new ArrayList<>(data.result);
-
-            List<EventAssociation> chosen = users;
-            List<EventAssociation> unChosen = new ArrayList<>();
-
-            if(count == 0){
-                chosen = unChosen;
-                unChosen = users;
-            }else if(count < users.size()){
-                Collections.shuffle(users);
-                chosen = users.subList(0,count);
-                unChosen = users.subList(count, users.size());
-            }
+            int drawn = drawFromWaitlist(users, count, ThreadLocalRandom.current());
+            List<EventAssociation> chosen = users.subList(0, drawn);
+            List<EventAssociation> unChosen = users.subList(drawn, users.size());
             EventAssociation.Methods<Event> c = new EventAssociation.Methods<>(db, Event.this, chosen);
             EventAssociation.Methods<Event> u = new EventAssociation.Methods<>(db, Event.this, unChosen);
             listener.onCompletion(query, new LotteryResult(c,u,count), true);
         });
     }
 
+    /**
+     * Orders the waitlist so that the randomly chosen users come first
+     * @param users The waitlisted users. Shuffled in place if not all of them are chosen
+     * @param count The number of users to choose
+     * @param random The source of randomness
+     * @return The number of users that were chosen, which are the first users of the list
+     */
+    static <X> int drawFromWaitlist(List<X> users, int count, Random random){
+        if(count <= 0) return 0;
+        if(count >= users.size()) return users.size();
+        Collections.shuffle(users, random);
+        return count;
+    }
+
     /**
      * The random selected list user and unselected users returned by a lottery call along with a method to execute the lottery.
      * This acts as a confirmation stage for the lottery.
@@ -232,38 +253,50 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
                 return;
             }
             executed = true;
-            if(notifyRejected) {
-                notChosen.rejectUsersFromLottery((query, data, success) -> {
-                    if(!success){
-                        listener.onCompletion(query, data, false);
-                        if(data != null)data.dissolve();
-                        dissolve();
-                        return;
-                    }
-                    result.inviteUsersToEventFromLottery((query1, data1, success2) -> {
-                        if(success2) setHasRunLottery(true);
-                        EventAssociation.NotificationResult nr = data;
-                        if(data1 != null){
-                            List<Notification> s = new ArrayList<>();
-                            s.addAll(data.result);
-                            s.addAll(data1.result);
-                            List<Notification> f = new ArrayList<>();
-                            f.addAll(data.failedNotifications);
-                            f.addAll(data1.failedNotifications);
-                            nr = new EventAssociation.NotificationResult(s,f);
+            long start = db.metrics.start();
+            Tracer.Span span = db.tracer.begin("lottery.execute", getDocumentID());
+            DataListener<Event, EventAssociation.NotificationResult> timed = (query, data, success) -> {
+                db.metrics.stop(DatabaseMetrics.Timer.LOTTERY_EXECUTE, start);
+                span.end();
+                try(Tracer.Scope sc = span.parent().enter()){
+                    listener.onCompletion(query, data, success);
+                }
+            };
+            try(Tracer.Scope sc = span.enter()){
+                if(notifyRejected) {
+                    notChosen.rejectUsersFromLottery((query, data, success) -> {
+                        if(!success){
+                            timed.onCompletion(query, data, false);
+                            if(data != null)data.dissolve();
+                            dissolve();
+                            return;
                         }
-                        listener.onCompletion(query1, nr, success2);
-                        if(data1!=null)data1.dissolve();
+                        result.inviteUsersToEventFromLottery((query1, data1, success2) -> {
+                            if(success2) setHasRunLottery(true);
+                            EventAssociation.NotificationResult nr = data;
+                            if(data1 != null){
+                                List<Notification> s = new ArrayList<>();
+                                s.addAll(data.result);
+                                s.addAll(data1.result);
+                                List<Notification> f = new ArrayList<>();
+                                f.addAll(data.failedNotifications);
+                                f.addAll(data1.failedNotifications);
+                                nr = new EventAssociation.NotificationResult(s,f);
+                            }
+                            timed.onCompletion(query1, nr, success2);
+                            data.dissolve();
+                            if(data1!=null)data1.dissolve();
+                            dissolve();
+                        });
+                    });
+                }else{
+                    result.inviteUsersToEventFromLottery((query, data, success) -> {
+                        if(success) setHasRunLottery(true);
+                        timed.onCompletion(query, data, success);
+                        if(data!=null)data.dissolve();
                         dissolve();
                     });
-                });
-            }else{
-                result.inviteUsersToEventFromLottery((query, data, success) -> {
-                    if(success) setHasRunLottery(true);
-                    listener.onCompletion(query, data, success);
-                    if(data!=null)data.dissolve();
-                    dissolve();
-                });
+                }
             }
         }
 
@@ -327,21 +360,21 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
      */
     @Database.MustStir
     public void getUsersByStatus(int statusID, DataListener<Event, EventAssociation.Methods<Event>> listener){
-        Query query = assocUsersQuery.whereEqualTo(
-                db.constants.getString(R.string.database_assoc_status),
-                db.constants.getString(statusID)
+        Backend.Query query = assocUsersQuery.whereEqualTo(
+                db.schema.name(R.string.database_assoc_status),
+                db.schema.name(statusID)
         );
         getAssociatedUsersFromQuery(query, listener);
     }
 
     /**
-     * Gets the {@link EventAssociation.Methods} from a {@link Query}.
+     * Gets the {@link EventAssociation.Methods} from a {@link Backend.Query}.
      * @param query The query to evaluate
      * @param listener The listener that gets called on completion
      * @see DatabaseQuery#refreshData(Listener)
      */
     @Database.MustStir
-    public void getAssociatedUsersFromQuery(Query query, DataListener<Event, EventAssociation.Methods<Event>> listener){
+    public void getAssociatedUsersFromQuery(Backend.Query query, DataListener<Event, EventAssociation.Methods<Event>> listener){
         getAssociatedUsersFromQuery(new DatabaseQuery<>(db, query, Database.Collections.EVENT_ASSOCIATIONS, null), listener);
     }
 
@@ -531,10 +564,16 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
      * <p>
      *     The listener will be returned with false success if an error occurs or the user cannot be added to the waitlist. If the this is because the user is already attached, the association is returned with false success
      * </p>
+     * <p>
+     *     The association is created, and the waitlist capacity checked, in a single transaction against the counts of the event,
+     *     so simultaneous sign ups cannot overfill the waitlist or associate the same user twice.
+     * </p>
      * @param user The user to be added
      * @param location The current location of the user. If this event requires geolocation, the location cannot be null.
      *                 If the event does not require geo, the location is auto set to null
      * @param listener The listener for completion. Ownership of the event association is given to the user
+     * @see EventAssociation#getAssociationID(String, String)
+     * @see EventCounters
      */
     @Database.MustStir
     public void addUserToWaitlist(@Database.Observes User user, @Nullable GeoPoint location, DataListener<Event, QueryResult<EventAssociation>> listener){
@@ -554,47 +593,132 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
             return;
         }
 
-        refreshData((query, success) -> {
-            if(!success) {
+        getUserAssociation(user, (query1, data, success1) -> {
+            if(!success1){
                 listener.onCompletion(this, null, false);
                 return;
             }
-            long waitListCapacity = getWaitlistCapacity();
-            if(waitListCapacity >= 0 && getCurrentWaitlist() >= waitListCapacity){
+            if(data.size() > 1) {
                 listener.onCompletion(this, null, false);
+                data.dissolve();
                 return;
             }
-            getUserAssociation(user, (query1, data, success1) -> {
-                if(!success1){
-                    listener.onCompletion(this, null, false);
-                    return;
-                }
-                if(data.size() > 1) {
-                    listener.onCompletion(this, null, false);
-                    return;
-                }
-                if(data.size() == 1) {
-                    EventAssociation e = data.result.get(0).fetch();
-                    String status = e.getStatus();
-
-                    if (!Objects.equals(status, db.constants.getString(R.string.event_assoc_status_cancelled))) {
-                        //Not in state where can become waitlist
-                        listener.onCompletion(this, new QueryResult<>(e), false);
-                        data.dissolve();
+            String assocID = EventAssociation.getAssociationID(getDocumentID(), user.getDocumentID());
+            if(data.size() == 1 && !data.result.get(0).getDocumentID().equals(assocID)) {
+                //Association from before ids were derived, it cannot be admitted transactionally
+                EventAssociation e = data.result.get(0).fetch();
+                data.dissolve();
+                readmitLegacyAssociation(e, listener);
+                return;
+            }
+            data.dissolve();
+            admitToWaitlist(user.getDocumentID(), finalLocation, true, listener);
+        });
+    }
+
+    /**
+     * The number of times the admission transaction is attempted. Every sign up to an event contends on the same counter document,
+     * so a burst of sign ups needs more attempts than the default
+     */
+    private static final int ADMISSION_ATTEMPTS = 25;
+
+    /**
+     * The outcome of the waitlist admission transaction
+     */
+    private enum Admission {
+        ADMITTED,
+        ALREADY_ASSOCIATED,
+        FULL,
+        NO_COUNTERS
+    }
+
+    /**
+     * Creates the association of the user, or returns a cancelled association to the waitlist, in a single transaction.
+     * The waitlist count is read and incremented in the same transaction.
+     * @param userID The id of the user
+     * @param location The location of the user
+     * @param reconcileIfMissing If the counts of the event should be reconciled and the admission retried when the event has no counter document
+     * @param listener The listener for completion. Ownership of the event association is given to the user
+     */
+    @Database.MustStir
+    private void admitToWaitlist(String userID, @Nullable GeoPoint location, boolean reconcileIfMissing, DataListener<Event, QueryResult<EventAssociation>> listener){
+        String assocID = EventAssociation.getAssociationID(getDocumentID(), userID);
+        String assocs = Database.Collections.EVENT_ASSOCIATIONS.getCollectionID();
+        String eventID = getDocumentID();
+        SchemaRegistry schema = db.schema;
+        String statusField = schema.name(R.string.database_assoc_status);
+        String waitlist = schema.status(SchemaRegistry.Status.WAITLIST);
+        Map<String, Object> data = db.convertIDMapToNames(EventAssociation.createData(getDocumentID(), location, waitlist, userID));
+        long capacity = getWaitlistCapacity();
+
+        db.getBackend().runTransaction(ADMISSION_ATTEMPTS, t -> {
+            Backend.Document counts = t.get(EventCounters.COLLECTION, eventID);
+            Backend.Document assoc = t.get(assocs, assocID);
+            if(!counts.exists()) return Admission.NO_COUNTERS;
+            String oldStatus = assoc.getString(statusField);
+            if(assoc.exists() && schema.statusOf(oldStatus) != SchemaRegistry.Status.CANCELLED) return Admission.ALREADY_ASSOCIATED;
+            Long current = counts.getLong(waitlist);
+            if(capacity >= 0 && current != null && current >= capacity) return Admission.FULL;
+            if(assoc.exists()){
+                t.update(assocs, assocID, Collections.singletonMap(statusField, waitlist));
+            }else{
+                t.set(assocs, assocID, data);
+            }
+            t.update(EventCounters.COLLECTION, eventID, EventCounters.getCountChange(oldStatus, waitlist));
+            return Admission.ADMITTED;
+        }, (result, committed) -> {
+            if(!committed){
+                listener.onCompletion(this, null, false);
+                return;
+            }
+            switch (result){
+                case NO_COUNTERS:
+                    if(!reconcileIfMissing){
+                        listener.onCompletion(this, null, false);
                         return;
                     }
-                    e.setStatus(R.string.event_assoc_status_waitlist);
-                    listener.onCompletion(this, new QueryResult<>(e), true);
-                    data.dissolve();
+                    db.getEventCounters().reconcile(getDocumentID(), (drift, success) -> {
+                        if(!success){
+                            listener.onCompletion(this, null, false);
+                            return;
+                        }
+                        admitToWaitlist(userID, location, false, listener);
+                    });
                     return;
-                }
-                //User isn't already associated
-                EventAssociation.NewInstance(db, getDocumentID(), finalLocation, db.constants.getString(R.string.event_assoc_status_waitlist), user.getDocumentID(), (instance, success2) -> {
-                    listener.onCompletion(this, new QueryResult<>(instance), success2);
-                    data.dissolve();
-                });
-            });
+                case FULL:
+                    listener.onCompletion(this, null, false);
+                    return;
+                default:
+                    db.getRetainedCache().invalidate(Database.Collections.EVENT_ASSOCIATIONS.getDatabaseID(assocID));
+                    db.<EventAssociation>getInstance(Database.Collections.EVENT_ASSOCIATIONS, assocID, (instance, success) -> {
+                        listener.onCompletion(this, success ? new QueryResult<>(instance) : null, success && result == Admission.ADMITTED);
+                    });
+            }
+        });
+    }
 
+    /**
+     * Returns an association with a random id to the waitlist if it is cancelled and the waitlist is not full.
+     * The capacity check is not atomic with the status change
+     * @param e The association. Ownership is passed to the listener
+     * @param listener The listener for completion
+     */
+    @Database.MustStir
+    private void readmitLegacyAssociation(@Database.Stirs(when = "if the user cannot be readmitted") EventAssociation e, DataListener<Event, QueryResult<EventAssociation>> listener){
+        if (e.getStatusCode() != SchemaRegistry.Status.CANCELLED) {
+            //Not in state where can become waitlist
+            listener.onCompletion(this, new QueryResult<>(e), false);
+            return;
+        }
+        refreshData((query, success) -> {
+            long waitListCapacity = getWaitlistCapacity();
+            if(!success || (waitListCapacity >= 0 && getCurrentWaitlist() >= waitListCapacity)){
+                listener.onCompletion(this, null, false);
+                e.dissolve();
+                return;
+            }
+            e.setStatus(R.string.event_assoc_status_waitlist);
+            listener.onCompletion(this, new QueryResult<>(e), true);
         });
     }
 
@@ -626,9 +750,7 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
                 }
 
                 EventAssociation e = data.result.get(0).fetch();
-                String status = e.getStatus();
-
-                if (!Objects.equals(status, db.constants.getString(R.string.event_assoc_status_invited))) {
+                if (e.getStatusCode() != SchemaRegistry.Status.INVITED) {
                     //Not in state where can become enrolled
                     listener.onCompletion(this, new QueryResult<>(e), false);
                     data.dissolve();
@@ -650,7 +772,7 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
      */
     @Database.MustStir
     public void getUserAssociation(@Database.Observes User user, DataListener<Event, EventAssociation.Methods<Event>> listener){
-        getAssociatedUsersFromQuery(assocUsersQuery.whereEqualTo(db.constants.getString(R.string.database_assoc_user), user.getDocumentID()), listener);
+        getAssociatedUsersFromQuery(assocUsersQuery.whereEqualTo(db.schema.name(R.string.database_assoc_user), user.getDocumentID()), listener);
     }
 
     /**
@@ -754,10 +876,10 @@ public class Event extends DatabaseInstance<Event> implements Database.Querrier<
     };
 
     @Override
-    protected List<Pair<Query, Database.Collections>> subInstanceCascadeDeleteQuery() {
+    protected List<Backend.Query> subInstanceCascadeDeleteQuery() {
         return Collections.singletonList(
-                new Pair<>(Database.Collections.EVENT_ASSOCIATIONS.getCollection(db)
-                        .whereEqualTo(db.constants.getString(R.string.database_assoc_event), getDocumentID()), Database.Collections.EVENT_ASSOCIATIONS)
+                Database.Collections.EVENT_ASSOCIATIONS.query()
+                        .whereEqualTo(db.schema.name(R.string.database_assoc_event), getDocumentID())
         );
     }
 
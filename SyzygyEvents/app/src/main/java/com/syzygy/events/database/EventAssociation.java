@@ -1,10 +1,7 @@
 package com.syzygy.events.database;
 
-import android.util.Pair;
-
 import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.GeoPoint;
-import com.google.firebase.firestore.Query;
 import com.syzygy.events.R;
 import com.syzygy.events.SyzygyApplication;
 
@@ -59,7 +56,19 @@ public class EventAssociation extends DatabaseInstance<EventAssociation>{
     }
 
     public boolean setStatus(int resID){
-        return setPropertyValue(R.string.database_assoc_status, db.constants.getString(resID), s -> {});
+        return setPropertyValue(R.string.database_assoc_status, db.schema.name(resID), s -> {});
+    }
+
+    /**
+     * Returns the status of the association
+     * @return The status, null if the stored status is not a known status
+     */
+    public SchemaRegistry.Status getStatusCode(){
+        return db.schema.statusOf(getStatus());
+    }
+
+    public boolean setStatus(SchemaRegistry.Status status){
+        return setPropertyValue(R.string.database_assoc_status, db.schema.status(status), s -> {});
     }
 
     public String getUserID(){
@@ -107,12 +116,16 @@ public class EventAssociation extends DatabaseInstance<EventAssociation>{
     };
 
     @Override
-    protected List<Pair<Query, Database.Collections>> subInstanceCascadeDeleteQuery() {
+    protected List<Backend.Query> subInstanceCascadeDeleteQuery() {
         return Collections.emptyList();
     }
 
     /**
      * Validates and creates a new Image instance in the database using the given data.
+     * <p>
+     *     The id of the association is derived from the event and user, so if the user is already associated with the event,
+     *     the listener is called with {@code success = false}
+     * </p>
      * @param db The database
      * @param eventID The ID of the event
      * @param location The location where the user signed into the event
@@ -121,6 +134,7 @@ public class EventAssociation extends DatabaseInstance<EventAssociation>{
      * @param listener Called once the instance is initialized. Not called if properties are invalid
      * @return The property id of all invalid properties
      * @see Database#createNewInstance(Database.Collections, String, Map, Database.InitializationListener)
+     * @see #getAssociationID(String, String)
      */
     @Database.MustStir
     public static Set<Integer> NewInstance(Database db,
@@ -130,16 +144,41 @@ public class EventAssociation extends DatabaseInstance<EventAssociation>{
                                     @Database.Dilutes String userID,
                                     Database.InitializationListener<EventAssociation> listener
     ){
+        Map<Integer,Object> map = createData(eventID, location, status, userID);
+        String id = getAssociationID(eventID, userID);
+
+        return db.createNewInstance(Database.Collections.EVENT_ASSOCIATIONS, id, map, listener);
+    }
+
+    /**
+     * Creates the property map of a new association
+     * @param eventID The ID of the event
+     * @param location The location where the user signed into the event
+     * @param status The status of the association
+     * @param userID The id of the user
+     * @return The resID-value map of the association
+     */
+    static Map<Integer,Object> createData(String eventID, GeoPoint location, String status, String userID){
         Map<Integer,Object> map = new HashMap<>();
         map.put(R.string.database_assoc_geo, location);
         map.put(R.string.database_assoc_event, eventID);
         map.put(R.string.database_assoc_status, status);
         map.put(R.string.database_assoc_user, userID);
         map.put(R.string.database_assoc_time, Timestamp.now());
+        return map;
+    }
 
-        String id = Database.Collections.EVENT_ASSOCIATIONS.getNewID(db);
-
-        return db.createNewInstance(Database.Collections.EVENT_ASSOCIATIONS, id, map, listener);
+    /**
+     * Returns the id of the association between the event and user. A user can only have one association with an event.
+     * <p>
+     *     Associations created before ids were derived have random ids
+     * </p>
+     * @param eventID The ID of the event
+     * @param userID The id of the user
+     * @return The document id of the association
+     */
+    public static String getAssociationID(String eventID, String userID){
+        return eventID + "_" + userID;
     }
 
     /**
@@ -169,14 +208,29 @@ public class EventAssociation extends DatabaseInstance<EventAssociation>{
         /**
          * Sets the status of each association
          * @param statusID The resId of the new status
+         * @see #setStatus(int, Consumer)
          */
         public void setStatus(int statusID){
+            setStatus(statusID, success -> {});
+        }
+
+        /**
+         * Sets the status of each association. The associations are written together and the counts of their events are moved
+         * once per chunk of associations, see {@link EventCounters#writeAssociations(List, Consumer)}
+         * @param statusID The resId of the new status
+         * @param listener Called once every association has been written, with if all of them were written
+         */
+        public void setStatus(int statusID, Consumer<Boolean> listener){
             if(dissolved) {
                 db.throwE(new IllegalStateException("Invalid list"));
+                listener.accept(false);
                 return;
             }
-            String status = db.constants.getString(statusID);
-            result.forEach(e -> e.setStatus(status));
+            String status = db.schema.name(statusID);
+            db.edit(() -> {
+                result.forEach(e -> e.setStatus(status));
+                db.writeAssociations(result, failed -> listener.accept(failed.isEmpty()));
+            });
         }
 
         /**
@@ -227,14 +281,14 @@ public class EventAssociation extends DatabaseInstance<EventAssociation>{
         }
 
         /**
-         * Sets the status of each association and notifies the user
+         * Sets the status of each association and notifies the user once the associations are written
          * @param statusID The resId of the new status
          * @param notificationSubject The subject of the notification
          * @param notificationBody The body of the notification
          * @param notificationAttachEvent If the event should be attached to the notification
          * @param notificationFromOrganizer If the even should be sent from the organizer
          * @param listener The listener that is called with the notification result upon completion.
-         *                 Only the {@code onSuccess} is called
+         *                 Completes with {@code false} if any association was not written
          * @see NotificationResult
          */
         @Database.Stirred
@@ -244,16 +298,15 @@ public class EventAssociation extends DatabaseInstance<EventAssociation>{
                 listener.onCompletion(null, null, false);
                 return;
             }
-            String status = db.constants.getString(statusID);
-            notify(
-                    e -> e.setStatus(status),
+            setStatus(statusID, written -> notify(
+                    e -> {},
                     notificationSubject,
                     notificationBody,
                     notificationAttachEvent,
                     notificationFromOrganizer,
                     true,
-                    listener
-            );
+                    (q, n, success) -> listener.onCompletion(q, n, success && written)
+            ));
         }
 
         /**
@@ -279,6 +332,11 @@ public class EventAssociation extends DatabaseInstance<EventAssociation>{
 
         /**
          * Applies the consumer to each association and notifies the users
+         * <p>
+         *     The notifications are written in parallel write batches of up to {@value ChunkedCommitter#MAX_BATCH_OPERATIONS}.
+         *     Notifications in a batch that fails are reported in {@link NotificationResult#failedNotifications}.
+         * </p>
+         * @param consumer Called on each association before its notification is created
          * @param subject The subject of the notification
          * @param body The body of the notification
          * @param attachEvent If the event should be attached to the notification
@@ -295,44 +353,85 @@ public class EventAssociation extends DatabaseInstance<EventAssociation>{
                 listener.onCompletion(null, null, false);
                 return;
             }
-            List<Notification> failedNotifications = new ArrayList<>();
-            List<Notification> successNotifications = new ArrayList<>();
-
-            Database.InitializationListener<Notification> asyncForLoop = new Database.InitializationListener<Notification>() {
-                private int i = -1;
-                @Override
-                public void onInitialization( Notification instance, boolean success) {
-                    if(!success){
-                        failedNotifications.add(instance);
-                    }else{
-                        if(i >= 0) successNotifications.add(instance);
-                    }
-                    ++i;
-                    if(i >= result.size()){
-                        NotificationResult n = new NotificationResult(successNotifications, failedNotifications);
-                        listener.onCompletion(querrier, n, true);
-                        n.dissolve();
-                        return;
-                    }
-
-
-                    EventAssociation e = result.get(i);
-                    consumer.accept(e);
-
-                    //Send notification
-                    Notification.NewInstance(db,
-                            subject,
-                            body,
+            String receiverField = db.schema.name(R.string.database_not_receiverID);
+            Backend backend = db.getBackend();
+            String notifications = Database.Collections.NOTIFICATIONS.getCollectionID();
+
+            //The fields shared by every notification of an event are only computed once
+            Map<String, Map<String, Object>> templates = new HashMap<>();
+            List<Backend.Document> documents = new ArrayList<>(result.size());
+            for(EventAssociation e : result){
+                consumer.accept(e);
+                Map<String, Object> template = templates.get(e.getEventID());
+                if(template == null){
+                    Map<Integer, Object> data = Notification.createData(subject, body,
                             attachEvent ? e.getEventID() : "",
                             e.getUserID(),
                             fromOrganizer ? e.getEvent().getFacility().getOrganizerID() : SyzygyApplication.SYSTEM_ACCOUNT_ID,
-                            ignoresOptOut,
-                            this
+                            ignoresOptOut
                     );
+                    if(!DatabaseInstance.isDataValid(data, Database.Collections.NOTIFICATIONS).isEmpty()){
+                        db.throwE(new IllegalArgumentException("Invalid notification"));
+                        listener.onCompletion(querrier, null, false);
+                        return;
+                    }
+                    template = db.convertIDMapToNames(data);
+                    templates.put(e.getEventID(), template);
                 }
-            };
+                Map<String, Object> doc = new HashMap<>(template);
+                doc.put(receiverField, e.getUserID());
+                documents.add(new Backend.Document(notifications, backend.newId(notifications), doc));
+            }
+
+            Tracer.Span span = db.tracer.begin("notify", subject);
+            new ChunkedCommitter<Backend.Document>(ChunkedCommitter.MAX_BATCH_OPERATIONS, ChunkedCommitter.DEFAULT_PARALLELISM).commit(documents, (chunk, onCommitted) -> {
+                Backend.Batch batch = backend.batch();
+                for(Backend.Document d : chunk){
+                    batch.set(d.collection, d.id, d.data);
+                }
+                Tracer.Span write = span.child("firestore.commit", null);
+                batch.commit(success -> {
+                    write.end();
+                    onCommitted.accept(success);
+                });
+            }, r -> {
+                span.end();
+                List<Notification> sent = new ArrayList<>(r.committed.size());
+                List<Notification> failed = new ArrayList<>(r.failed.size());
+                getNotifications(r.committed, sent, () -> getNotifications(r.failed, failed, () -> {
+                    //The failed notifications were never stored, so their data must not be served later
+                    r.failed.forEach(d -> db.invalidateLocally(Database.Collections.NOTIFICATIONS.getDatabaseID(d.id)));
+                    NotificationResult n = new NotificationResult(sent, failed);
+                    try(Tracer.Scope sc = span.parent().enter()){
+                        listener.onCompletion(querrier, n, true);
+                    }
+                }));
+            });
+        }
 
-            asyncForLoop.onInitialization(null, true);
+        /**
+         * Gets the instances of written notifications from their documents, without reading them
+         * @param documents The documents of the notifications
+         * @param instances Receives the instances
+         * @param onComplete Called once every instance is received
+         */
+        @Database.MustStir
+        private void getNotifications(List<Backend.Document> documents, @Database.Stirs List<Notification> instances, Runnable onComplete){
+            if(documents.isEmpty()){
+                onComplete.run();
+                return;
+            }
+            Database.InitializationListener<Notification> onEach = new Database.InitializationListener<Notification>() {
+                private int remaining = documents.size();
+                @Override
+                public void onInitialization(Notification instance, boolean success) {
+                    if(success) instances.add(instance);
+                    if(--remaining == 0) onComplete.run();
+                }
+            };
+            for(Backend.Document d : documents){
+                db.<Notification>getInstance(Database.Collections.NOTIFICATIONS, d.id, onEach, d);
+            }
         }
 
         public int size() {
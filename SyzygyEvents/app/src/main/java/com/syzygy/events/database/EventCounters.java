@@ -0,0 +1,563 @@
+package com.syzygy.events.database;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.syzygy.events.R;
+import com.syzygy.events.database.SchemaRegistry.Status;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Maintains the number of associations of each status for every event.
+ * <p>
+ *     The counts of an event are kept in a single document of the {@link #COLLECTION} collection with the same id as the event.
+ *     Each field of the document is named after a status and holds the number of associations with that status.
+ *     Whenever an association is added, changes status or is removed, the association and the counter document are
+ *     written in the same transaction, so reading the counts of an event is a single document read.
+ * </p>
+ * <p>
+ *     Events created before the counters existed have no counter document. Counter writes are skipped for them
+ *     until {@link #reconcile(String, BiConsumer)} computes the counts with aggregate queries and creates the document.
+ * </p>
+ * @see Event#refreshData(Database.Querrier.Listener)
+ */
+public class EventCounters {
+
+    /**
+     * The Firestore identifier for the counter collection
+     */
+    static final String COLLECTION = "event_counters";
+    /**
+     * The field of a counter document that is incremented by every write to its counts
+     * @see #reconcile(String, BiConsumer)
+     */
+    static final String FIELD_VERSION = "Version";
+    /**
+     * The number of times the counts of an event are taken before reconciling it is given up on
+     */
+    static final int RECONCILE_ATTEMPTS = 3;
+
+    /**
+     * The statuses that are counted, by code
+     */
+    private static final Status[] STATUSES = Status.values();
+    /**
+     * The collection of the associations that are counted
+     */
+    private static final String ASSOCIATIONS = Database.Collections.EVENT_ASSOCIATIONS.getCollectionID();
+
+    private final Database db;
+
+    EventCounters(Database db) {
+        this.db = db;
+    }
+
+    /**
+     * Adds the creation of the counter document of a new event to the batch. All counts start at zero
+     * @param batch The batch that creates the event
+     * @param eventID The id of the event
+     */
+    void addEvent(Backend.Batch batch, String eventID){
+        Map<String, Object> zeros = new HashMap<>();
+        for(Status status : STATUSES){
+            zeros.put(db.schema.status(status), 0L);
+        }
+        batch.set(COLLECTION, eventID, zeros);
+    }
+
+    /**
+     * Adds the deletion of the counter document of an event to the batch
+     * @param batch The batch that deletes the event
+     * @param eventID The id of the event
+     */
+    void removeEvent(Backend.Batch batch, String eventID){
+        batch.delete(COLLECTION, eventID);
+    }
+
+    /**
+     * Writes the association to the database. If the status stored in the database differs from the status of the association,
+     * the counts of the event are moved from the old status to the new status in the same transaction.
+     * @param assoc The association
+     * @param onComplete Called on completion with if the association was written
+     * @see #writeAssociations(List, Consumer)
+     */
+    void writeAssociation(@Database.Observes EventAssociation assoc, Consumer<Boolean> onComplete){
+        writeAssociations(Collections.singletonList(assoc), failed -> onComplete.accept(failed.isEmpty()));
+    }
+
+    /**
+     * Writes associations to the database and moves the counts of their events, in transactions of up to
+     * {@value CascadeDelete#COUNTED_CHUNK_SIZE} associations. Each transaction reads the stored status of its associations and
+     * updates the counter document of each of their events once, so a bulk status change contends on a counter once per chunk
+     * rather than once per association. A chunk that fails is retried {@value ChunkedCommitter#DEFAULT_RETRIES} times, after which
+     * its associations are written without moving the counts and their events are reconciled
+     * @param assocs The associations. Their data is read right away
+     * @param onComplete Called once every chunk has been attempted, with the associations that were not written
+     * @see #writeWithoutCounts(List, Consumer)
+     */
+    void writeAssociations(@Database.Observes List<EventAssociation> assocs, Consumer<List<EventAssociation>> onComplete){
+        String statusField = db.schema.name(R.string.database_assoc_status);
+        List<AssociationWrite> writes = new ArrayList<>(assocs.size());
+        for(EventAssociation assoc : assocs){
+            writes.add(new AssociationWrite(assoc));
+        }
+
+        new ChunkedCommitter<AssociationWrite>(CascadeDelete.COUNTED_CHUNK_SIZE, ChunkedCommitter.DEFAULT_PARALLELISM, ChunkedCommitter.DEFAULT_RETRIES).commit(writes, (chunk, onCommitted) -> {
+            db.getBackend().runTransaction(t -> {
+                List<Backend.Document> olds = new ArrayList<>(chunk.size());
+                Map<String, Backend.Document> counts = new HashMap<>();
+                for(AssociationWrite w : chunk){
+                    olds.add(t.get(ASSOCIATIONS, w.id));
+                    if(!counts.containsKey(w.eventID)) counts.put(w.eventID, t.get(COLLECTION, w.eventID));
+                }
+                Map<String, Map<String, Long>> moved = new HashMap<>();
+                for(int i = 0; i < chunk.size(); i++){
+                    AssociationWrite w = chunk.get(i);
+                    String oldStatus = olds.get(i).getString(statusField);
+                    t.set(ASSOCIATIONS, w.id, w.data);
+                    if(Objects.equals(oldStatus, w.status) || !counts.get(w.eventID).exists()) continue;
+                    Map<String, Long> statuses = moved.computeIfAbsent(w.eventID, e -> new HashMap<>());
+                    if(oldStatus != null) statuses.merge(oldStatus, -1L, Long::sum);
+                    if(w.status != null) statuses.merge(w.status, 1L, Long::sum);
+                }
+                moved.forEach((eventID, statuses) -> {
+                    Map<String, Object> change = new HashMap<>();
+                    statuses.forEach((status, amount) -> {
+                        if(amount != 0) change.put(status, Backend.increment(amount));
+                    });
+                    if(change.isEmpty()) return;
+                    change.put(FIELD_VERSION, Backend.increment(1));
+                    t.update(COLLECTION, eventID, change);
+                });
+                return null;
+            }, (r, success) -> onCommitted.accept(success));
+        }, r -> {
+            if(r.failed.isEmpty()){
+                onComplete.accept(new ArrayList<>());
+                return;
+            }
+            Log.println(Log.WARN, "EventCounters", "Failed to count " + r.failed.size() + " of " + writes.size() + " associations");
+            writeWithoutCounts(r.failed, onComplete);
+        });
+    }
+
+    /**
+     * Writes associations whose counted transaction failed with plain writes, then reconciles the counts of their events,
+     * which the writes may have moved out of step
+     * @param writes The associations
+     * @param onComplete Called once every write has been attempted, with the associations that were not written
+     * @see #reconcile(String, BiConsumer)
+     */
+    private void writeWithoutCounts(List<AssociationWrite> writes, Consumer<List<EventAssociation>> onComplete){
+        Backend backend = db.getBackend();
+        new ChunkedCommitter<AssociationWrite>(ChunkedCommitter.MAX_BATCH_OPERATIONS, ChunkedCommitter.DEFAULT_PARALLELISM, ChunkedCommitter.DEFAULT_RETRIES).commit(writes, (chunk, onCommitted) -> {
+            Backend.Batch batch = backend.batch();
+            for(AssociationWrite w : chunk){
+                batch.set(ASSOCIATIONS, w.id, w.data);
+            }
+            batch.commit(onCommitted);
+        }, r -> {
+            List<EventAssociation> failed = new ArrayList<>(r.failed.size());
+            for(AssociationWrite w : r.failed){
+                failed.add(w.assoc);
+            }
+            if(!failed.isEmpty()) Log.println(Log.WARN, "EventCounters", "Failed to write " + failed.size() + " of " + writes.size() + " associations");
+            Set<String> events = new HashSet<>();
+            for(AssociationWrite w : r.committed){
+                if(events.add(w.eventID)){
+                    reconcile(w.eventID, (drift, success) -> {
+                        if(!success) Log.println(Log.WARN, "EventCounters", "Failed to reconcile " + w.eventID + " after writing its associations");
+                    });
+                }
+            }
+            onComplete.accept(failed);
+        });
+    }
+
+    /**
+     * Removes the association from the database and removes it from the counts of the event in the same transaction
+     * @param assoc The association
+     */
+    void removeAssociation(@Database.Observes EventAssociation assoc){
+        String id = assoc.getDocumentID();
+        String eventID = assoc.getEventID();
+        String statusField = db.schema.name(R.string.database_assoc_status);
+
+        db.getBackend().runTransaction(t -> {
+            Backend.Document old = t.get(ASSOCIATIONS, id);
+            Backend.Document counts = t.get(COLLECTION, eventID);
+            t.delete(ASSOCIATIONS, id);
+            if(old.exists() && counts.exists()){
+                String oldStatus = old.getString(statusField);
+                if(oldStatus != null) t.update(COLLECTION, eventID, getCountChange(oldStatus, null));
+            }
+            return null;
+        }, (r, success) -> {
+            if(!success) Log.println(Log.WARN, "EventCounters", "Failed to delete " + ASSOCIATIONS + "/" + id);
+        });
+    }
+
+    /**
+     * Removes associations from the database and removes them from the counts of their events in one transaction
+     * @param ids The ids of the associations. As every association and the counts of each of their events are written, there should be at most
+     *             {@value CascadeDelete#COUNTED_CHUNK_SIZE}
+     * @param onComplete Called on completion with if the associations were removed
+     * @see CascadeDelete
+     */
+    void removeAssociations(List<String> ids, Consumer<Boolean> onComplete){
+        String statusField = db.schema.name(R.string.database_assoc_status);
+        String eventField = db.schema.name(R.string.database_assoc_event);
+
+        db.getBackend().runTransaction(t -> {
+            List<Backend.Document> olds = new ArrayList<>(ids.size());
+            Map<String, Backend.Document> counts = new HashMap<>();
+            for(String id : ids){
+                Backend.Document old = t.get(ASSOCIATIONS, id);
+                olds.add(old);
+                String eventID = old.getString(eventField);
+                if(eventID != null && !counts.containsKey(eventID)){
+                    counts.put(eventID, t.get(COLLECTION, eventID));
+                }
+            }
+            Map<String, Map<String, Long>> removed = new HashMap<>();
+            for(Backend.Document old : olds){
+                t.delete(ASSOCIATIONS, old.id);
+                String eventID = old.getString(eventField);
+                String oldStatus = old.getString(statusField);
+                if(eventID == null || oldStatus == null || !counts.get(eventID).exists()) continue;
+                removed.computeIfAbsent(eventID, e -> new HashMap<>()).merge(oldStatus, 1L, Long::sum);
+            }
+            removed.forEach((eventID, statuses) -> {
+                Map<String, Object> change = new HashMap<>();
+                statuses.forEach((status, amount) -> change.putAll(getCountChange(status, null, amount)));
+                t.update(COLLECTION, eventID, change);
+            });
+            return null;
+        }, (r, success) -> {
+            if(!success) Log.println(Log.WARN, "EventCounters", "Failed to delete " + ids.size() + " associations");
+            onComplete.accept(success);
+        });
+    }
+
+    /**
+     * Creates the field updates that move one association from one status to another
+     * @param from The previous status, null if the association is new
+     * @param to The new status, null if the association is removed
+     * @return The field-value map of increments
+     */
+    static Map<String, Object> getCountChange(@Nullable String from, @Nullable String to){
+        return getCountChange(from, to, 1);
+    }
+
+    /**
+     * Creates the field updates that move a number of associations from one status to another
+     * @param from The previous status, null if the associations are new
+     * @param to The new status, null if the associations are removed
+     * @param amount The number of associations
+     * @return The field-value map of increments
+     */
+    static Map<String, Object> getCountChange(@Nullable String from, @Nullable String to, long amount){
+        Map<String, Object> change = new HashMap<>();
+        if(from != null) change.put(from, Backend.increment(-amount));
+        if(to != null) change.put(to, Backend.increment(amount));
+        change.put(FIELD_VERSION, Backend.increment(1));
+        return change;
+    }
+
+    /**
+     * Reads the counts of the event. If the event has no counter document yet, the counts are reconciled
+     * @param eventID The id of the event
+     * @param listener Called on completion with the counts and if the read was successful
+     * @see #reconcile(String, BiConsumer)
+     */
+    public void load(String eventID, BiConsumer<Counts, Boolean> listener){
+        db.getBackend().get(COLLECTION, eventID, true, (doc, success) -> {
+            if(!success){
+                listener.accept(null, false);
+                return;
+            }
+            if(!doc.exists()){
+                reconcile(eventID, (drift, s) -> listener.accept(s ? drift.actual : null, s));
+                return;
+            }
+            listener.accept(new Counts(db, doc), true);
+        });
+    }
+
+    /**
+     * Recomputes the counts of the event with aggregate queries and corrects the counter document.
+     * <p>
+     *     Aggregate queries cannot be read in a transaction, so the counter document is read before counting and read again in the
+     *     transaction that writes the correction. Every counter write increments {@link #FIELD_VERSION}, so if the version moved
+     *     while counting, an association changed status in the meantime and the counts are taken again, up to
+     *     {@value #RECONCILE_ATTEMPTS} times. The correction is applied as an increment of the difference. If the event has no
+     *     counter document, it is created; association writes skip events without one, so those made while the first counts
+     *     are taken may be missed until the next reconciliation.
+     * </p>
+     * @param eventID The id of the event
+     * @param listener Called on completion with the stored and actual counts and if the reconciliation was successful
+     */
+    public void reconcile(String eventID, BiConsumer<Drift, Boolean> listener){
+        reconcile(eventID, RECONCILE_ATTEMPTS, listener);
+    }
+
+    /**
+     * Recomputes the counts of the event, counting again if the counter document changes while counting
+     * @param eventID The id of the event
+     * @param attempts The number of times the counts may be taken
+     * @param listener Called on completion with the stored and actual counts and if the reconciliation was successful
+     */
+    private void reconcile(String eventID, int attempts, BiConsumer<Drift, Boolean> listener){
+        Backend backend = db.getBackend();
+        Backend.Query assocs = Backend.Query.of(Database.Collections.EVENT_ASSOCIATIONS.getCollectionID()).whereEqualTo(
+                db.schema.name(R.string.database_assoc_event),
+                eventID
+        );
+        String statusField = db.schema.name(R.string.database_assoc_status);
+
+        backend.get(COLLECTION, eventID, true, (stored, success) -> {
+            if(!success){
+                listener.accept(null, false);
+                return;
+            }
+            long[] actual = new long[STATUSES.length];
+            boolean[] failed = {false};
+            Runnable onCounted = new Runnable() {
+                private int remaining = STATUSES.length;
+                @Override
+                public void run() {
+                    remaining --;
+                    if(remaining > 0) return;
+                    if(failed[0]){
+                        listener.accept(null, false);
+                        return;
+                    }
+                    Counts actualCounts = new Counts(actual[0], actual[1], actual[2], actual[3]);
+                    Counts storedCounts = stored.exists() ? new Counts(db, stored) : null;
+                    Drift drift = new Drift(eventID, storedCounts, actualCounts);
+
+                    backend.runTransaction(t -> {
+                        Backend.Document current = t.get(COLLECTION, eventID);
+                        if(current.exists() != stored.exists() || !Objects.equals(getVersion(current), getVersion(stored))) return false;
+                        if(!drift.hasDrift()) return true;
+                        Map<String, Object> correction = new HashMap<>();
+                        for(int i = 0; i < STATUSES.length; i++){
+                            String field = db.schema.status(STATUSES[i]);
+                            if(storedCounts == null) correction.put(field, actual[i]);
+                            else correction.put(field, Backend.increment(actual[i] - storedCounts.get(i)));
+                        }
+                        if(storedCounts == null){
+                            t.set(COLLECTION, eventID, correction);
+                        }else{
+                            correction.put(FIELD_VERSION, Backend.increment(1));
+                            t.update(COLLECTION, eventID, correction);
+                        }
+                        return true;
+                    }, (unchanged, s) -> {
+                        if(!s){
+                            listener.accept(null, false);
+                            return;
+                        }
+                        if(!unchanged){
+                            if(attempts > 1){
+                                reconcile(eventID, attempts - 1, listener);
+                                return;
+                            }
+                            Log.println(Log.WARN, "EventCounters", "The counts of " + eventID + " kept changing while being reconciled");
+                            listener.accept(null, false);
+                            return;
+                        }
+                        if(drift.hasDrift()) Log.println(Log.INFO, "EventCounters", drift.toString());
+                        listener.accept(drift, true);
+                    });
+                }
+            };
+
+            for(int i = 0; i < STATUSES.length; i++){
+                final int index = i;
+                backend.count(assocs.whereEqualTo(statusField, db.schema.status(STATUSES[i])), (count, s) -> {
+                    if(s) actual[index] = count;
+                    else failed[0] = true;
+                    onCounted.run();
+                });
+            }
+        });
+    }
+
+    /**
+     * @param doc A counter document
+     * @return The version of the counts, null if the document does not exist or its counts were never written to
+     */
+    @Nullable
+    private static Long getVersion(Backend.Document doc){
+        Object value = doc.get(FIELD_VERSION);
+        return value instanceof Number ? ((Number) value).longValue() : null;
+    }
+
+    /**
+     * Reconciles the counts of every event
+     * @param listener Called on completion with the events whose counts had drifted and if every reconciliation was successful
+     * @see #reconcile(String, BiConsumer)
+     */
+    public void reconcileAll(BiConsumer<List<Drift>, Boolean> listener){
+        db.getBackend().query(Backend.Query.of(Database.Collections.EVENTS.getCollectionID()), (events, success) -> {
+            if(!success){
+                listener.accept(new ArrayList<>(), false);
+                return;
+            }
+            List<Drift> drifted = new ArrayList<>();
+            if(events.isEmpty()){
+                listener.accept(drifted, true);
+                return;
+            }
+            BiConsumer<Drift, Boolean> onReconciled = new BiConsumer<Drift, Boolean>() {
+                private int remaining = events.size();
+                private boolean s = true;
+                @Override
+                public void accept(Drift drift, Boolean success) {
+                    s = s && success;
+                    if(success && drift.hasDrift()) drifted.add(drift);
+                    remaining --;
+                    if(remaining == 0) listener.accept(drifted, s);
+                }
+            };
+            for(Backend.Document e : events){
+                reconcile(e.id, onReconciled);
+            }
+        });
+    }
+
+    /**
+     * The number of associations of each status of an event
+     */
+    public static class Counts {
+        public final long waitlist;
+        public final long invited;
+        public final long enrolled;
+        public final long cancelled;
+
+        Counts(long waitlist, long invited, long enrolled, long cancelled) {
+            this.waitlist = waitlist;
+            this.invited = invited;
+            this.enrolled = enrolled;
+            this.cancelled = cancelled;
+        }
+
+        /**
+         * Reads the counts from a counter document. Missing counts are zero
+         * @param db The database
+         * @param doc The counter document
+         */
+        Counts(Database db, Backend.Document doc) {
+            this(
+                    read(doc, db.schema.status(Status.WAITLIST)),
+                    read(doc, db.schema.status(Status.INVITED)),
+                    read(doc, db.schema.status(Status.ENROLLED)),
+                    read(doc, db.schema.status(Status.CANCELLED))
+            );
+        }
+
+        private static long read(Backend.Document doc, String field){
+            Object value = doc.get(field);
+            return value instanceof Number ? ((Number) value).longValue() : 0;
+        }
+
+        /**
+         * @param index The code of the status
+         * @return The count of the status
+         */
+        long get(int index){
+            switch (index){
+                case 0: return waitlist;
+                case 1: return invited;
+                case 2: return enrolled;
+                default: return cancelled;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Counts)) return false;
+            Counts c = (Counts) o;
+            return waitlist == c.waitlist && invited == c.invited && enrolled == c.enrolled && cancelled == c.cancelled;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(waitlist, invited, enrolled, cancelled);
+        }
+
+        @Override
+        public String toString() {
+            return "waitlist=" + waitlist + ", invited=" + invited + ", enrolled=" + enrolled + ", cancelled=" + cancelled;
+        }
+    }
+
+    /**
+     * The result of reconciling the counts of an event
+     */
+    public static class Drift {
+        /**
+         * The id of the event
+         */
+        public final String eventID;
+        /**
+         * The counts that were stored in the counter document, null if there was no counter document
+         */
+        @Nullable
+        public final Counts stored;
+        /**
+         * The counts computed by the aggregate queries
+         */
+        public final Counts actual;
+
+        Drift(String eventID, @Nullable Counts stored, Counts actual) {
+            this.eventID = eventID;
+            this.stored = stored;
+            this.actual = actual;
+        }
+
+        /**
+         * @return If the stored counts did not match the actual counts
+         */
+        public boolean hasDrift(){
+            return !actual.equals(stored);
+        }
+
+        @Override
+        public String toString() {
+            return "Counts of " + eventID + " drifted from [" + stored + "] to [" + actual + "]";
+        }
+    }
+
+    /**
+     * The data of an association, read when its write is requested
+     */
+    private static class AssociationWrite {
+        final EventAssociation assoc;
+        final String id;
+        final String eventID;
+        final String status;
+        final Map<String, Object> data;
+
+        AssociationWrite(@Database.Observes EventAssociation assoc) {
+            this.assoc = assoc;
+            this.id = assoc.getDocumentID();
+            this.eventID = assoc.getEventID();
+            this.status = assoc.getStatus();
+            this.data = assoc.getData();
+        }
+    }
+}
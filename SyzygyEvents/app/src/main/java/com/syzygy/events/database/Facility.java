@@ -4,13 +4,11 @@ import android.content.Context;
 import android.location.Address;
 import android.location.Geocoder;
 import android.net.Uri;
-import android.util.Pair;
 
 import androidx.annotation.Nullable;
 
 import com.google.android.gms.maps.model.LatLng;
 import com.google.firebase.firestore.GeoPoint;
-import com.google.firebase.firestore.Query;
 import com.syzygy.events.R;
 
 import java.io.IOException;
@@ -202,10 +200,10 @@ public class Facility extends DatabaseInstance<Facility> {
     };
 
     @Override
-    protected List<Pair<Query, Database.Collections>> subInstanceCascadeDeleteQuery() {
+    protected List<Backend.Query> subInstanceCascadeDeleteQuery() {
         return Collections.singletonList(
-                new Pair<>(Database.Collections.EVENTS.getCollection(db)
-                        .whereEqualTo(db.constants.getString(R.string.database_event_facilityID), getDocumentID()), Database.Collections.EVENTS)
+                Database.Collections.EVENTS.query()
+                        .whereEqualTo(db.schema.name(R.string.database_event_facilityID), getDocumentID())
         );
     }
 
@@ -0,0 +1,346 @@
+package com.syzygy.events.database;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.firestore.AggregateSource;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Source;
+import com.google.firebase.firestore.TransactionOptions;
+import com.google.firebase.firestore.WriteBatch;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The backend that stores documents in Firestore and files in Firebase Storage
+ * <p>
+ *     Listeners are called on the main thread, as with the Firebase SDK.
+ * </p>
+ */
+public class FirestoreBackend implements Backend {
+
+    private final FirebaseFirestore firestore;
+    private final StorageReference storage;
+    private Handler mainHandler;
+
+    public FirestoreBackend(FirebaseFirestore firestore, StorageReference storage) {
+        this.firestore = firestore;
+        this.storage = storage;
+    }
+
+    /**
+     * @param collection The collection name
+     * @param id The document id
+     * @return The Firestore document
+     */
+    DocumentReference document(String collection, String id){
+        return firestore.collection(collection).document(id);
+    }
+
+    /**
+     * @param snapshot The firestore document
+     * @return The document
+     */
+    static Document toDocument(DocumentSnapshot snapshot){
+        return toDocument(snapshot.getReference().getParent().getId(), snapshot);
+    }
+
+    /**
+     * @param collection The id of the collection the snapshot was read from
+     * @param snapshot A document snapshot
+     * @return The document of the snapshot
+     */
+    static Document toDocument(String collection, DocumentSnapshot snapshot){
+        return new Document(collection, snapshot.getId(), snapshot.exists() ? snapshot.getData() : null);
+    }
+
+    /**
+     * Replaces the {@link Increment} values of the data with their Firestore equivalent
+     * @param data The field-value map
+     * @return The field-value map that can be written to Firestore
+     */
+    private static Map<String, Object> toFirestore(Map<String, Object> data){
+        Map<String, Object> converted = new HashMap<>(data);
+        for(Map.Entry<String, Object> ent : converted.entrySet()){
+            if(ent.getValue() instanceof Increment){
+                ent.setValue(FieldValue.increment(((Increment) ent.getValue()).amount));
+            }
+        }
+        return converted;
+    }
+
+    private static FieldPath toFieldPath(String field){
+        return DOCUMENT_ID.equals(field) ? FieldPath.documentId() : FieldPath.of(field);
+    }
+
+    /**
+     * @param query The query
+     * @return The equivalent Firestore query
+     */
+    com.google.firebase.firestore.Query toFirestore(Query query){
+        com.google.firebase.firestore.Query q = firestore.collection(query.collection);
+        for(Filter f : query.filters){
+            switch (f.op){
+                case EQUAL:
+                    q = q.whereEqualTo(toFieldPath(f.field), f.value);
+                    break;
+                case NOT_EQUAL:
+                    q = q.whereNotEqualTo(toFieldPath(f.field), f.value);
+                    break;
+                case IN:
+                    q = q.whereIn(toFieldPath(f.field), (List<?>) f.value);
+                    break;
+            }
+        }
+        com.google.firebase.firestore.Query.Direction direction = query.descending ?
+                com.google.firebase.firestore.Query.Direction.DESCENDING :
+                com.google.firebase.firestore.Query.Direction.ASCENDING;
+        boolean byId = query.orderBy == null || DOCUMENT_ID.equals(query.orderBy);
+        if(!byId){
+            q = q.orderBy(toFieldPath(query.orderBy), direction);
+        }
+        if(query.orderBy != null || query.hasCursor() || query.limitToLast){
+            //Cursors and limits to the last results need an explicit ordering on the id to break ties
+            q = q.orderBy(FieldPath.documentId(), direction);
+        }
+        if(query.startAt != null) q = q.startAt(cursor(query, query.startAt));
+        if(query.startAfter != null) q = q.startAfter(cursor(query, query.startAfter));
+        if(query.endBefore != null) q = q.endBefore(cursor(query, query.endBefore));
+        if(query.limit > 0){
+            q = query.limitToLast ? q.limitToLast(query.limit) : q.limit(query.limit);
+        }
+        return q;
+    }
+
+    /**
+     * @param query The query
+     * @param document The document a cursor of the query is at
+     * @return The values of the document in the order of the query
+     */
+    private static Object[] cursor(Query query, Document document){
+        return query.orderBy == null || DOCUMENT_ID.equals(query.orderBy) ?
+                new Object[]{document.id} :
+                new Object[]{document.get(query.orderBy), document.id};
+    }
+
+    @Override
+    public void get(String collection, String id, boolean fromServer, BiConsumer<Document, Boolean> listener) {
+        document(collection, id).get(fromServer ? Source.SERVER : Source.DEFAULT).addOnCompleteListener(task -> {
+            if(!task.isSuccessful()){
+                listener.accept(null, false);
+                return;
+            }
+            listener.accept(toDocument(task.getResult()), true);
+        });
+    }
+
+    @Override
+    public void set(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener) {
+        document(collection, id).set(toFirestore(data)).addOnCompleteListener(task -> listener.accept(task.isSuccessful()));
+    }
+
+    @Override
+    public void merge(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener) {
+        document(collection, id).set(toFirestore(data), SetOptions.merge()).addOnCompleteListener(task -> listener.accept(task.isSuccessful()));
+    }
+
+    @Override
+    public void update(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener) {
+        document(collection, id).update(toFirestore(data)).addOnCompleteListener(task -> listener.accept(task.isSuccessful()));
+    }
+
+    @Override
+    public void delete(String collection, String id, Consumer<Boolean> listener) {
+        document(collection, id).delete().addOnCompleteListener(task -> listener.accept(task.isSuccessful()));
+    }
+
+    @Override
+    public void query(Query query, BiConsumer<List<Document>, Boolean> listener) {
+        toFirestore(query).get().addOnCompleteListener(task -> {
+            if(!task.isSuccessful()){
+                listener.accept(new ArrayList<>(), false);
+                return;
+            }
+            List<Document> docs = new ArrayList<>();
+            for(DocumentSnapshot doc : task.getResult().getDocuments()){
+                docs.add(toDocument(doc));
+            }
+            listener.accept(docs, true);
+        });
+    }
+
+    @Override
+    public void count(Query query, BiConsumer<Long, Boolean> listener) {
+        toFirestore(query).count().get(AggregateSource.SERVER).addOnCompleteListener(task -> {
+            if(!task.isSuccessful()){
+                listener.accept(0L, false);
+                return;
+            }
+            listener.accept(task.getResult().getCount(), true);
+        });
+    }
+
+    @Override
+    public Batch batch() {
+        WriteBatch batch = firestore.batch();
+        return new Batch() {
+            @Override
+            public Batch set(String collection, String id, Map<String, Object> data) {
+                batch.set(document(collection, id), toFirestore(data));
+                return this;
+            }
+
+            @Override
+            public Batch update(String collection, String id, Map<String, Object> data) {
+                batch.update(document(collection, id), toFirestore(data));
+                return this;
+            }
+
+            @Override
+            public Batch delete(String collection, String id) {
+                batch.delete(document(collection, id));
+                return this;
+            }
+
+            @Override
+            public void commit(Consumer<Boolean> listener) {
+                batch.commit().addOnCompleteListener(task -> listener.accept(task.isSuccessful()));
+            }
+        };
+    }
+
+    @Override
+    public <R> void runTransaction(int maxAttempts, Function<Transaction, R> function, BiConsumer<R, Boolean> listener) {
+        TransactionOptions options = new TransactionOptions.Builder().setMaxAttempts(maxAttempts).build();
+        firestore.runTransaction(options, t -> function.apply(new Transaction() {
+            @Override
+            public Document get(String collection, String id) {
+                try {
+                    return toDocument(t.get(document(collection, id)));
+                } catch (FirebaseFirestoreException e) {
+                    throw new IllegalStateException("Failed to read " + collection + "/" + id, e);
+                }
+            }
+
+            @Override
+            public void set(String collection, String id, Map<String, Object> data) {
+                t.set(document(collection, id), toFirestore(data));
+            }
+
+            @Override
+            public void update(String collection, String id, Map<String, Object> data) {
+                t.update(document(collection, id), toFirestore(data));
+            }
+
+            @Override
+            public void delete(String collection, String id) {
+                t.delete(document(collection, id));
+            }
+        })).addOnCompleteListener(task -> listener.accept(task.isSuccessful() ? task.getResult() : null, task.isSuccessful()));
+    }
+
+    @Override
+    public Registration listen(Query query, BiConsumer<Snapshot, Boolean> listener) {
+        ListenerRegistration registration = toFirestore(query).addSnapshotListener((value, error) -> {
+            if(error != null || value == null){
+                listener.accept(null, false);
+                return;
+            }
+            List<Document> docs = new ArrayList<>();
+            for(DocumentSnapshot doc : value.getDocuments()){
+                docs.add(toDocument(doc));
+            }
+            List<Change> changes = new ArrayList<>();
+            for(DocumentChange change : value.getDocumentChanges()){
+                Change.Type type;
+                switch (change.getType()){
+                    case ADDED: type = Change.Type.ADDED; break;
+                    case MODIFIED: type = Change.Type.MODIFIED; break;
+                    default: type = Change.Type.REMOVED; break;
+                }
+                changes.add(new Change(type, toDocument(change.getDocument()), change.getOldIndex(), change.getNewIndex()));
+            }
+            listener.accept(new Snapshot(docs, changes), true);
+        });
+        return registration::remove;
+    }
+
+    @Override
+    public String newId(String collection) {
+        return firestore.collection(collection).document().getId();
+    }
+
+    @Override
+    public boolean post(Runnable task, long delayMillis) {
+        if(mainHandler == null) mainHandler = new Handler(Looper.getMainLooper());
+        return mainHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void putFile(String name, String uri, Consumer<String> listener) {
+        StorageReference ref = storage.child(name);
+        ref.putFile(Uri.parse(uri)).addOnCompleteListener(task -> {
+            if(!task.isSuccessful()){
+                listener.accept(null);
+                return;
+            }
+            getDownloadUrl(name, ref, listener);
+        });
+    }
+
+    @Override
+    public void putBytes(String name, byte[] data, String contentType, Consumer<String> listener) {
+        StorageReference ref = storage.child(name);
+        //Uploaded contents are never changed, a new version is uploaded under a new name
+        StorageMetadata metadata = new StorageMetadata.Builder()
+                .setContentType(contentType)
+                .setCacheControl(ImagePipeline.CACHE_CONTROL)
+                .build();
+        ref.putBytes(data, metadata).addOnCompleteListener(task -> {
+            if(!task.isSuccessful()){
+                listener.accept(null);
+                return;
+            }
+            getDownloadUrl(name, ref, listener);
+        });
+    }
+
+    /**
+     * Gets the download url of an uploaded file, deleting the file if it fails
+     */
+    private void getDownloadUrl(String name, StorageReference ref, Consumer<String> listener){
+        ref.getDownloadUrl().addOnCompleteListener(task1 -> {
+            if(!task1.isSuccessful()){
+                ref.delete().addOnFailureListener(task2 -> {
+                    Log.println(Log.ERROR, "image", "hanging image " + name);
+                });
+                listener.accept(null);
+                return;
+            }
+            listener.accept(task1.getResult().toString());
+        });
+    }
+
+    @Override
+    public void deleteFile(String name, Consumer<Boolean> listener) {
+        storage.child(name).delete().addOnCompleteListener(task -> listener.accept(task.isSuccessful()));
+    }
+}
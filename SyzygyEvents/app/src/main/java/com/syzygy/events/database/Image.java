@@ -5,6 +5,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Shader;
@@ -12,14 +13,12 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.util.Log;
-import android.util.Pair;
 
 import androidx.annotation.DrawableRes;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.firebase.Timestamp;
-import com.google.firebase.firestore.Query;
 import com.squareup.picasso.Picasso;
 import com.squareup.picasso.RequestCreator;
 import com.squareup.picasso.Target;
@@ -113,13 +112,25 @@ public class Image extends DatabaseInstance<Image> {
     }
 
     /**
-     * Loads the image into a picasso request and formats it based on the collection type
+     * Returns the download url of each sized variant of the image
+     * @return The url of each variant by its size, null if the image was uploaded without variants
+     * @see ImageVariants
+     */
+    @Nullable
+    public Map<String, Object> getVariants(){
+        return getPropertyValueI(R.string.database_img_variants);
+    }
+
+    /**
+     * Loads the image into a picasso request and formats it based on the collection type.
+     * The smallest variant of the image that covers the formatted size is loaded
      * @param option How to format the image
      * @return The picasso creator with this image formated
      * @see #formatImage(RequestCreator, Options)
+     * @see ImageVariants#select(Map, String, int)
      */
     public RequestCreator loadAndFormatImage(Options option){
-        RequestCreator req = Picasso.get().load(getAddress());
+        RequestCreator req = Picasso.get().load(ImageVariants.select(getVariants(), getAddress(), option.getSize()));
         return formatImage(req, option);
     }
 
@@ -133,17 +144,18 @@ public class Image extends DatabaseInstance<Image> {
             new PropertyField<String, PropertyField.NullInstance>(R.string.database_img_locName, o -> o instanceof String, true),
             new PropertyField<String, PropertyField.NullInstance>(R.string.database_img_locType, o -> o instanceof String && !((String)o).isBlank(), true),
             new PropertyField<String, PropertyField.NullInstance>(R.string.database_img_locID, o -> o instanceof String, true),
-            new PropertyField<Timestamp, PropertyField.NullInstance>(R.string.database_img_uploadTime, o -> o instanceof Timestamp, false)
+            new PropertyField<Timestamp, PropertyField.NullInstance>(R.string.database_img_uploadTime, o -> o instanceof Timestamp, false),
+            new PropertyField<Map<String, Object>, PropertyField.NullInstance>(R.string.database_img_variants, o -> o == null || o instanceof Map, false)
     };
 
     @Override
-    protected List<Pair<Query, Database.Collections>> subInstanceCascadeDeleteQuery() {
+    protected List<Backend.Query> subInstanceCascadeDeleteQuery() {
         return Collections.emptyList();
     }
 
     @Override
     protected void requiredFirstDelete(int deletionType, Consumer<Boolean> listener) {
-        db.deleteFile(getImageID(), success -> {
+        db.deleteImageFiles(getImageID(), getVariants(), success -> {
             if(!success){
                 listener.accept(false);
                 return;
@@ -195,7 +207,7 @@ public class Image extends DatabaseInstance<Image> {
             return invalidIDs;
         }
 
-        db.addFileToStorage(imageID, image, address -> {
+        db.addImageToStorage(imageID, image, (address, variants) -> {
             if(address == null){
                 Log.println(Log.DEBUG, "Newimage", "failed image");
                 listener.onInitialization(null, false);
@@ -205,11 +217,12 @@ public class Image extends DatabaseInstance<Image> {
             Log.println(Log.DEBUG, "Newimage", "created image file");
 
             map.put(R.string.database_img_address, address.toString());
+            if(variants != null) map.put(R.string.database_img_variants, variants);
 
             db.<Image>createNewInstance(Database.Collections.IMAGES, docID, map, (instance, success) -> {
                 Log.println(Log.DEBUG, "Newimage", "created image");
                 if(!success){
-                    db.deleteFile(imageID, success2 -> {
+                    db.deleteImageFiles(imageID, variants, success2 -> {
                         if(!success2){
                             db.throwE(new IllegalStateException("Hanging Image: " + imageID + " :Image was created, uri retrieved, failed validation, failed to delete"));
                         }
@@ -520,6 +533,14 @@ public class Image extends DatabaseInstance<Image> {
             this.isCircle = isCircle;
         }
 
+        /**
+         * @return The longest side the image is formatted to, -1 if it is not resized
+         */
+        public int getSize(){
+            if(width < 0 || height < 0) return -1;
+            return Math.max(width, height);
+        }
+
         /**
          * Modifies the image based off the parameters of the option
          * @param img The image to modify
@@ -579,8 +600,48 @@ public class Image extends DatabaseInstance<Image> {
 
     //https://stackoverflow.com/questions/26112150/android-create-circular-image-with-picasso
 
+    /**
+     * The canvas and paints of a transformation, reused by each picasso thread
+     */
+    private static final class Drawing {
+        final Canvas canvas = new Canvas();
+        final Paint paint = new Paint();
+        final Paint textPaint = new Paint();
+        final Matrix matrix = new Matrix();
+        final Rect bounds = new Rect();
+
+        private static final ThreadLocal<Drawing> current = new ThreadLocal<Drawing>(){
+            @Override
+            protected Drawing initialValue() {
+                return new Drawing();
+            }
+        };
+
+        /**
+         * @param target The bitmap to draw into
+         * @return The drawing of this thread, with reset paints and drawing into the bitmap
+         */
+        static Drawing on(Bitmap target){
+            Drawing d = current.get();
+            d.paint.reset();
+            d.textPaint.reset();
+            d.matrix.reset();
+            d.canvas.setBitmap(target);
+            return d;
+        }
+
+        /**
+         * Stops drawing into the bitmap, so it is not kept alive by this thread
+         */
+        void release(){
+            canvas.setBitmap(null);
+            paint.setShader(null);
+        }
+    }
+
     /**
      * Crops the image to the largest circle that fits within.
+     * The circle is drawn straight from the source into a pooled bitmap, and the source is returned to the pool
      */
     private static class CircleTransform implements Transformation {
         @Override
@@ -590,24 +651,21 @@ public class Image extends DatabaseInstance<Image> {
             int x = (source.getWidth() - size) / 2;
             int y = (source.getHeight() - size) / 2;
 
-            Bitmap squaredBitmap = Bitmap.createBitmap(source, x, y, size, size);
-            if (squaredBitmap != source) {
-                source.recycle();
-            }
-
-            Bitmap bitmap = Bitmap.createBitmap(size, size, source.getConfig());
+            BitmapPool pool = ImagePipeline.getBitmapPool();
+            Bitmap bitmap = pool.get(size, size, source.getConfig());
 
-            Canvas canvas = new Canvas(bitmap);
-            Paint paint = new Paint();
-            BitmapShader shader = new BitmapShader(squaredBitmap,
-                    Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-            paint.setShader(shader);
-            paint.setAntiAlias(true);
+            Drawing d = Drawing.on(bitmap);
+            BitmapShader shader = new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            d.matrix.setTranslate(-x, -y);
+            shader.setLocalMatrix(d.matrix);
+            d.paint.setShader(shader);
+            d.paint.setAntiAlias(true);
 
             float r = size / 2f;
-            canvas.drawCircle(r, r, r, paint);
+            d.canvas.drawCircle(r, r, r, d.paint);
+            d.release();
 
-            squaredBitmap.recycle();
+            pool.put(source);
             return bitmap;
         }
 
@@ -644,29 +702,30 @@ public class Image extends DatabaseInstance<Image> {
             int height = source.getHeight();
             int width = source.getWidth();
 
-            Bitmap result = Bitmap.createBitmap(width, height, source.getConfig());
-
+            BitmapPool pool = ImagePipeline.getBitmapPool();
+            Bitmap result = pool.get(width, height, source.getConfig());
 
-            Canvas canvas = new Canvas(result);
-            canvas.drawBitmap(source, 0, 0, null);
+            Drawing d = Drawing.on(result);
+            d.canvas.drawBitmap(source, 0, 0, null);
 
-            Paint bgpaint = new Paint();
+            Paint bgpaint = d.paint;
             bgpaint.setColor(bg);
             bgpaint.setAlpha(bgalpha);
             bgpaint.setStyle(Paint.Style.FILL);
-            canvas.drawRect(0,0,width, height, bgpaint);
+            d.canvas.drawRect(0,0,width, height, bgpaint);
 
-            Paint paint = new Paint();
+            Paint paint = d.textPaint;
             paint.setColor(color);
             paint.setAlpha(alpha);
             paint.setTextSize(height/2f);
             paint.setAntiAlias(true);
             paint.setUnderlineText(underline);
             paint.setTextAlign(Paint.Align.CENTER);
-            Rect r = new Rect();
+            Rect r = d.bounds;
             paint.getTextBounds(string, 0, string.length(), r);
-            canvas.drawText(string, width/2f, height/2f + r.height()/2f, paint);
-            source.recycle();
+            d.canvas.drawText(string, width/2f, height/2f + r.height()/2f, paint);
+            d.release();
+            pool.put(source);
 
             return result;
         }
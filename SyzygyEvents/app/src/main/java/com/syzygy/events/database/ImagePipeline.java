@@ -0,0 +1,122 @@
+package com.syzygy.events.database;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.squareup.picasso.LruCache;
+import com.squareup.picasso.OkHttp3Downloader;
+import com.squareup.picasso.Picasso;
+
+import java.io.File;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Configures the Picasso instance every image is loaded through.
+ * <p>
+ *     The memory cache holds transformed results, keyed by Picasso on the address, the size and the transformations of the
+ *     request, so a circle avatar of a size is drawn once and then served from memory. It is sized by the memory class of
+ *     the device. Downloaded files are kept in a disk cache keyed by their address, which names the image and, since images
+ *     are uploaded with variants, its size. Images are never changed once uploaded, so every stored image is cached as
+ *     immutable regardless of the headers it was served with.
+ * </p>
+ * <p>
+ *     The transformations take their bitmaps from the shared {@link #getBitmapPool() pool} and return their sources to it.
+ * </p>
+ * @see Image
+ * @see ImageVariants
+ */
+public final class ImagePipeline {
+
+    private static final String DISK_CACHE_DIR = "images";
+    private static final long MIN_DISK_CACHE_BYTES = 5L * 1024 * 1024;
+    private static final long MAX_DISK_CACHE_BYTES = 50L * 1024 * 1024;
+    /**
+     * How long an image may be served from the disk cache
+     */
+    static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    private static final BitmapPool pool = new BitmapPool();
+    private static Picasso picasso;
+
+    private ImagePipeline(){}
+
+    /**
+     * Creates the Picasso instance and sets it as the one returned by {@link Picasso#get()}.
+     * Must be called before any image is loaded. Later calls return the installed instance
+     * @param context The application context
+     * @return The instance
+     */
+    @NonNull
+    public static synchronized Picasso install(@NonNull Context context){
+        if(picasso != null) return picasso;
+        ActivityManager am = context.getSystemService(ActivityManager.class);
+        boolean lowRam = am.isLowRamDevice();
+        int memoryClass = am.getMemoryClass();
+        int memoryBytes = memoryCacheBytes(memoryClass, lowRam);
+        pool.setMaxBytes(poolBytes(memoryClass, lowRam));
+
+        File dir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+        long diskBytes = diskCacheBytes(context.getCacheDir().getUsableSpace());
+        OkHttpClient client = new OkHttpClient.Builder()
+                .cache(new Cache(dir, diskBytes))
+                .addNetworkInterceptor(chain -> {
+                    Response response = chain.proceed(chain.request());
+                    if(!response.isSuccessful()) return response;
+                    return response.newBuilder()
+                            .header("Cache-Control", CACHE_CONTROL)
+                            .removeHeader("Pragma")
+                            .build();
+                })
+                .build();
+
+        picasso = new Picasso.Builder(context)
+                .memoryCache(new LruCache(memoryBytes))
+                .downloader(new OkHttp3Downloader(client))
+                .build();
+        Picasso.setSingletonInstance(picasso);
+        Log.println(Log.DEBUG, "imagePipeline", "memory=" + memoryBytes + " disk=" + diskBytes + " lowRam=" + lowRam);
+        return picasso;
+    }
+
+    /**
+     * @return The pool the image transformations draw into
+     */
+    @NonNull
+    public static BitmapPool getBitmapPool(){
+        return pool;
+    }
+
+    /**
+     * @param memoryClassMb The memory class of the device in megabytes
+     * @param lowRam If the device is a low ram device
+     * @return The size of the memory cache, a sixth of the heap, or a twelfth on a low ram device
+     */
+    static int memoryCacheBytes(int memoryClassMb, boolean lowRam){
+        long heap = memoryClassMb * 1024L * 1024L;
+        return (int) Math.min(Integer.MAX_VALUE, heap / (lowRam ? 12 : 6));
+    }
+
+    /**
+     * @param memoryClassMb The memory class of the device in megabytes
+     * @param lowRam If the device is a low ram device
+     * @return The size of the bitmap pool, a thirty second of the heap, or 1 MB on a low ram device
+     */
+    static long poolBytes(int memoryClassMb, boolean lowRam){
+        if(lowRam) return 1024L * 1024L;
+        return memoryClassMb * 1024L * 1024L / 32;
+    }
+
+    /**
+     * @param usableBytes The free space of the cache directory
+     * @return The size of the disk cache, 2% of the free space within 5 and 50 MB
+     */
+    static long diskCacheBytes(long usableBytes){
+        return Math.max(MIN_DISK_CACHE_BYTES, Math.min(MAX_DISK_CACHE_BYTES, usableBytes / 50));
+    }
+}
@@ -0,0 +1,246 @@
+package com.syzygy.events.database;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Encodes the smaller variants of a picked image, one for each of the {@link Image.Options.Sizes} it exceeds.
+ * The picked image itself is uploaded unchanged.
+ * <p>
+ *     The image is decoded once, subsampled to the smallest power of two that still covers {@link #DECODE_SIZE}, and each variant is
+ *     scaled from that bitmap. Variants are WebP where the platform encodes lossy WebP, otherwise JPEG. Decoding and encoding
+ *     happen on a background thread and the result is delivered on the main thread.
+ * </p>
+ * <p>
+ *     Each variant keeps the aspect ratio of the image and has a shorter side of its size, so a variant can be center cropped
+ *     to a square of its size. When an image is shown, {@link #select(Map, String, int)} picks the smallest variant that covers it.
+ * </p>
+ * @see Database#setImageVariants(ImageVariants)
+ * @see Image#loadAndFormatImage(Image.Options)
+ */
+public final class ImageVariants {
+
+    /**
+     * The longest side the image is decoded at to scale the variants from
+     */
+    public static final int DECODE_SIZE = 2048;
+    /**
+     * The sizes of the variants, smallest first
+     */
+    static final int[] SIZES = {
+            Image.Options.Sizes.ICON,
+            Image.Options.Sizes.SMALL,
+            Image.Options.Sizes.MEDIUM,
+            Image.Options.Sizes.LARGE
+    };
+    private static final int QUALITY = 85;
+
+    private final ContentResolver resolver;
+    private final Executor background;
+    private final Executor main;
+
+    /**
+     * Creates an encoder that runs on its own background thread and delivers on the main thread
+     * @param resolver Opens the picked images
+     */
+    public ImageVariants(@NonNull ContentResolver resolver){
+        this(resolver, Executors.newSingleThreadExecutor(), new Handler(Looper.getMainLooper())::post);
+    }
+
+    /**
+     * @param resolver Opens the picked images
+     * @param background Decodes and encodes the images. Decoding a large image takes a lot of memory, so this should run one at a time
+     * @param main Delivers the results
+     */
+    public ImageVariants(@NonNull ContentResolver resolver, @NonNull Executor background, @NonNull Executor main){
+        this.resolver = resolver;
+        this.background = background;
+        this.main = main;
+    }
+
+    /**
+     * An encoded variant
+     */
+    static final class Encoded {
+        /**
+         * The size of the variant
+         */
+        final int size;
+        final byte[] data;
+        final String contentType;
+
+        Encoded(int size, byte[] data, String contentType) {
+            this.size = size;
+            this.data = data;
+            this.contentType = contentType;
+        }
+    }
+
+    /**
+     * Encodes the variants of an image
+     * @param image The picked image
+     * @param listener Called on the main thread with the variants smallest first, empty if the image is no larger than any size.
+     *                 Called with null if the image could not be decoded
+     */
+    void encode(@NonNull Uri image, @NonNull Consumer<List<Encoded>> listener){
+        background.execute(() -> {
+            List<Encoded> encoded;
+            try {
+                encoded = encode(image);
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                Log.println(Log.WARN, "imageVariants", "could not encode " + image + " " + e);
+                encoded = null;
+            }
+            List<Encoded> result = encoded;
+            main.execute(() -> listener.accept(result));
+        });
+    }
+
+    private List<Encoded> encode(Uri image) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(image)) {
+            BitmapFactory.decodeStream(in, null, bounds);
+        }
+        if(bounds.outWidth <= 0 || bounds.outHeight <= 0) return null;
+
+        int orientation;
+        try (InputStream in = resolver.openInputStream(image)) {
+            orientation = in == null ? ExifInterface.ORIENTATION_NORMAL : new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize(bounds.outWidth, bounds.outHeight, DECODE_SIZE);
+        Bitmap decoded;
+        try (InputStream in = resolver.openInputStream(image)) {
+            decoded = BitmapFactory.decodeStream(in, null, options);
+        }
+        if(decoded == null) return null;
+
+        Bitmap full = orient(decoded, orientation, DECODE_SIZE);
+        if(full != decoded) decoded.recycle();
+
+        Bitmap.CompressFormat format = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.JPEG;
+        String contentType = format == Bitmap.CompressFormat.JPEG ? "image/jpeg" : "image/webp";
+
+        List<Encoded> encoded = new ArrayList<>(SIZES.length);
+        for(int size : SIZES){
+            //The image serves every size it does not exceed
+            if(Math.min(full.getWidth(), full.getHeight()) <= size) break;
+            int[] d = scaledDimensions(full.getWidth(), full.getHeight(), size);
+            Bitmap variant = Bitmap.createScaledBitmap(full, d[0], d[1], true);
+            encoded.add(new Encoded(size, compress(variant, format), contentType));
+            variant.recycle();
+        }
+        full.recycle();
+        return encoded;
+    }
+
+    /**
+     * Applies the exif orientation of the image and scales it so its longest side is at most the given size
+     */
+    private static Bitmap orient(Bitmap bitmap, int orientation, int maxSize){
+        Matrix m = new Matrix();
+        float scale = Math.min(1f, maxSize / (float) Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        m.postScale(scale, scale);
+        switch (orientation){
+            case ExifInterface.ORIENTATION_ROTATE_90: m.postRotate(90); break;
+            case ExifInterface.ORIENTATION_ROTATE_180: m.postRotate(180); break;
+            case ExifInterface.ORIENTATION_ROTATE_270: m.postRotate(270); break;
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL: m.postScale(-1, 1); break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL: m.postScale(1, -1); break;
+        }
+        if(m.isIdentity()) return bitmap;
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
+    }
+
+    private static byte[] compress(Bitmap bitmap, Bitmap.CompressFormat format){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(format, QUALITY, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param maxSize The longest side needed
+     * @return The largest power of two that subsamples the image without its longest side falling below the size
+     */
+    static int sampleSize(int width, int height, int maxSize){
+        int longest = Math.max(width, height);
+        int sample = 1;
+        while(longest / (sample * 2) >= maxSize){
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    /**
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param size The shorter side of the variant
+     * @return The width and height of the variant. The image's own dimensions if it is not larger than the size
+     */
+    static int[] scaledDimensions(int width, int height, int size){
+        int shortest = Math.min(width, height);
+        if(shortest <= size) return new int[]{width, height};
+        float scale = size / (float) shortest;
+        return new int[]{Math.max(size, Math.round(width * scale)), Math.max(size, Math.round(height * scale))};
+    }
+
+    /**
+     * @param imageID The name of the full image in the storage
+     * @param size The size of the variant
+     * @return The name of the variant in the storage
+     */
+    static String fileName(String imageID, int size){
+        return imageID + "_" + size;
+    }
+
+    /**
+     * @param size The size of the variant
+     * @return The key of the variant in the variants property of an image
+     */
+    static String key(int size){
+        return Integer.toString(size);
+    }
+
+    /**
+     * Picks the address of the smallest variant that covers a size
+     * @param variants The address of each variant by key, null if the image has none
+     * @param fullAddress The address of the full image
+     * @param size The longest side the image is shown at, negative if shown as is
+     * @return The address to load
+     */
+    @NonNull
+    static String select(@Nullable Map<String, Object> variants, @NonNull String fullAddress, int size){
+        if(variants == null || size < 0) return fullAddress;
+        for(int s : SIZES){
+            if(s < size) continue;
+            Object address = variants.get(key(s));
+            if(address instanceof String) return (String) address;
+        }
+        return fullAddress;
+    }
+}
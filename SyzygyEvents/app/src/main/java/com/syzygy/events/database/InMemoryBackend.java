@@ -0,0 +1,624 @@
+package com.syzygy.events.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A backend that keeps every document and file in memory, so the database can be run and measured without a network.
+ * <p>
+ *     Every operation is run on a single thread after the configured latency, and listeners are called on that thread.
+ *     Operations started at the same time complete in the order they were started, so a run is deterministic.
+ *     As every operation runs on the same thread, batches and transactions are trivially atomic and transactions never retry.
+ * </p>
+ * <p>
+ *     Values are stored as Firestore would return them: integers are widened to {@code Long} and floats to {@code Double}.
+ *     Queries follow Firestore semantics: documents that lack a filtered or ordered field do not match, ties are broken by document id,
+ *     and snapshot changes are reported in the order they apply.
+ * </p>
+ */
+public class InMemoryBackend implements Backend {
+
+    private static final String ID_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    private static final int ID_LENGTH = 20;
+
+    /**
+     * The documents of each collection, by id
+     */
+    private final Map<String, TreeMap<String, Map<String, Object>>> collections = new HashMap<>();
+    /**
+     * The uri of each stored file, by name. Uploaded contents are described by their type and length
+     */
+    private final Map<String, String> files = new HashMap<>();
+    private final List<Listening> listeners = new ArrayList<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    /**
+     * Generates the ids of new documents. Seeded so that a run is deterministic
+     */
+    private final Random ids = new Random(0);
+
+    private volatile long latencyMillis;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * Creates a backend that completes operations immediately
+     */
+    public InMemoryBackend() {
+        this(0);
+    }
+
+    /**
+     * @param latencyMillis The time each operation takes to complete
+     */
+    public InMemoryBackend(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Sets the time each operation takes to complete. Operations that were already started are not affected
+     * @param latencyMillis The latency in milliseconds
+     */
+    public void setLatency(long latencyMillis){
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return The number of documents read, counting every query and count as at least one read
+     */
+    public long getReads(){
+        return reads.get();
+    }
+
+    /**
+     * @return The number of document writes and deletes that were applied
+     */
+    public long getWrites(){
+        return writes.get();
+    }
+
+    /**
+     * Stops the thread of the backend. Operations that have not completed are dropped
+     */
+    public void shutdown(){
+        executor.shutdownNow();
+    }
+
+    private void run(Runnable operation){
+        executor.schedule(operation, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void get(String collection, String id, boolean fromServer, BiConsumer<Document, Boolean> listener) {
+        run(() -> {
+            reads.incrementAndGet();
+            listener.accept(read(collection, id), true);
+        });
+    }
+
+    @Override
+    public void set(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener) {
+        Map<String, Object> copy = normalize(data);
+        run(() -> listener.accept(commit(Collections.singletonList(new Write(Write.Type.SET, collection, id, copy)))));
+    }
+
+    @Override
+    public void merge(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener) {
+        Map<String, Object> copy = normalize(data);
+        run(() -> listener.accept(commit(Collections.singletonList(new Write(Write.Type.MERGE, collection, id, copy)))));
+    }
+
+    @Override
+    public void update(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener) {
+        Map<String, Object> copy = normalize(data);
+        run(() -> listener.accept(commit(Collections.singletonList(new Write(Write.Type.UPDATE, collection, id, copy)))));
+    }
+
+    @Override
+    public void delete(String collection, String id, Consumer<Boolean> listener) {
+        run(() -> listener.accept(commit(Collections.singletonList(new Write(Write.Type.DELETE, collection, id, null)))));
+    }
+
+    @Override
+    public void query(Query query, BiConsumer<List<Document>, Boolean> listener) {
+        run(() -> {
+            List<Document> docs = evaluate(query);
+            reads.addAndGet(Math.max(docs.size(), 1));
+            listener.accept(docs, true);
+        });
+    }
+
+    @Override
+    public void count(Query query, BiConsumer<Long, Boolean> listener) {
+        run(() -> {
+            reads.incrementAndGet();
+            listener.accept((long) evaluate(query).size(), true);
+        });
+    }
+
+    @Override
+    public Batch batch() {
+        List<Write> batch = new ArrayList<>();
+        return new Batch() {
+            @Override
+            public Batch set(String collection, String id, Map<String, Object> data) {
+                batch.add(new Write(Write.Type.SET, collection, id, normalize(data)));
+                return this;
+            }
+
+            @Override
+            public Batch update(String collection, String id, Map<String, Object> data) {
+                batch.add(new Write(Write.Type.UPDATE, collection, id, normalize(data)));
+                return this;
+            }
+
+            @Override
+            public Batch delete(String collection, String id) {
+                batch.add(new Write(Write.Type.DELETE, collection, id, null));
+                return this;
+            }
+
+            @Override
+            public void commit(Consumer<Boolean> listener) {
+                List<Write> committed = new ArrayList<>(batch);
+                run(() -> listener.accept(InMemoryBackend.this.commit(committed)));
+            }
+        };
+    }
+
+    @Override
+    public <R> void runTransaction(int maxAttempts, Function<Transaction, R> function, BiConsumer<R, Boolean> listener) {
+        run(() -> {
+            List<Write> buffered = new ArrayList<>();
+            Transaction t = new Transaction() {
+                @Override
+                public Document get(String collection, String id) {
+                    if(!buffered.isEmpty()) throw new IllegalStateException("Transaction reads must happen before writes");
+                    reads.incrementAndGet();
+                    return read(collection, id);
+                }
+
+                @Override
+                public void set(String collection, String id, Map<String, Object> data) {
+                    buffered.add(new Write(Write.Type.SET, collection, id, normalize(data)));
+                }
+
+                @Override
+                public void update(String collection, String id, Map<String, Object> data) {
+                    buffered.add(new Write(Write.Type.UPDATE, collection, id, normalize(data)));
+                }
+
+                @Override
+                public void delete(String collection, String id) {
+                    buffered.add(new Write(Write.Type.DELETE, collection, id, null));
+                }
+            };
+            R result;
+            try {
+                result = function.apply(t);
+            } catch (RuntimeException e) {
+                listener.accept(null, false);
+                return;
+            }
+            boolean success = commit(buffered);
+            listener.accept(success ? result : null, success);
+        });
+    }
+
+    @Override
+    public Registration listen(Query query, BiConsumer<Snapshot, Boolean> listener) {
+        Listening listening = new Listening(query, listener);
+        run(() -> {
+            if(!listening.active) return;
+            listeners.add(listening);
+            listening.deliver(evaluate(query));
+        });
+        return () -> {
+            listening.active = false;
+            if(!executor.isShutdown()) executor.execute(() -> listeners.remove(listening));
+        };
+    }
+
+    @Override
+    public String newId(String collection) {
+        StringBuilder id = new StringBuilder(ID_LENGTH);
+        synchronized (ids){
+            for(int i = 0; i < ID_LENGTH; i++){
+                id.append(ID_CHARACTERS.charAt(ids.nextInt(ID_CHARACTERS.length())));
+            }
+        }
+        return id.toString();
+    }
+
+    @Override
+    public boolean post(Runnable task, long delayMillis) {
+        try {
+            executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void putFile(String name, String uri, Consumer<String> listener) {
+        run(() -> {
+            files.put(name, uri);
+            listener.accept("memory://" + name);
+        });
+    }
+
+    @Override
+    public void putBytes(String name, byte[] data, String contentType, Consumer<String> listener) {
+        run(() -> {
+            files.put(name, "data:" + contentType + ";" + data.length);
+            listener.accept("memory://" + name);
+        });
+    }
+
+    @Override
+    public void deleteFile(String name, Consumer<Boolean> listener) {
+        run(() -> listener.accept(files.remove(name) != null));
+    }
+
+    /**
+     * @param name The name of the file
+     * @return If the file is stored
+     */
+    public boolean hasFile(String name){
+        return files.containsKey(name);
+    }
+
+    /**
+     * A pending write to a document
+     */
+    private static class Write {
+        enum Type { SET, MERGE, UPDATE, DELETE }
+
+        final Type type;
+        final String collection;
+        final String id;
+        final Map<String, Object> data;
+
+        Write(Type type, String collection, String id, Map<String, Object> data) {
+            this.type = type;
+            this.collection = collection;
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A registered snapshot listener and the results it last received
+     */
+    private class Listening {
+        final Query query;
+        final BiConsumer<Snapshot, Boolean> listener;
+        List<Document> last = new ArrayList<>();
+        /**
+         * If the first snapshot was delivered. The first snapshot is delivered even if the query has no results
+         */
+        boolean delivered = false;
+        volatile boolean active = true;
+
+        Listening(Query query, BiConsumer<Snapshot, Boolean> listener) {
+            this.query = query;
+            this.listener = listener;
+        }
+
+        /**
+         * Calls the listener with the changes from the last results, if there are any
+         * @param current The current results of the query
+         */
+        void deliver(List<Document> current){
+            List<Change> changes = diff(last, current);
+            last = current;
+            if(changes.isEmpty() && delivered) return;
+            delivered = true;
+            reads.addAndGet(Math.max(changes.size(), 1));
+            listener.accept(new Snapshot(current, changes), true);
+        }
+    }
+
+    /**
+     * @return The document, which does not exist if it is not stored
+     */
+    private Document read(String collection, String id){
+        TreeMap<String, Map<String, Object>> docs = collections.get(collection);
+        Map<String, Object> data = docs == null ? null : docs.get(id);
+        return new Document(collection, id, data == null ? null : normalize(data));
+    }
+
+    /**
+     * Applies the writes together. If any update targets a document that does not exist, none are applied
+     * @param batch The writes, in order
+     * @return If the writes were applied
+     */
+    private boolean commit(List<Write> batch){
+        Map<String, Map<String, Object>> staged = new HashMap<>();
+        Map<String, Write> targets = new HashMap<>();
+        for(Write w : batch){
+            String path = w.collection + '/' + w.id;
+            Map<String, Object> current;
+            if(staged.containsKey(path)){
+                current = staged.get(path);
+            }else{
+                TreeMap<String, Map<String, Object>> docs = collections.get(w.collection);
+                current = docs == null ? null : docs.get(w.id);
+            }
+            switch (w.type){
+                case SET:
+                    staged.put(path, applyFields(new HashMap<>(), current, w.data));
+                    break;
+                case MERGE:
+                    staged.put(path, applyFields(current == null ? new HashMap<>() : new HashMap<>(current), current, w.data));
+                    break;
+                case UPDATE:
+                    if(current == null) return false;
+                    staged.put(path, applyFields(new HashMap<>(current), current, w.data));
+                    break;
+                case DELETE:
+                    staged.put(path, null);
+                    break;
+            }
+            targets.put(path, w);
+        }
+
+        Set<String> touched = new HashSet<>();
+        for(Map.Entry<String, Write> ent : targets.entrySet()){
+            Write w = ent.getValue();
+            Map<String, Object> data = staged.get(ent.getKey());
+            TreeMap<String, Map<String, Object>> docs = collections.computeIfAbsent(w.collection, c -> new TreeMap<>());
+            if(data == null) docs.remove(w.id);
+            else docs.put(w.id, data);
+            touched.add(w.collection);
+        }
+        writes.addAndGet(batch.size());
+
+        for(Listening l : new ArrayList<>(listeners)){
+            if(l.active && touched.contains(l.query.collection)){
+                l.deliver(evaluate(l.query));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the fields into the document, resolving increments against the current values
+     * @param into The document that is written to
+     * @param current The current fields of the document, null if it does not exist
+     * @param fields The fields to write
+     * @return The written document
+     */
+    private static Map<String, Object> applyFields(Map<String, Object> into, Map<String, Object> current, Map<String, Object> fields){
+        for(Map.Entry<String, Object> ent : fields.entrySet()){
+            Object value = ent.getValue();
+            if(value instanceof Increment){
+                Object old = current == null ? null : current.get(ent.getKey());
+                long base = old instanceof Number ? ((Number) old).longValue() : 0;
+                value = base + ((Increment) value).amount;
+            }
+            into.put(ent.getKey(), value);
+        }
+        return into;
+    }
+
+    /**
+     * @param query The query
+     * @return The documents that currently match the query, in order
+     */
+    private List<Document> evaluate(Query query){
+        TreeMap<String, Map<String, Object>> docs = collections.get(query.collection);
+        List<Document> matched = new ArrayList<>();
+        if(docs == null) return matched;
+        for(Map.Entry<String, Map<String, Object>> ent : docs.entrySet()){
+            Document doc = new Document(query.collection, ent.getKey(), ent.getValue());
+            if(matches(doc, query)) matched.add(doc);
+        }
+        Comparator<Document> order = ordering(query);
+        matched.sort(order);
+
+        List<Document> results = new ArrayList<>();
+        for(Document doc : matched){
+            if(query.startAt != null && order.compare(doc, query.startAt) < 0) continue;
+            if(query.startAfter != null && order.compare(doc, query.startAfter) <= 0) continue;
+            if(query.endBefore != null && order.compare(doc, query.endBefore) >= 0) break;
+            results.add(new Document(doc.collection, doc.id, normalize(doc.data)));
+        }
+        if(query.limit > 0 && results.size() > query.limit){
+            results = query.limitToLast ?
+                    new ArrayList<>(results.subList(results.size() - query.limit, results.size())) :
+                    new ArrayList<>(results.subList(0, query.limit));
+        }
+        return results;
+    }
+
+    private static boolean matches(Document doc, Query query){
+        if(query.orderBy != null && doc.get(query.orderBy) == null) return false;
+        for(Filter f : query.filters){
+            Object value = doc.get(f.field);
+            if(value == null) return false;
+            switch (f.op){
+                case EQUAL:
+                    if(!valuesEqual(value, normalizeValue(f.value))) return false;
+                    break;
+                case NOT_EQUAL:
+                    if(valuesEqual(value, normalizeValue(f.value))) return false;
+                    break;
+                case IN:
+                    boolean found = false;
+                    for(Object option : (List<?>) f.value){
+                        if(valuesEqual(value, normalizeValue(option))){
+                            found = true;
+                            break;
+                        }
+                    }
+                    if(!found) return false;
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The order of the results of the query. Ties are broken by id in the same direction
+     */
+    private static Comparator<Document> ordering(Query query){
+        Comparator<Document> order = (a, b) -> {
+            if(query.orderBy != null){
+                int c = compareValues(a.get(query.orderBy), b.get(query.orderBy));
+                if(c != 0) return c;
+            }
+            return a.id.compareTo(b.id);
+        };
+        return query.descending ? order.reversed() : order;
+    }
+
+    private static boolean valuesEqual(Object a, Object b){
+        if(a instanceof Number && b instanceof Number) return compareValues(a, b) == 0;
+        return Objects.equals(a, b);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareValues(Object a, Object b){
+        if(a instanceof Number && b instanceof Number){
+            if(a instanceof Long && b instanceof Long) return Long.compare((Long) a, (Long) b);
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if(a instanceof Comparable && a.getClass().equals(b.getClass())){
+            return ((Comparable) a).compareTo(b);
+        }
+        return a.getClass().getName().compareTo(b.getClass().getName());
+    }
+
+    /**
+     * Computes the changes that turn the old results into the new results.
+     * <p>
+     *     Removals are reported first. The remaining documents are then placed in the order of the new results, so each
+     *     added or changed document is moved directly after the document that precedes it. Documents that did not change and
+     *     kept their relative order are not reported.
+     * </p>
+     */
+    static List<Change> diff(List<Document> old, List<Document> current){
+        List<Change> changes = new ArrayList<>();
+        Map<String, Document> next = new HashMap<>();
+        for(Document d : current) next.put(d.id, d);
+
+        List<Document> working = new ArrayList<>(old);
+        for(int i = 0; i < working.size(); i++){
+            Document d = working.get(i);
+            if(!next.containsKey(d.id)){
+                changes.add(new Change(Change.Type.REMOVED, d, i, -1));
+                working.remove(i);
+                i--;
+            }
+        }
+
+        Map<String, Document> previous = new HashMap<>();
+        for(Document d : working) previous.put(d.id, d);
+        Set<String> kept = unchangedInOrder(working, current);
+
+        for(int i = 0; i < current.size(); i++){
+            Document d = current.get(i);
+            Document before = previous.get(d.id);
+            if(kept.contains(d.id)) continue;
+            int oldIndex = -1;
+            if(before != null){
+                oldIndex = indexOf(working, d.id);
+                working.remove(oldIndex);
+            }
+            int newIndex = i == 0 ? 0 : indexOf(working, current.get(i - 1).id) + 1;
+            working.add(newIndex, d);
+            changes.add(before == null ?
+                    new Change(Change.Type.ADDED, d, -1, newIndex) :
+                    new Change(Change.Type.MODIFIED, d, oldIndex, newIndex));
+        }
+        return changes;
+    }
+
+    /**
+     * Finds the largest set of unchanged documents that are in the same order in both results. The results of a query always
+     * keep unchanged documents in order, but the changes must still be correct for arbitrary results
+     * @param old The old results, without the removed documents
+     * @param current The new results
+     * @return The ids of the documents that do not need to be reported
+     */
+    private static Set<String> unchangedInOrder(List<Document> old, List<Document> current){
+        Map<String, Integer> position = new HashMap<>();
+        for(int i = 0; i < current.size(); i++) position.put(current.get(i).id, i);
+        List<Document> candidates = new ArrayList<>();
+        for(Document d : old){
+            if(d.data.equals(current.get(position.get(d.id)).data)) candidates.add(d);
+        }
+        //Longest increasing subsequence of new positions
+        int[] tails = new int[candidates.size()];
+        int[] parent = new int[candidates.size()];
+        int length = 0;
+        for(int i = 0; i < candidates.size(); i++){
+            int p = position.get(candidates.get(i).id);
+            int lo = 0, hi = length;
+            while(lo < hi){
+                int mid = (lo + hi) / 2;
+                if(position.get(candidates.get(tails[mid]).id) < p) lo = mid + 1;
+                else hi = mid;
+            }
+            parent[i] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = i;
+            if(lo == length) length++;
+        }
+        Set<String> kept = new HashSet<>();
+        for(int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = parent[i]){
+            kept.add(candidates.get(i).id);
+        }
+        return kept;
+    }
+
+    private static int indexOf(List<Document> docs, String id){
+        for(int i = 0; i < docs.size(); i++){
+            if(docs.get(i).id.equals(id)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Deeply copies the data, widening numbers as Firestore does
+     * @param data The field-value map
+     * @return The copy
+     */
+    private static Map<String, Object> normalize(Map<String, Object> data){
+        Map<String, Object> copy = new HashMap<>();
+        for(Map.Entry<String, Object> ent : data.entrySet()){
+            copy.put(ent.getKey(), normalizeValue(ent.getValue()));
+        }
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object normalizeValue(Object value){
+        if(value instanceof Integer || value instanceof Short || value instanceof Byte) return ((Number) value).longValue();
+        if(value instanceof Float) return ((Float) value).doubleValue();
+        if(value instanceof Map) return normalize((Map<String, Object>) value);
+        if(value instanceof List){
+            List<Object> copy = new ArrayList<>();
+            for(Object o : (List<?>) value) copy.add(normalizeValue(o));
+            return copy;
+        }
+        return value;
+    }
+}
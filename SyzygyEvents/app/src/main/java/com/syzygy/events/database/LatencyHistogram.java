@@ -0,0 +1,157 @@
+package com.syzygy.events.database;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with a fixed relative precision.
+ * <p>
+ *     Values are counted in log-linear buckets, as in HdrHistogram: every power of two is split into
+ *     {@value #SUB_BUCKETS_PER_MAGNITUDE} equal buckets, so a recorded value is reported within about 6% of its real value.
+ *     Values below {@value #SUB_BUCKET_COUNT} nanoseconds are counted exactly. Recording does not allocate and is safe from any thread.
+ * </p>
+ * @see DatabaseMetrics
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    /**
+     * The number of buckets for the values below the first magnitude, each one nanosecond wide
+     */
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * The number of buckets in each following power of two
+     */
+    static final int SUB_BUCKETS_PER_MAGNITUDE = SUB_BUCKET_COUNT / 2;
+    private static final int MAGNITUDES = 63 - SUB_BUCKET_BITS + 1;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAGNITUDES * SUB_BUCKETS_PER_MAGNITUDE;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value A value, at least zero
+     * @return The index of the bucket of the value
+     */
+    static int bucketOf(long value){
+        if(value < SUB_BUCKET_COUNT) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int sub = (int) (value >>> magnitude);
+        return SUB_BUCKET_COUNT + (magnitude - 1) * SUB_BUCKETS_PER_MAGNITUDE + (sub - SUB_BUCKETS_PER_MAGNITUDE);
+    }
+
+    /**
+     * @param bucket The index of a bucket
+     * @return The highest value counted in the bucket
+     */
+    static long highestValueOf(int bucket){
+        if(bucket < SUB_BUCKET_COUNT) return bucket;
+        int magnitude = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKETS_PER_MAGNITUDE + 1;
+        long sub = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKETS_PER_MAGNITUDE + SUB_BUCKETS_PER_MAGNITUDE;
+        return ((sub + 1) << magnitude) - 1;
+    }
+
+    /**
+     * Records a latency
+     * @param nanos The latency in nanoseconds. Negative latencies are recorded as zero
+     */
+    public void record(long nanos){
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Forgets every recorded latency
+     */
+    public void reset(){
+        for(int i = 0; i < BUCKET_COUNT; i++) counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return A copy of the recorded latencies. Latencies recorded while copying may be partly included
+     */
+    public Snapshot snapshot(){
+        long[] copy = new long[BUCKET_COUNT];
+        long total = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.get(), max.get());
+    }
+
+    /**
+     * The recorded latencies at a point in time
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return The number of recorded latencies
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The highest recorded latency in nanoseconds
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return The mean latency in nanoseconds, 0 if nothing was recorded
+         */
+        public double getMean(){
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile The percentile, between 0 and 100
+         * @return The latency in nanoseconds that the percentile of the recorded latencies are at or below, 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile){
+            if(count == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * count));
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++){
+                seen += counts[i];
+                if(seen >= target) return Math.min(highestValueOf(i), max);
+            }
+            return max;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "count=" + count +
+                    ", mean=" + TimeUnit.NANOSECONDS.toMicros((long) getMean()) + "us" +
+                    ", p50=" + TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(50)) + "us" +
+                    ", p90=" + TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(90)) + "us" +
+                    ", p99=" + TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(99)) + "us" +
+                    ", max=" + TimeUnit.NANOSECONDS.toMicros(max) + "us";
+        }
+    }
+}
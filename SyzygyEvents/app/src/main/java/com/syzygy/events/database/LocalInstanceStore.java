@@ -0,0 +1,582 @@
+package com.syzygy.events.database;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.GeoPoint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * A durable store of the last known data of each document, so instances can be shown before the database answers.
+ * <p>
+ *     Documents are kept by their database id in an append-only log file. Every put or removal appends one record,
+ *     and the whole log is read into memory when the store is opened. The log is read, and records are written, on a
+ *     background executor, so callers never wait on the disk. Until the log is read nothing is served; puts and removals
+ *     made meanwhile take precedence over what is read. Use {@link #whenLoaded(Executor, Runnable)} to wait for it.
+ *     When the log grows to twice the size of the live documents it is rewritten.
+ * </p>
+ * <p>
+ *     The store is bounded by {@link #getMaxBytes()}: the least recently used documents are evicted once the encoded
+ *     size of all documents is over the limit. Documents older than {@link #getMaxAgeMillis()} are not served.
+ *     A corrupt or truncated record ends the log; everything before it is kept.
+ * </p>
+ * <p>
+ *     Stored values may be strings, longs, doubles, booleans, timestamps, geo points, lists and maps of these, or null.
+ *     Documents holding anything else are not stored.
+ * </p>
+ * @see Database#setLocalStore(LocalInstanceStore)
+ */
+public class LocalInstanceStore {
+
+    /**
+     * The default limit on the encoded size of all stored documents
+     */
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+    /**
+     * The default time that a stored document is served for
+     */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final int MAGIC = 0x53595a4c;
+    private static final int VERSION = 1;
+    private static final byte PUT = 1, REMOVE = 2;
+    private static final byte T_NULL = 0, T_STRING = 1, T_LONG = 2, T_DOUBLE = 3, T_BOOLEAN = 4,
+            T_TIMESTAMP = 5, T_GEOPOINT = 6, T_LIST = 7, T_MAP = 8;
+
+    private final File file;
+    private final Executor io;
+    /**
+     * The stored documents in access order. Each entry is identified by its database id
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxBytes;
+    private long maxAgeMillis;
+    /**
+     * The encoded size of every stored document, and of the log file
+     */
+    private long liveBytes = 0;
+    private long logBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * If the log has been read
+     */
+    private boolean loaded = false;
+    /**
+     * The documents removed before the log was read, which must not be revived by it
+     */
+    private final Set<String> removedBeforeLoad = new HashSet<>();
+    /**
+     * If the store was cleared before the log was read, so nothing read is kept
+     */
+    private boolean clearedBeforeLoad = false;
+    /**
+     * The work waiting for the log to be read
+     */
+    private final List<Runnable> onLoaded = new ArrayList<>();
+
+    /**
+     * Opens the store with the default limits, writing on a single background thread
+     * @param file The log file. Created if it does not exist
+     */
+    public LocalInstanceStore(@NonNull File file) {
+        this(file, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS, Executors.newSingleThreadExecutor());
+    }
+
+    /**
+     * Opens the store and reads every document in the log on the executor
+     * @param file The log file. Created if it does not exist
+     * @param maxBytes The limit on the encoded size of all stored documents
+     * @param maxAgeMillis How long a stored document is served for
+     * @param io The executor that reads and writes the file. Must run tasks in order
+     */
+    public LocalInstanceStore(@NonNull File file, long maxBytes, long maxAgeMillis, @NonNull Executor io) {
+        this.file = file;
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.maxAgeMillis = maxAgeMillis;
+        this.io = io;
+        io.execute(this::open);
+    }
+
+    /**
+     * Reads the log, then merges it under the documents stored since the store was opened
+     */
+    private void open(){
+        LinkedHashMap<String, Entry> read = new LinkedHashMap<>(16, 0.75f, true);
+        long readBytes = load(read);
+        List<Runnable> waiting;
+        synchronized (this){
+            if(clearedBeforeLoad) read.clear();
+            for(String id : removedBeforeLoad) read.remove(id);
+            for(String id : entries.keySet()) read.remove(id);
+            //The documents read are older than any stored since, so they come first in access order
+            read.putAll(entries);
+            entries.clear();
+            entries.putAll(read);
+            liveBytes = 0;
+            for(Entry e : entries.values()) liveBytes += e.size;
+            logBytes += readBytes;
+            removedBeforeLoad.clear();
+            loaded = true;
+            trim();
+            waiting = new ArrayList<>(onLoaded);
+            onLoaded.clear();
+        }
+        waiting.forEach(Runnable::run);
+    }
+
+    /**
+     * Runs work once the log has been read
+     * @param executor Runs the work
+     * @param work The work
+     */
+    public void whenLoaded(@NonNull Executor executor, @NonNull Runnable work){
+        synchronized (this){
+            if(!loaded){
+                onLoaded.add(() -> executor.execute(work));
+                return;
+            }
+        }
+        executor.execute(work);
+    }
+
+    /**
+     * @return {@code true} if the log has been read, so stored documents are served
+     */
+    public synchronized boolean isLoaded(){
+        return loaded;
+    }
+
+    /**
+     * Returns the stored data of a document if it is not too old
+     * @param databaseId The database id of the document
+     * @return The property name-value map of the document, {@code null} if it is not stored, is too old, or the log has not been read yet
+     */
+    @Nullable
+    public synchronized Map<String, Object> get(String databaseId){
+        if(!loaded){
+            misses ++;
+            return null;
+        }
+        Entry e = entries.get(databaseId);
+        if(e == null){
+            misses ++;
+            return null;
+        }
+        if(System.currentTimeMillis() - e.storedAt > maxAgeMillis){
+            misses ++;
+            remove(databaseId);
+            evictions ++;
+            return null;
+        }
+        hits ++;
+        return e.data;
+    }
+
+    /**
+     * Stores the data of a document, replacing what was stored
+     * @param databaseId The database id of the document
+     * @param data The property name-value map of the document. It is kept as is, so it must not be modified afterwards
+     * @return {@code true} if the document was stored, {@code false} if it holds a value that cannot be stored
+     */
+    public synchronized boolean put(String databaseId, @Nullable Map<String, Object> data){
+        if(data == null){
+            remove(databaseId);
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        byte[] record;
+        try {
+            record = encodePut(databaseId, now, data);
+        } catch (IllegalArgumentException | IOException e) {
+            Log.println(Log.DEBUG, "storeSkip", databaseId + " " + e.getMessage());
+            remove(databaseId);
+            return false;
+        }
+        Entry old = entries.put(databaseId, new Entry(Collections.unmodifiableMap(data), now, record.length));
+        if(old != null) liveBytes -= old.size;
+        liveBytes += record.length;
+        append(record);
+        trim();
+        return true;
+    }
+
+    /**
+     * Forgets a document. Used when the document is deleted
+     * @param databaseId The database id of the document
+     */
+    public synchronized void remove(String databaseId){
+        Entry old = entries.remove(databaseId);
+        if(!loaded){
+            //The document may be in the log that is still being read
+            removedBeforeLoad.add(databaseId);
+        }else if(old == null){
+            return;
+        }
+        if(old != null) liveBytes -= old.size;
+        try {
+            append(encodeRemove(databaseId));
+        } catch (IOException e) {
+            Log.println(Log.DEBUG, "storeFail", e.toString());
+        }
+    }
+
+    /**
+     * Forgets every document and empties the log
+     */
+    public synchronized void clear(){
+        if(!loaded) clearedBeforeLoad = true;
+        entries.clear();
+        liveBytes = 0;
+        logBytes = 0;
+        io.execute(() -> {
+            try {
+                writeLog(file, new ArrayList<>());
+            } catch (IOException e) {
+                Log.println(Log.DEBUG, "storeFail", e.toString());
+            }
+        });
+    }
+
+    /**
+     * Sets the limits of the store. Evicts documents until the new size limit is met
+     * @param maxBytes The limit on the encoded size of all stored documents
+     * @param maxAgeMillis How long a stored document is served for
+     */
+    public synchronized void setLimits(long maxBytes, long maxAgeMillis){
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.maxAgeMillis = maxAgeMillis;
+        trim();
+    }
+
+    /**
+     * Evicts the least recently used documents until the store is within its size limit,
+     * then rewrites the log if it has grown to twice the size of the stored documents. Nothing is evicted until the log is read
+     */
+    private void trim(){
+        if(!loaded) return;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        List<String> evicted = new ArrayList<>();
+        while(liveBytes > maxBytes && it.hasNext()){
+            Map.Entry<String, Entry> e = it.next();
+            liveBytes -= e.getValue().size;
+            evicted.add(e.getKey());
+            it.remove();
+            evictions ++;
+        }
+        if(logBytes > 2 * Math.max(liveBytes, 1024)){
+            compact();
+        }else{
+            for(String id : evicted){
+                try {
+                    append(encodeRemove(id));
+                } catch (IOException e) {
+                    Log.println(Log.DEBUG, "storeFail", e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with only the stored documents. The records are encoded on the executor
+     */
+    private void compact(){
+        List<Map.Entry<String, Entry>> live = new ArrayList<>(entries.entrySet());
+        logBytes = liveBytes;
+        io.execute(() -> {
+            List<byte[]> records = new ArrayList<>(live.size());
+            for(Map.Entry<String, Entry> e : live){
+                try {
+                    records.add(encodePut(e.getKey(), e.getValue().storedAt, e.getValue().data));
+                } catch (IOException ex) {
+                    Log.println(Log.DEBUG, "storeFail", ex.toString());
+                }
+            }
+            try {
+                writeLog(file, records);
+            } catch (IOException e) {
+                Log.println(Log.DEBUG, "storeFail", e.toString());
+            }
+        });
+    }
+
+    private void append(byte[] record){
+        logBytes += record.length;
+        io.execute(() -> {
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                if(file.length() == 0) out.write(header());
+                out.write(record);
+            } catch (IOException e) {
+                Log.println(Log.DEBUG, "storeFail", e.toString());
+            }
+        });
+    }
+
+    private static void writeLog(File file, List<byte[]> records) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            out.write(header());
+            for(byte[] r : records) out.write(r);
+        }
+        if(!tmp.renameTo(file)) throw new IOException("Failed to replace " + file);
+    }
+
+    private static byte[] header() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads every record of the log. Stops at the first record that cannot be read, and cuts the log there
+     * @param read Receives the documents
+     * @return The size of the log that was read
+     */
+    private long load(Map<String, Entry> read){
+        if(!file.exists() || file.length() == 0) return 0;
+        long good = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Unknown log format");
+            good = 8;
+            while(true){
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                long crc = in.readInt() & 0xffffffffL;
+                if(length < 0 || length > 64 * 1024 * 1024) throw new IOException("Bad record length");
+                byte[] body = new byte[length];
+                in.readFully(body);
+                CRC32 c = new CRC32();
+                c.update(body);
+                if(c.getValue() != crc) throw new IOException("Bad record checksum");
+                readRecord(read, body, 8 + length);
+                good += 8 + length;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.println(Log.DEBUG, "storeCorrupt", file + " " + e);
+            truncate(good);
+        }
+        return good;
+    }
+
+    private static void readRecord(Map<String, Entry> read, byte[] body, int size) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        String id = in.readUTF();
+        long storedAt = in.readLong();
+        if(type == PUT){
+            @SuppressWarnings("unchecked")
+            Map<String, Object> data = (Map<String, Object>) readValue(in);
+            read.put(id, new Entry(Collections.unmodifiableMap(data), storedAt, size));
+        }else if(type == REMOVE){
+            read.remove(id);
+        }else{
+            throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private void truncate(long length){
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(length < 8 ? 0 : length);
+        } catch (IOException e) {
+            Log.println(Log.DEBUG, "storeFail", e.toString());
+        }
+    }
+
+    private static byte[] encodePut(String id, long storedAt, Map<String, Object> data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(PUT);
+        out.writeUTF(id);
+        out.writeLong(storedAt);
+        writeValue(out, data);
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] encodeRemove(String id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVE);
+        out.writeUTF(id);
+        out.writeLong(System.currentTimeMillis());
+        return frame(bytes.toByteArray());
+    }
+
+    /**
+     * Prefixes the record with its length and checksum
+     */
+    private static byte[] frame(byte[] body) throws IOException {
+        CRC32 c = new CRC32();
+        c.update(body);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(body.length);
+        out.writeInt((int) c.getValue());
+        out.write(body);
+        return bytes.toByteArray();
+    }
+
+    private static void writeValue(DataOutputStream out, Object v) throws IOException {
+        if(v == null){
+            out.writeByte(T_NULL);
+        }else if(v instanceof String){
+            out.writeByte(T_STRING);
+            out.writeUTF((String) v);
+        }else if(v instanceof Long || v instanceof Integer){
+            out.writeByte(T_LONG);
+            out.writeLong(((Number) v).longValue());
+        }else if(v instanceof Double){
+            out.writeByte(T_DOUBLE);
+            out.writeDouble((Double) v);
+        }else if(v instanceof Boolean){
+            out.writeByte(T_BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        }else if(v instanceof Timestamp){
+            out.writeByte(T_TIMESTAMP);
+            out.writeLong(((Timestamp) v).getSeconds());
+            out.writeInt(((Timestamp) v).getNanoseconds());
+        }else if(v instanceof GeoPoint){
+            out.writeByte(T_GEOPOINT);
+            out.writeDouble(((GeoPoint) v).getLatitude());
+            out.writeDouble(((GeoPoint) v).getLongitude());
+        }else if(v instanceof List){
+            out.writeByte(T_LIST);
+            out.writeInt(((List<?>) v).size());
+            for(Object o : (List<?>) v) writeValue(out, o);
+        }else if(v instanceof Map){
+            out.writeByte(T_MAP);
+            out.writeInt(((Map<?, ?>) v).size());
+            for(Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()){
+                if(!(e.getKey() instanceof String)) throw new IllegalArgumentException("Map key is not a string");
+                out.writeUTF((String) e.getKey());
+                writeValue(out, e.getValue());
+            }
+        }else{
+            throw new IllegalArgumentException("Cannot store " + v.getClass().getSimpleName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type){
+            case T_NULL: return null;
+            case T_STRING: return in.readUTF();
+            case T_LONG: return in.readLong();
+            case T_DOUBLE: return in.readDouble();
+            case T_BOOLEAN: return in.readBoolean();
+            case T_TIMESTAMP: return new Timestamp(in.readLong(), in.readInt());
+            case T_GEOPOINT: return new GeoPoint(in.readDouble(), in.readDouble());
+            case T_LIST: {
+                int n = in.readInt();
+                List<Object> list = new ArrayList<>(n);
+                for(int i = 0; i < n; i++) list.add(readValue(in));
+                return list;
+            }
+            case T_MAP: {
+                int n = in.readInt();
+                Map<String, Object> map = new HashMap<>(n * 2);
+                for(int i = 0; i < n; i++) map.put(in.readUTF(), readValue(in));
+                return map;
+            }
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    /**
+     * @return The number of documents stored
+     */
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    /**
+     * @return The encoded size of all stored documents
+     */
+    public synchronized long getBytes(){
+        return liveBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * @return The number of requests that were served from this store
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of requests that were not stored or were too old
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of documents removed due to the size limit or age
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * A stored document
+     */
+    private static class Entry {
+        final Map<String, Object> data;
+        final long storedAt;
+        /**
+         * The size of the record of the document in the log
+         */
+        final int size;
+
+        Entry(Map<String, Object> data, long storedAt, int size) {
+            this.data = data;
+            this.storedAt = storedAt;
+            this.size = size;
+        }
+    }
+}
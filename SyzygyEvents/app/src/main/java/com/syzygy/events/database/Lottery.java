@@ -0,0 +1,470 @@
+package com.syzygy.events.database;
+
+import com.google.firebase.Timestamp;
+import com.syzygy.events.R;
+import com.syzygy.events.SyzygyApplication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Runs the lottery of an event over large waitlists.
+ * <p>
+ *     The waitlist is read page by page, keeping only the ids of each association and its user. The draw is
+ *     planned with {@link LotteryPlan} and saved to the database in chunks before anything is changed. Each chunk is then
+ *     committed in a single transaction that invites the chosen entrants still on the waitlist, sends every notification, moves
+ *     the counts of the event and marks the chunk as done. Entrants that left the waitlist since the draw are neither invited nor
+ *     notified, so a chunk never fails because one of its associations is gone. If the lottery is interrupted, {@link #resume(Listener)}
+ *     commits the chunks that are not done.
+ * </p>
+ * <p>
+ *     Every run has its own id, which the ids of its chunks start with and which each chunk holds, so chunks left over from a run
+ *     that failed to save are never committed as part of a later run.
+ * </p>
+ * @see Event#runLottery(int, long, boolean, Listener)
+ */
+public class Lottery {
+
+    /**
+     * The Firestore identifier for the collection of lottery runs. Each run has the same id as its event
+     */
+    static final String COLLECTION = "lottery_runs";
+    /**
+     * The Firestore identifier for the collection of the chunks of every run. The id of a chunk is the id of its run and its index
+     */
+    static final String CHUNKS = "lottery_chunks";
+    /**
+     * The number of waitlisted associations read per page
+     */
+    static final int PAGE_SIZE = 1000;
+
+    private static final String FIELD_SEED = "Seed";
+    private static final String FIELD_COUNT = "Count";
+    private static final String FIELD_CHUNKS = "Chunks";
+    private static final String FIELD_CHOSEN = "Chosen";
+    private static final String FIELD_REJECTED = "Rejected";
+    private static final String FIELD_STARTED = "StartedTime";
+    private static final String FIELD_CHOSEN_ASSOCS = "ChosenAssociationIDs";
+    private static final String FIELD_CHOSEN_USERS = "ChosenUserIDs";
+    private static final String FIELD_REJECTED_ASSOCS = "RejectedAssociationIDs";
+    private static final String FIELD_REJECTED_USERS = "RejectedUserIDs";
+    private static final String FIELD_DONE = "Done";
+    private static final String FIELD_EVENT = "EventID";
+    private static final String FIELD_RUN = "RunID";
+
+    private final Database db;
+    private final Event event;
+    private final Backend backend;
+
+    /**
+     * @param db The database
+     * @param event The event whose lottery is run. Must remain referenced until the lottery completes
+     */
+    Lottery(Database db, @Database.Observes Event event) {
+        this.db = db;
+        this.event = event;
+        this.backend = db.getBackend();
+    }
+
+    /**
+     * @return The query for the chunks of every run of the lottery of the event
+     */
+    private Backend.Query getChunks(){
+        return Backend.Query.of(CHUNKS).whereEqualTo(FIELD_EVENT, event.getDocumentID());
+    }
+
+    /**
+     * @param runID The id of the run
+     * @return The query for the chunks of the run
+     */
+    private Backend.Query getChunks(String runID){
+        return getChunks().whereEqualTo(FIELD_RUN, runID);
+    }
+
+    /**
+     * Draws and commits a new lottery. Fails if a lottery of the event is already in progress
+     * @param count The number of entrants to choose
+     * @param seed The seed of the draw
+     * @param notifyRejected If the entrants that are not chosen are notified
+     * @param listener Called as chunks are committed and on completion
+     */
+    void start(int count, long seed, boolean notifyRejected, Listener listener){
+        backend.get(COLLECTION, event.getDocumentID(), true, (run, read) -> {
+            if(!read){
+                listener.onCompletion(null, false);
+                return;
+            }
+            if(run.exists()){
+                db.throwE(new IllegalStateException("A lottery is already in progress for this event"));
+                listener.onCompletion(null, false);
+                return;
+            }
+            List<String> assocIDs = new ArrayList<>();
+            List<String> userIDs = new ArrayList<>();
+            readWaitlist(null, assocIDs, userIDs, success -> {
+                if(!success){
+                    listener.onCompletion(null, false);
+                    return;
+                }
+                LotteryPlan plan = LotteryPlan.draw(assocIDs, userIDs, count, seed, notifyRejected);
+                savePlan(plan, backend.newId(COLLECTION), seed, count, chunks -> {
+                    if(chunks == null){
+                        listener.onCompletion(null, false);
+                        return;
+                    }
+                    commitChunks(chunks, chunks.size(), 0, listener);
+                });
+            });
+        });
+    }
+
+    /**
+     * Commits the chunks of the lottery of the event that are not done
+     * @param listener Called as chunks are committed and on completion. Called with {@code success = false} if there is no lottery in progress
+     */
+    void resume(Listener listener){
+        backend.get(COLLECTION, event.getDocumentID(), true, (run, read) -> {
+            if(!read || !run.exists()){
+                listener.onCompletion(null, false);
+                return;
+            }
+            Long total = run.getLong(FIELD_CHUNKS);
+            String runID = run.getString(FIELD_RUN);
+            if(total == null || runID == null){
+                db.throwE(new IllegalStateException("Lottery progress is corrupt: " + run.id));
+                listener.onCompletion(null, false);
+                return;
+            }
+            backend.query(getChunks(runID).whereEqualTo(FIELD_DONE, false), (docs, read2) -> {
+                if(!read2){
+                    listener.onCompletion(null, false);
+                    return;
+                }
+                List<SavedChunk> pending = new ArrayList<>();
+                for(Backend.Document d : docs){
+                    pending.add(new SavedChunk(d.id, readChunk(d)));
+                }
+                commitChunks(pending, total.intValue(), total.intValue() - pending.size(), listener);
+            });
+        });
+    }
+
+    /**
+     * Reads the ids of the waitlisted associations and their users one page at a time
+     * @param after The last association of the previous page, null for the first page
+     * @param assocIDs Receives the association ids
+     * @param userIDs Receives the user ids
+     * @param onComplete Called once every page is read, with if the reads were successful
+     */
+    private void readWaitlist(Backend.Document after, List<String> assocIDs, List<String> userIDs, Consumer<Boolean> onComplete){
+        String userField = db.schema.name(R.string.database_assoc_user);
+        Backend.Query q = Database.Collections.EVENT_ASSOCIATIONS.query()
+                .whereEqualTo(db.schema.name(R.string.database_assoc_event), event.getDocumentID())
+                .whereEqualTo(db.schema.name(R.string.database_assoc_status), db.schema.status(SchemaRegistry.Status.WAITLIST))
+                .orderBy(Backend.DOCUMENT_ID, false)
+                .limit(PAGE_SIZE);
+        if(after != null) q = q.startAfter(after);
+        backend.query(q, (docs, success) -> {
+            if(!success){
+                onComplete.accept(false);
+                return;
+            }
+            for(Backend.Document d : docs){
+                String userID = d.getString(userField);
+                if(userID == null) continue;
+                assocIDs.add(d.id);
+                userIDs.add(userID);
+            }
+            if(docs.size() < PAGE_SIZE){
+                onComplete.accept(true);
+                return;
+            }
+            readWaitlist(docs.get(docs.size() - 1), assocIDs, userIDs, onComplete);
+        });
+    }
+
+    /**
+     * Saves the chunks of the plan, then the run document. The run document is only written once every chunk is saved.
+     * If saving fails, the saved chunks are removed
+     * @param plan The plan
+     * @param runID The id of the run
+     * @param seed The seed of the draw
+     * @param count The number of entrants asked for
+     * @param onComplete Called with the saved chunks, null if saving failed
+     */
+    private void savePlan(LotteryPlan plan, String runID, long seed, int count, Consumer<List<SavedChunk>> onComplete){
+        List<SavedChunk> chunks = new ArrayList<>();
+        for(int i = 0; i < plan.chunks.size(); i++){
+            chunks.add(new SavedChunk(runID + "-" + i, plan.chunks.get(i)));
+        }
+        new ChunkedCommitter<SavedChunk>(ChunkedCommitter.MAX_BATCH_OPERATIONS, ChunkedCommitter.DEFAULT_PARALLELISM).commit(chunks, (part, onCommitted) -> {
+            Backend.Batch batch = backend.batch();
+            for(SavedChunk c : part){
+                batch.set(CHUNKS, c.id, writeChunk(event.getDocumentID(), runID, c.chunk));
+            }
+            batch.commit(onCommitted);
+        }, r -> {
+            if(r.failedChunks > 0){
+                removeChunks(getChunks(runID), success -> {});
+                onComplete.accept(null);
+                return;
+            }
+            Map<String, Object> run = new HashMap<>();
+            run.put(FIELD_RUN, runID);
+            run.put(FIELD_SEED, seed);
+            run.put(FIELD_COUNT, count);
+            run.put(FIELD_CHUNKS, chunks.size());
+            run.put(FIELD_CHOSEN, plan.chosen);
+            run.put(FIELD_REJECTED, plan.rejected);
+            run.put(FIELD_STARTED, Timestamp.now());
+            backend.set(COLLECTION, event.getDocumentID(), run, success -> onComplete.accept(success ? chunks : null));
+        });
+    }
+
+    /**
+     * Commits the chunks. Once every chunk of the run is done, marks the lottery of the event as run and removes the progress
+     * @param chunks The chunks to commit
+     * @param total The number of chunks in the run
+     * @param committed The number of chunks of the run that were already done
+     * @param listener Called as chunks are committed and on completion. The result only counts the chunks committed by this call
+     */
+    private void commitChunks(List<SavedChunk> chunks, int total, int committed, Listener listener){
+        String statusField = db.schema.name(R.string.database_assoc_status);
+        String waitlist = db.schema.status(SchemaRegistry.Status.WAITLIST);
+        String invited = db.schema.status(SchemaRegistry.Status.INVITED);
+        String receiverField = db.schema.name(R.string.database_not_receiverID);
+        String eventID = event.getDocumentID();
+        String assocs = Database.Collections.EVENT_ASSOCIATIONS.getCollectionID();
+        String notifications = Database.Collections.NOTIFICATIONS.getCollectionID();
+        Map<String, Object> invitation = db.convertIDMapToNames(Notification.createData(
+                db.constants.getString(R.string.notification_lottery_chosen_subject),
+                db.constants.getString(R.string.notification_lottery_chosen_body),
+                event.getDocumentID(), "", event.getFacility().getOrganizerID(), true
+        ));
+        Map<String, Object> rejection = db.convertIDMapToNames(Notification.createData(
+                db.constants.getString(R.string.notification_lottery_notChosen_subject),
+                db.constants.getString(R.string.notification_lottery_notChosen_body),
+                event.getDocumentID(), "", SyzygyApplication.SYSTEM_ACCOUNT_ID, true
+        ));
+
+        int[] done = {committed};
+        ChunkTotals totals = new ChunkTotals();
+        new ChunkedCommitter<SavedChunk>(1, ChunkedCommitter.DEFAULT_PARALLELISM).commit(chunks, (part, onCommitted) -> {
+            String chunkID = part.get(0).id;
+            LotteryPlan.Chunk chunk = part.get(0).chunk;
+            backend.runTransaction(t -> {
+                ChunkTotals chunkTotals = new ChunkTotals();
+                //A chunk whose commit was not heard back from is already done, so nothing is sent twice
+                if(Boolean.TRUE.equals(t.get(CHUNKS, chunkID).getBoolean(FIELD_DONE))) return chunkTotals;
+                List<Backend.Document> chosen = new ArrayList<>(chunk.chosenAssocIDs.size());
+                for(String assocID : chunk.chosenAssocIDs){
+                    chosen.add(t.get(assocs, assocID));
+                }
+                List<Backend.Document> rejected = new ArrayList<>(chunk.rejectedAssocIDs.size());
+                for(String assocID : chunk.rejectedAssocIDs){
+                    rejected.add(t.get(assocs, assocID));
+                }
+                Backend.Document counts = t.get(EventCounters.COLLECTION, eventID);
+                for(int i = 0; i < chosen.size(); i++){
+                    Backend.Document assoc = chosen.get(i);
+                    //Entrants that left the waitlist since the draw are not invited
+                    if(!assoc.exists() || !waitlist.equals(assoc.getString(statusField))){
+                        chunkTotals.skipped ++;
+                        continue;
+                    }
+                    t.update(assocs, assoc.id, Collections.singletonMap(statusField, invited));
+                    t.set(notifications, backend.newId(notifications), withReceiver(invitation, receiverField, chunk.chosenUserIDs.get(i)));
+                    chunkTotals.invited ++;
+                }
+                for(int i = 0; i < rejected.size(); i++){
+                    Backend.Document assoc = rejected.get(i);
+                    //Nor are they told they were not chosen
+                    if(!assoc.exists() || !waitlist.equals(assoc.getString(statusField))) continue;
+                    t.set(notifications, backend.newId(notifications), withReceiver(rejection, receiverField, chunk.rejectedUserIDs.get(i)));
+                    chunkTotals.rejected ++;
+                }
+                if(chunkTotals.invited > 0 && counts.exists()){
+                    t.update(EventCounters.COLLECTION, eventID, EventCounters.getCountChange(waitlist, invited, chunkTotals.invited));
+                }
+                t.update(CHUNKS, chunkID, Collections.singletonMap(FIELD_DONE, true));
+                return chunkTotals;
+            }, (chunkTotals, success) -> {
+                if(success){
+                    synchronized (totals){
+                        totals.add(chunkTotals);
+                    }
+                    for(String assocID : chunk.chosenAssocIDs){
+                        db.getRetainedCache().invalidate(Database.Collections.EVENT_ASSOCIATIONS.getDatabaseID(assocID));
+                    }
+                }
+                onCommitted.accept(success);
+            });
+        }, new ChunkedCommitter.Listener<SavedChunk>() {
+            @Override
+            public void onChunk(int index, boolean success) {
+                if(!success) return;
+                done[0] ++;
+                listener.onProgress(done[0], total);
+            }
+
+            @Override
+            public void onComplete(ChunkedCommitter.Result<SavedChunk> r) {
+                Result lotteryResult = new Result(totals.invited, totals.rejected, r.failedChunks, totals.skipped);
+                if(r.failedChunks > 0){
+                    listener.onCompletion(lotteryResult, false);
+                    return;
+                }
+                event.setHasRunLottery(true);
+                listener.onCompletion(lotteryResult, true);
+                removeProgress();
+            }
+        });
+    }
+
+    /**
+     * Deletes the chunks of every run of the event and then the run document. If this fails, the next {@link #resume(Listener)} removes them
+     */
+    private void removeProgress(){
+        removeChunks(getChunks(), success -> {
+            if(success) backend.delete(COLLECTION, event.getDocumentID(), s -> {});
+        });
+    }
+
+    /**
+     * Deletes chunks
+     * @param chunks The query for the chunks
+     * @param onComplete Called on completion with if every chunk was deleted
+     */
+    private void removeChunks(Backend.Query chunks, Consumer<Boolean> onComplete){
+        backend.query(chunks, (docs, success) -> {
+            if(!success){
+                onComplete.accept(false);
+                return;
+            }
+            new ChunkedCommitter<Backend.Document>(ChunkedCommitter.MAX_BATCH_OPERATIONS, ChunkedCommitter.DEFAULT_PARALLELISM).commit(docs, (part, onCommitted) -> {
+                Backend.Batch batch = backend.batch();
+                for(Backend.Document d : part){
+                    batch.delete(CHUNKS, d.id);
+                }
+                batch.commit(onCommitted);
+            }, r -> onComplete.accept(r.failedChunks == 0));
+        });
+    }
+
+    private static Map<String, Object> withReceiver(Map<String, Object> template, String receiverField, String receiverID){
+        Map<String, Object> data = new HashMap<>(template);
+        data.put(receiverField, receiverID);
+        return data;
+    }
+
+    private static Map<String, Object> writeChunk(String eventID, String runID, LotteryPlan.Chunk chunk){
+        Map<String, Object> data = new HashMap<>();
+        data.put(FIELD_EVENT, eventID);
+        data.put(FIELD_RUN, runID);
+        data.put(FIELD_CHOSEN_ASSOCS, chunk.chosenAssocIDs);
+        data.put(FIELD_CHOSEN_USERS, chunk.chosenUserIDs);
+        data.put(FIELD_REJECTED_ASSOCS, chunk.rejectedAssocIDs);
+        data.put(FIELD_REJECTED_USERS, chunk.rejectedUserIDs);
+        data.put(FIELD_DONE, false);
+        return data;
+    }
+
+    private static LotteryPlan.Chunk readChunk(Backend.Document doc){
+        return new LotteryPlan.Chunk(
+                readList(doc, FIELD_CHOSEN_ASSOCS),
+                readList(doc, FIELD_CHOSEN_USERS),
+                readList(doc, FIELD_REJECTED_ASSOCS),
+                readList(doc, FIELD_REJECTED_USERS)
+        );
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> readList(Backend.Document doc, String field){
+        Object o = doc.get(field);
+        return o instanceof List ? (List<String>) o : new ArrayList<>();
+    }
+
+    /**
+     * A chunk of a plan and the id it is saved under
+     */
+    private static class SavedChunk {
+        final String id;
+        final LotteryPlan.Chunk chunk;
+
+        SavedChunk(String id, LotteryPlan.Chunk chunk) {
+            this.id = id;
+            this.chunk = chunk;
+        }
+    }
+
+    /**
+     * The number of entrants invited, notified of their rejection and skipped by committed chunks
+     */
+    private static class ChunkTotals {
+        int invited = 0;
+        int rejected = 0;
+        int skipped = 0;
+
+        void add(ChunkTotals other){
+            invited += other.invited;
+            rejected += other.rejected;
+            skipped += other.skipped;
+        }
+    }
+
+    /**
+     * Listens to the progress of a lottery
+     */
+    public interface Listener {
+        /**
+         * Called each time a chunk is committed
+         * @param committedChunks The number of chunks of the run that are done
+         * @param totalChunks The number of chunks in the run
+         */
+        default void onProgress(int committedChunks, int totalChunks){}
+
+        /**
+         * Called once every chunk has been attempted
+         * @param result The totals of the chunks committed, null if the lottery could not be started
+         * @param success If every chunk of the run is done. If {@code false}, the lottery can be resumed
+         */
+        void onCompletion(Result result, boolean success);
+    }
+
+    /**
+     * The totals of the chunks committed by one attempt of a lottery run. Chunks that were done before a resumed attempt are not counted
+     */
+    public static class Result {
+        /**
+         * The number of entrants invited
+         */
+        public final int invited;
+        /**
+         * The number of entrants notified of their rejection
+         */
+        public final int rejected;
+        /**
+         * The number of chunks that failed to commit in this attempt
+         */
+        public final int failedChunks;
+        /**
+         * The number of chosen entrants that were not invited in this attempt because they had left the waitlist since the draw
+         */
+        public final int skipped;
+
+        Result(int invited, int rejected, int failedChunks) {
+            this(invited, rejected, failedChunks, 0);
+        }
+
+        Result(int invited, int rejected, int failedChunks, int skipped) {
+            this.invited = invited;
+            this.rejected = rejected;
+            this.failedChunks = failedChunks;
+            this.skipped = skipped;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.syzygy.events.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The outcome of a lottery draw split into chunks that each fit in a single write batch.
+ * <p>
+ *     Only the ids of the waitlisted associations and their users are held, so large waitlists can be drawn
+ *     without loading their instances. For the same entrants in the same order, the same seed always draws the same plan.
+ * </p>
+ * @see Lottery
+ */
+public class LotteryPlan {
+
+    /**
+     * The maximum number of operations in a Firestore write batch
+     */
+    public static final int MAX_BATCH_OPERATIONS = ChunkedCommitter.MAX_BATCH_OPERATIONS;
+    /**
+     * The operations of each batch reserved for the counter update and the chunk completion marker
+     */
+    static final int RESERVED_OPERATIONS = 2;
+    /**
+     * The operations needed for a chosen entrant: the status change and the invitation
+     */
+    static final int CHOSEN_OPERATIONS = 2;
+    /**
+     * The operations needed for a rejected entrant: the rejection notification
+     */
+    static final int REJECTED_OPERATIONS = 1;
+
+    /**
+     * The chunks of the plan in order
+     */
+    public final List<Chunk> chunks;
+    /**
+     * The number of chosen entrants
+     */
+    public final int chosen;
+    /**
+     * The number of entrants that are notified of their rejection
+     */
+    public final int rejected;
+
+    LotteryPlan(List<Chunk> chunks, int chosen, int rejected) {
+        this.chunks = Collections.unmodifiableList(chunks);
+        this.chosen = chosen;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Randomly selects {@code count} entrants with a seeded partial Fisher-Yates shuffle and splits the result into chunks
+     * @param assocIDs The ids of the waitlisted associations
+     * @param userIDs The ids of the users of the associations, in the same order
+     * @param count The number of entrants to choose. If larger than the number of entrants, all are chosen
+     * @param seed The seed of the shuffle
+     * @param notifyRejected If the entrants that are not chosen are notified
+     * @return The plan
+     * @throws IllegalArgumentException if the lists differ in size or the count is negative
+     */
+    public static LotteryPlan draw(List<String> assocIDs, List<String> userIDs, int count, long seed, boolean notifyRejected) throws IllegalArgumentException{
+        if(assocIDs.size() != userIDs.size()) throw new IllegalArgumentException("Each association must have a user");
+        if(count < 0) throw new IllegalArgumentException("Cannot choose a negative number of entrants");
+        int n = assocIDs.size();
+        int chosen = Math.min(count, n);
+
+        int[] order = shuffle(n, chosen, new Random(seed));
+
+        List<Chunk> chunks = new ArrayList<>();
+        Chunk current = new Chunk();
+        int end = notifyRejected ? n : chosen;
+        for(int i = 0; i < end; i++){
+            boolean isChosen = i < chosen;
+            int cost = isChosen ? CHOSEN_OPERATIONS : REJECTED_OPERATIONS;
+            if(current.operations() + cost > MAX_BATCH_OPERATIONS){
+                chunks.add(current);
+                current = new Chunk();
+            }
+            int j = order[i];
+            if(isChosen){
+                current.chosenAssocIDs.add(assocIDs.get(j));
+                current.chosenUserIDs.add(userIDs.get(j));
+            }else{
+                current.rejectedAssocIDs.add(assocIDs.get(j));
+                current.rejectedUserIDs.add(userIDs.get(j));
+            }
+        }
+        if(current.size() > 0) chunks.add(current);
+        return new LotteryPlan(chunks, chosen, end - chosen);
+    }
+
+    /**
+     * Shuffles the first {@code count} positions of the indices {@code 0..n-1}. The remaining positions hold the
+     * unchosen indices in no particular order
+     * @param n The number of indices
+     * @param count The number of positions to shuffle
+     * @param random The source of randomness
+     * @return The indices
+     */
+    static int[] shuffle(int n, int count, Random random){
+        int[] order = new int[n];
+        for(int i = 0; i < n; i++) order[i] = i;
+        for(int i = 0; i < count && i < n - 1; i++){
+            int j = i + random.nextInt(n - i);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        return order;
+    }
+
+    /**
+     * A part of the plan that is committed in a single transaction
+     */
+    public static class Chunk {
+        public final List<String> chosenAssocIDs;
+        public final List<String> chosenUserIDs;
+        public final List<String> rejectedAssocIDs;
+        public final List<String> rejectedUserIDs;
+
+        Chunk() {
+            this(new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        }
+
+        Chunk(List<String> chosenAssocIDs, List<String> chosenUserIDs, List<String> rejectedAssocIDs, List<String> rejectedUserIDs) {
+            this.chosenAssocIDs = chosenAssocIDs;
+            this.chosenUserIDs = chosenUserIDs;
+            this.rejectedAssocIDs = rejectedAssocIDs;
+            this.rejectedUserIDs = rejectedUserIDs;
+        }
+
+        /**
+         * @return The number of entrants in the chunk
+         */
+        public int size(){
+            return chosenAssocIDs.size() + rejectedAssocIDs.size();
+        }
+
+        /**
+         * @return The number of write operations needed to commit the chunk
+         */
+        public int operations(){
+            return RESERVED_OPERATIONS + chosenAssocIDs.size() * CHOSEN_OPERATIONS + rejectedAssocIDs.size() * REJECTED_OPERATIONS;
+        }
+    }
+}
@@ -1,9 +1,6 @@
 package com.syzygy.events.database;
 
-import android.util.Pair;
-
 import com.google.firebase.Timestamp;
-import com.google.firebase.firestore.Query;
 import com.syzygy.events.R;
 
 import java.util.Collections;
@@ -105,7 +102,7 @@ public class Notification extends DatabaseInstance<Notification> {
     };
 
     @Override
-    protected List<Pair<Query, Database.Collections>> subInstanceCascadeDeleteQuery() {
+    protected List<Backend.Query> subInstanceCascadeDeleteQuery() {
         return Collections.emptyList();
     }
 
@@ -135,20 +132,33 @@ public class Notification extends DatabaseInstance<Notification> {
                                        Boolean ignoresOptOut,
                                        Database.InitializationListener<Notification> listener
     ){
-        Timestamp sentTime = Timestamp.now();
-
         String id = Database.Collections.NOTIFICATIONS.getNewID(db);
 
+        Map<Integer,Object> map = createData(subject, body, eventID, receiverID, senderID, ignoresOptOut);
+
+        return db.createNewInstance(Database.Collections.NOTIFICATIONS, id, map, listener);
+    }
+
+    /**
+     * Creates the property map of a new notification sent now
+     * @param subject The subject of the notification
+     * @param body The body of the notification
+     * @param eventID The ID of the event associated to the notification
+     * @param receiverID The id of the receiver
+     * @param senderID The id of the sender
+     * @param ignoresOptOut If the notification cannot be opted out of
+     * @return The resID-value map of the notification
+     */
+    static Map<Integer,Object> createData(String subject, String body, String eventID, String receiverID, String senderID, Boolean ignoresOptOut){
         Map<Integer,Object> map = new HashMap<>();
         map.put(R.string.database_not_subject, subject);
         map.put(R.string.database_not_body, body);
-        map.put(R.string.database_not_time, sentTime);
+        map.put(R.string.database_not_time, Timestamp.now());
         map.put(R.string.database_not_read, false);
         map.put(R.string.database_not_eventID, eventID);
         map.put(R.string.database_not_senderID, senderID);
         map.put(R.string.database_not_receiverID, receiverID);
         map.put(R.string.database_not_ignoreOptOut, ignoresOptOut);
-
-        return db.createNewInstance(Database.Collections.NOTIFICATIONS, id, map, listener);
+        return map;
     }
 }
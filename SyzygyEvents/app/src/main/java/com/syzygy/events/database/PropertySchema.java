@@ -0,0 +1,199 @@
+package com.syzygy.events.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * The layout of the properties of every instance of a collection.
+ * <p>
+ *     Each property is given a slot, which is its index in the property fields of the collection.
+ *     Instances keep their values in an array indexed by slot, and the instances of their instance properties in a smaller
+ *     array indexed by the order of those properties. The slot of a property is found from its res id or its name without going
+ *     through the resources, and the data of an instance is written out as a map over the names of the schema.
+ * </p>
+ * @see DatabaseInstance#getFields(Database.Collections)
+ * @see SchemaRegistry#getSchema(Database.Collections, DatabaseInstance.PropertyField[])
+ */
+final class PropertySchema {
+
+    /**
+     * The property fields, by slot
+     */
+    final DatabaseInstance.PropertyField<?,?>[] fields;
+    /**
+     * The database names of the properties, by slot
+     */
+    final String[] names;
+    /**
+     * The slots of the properties that load instances, in order
+     */
+    final int[] instanceSlots;
+    /**
+     * The res ids of the properties in ascending order, and the slot of each
+     */
+    private final int[] resIDs;
+    private final int[] resIDSlots;
+    private final Map<String, Integer> nameSlots;
+    /**
+     * The index in {@link #instanceSlots} of each slot, -1 if the property does not load an instance
+     */
+    private final int[] instanceIndices;
+
+    /**
+     * @param fields The property fields of the collection
+     * @param names Returns the database name of the property with the res id
+     */
+    PropertySchema(DatabaseInstance.PropertyField<?,?>[] fields, IntFunction<String> names) {
+        this.fields = fields;
+        int size = fields.length;
+        this.names = new String[size];
+        nameSlots = new HashMap<>(size * 2);
+        instanceIndices = new int[size];
+        int instances = 0;
+        for(int slot = 0; slot < size; slot++){
+            this.names[slot] = names.apply(fields[slot].propertyNameID);
+            nameSlots.put(this.names[slot], slot);
+            instanceIndices[slot] = fields[slot].loads ? instances++ : -1;
+        }
+        instanceSlots = new int[instances];
+        for(int slot = 0; slot < size; slot++){
+            if(instanceIndices[slot] >= 0) instanceSlots[instanceIndices[slot]] = slot;
+        }
+
+        long[] pairs = new long[size];
+        for(int slot = 0; slot < size; slot++){
+            pairs[slot] = ((long) fields[slot].propertyNameID << 32) | slot;
+        }
+        Arrays.sort(pairs);
+        resIDs = new int[size];
+        resIDSlots = new int[size];
+        for(int i = 0; i < size; i++){
+            resIDs[i] = (int) (pairs[i] >> 32);
+            resIDSlots[i] = (int) pairs[i];
+        }
+    }
+
+    /**
+     * @return The number of properties
+     */
+    int size(){
+        return fields.length;
+    }
+
+    /**
+     * @return The number of properties that load instances
+     */
+    int instanceCount(){
+        return instanceSlots.length;
+    }
+
+    /**
+     * @param resID The res id of the property name
+     * @return The slot of the property, -1 if it is not a property of the collection
+     */
+    int slotOf(int resID){
+        int i = Arrays.binarySearch(resIDs, resID);
+        return i < 0 ? -1 : resIDSlots[i];
+    }
+
+    /**
+     * @param name The database name of the property
+     * @return The slot of the property, -1 if it is not a property of the collection
+     */
+    int slotOf(String name){
+        Integer slot = nameSlots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * @param slot The slot of a property
+     * @return The index of the property among the instance properties, -1 if it does not load an instance
+     */
+    int instanceIndexOf(int slot){
+        return instanceIndices[slot];
+    }
+
+    /**
+     * @param values The values of an instance, by slot. Copied
+     * @return An unmodifiable map of the database names to the values
+     */
+    Map<String, Object> toMap(Object[] values){
+        return new Values(this, values.clone());
+    }
+
+    /**
+     * The property values of an instance as a name-value map. The names are shared with the schema, so only the values are stored
+     */
+    private static final class Values extends AbstractMap<String, Object> {
+        private final PropertySchema schema;
+        private final Object[] values;
+        private Set<Map.Entry<String, Object>> entries;
+
+        Values(PropertySchema schema, Object[] values) {
+            this.schema = schema;
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public boolean containsKey(@Nullable Object key) {
+            return key instanceof String && schema.slotOf((String) key) >= 0;
+        }
+
+        @Override
+        public Object get(@Nullable Object key) {
+            if(!(key instanceof String)) return null;
+            int slot = schema.slotOf((String) key);
+            return slot < 0 ? null : values[slot];
+        }
+
+        @NonNull
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            if(entries == null){
+                entries = new AbstractSet<Map.Entry<String, Object>>() {
+                    @NonNull
+                    @Override
+                    public Iterator<Map.Entry<String, Object>> iterator() {
+                        return new Iterator<Map.Entry<String, Object>>() {
+                            private int slot = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return slot < values.length;
+                            }
+
+                            @Override
+                            public Map.Entry<String, Object> next() {
+                                if(slot >= values.length) throw new NoSuchElementException();
+                                Map.Entry<String, Object> e = new AbstractMap.SimpleImmutableEntry<>(schema.names[slot], values[slot]);
+                                slot++;
+                                return e;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return values.length;
+                    }
+                };
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.syzygy.events.database;
+
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded second level cache for instances that are no longer referenced.
+ * <p>
+ *     When an instance is dereferenced, its data is retained here. If the instance is requested again
+ *     before it is evicted or goes stale, it is rebuilt from the retained data without reading from the database.
+ *     Once rebuilt, the instance attaches its snapshot listener again, which brings it up to date if the document
+ *     changed while it was retained.
+ * </p>
+ * <p>
+ *     Entries are evicted in least recently used order once {@link #getMaxEntries()} is exceeded
+ * </p>
+ * @see Database#returnInstance(DatabaseInstance)
+ */
+public class RetainedInstanceCache {
+
+    /**
+     * The default maximum number of retained instances
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    /**
+     * The default time that an entry is considered fresh for
+     */
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * The retained entries in access order. Each entry is identified by its database id
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if(size() <= maxEntries) return false;
+            evictions ++;
+            return true;
+        }
+    };
+
+    private int maxEntries;
+    private long ttlMillis;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxEntries The maximum number of retained instances. If 0, nothing is retained
+     * @param ttlMillis How long an entry can be revived for after it was retained
+     */
+    public RetainedInstanceCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = Math.max(maxEntries, 0);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Retains the data of an instance that is no longer referenced
+     * @param databaseId The database id of the instance
+     * @param data The property name-value map of the instance. It is kept as is, so it must not be modified afterwards
+     */
+    void retain(String databaseId, Map<String, Object> data){
+        if(maxEntries == 0) return;
+        entries.put(databaseId, new Entry(data, System.currentTimeMillis()));
+    }
+
+    /**
+     * Removes and returns the retained data of the instance if it is still fresh
+     * @param databaseId The database id of the instance
+     * @return The property name-value map of the instance, {@code null} if not retained or stale
+     */
+    @Nullable
+    Map<String, Object> revive(String databaseId){
+        Entry e = entries.remove(databaseId);
+        if(e == null){
+            misses ++;
+            return null;
+        }
+        if(System.currentTimeMillis() - e.retainedAt > ttlMillis){
+            misses ++;
+            evictions ++;
+            return null;
+        }
+        hits ++;
+        return e.data;
+    }
+
+    /**
+     * Forgets the retained data of the instance. Used when the document is changed or deleted without the instance
+     * @param databaseId The database id of the instance
+     */
+    void invalidate(String databaseId){
+        entries.remove(databaseId);
+    }
+
+    /**
+     * Removes every retained entry
+     */
+    public void clear(){
+        entries.clear();
+    }
+
+    /**
+     * Sets the limits of the cache. Evicts entries until the new size limit is met
+     * @param maxEntries The maximum number of retained instances. If 0, nothing is retained
+     * @param ttlMillis How long an entry can be revived for after it was retained
+     */
+    public void setLimits(int maxEntries, long ttlMillis){
+        this.maxEntries = Math.max(maxEntries, 0);
+        this.ttlMillis = ttlMillis;
+        Iterator<String> it = entries.keySet().iterator();
+        while(entries.size() > this.maxEntries && it.hasNext()){
+            it.next();
+            it.remove();
+            evictions ++;
+        }
+    }
+
+    /**
+     * @return The number of instances currently retained
+     */
+    public int size(){
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * @return The number of requests that were served from this cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of requests that were not retained or were stale
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of entries removed due to the size limit or staleness
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * A retained instance
+     */
+    private static class Entry {
+        final Map<String, Object> data;
+        final long retainedAt;
+
+        Entry(Map<String, Object> data, long retainedAt) {
+            this.data = data;
+            this.retainedAt = retainedAt;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.syzygy.events.database;
+
+import android.content.res.Resources;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.syzygy.events.R;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * The database names of every property and association status, resolved once when the database is created.
+ * <p>
+ *     Names are looked up by res id without going through the resources, and every name is interned so the same
+ *     name is the same object wherever it is used. Statuses read from documents are mapped to a {@link Status},
+ *     so statuses are compared by identity or by their int code instead of by string.
+ * </p>
+ * <p>
+ *     The registry only needs a function from res id to name, so the model can be used without Android resources.
+ * </p>
+ * @see Database#schema
+ */
+public final class SchemaRegistry {
+
+    /**
+     * The status of an association of a user to an event
+     */
+    public enum Status {
+        WAITLIST(R.string.event_assoc_status_waitlist),
+        INVITED(R.string.event_assoc_status_invited),
+        ENROLLED(R.string.event_assoc_status_enrolled),
+        CANCELLED(R.string.event_assoc_status_cancelled);
+
+        /**
+         * The res id of the database name of the status
+         */
+        public final int resID;
+
+        Status(int resID) {
+            this.resID = resID;
+        }
+
+        /**
+         * @return The int code of the status, which is stable and starts at zero
+         */
+        public int code(){
+            return ordinal();
+        }
+
+        /**
+         * @param code The int code of a status
+         * @return The status with the code
+         * @throws IndexOutOfBoundsException if no status has the code
+         */
+        public static Status fromCode(int code){
+            return values()[code];
+        }
+    }
+
+    private final IntFunction<String> resolver;
+    /**
+     * The res ids of the property and status names in ascending order, and the name of each
+     */
+    private final int[] resIDs;
+    private final String[] names;
+    /**
+     * The names that are not properties or statuses, resolved when first requested
+     */
+    private final Map<Integer, String> others = new ConcurrentHashMap<>();
+    /**
+     * The database name of each status, by code
+     */
+    private final String[] statusNames = new String[Status.values().length];
+    private final Map<String, Status> statuses = new HashMap<>();
+    /**
+     * The property layout of each collection that has properties
+     */
+    private final EnumMap<Database.Collections, PropertySchema> schemas = new EnumMap<>(Database.Collections.class);
+
+    /**
+     * @param constants The resources that hold the database names
+     */
+    public SchemaRegistry(@NonNull Resources constants) {
+        this(constants::getString);
+    }
+
+    /**
+     * @param resolver Returns the database name of a res id
+     */
+    public SchemaRegistry(@NonNull IntFunction<String> resolver) {
+        this.resolver = resolver;
+        TreeMap<Integer, String> table = new TreeMap<>();
+        for(Database.Collections c : Database.Collections.values()){
+            for(DatabaseInstance.PropertyField<?,?> field : DatabaseInstance.getFields(c)){
+                table.computeIfAbsent(field.propertyNameID, this::resolve);
+            }
+        }
+        for(Status s : Status.values()){
+            String name = table.computeIfAbsent(s.resID, this::resolve);
+            statusNames[s.code()] = name;
+            statuses.put(name, s);
+        }
+        resIDs = new int[table.size()];
+        names = new String[table.size()];
+        int i = 0;
+        for(Map.Entry<Integer, String> ent : table.entrySet()){
+            resIDs[i] = ent.getKey();
+            names[i] = ent.getValue();
+            i++;
+        }
+        for(Database.Collections c : Database.Collections.values()){
+            DatabaseInstance.PropertyField<?,?>[] fields = DatabaseInstance.getFields(c);
+            if(fields.length > 0) schemas.put(c, new PropertySchema(fields, this::name));
+        }
+    }
+
+    private String resolve(int resID){
+        String name = resolver.apply(resID);
+        return name == null ? null : name.intern();
+    }
+
+    /**
+     * Returns the database name of a property, status or other database field
+     * @param resID The res id of the name
+     * @return The interned name
+     */
+    public String name(int resID){
+        int i = Arrays.binarySearch(resIDs, resID);
+        if(i >= 0) return names[i];
+        String name = others.get(resID);
+        if(name == null){
+            name = resolve(resID);
+            if(name != null) others.put(resID, name);
+        }
+        return name;
+    }
+
+    /**
+     * @param status The status
+     * @return The interned database name of the status
+     */
+    public String status(@NonNull Status status){
+        return statusNames[status.code()];
+    }
+
+    /**
+     * @param name The database name of a status, as read from a document
+     * @return The status, null if the name is not a status
+     */
+    @Nullable
+    public Status statusOf(@Nullable String name){
+        return name == null ? null : statuses.get(name);
+    }
+
+    /**
+     * @param resID The res id of the name of a status
+     * @return The status, null if the res id is not a status
+     */
+    @Nullable
+    public Status statusOf(int resID){
+        for(Status s : Status.values()){
+            if(s.resID == resID) return s;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the property layout shared by every instance of the collection
+     * @param collection The collection
+     * @param fields The property fields of the collection
+     * @return The schema of the collection
+     * @see PropertySchema
+     */
+    PropertySchema getSchema(Database.Collections collection, DatabaseInstance.PropertyField<?,?>[] fields){
+        PropertySchema schema = schemas.get(collection);
+        if(schema == null || schema.fields != fields){
+            schema = new PropertySchema(fields, this::name);
+            schemas.put(collection, schema);
+        }
+        return schema;
+    }
+}
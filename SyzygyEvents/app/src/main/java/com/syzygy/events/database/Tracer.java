@@ -0,0 +1,322 @@
+package com.syzygy.events.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records spans of work across the async callbacks of the model, and writes them out in the Chrome trace event format.
+ * <p>
+ *     A span is begun at an entry point, such as a request for an instance, and ended in the callback that completes it.
+ *     Spans begun while a span is entered are its children. Since the model is made of callbacks, the span that should be
+ *     current is entered again inside each callback, usually the parent of the span that just ended:
+ * </p>
+ * <pre>
+ *     Tracer.Span span = db.tracer.begin("firestore.get", id);
+ *     doc.get().addOnCompleteListener(task -> {
+ *         span.end();
+ *         try(Tracer.Scope s = span.parent().enter()){
+ *             ...
+ *         }
+ *     });
+ * </pre>
+ * <p>
+ *     While disabled, {@link #begin(String, String)} returns a shared span on which every method does nothing, so tracing
+ *     costs a field read and allocates nothing. Span names should be constants and details existing strings such as ids,
+ *     so no string is built when tracing is disabled.
+ * </p>
+ * <p>
+ *     Each span tree is written as nested async events sharing the id of its root, so opening the trace in
+ *     {@code chrome://tracing} or Perfetto shows one waterfall per action.
+ * </p>
+ * @see Database#getTracer()
+ */
+public final class Tracer {
+
+    /**
+     * The default number of finished spans kept
+     */
+    public static final int DEFAULT_MAX_SPANS = 10_000;
+
+    private static final Scope NOOP_SCOPE = () -> {};
+
+    private volatile boolean enabled = false;
+    private final int maxSpans;
+    private final AtomicLong ids = new AtomicLong();
+    private final ThreadLocal<Span> current = new ThreadLocal<>();
+    /**
+     * The finished spans, oldest first
+     */
+    private final ArrayDeque<Span> finished = new ArrayDeque<>();
+    private final long epoch = System.nanoTime();
+
+    public Tracer() {
+        this(DEFAULT_MAX_SPANS);
+    }
+
+    /**
+     * @param maxSpans The number of finished spans kept. Older spans are dropped
+     */
+    public Tracer(int maxSpans) {
+        this.maxSpans = maxSpans;
+    }
+
+    /**
+     * Sets if spans are recorded. Spans begun while enabled are still recorded when they end
+     * @param enabled If spans should be recorded
+     */
+    public void setEnabled(boolean enabled){
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Begins a span as a child of the current span
+     * @param name The name of the span
+     * @param detail Shown with the span, such as the id of the document
+     * @return The span, which must be ended
+     */
+    @NonNull
+    public Span begin(@NonNull String name, @Nullable String detail){
+        if(!enabled) return Span.NOOP;
+        return begin(current.get(), name, detail);
+    }
+
+    private Span begin(@Nullable Span parent, String name, @Nullable String detail){
+        long id = ids.incrementAndGet();
+        return new Span(this, id, parent == null || parent == Span.NOOP ? null : parent, name, detail, System.nanoTime());
+    }
+
+    /**
+     * @return The current span of this thread, a span that does nothing if there is none
+     */
+    @NonNull
+    public Span current(){
+        if(!enabled) return Span.NOOP;
+        Span s = current.get();
+        return s == null ? Span.NOOP : s;
+    }
+
+    private Scope enter(Span span){
+        Span previous = current.get();
+        current.set(span);
+        return () -> {
+            if(previous == null) current.remove();
+            else current.set(previous);
+        };
+    }
+
+    private void finish(Span span){
+        synchronized (finished){
+            if(finished.size() >= maxSpans) finished.pollFirst();
+            finished.addLast(span);
+        }
+    }
+
+    /**
+     * @return A copy of the finished spans, oldest first
+     */
+    @NonNull
+    public List<Span> getSpans(){
+        synchronized (finished){
+            return new ArrayList<>(finished);
+        }
+    }
+
+    /**
+     * Forgets every finished span
+     */
+    public void clear(){
+        synchronized (finished){
+            finished.clear();
+        }
+    }
+
+    /**
+     * Writes the finished spans in the Chrome trace event format
+     * @param out Where the trace is written
+     * @throws IOException If the output fails
+     */
+    public void writeChromeTrace(@NonNull Appendable out) throws IOException {
+        List<Span> spans = getSpans();
+        //Each span is begun at 2i and ended at 2i + 1, and the events are written in time order
+        Integer[] events = new Integer[spans.size() * 2];
+        for(int i = 0; i < events.length; i++) events[i] = i;
+        Arrays.sort(events, Comparator.comparingLong(e -> {
+            Span s = spans.get(e / 2);
+            return e % 2 == 0 ? s.start : s.end;
+        }));
+        out.append("{\"traceEvents\":[");
+        for(int i = 0; i < events.length; i++){
+            if(i > 0) out.append(',');
+            Span s = spans.get(events[i] / 2);
+            if(events[i] % 2 == 0) writeEvent(out, s, 'b', s.start);
+            else writeEvent(out, s, 'e', s.end);
+        }
+        out.append("],\"displayTimeUnit\":\"ms\"}");
+    }
+
+    /**
+     * @return The finished spans in the Chrome trace event format
+     * @see #writeChromeTrace(Appendable)
+     */
+    @NonNull
+    public String toChromeTrace(){
+        StringBuilder sb = new StringBuilder();
+        try {
+            writeChromeTrace(sb);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    private void writeEvent(Appendable out, Span s, char phase, long nanos) throws IOException {
+        out.append("{\"name\":");
+        writeString(out, s.name);
+        out.append(",\"cat\":\"db\",\"ph\":\"").append(phase)
+                .append("\",\"id\":\"0x").append(Long.toHexString(s.root))
+                .append("\",\"ts\":").append(Long.toString((nanos - epoch) / 1000))
+                .append(",\"pid\":1,\"tid\":1");
+        if(phase == 'b'){
+            out.append(",\"args\":{\"span\":").append(Long.toString(s.id));
+            if(s.parent != null) out.append(",\"parent\":").append(Long.toString(s.parent.id));
+            if(s.detail != null){
+                out.append(",\"detail\":");
+                writeString(out, s.detail);
+            }
+            out.append('}');
+        }
+        out.append('}');
+    }
+
+    private static void writeString(Appendable out, String s) throws IOException {
+        out.append('"');
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            switch (c){
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if(c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                    else out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Restores the span that was current before a span was entered
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * A timed piece of work
+     */
+    public static final class Span {
+        /**
+         * The span returned while tracing is disabled. Every method does nothing
+         */
+        static final Span NOOP = new Span(null, 0, null, "", null, 0);
+
+        private final Tracer tracer;
+        private final long id;
+        private final long root;
+        @Nullable
+        private final Span parent;
+        private final String name;
+        @Nullable
+        private final String detail;
+        private final long start;
+        private long end = -1;
+
+        private Span(Tracer tracer, long id, @Nullable Span parent, String name, @Nullable String detail, long start) {
+            this.tracer = tracer;
+            this.id = id;
+            this.root = parent == null ? id : parent.root;
+            this.parent = parent;
+            this.name = name;
+            this.detail = detail;
+            this.start = start;
+        }
+
+        /**
+         * Begins a span as a child of this span, regardless of the current span
+         * @param name The name of the span
+         * @param detail Shown with the span
+         * @return The span, which must be ended
+         */
+        @NonNull
+        public Span child(@NonNull String name, @Nullable String detail){
+            if(tracer == null) return NOOP;
+            return tracer.begin(this, name, detail);
+        }
+
+        /**
+         * Ends the span. Only the first call has an effect
+         */
+        public void end(){
+            if(tracer == null || end >= 0) return;
+            end = System.nanoTime();
+            tracer.finish(this);
+        }
+
+        /**
+         * Makes this the current span of the thread until the scope is closed
+         * @return The scope
+         */
+        @NonNull
+        public Scope enter(){
+            if(tracer == null) return NOOP_SCOPE;
+            return tracer.enter(this);
+        }
+
+        /**
+         * @return The parent of this span, a span that does nothing if this is a root
+         */
+        @NonNull
+        public Span parent(){
+            return parent == null ? NOOP : parent;
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        @Nullable
+        public String getDetail() {
+            return detail;
+        }
+
+        /**
+         * @return The duration of the span in nanoseconds, -1 if it has not ended
+         */
+        public long getDurationNanos(){
+            return end < 0 ? -1 : end - start;
+        }
+
+        /**
+         * @return If the span has no parent
+         */
+        public boolean isRoot(){
+            return parent == null;
+        }
+    }
+}
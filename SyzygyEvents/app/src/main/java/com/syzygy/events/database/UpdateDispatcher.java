@@ -0,0 +1,169 @@
+package com.syzygy.events.database;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Collects the update notifications of instances and delivers them together on the next tick of the main thread.
+ * <p>
+ *     Only {@link Database.UpdateListener.Type#UPDATE} and {@link Database.UpdateListener.Type#SUBUPDATE} are held. Each
+ *     is delivered at most once per instance per tick, repeats are counted as collapsed. When a tick is delivered, the instances
+ *     are ordered so that an instance is notified before the instances listening to it, so the {@code SUBUPDATE} a parent gets from
+ *     each of its children is merged into one before the parent is notified. The batch listeners are then called once with every instance notified.
+ * </p>
+ * <p>
+ *     Structural notifications ({@code INIT}, {@code DELETE} and {@code DEREFERENCED}) are still delivered right away, after any
+ *     held notifications of the same instance, so listeners never see an update after an instance is gone.
+ * </p>
+ * @see DatabaseInstance#notifyUpdate(Database.UpdateListener.Type)
+ * @see Database#addUpdateBatchListener(Database.UpdateBatchListener)
+ */
+class UpdateDispatcher {
+
+    private final DatabaseMetrics metrics;
+    /**
+     * Posts a tick to the main thread, returning {@code false} if it could not be posted
+     */
+    private final Predicate<Runnable> post;
+    private final LinkedHashMap<DatabaseInstance<?>, EnumSet<Database.UpdateListener.Type>> pending = new LinkedHashMap<>();
+    private final Set<Database.UpdateBatchListener> batchListeners = new LinkedHashSet<>();
+    private boolean scheduled = false;
+    private boolean dispatching = false;
+    private final Runnable tick = this::dispatch;
+
+    /**
+     * @param metrics Counts the batches and the collapsed notifications
+     * @param post Posts a tick to the main thread, returning {@code false} if it could not be posted
+     */
+    UpdateDispatcher(DatabaseMetrics metrics, Predicate<Runnable> post) {
+        this.metrics = metrics;
+        this.post = post;
+    }
+
+    void addBatchListener(Database.UpdateBatchListener listener){
+        batchListeners.add(listener);
+    }
+
+    boolean removeBatchListener(Database.UpdateBatchListener listener){
+        return batchListeners.remove(listener);
+    }
+
+    /**
+     * Holds an update notification until the next tick, or delivers a structural one right away
+     * @param instance The updated instance
+     * @param type The type of update
+     */
+    void enqueue(DatabaseInstance<?> instance, Database.UpdateListener.Type type){
+        switch (type){
+            case UPDATE:
+            case SUBUPDATE:
+                EnumSet<Database.UpdateListener.Type> types = pending.get(instance);
+                if(types == null){
+                    types = EnumSet.noneOf(Database.UpdateListener.Type.class);
+                    pending.put(instance, types);
+                }
+                if(!types.add(type)){
+                    metrics.updateCollapsed();
+                    return;
+                }
+                schedule();
+                return;
+            default:
+                flush(instance);
+                instance.deliverUpdate(type);
+        }
+    }
+
+    /**
+     * Delivers the held notifications of an instance right away
+     * @param instance The instance
+     */
+    void flush(DatabaseInstance<?> instance){
+        EnumSet<Database.UpdateListener.Type> types = pending.remove(instance);
+        if(types == null) return;
+        for(Database.UpdateListener.Type t : types){
+            instance.deliverUpdate(t);
+        }
+    }
+
+    /**
+     * @return If any notification is held
+     */
+    boolean hasPending(){
+        return !pending.isEmpty();
+    }
+
+    private void schedule(){
+        if(scheduled || dispatching) return;
+        scheduled = post.test(tick);
+        //Without a looper to run it later, the notification is delivered now
+        if(!scheduled) dispatch();
+    }
+
+    /**
+     * Delivers every held notification, including those caused while delivering, then calls the batch listeners
+     */
+    void dispatch(){
+        scheduled = false;
+        if(dispatching || pending.isEmpty()) return;
+        dispatching = true;
+        Set<DatabaseInstance<?>> notified = new LinkedHashSet<>();
+        try{
+            while(!pending.isEmpty()){
+                for(DatabaseInstance<?> instance : order(pending.keySet())){
+                    //Removed only now, so a SUBUPDATE from a child notified earlier in the round is merged in
+                    EnumSet<Database.UpdateListener.Type> types = pending.remove(instance);
+                    if(types == null) continue;
+                    for(Database.UpdateListener.Type t : types){
+                        instance.deliverUpdate(t);
+                    }
+                    notified.add(instance);
+                }
+            }
+        }finally {
+            dispatching = false;
+        }
+        metrics.updateBatch();
+        Set<DatabaseInstance<?>> batch = Collections.unmodifiableSet(notified);
+        for(Database.UpdateBatchListener l : new ArrayList<>(batchListeners)){
+            l.onUpdates(batch);
+        }
+    }
+
+    /**
+     * Orders the instances so that each comes before the instances listening to it
+     * @param instances The instances
+     * @return The ordered instances
+     */
+    static List<DatabaseInstance<?>> order(Collection<DatabaseInstance<?>> instances){
+        Set<DatabaseInstance<?>> among = new HashSet<>(instances);
+        Set<DatabaseInstance<?>> visited = new HashSet<>();
+        ArrayDeque<DatabaseInstance<?>> order = new ArrayDeque<>(instances.size());
+        for(DatabaseInstance<?> instance : instances){
+            visit(instance, among, visited, order);
+        }
+        return new ArrayList<>(order);
+    }
+
+    /**
+     * Places the parents of an instance, then the instance in front of them
+     */
+    private static void visit(DatabaseInstance<?> instance, Set<DatabaseInstance<?>> among, Set<DatabaseInstance<?>> visited, ArrayDeque<DatabaseInstance<?>> order){
+        if(!visited.add(instance)) return;
+        for(Database.UpdateListener l : instance.getUpdateListeners()){
+            if(l instanceof DatabaseInstance && among.contains(l)){
+                visit((DatabaseInstance<?>) l, among, visited, order);
+            }
+        }
+        order.addFirst(instance);
+    }
+}
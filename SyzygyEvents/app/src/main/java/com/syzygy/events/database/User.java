@@ -2,19 +2,10 @@ package com.syzygy.events.database;
 
 import android.net.Uri;
 import android.util.Log;
-import android.util.Pair;
 
 import androidx.annotation.Nullable;
 
 import com.google.firebase.Timestamp;
-import com.google.firebase.firestore.DocumentChange;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.EventListener;
-import com.google.firebase.firestore.FirebaseFirestoreException;
-import com.google.firebase.firestore.ListenerRegistration;
-import com.google.firebase.firestore.Query;
-import com.google.firebase.firestore.QuerySnapshot;
-import com.google.firebase.firestore.WriteBatch;
 import com.syzygy.events.R;
 
 import org.apache.commons.validator.routines.EmailValidator;
@@ -25,6 +16,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
@@ -235,20 +227,20 @@ public class User extends DatabaseInstance<User> {
 
 
     @Override
-    protected List<Pair<Query, Database.Collections>> subInstanceCascadeDeleteQuery() {
+    protected List<Backend.Query> subInstanceCascadeDeleteQuery() {
         return Arrays.asList(
-                new Pair<>(Database.Collections.EVENT_ASSOCIATIONS.getCollection(db)
-                        .whereEqualTo(db.constants.getString(R.string.database_assoc_user), getDocumentID()), Database.Collections.EVENT_ASSOCIATIONS),
-                new Pair<>(Database.Collections.NOTIFICATIONS.getCollection(db)
-                        .whereEqualTo(db.constants.getString(R.string.database_not_receiverID), getDocumentID()), Database.Collections.NOTIFICATIONS)
+                Database.Collections.EVENT_ASSOCIATIONS.query()
+                        .whereEqualTo(db.schema.name(R.string.database_assoc_user), getDocumentID()),
+                Database.Collections.NOTIFICATIONS.query()
+                        .whereEqualTo(db.schema.name(R.string.database_not_receiverID), getDocumentID())
         );
     }
 
     @Override
     protected void requiredFirstDelete(int deletionType, Consumer<Boolean> listener) {
         db.bulkModifyField(
-                Database.Collections.NOTIFICATIONS.getCollection(db)
-                    .whereEqualTo(db.constants.getString(R.string.database_not_senderID), getDocumentID()),
+                Database.Collections.NOTIFICATIONS.query()
+                    .whereEqualTo(db.schema.name(R.string.database_not_senderID), getDocumentID()),
                 R.string.database_not_senderID, "",
                 listener
         );
@@ -329,16 +321,20 @@ public class User extends DatabaseInstance<User> {
      * Listeners for the creation of new notifications where the receiver is this user
      */
     @Database.Dissolves
-    public class NotificationListener implements Database.Dissolvable, EventListener<QuerySnapshot> {
+    public class NotificationListener implements Database.Dissolvable, BiConsumer<Backend.Snapshot, Boolean> {
 
         /**
          * The registration of the query listener
          */
-        private final ListenerRegistration reg;
+        private final Backend.Registration reg;
         /**
          * The consumer for new notifications
          */
         private final Consumer<Notification> onNotification;
+        /**
+         * If the listener has been removed
+         */
+        private boolean removed = false;
 
         /**
          * Adds a listener to the database which listens for any new notifications for this users
@@ -350,8 +346,9 @@ public class User extends DatabaseInstance<User> {
          */
         @Database.MustStir
         public NotificationListener(@Database.Observes Consumer<Notification> onNewNotification){
-            Query q = DatabaseQuery.getMyNotificationsQuery(db, User.this);
-            reg = q.addSnapshotListener(this);
+            Backend.Query q = DatabaseQuery.getMyNotificationsQuery(db, User.this);
+            reg = db.getBackend().listen(q, this);
+            db.metrics.listenerAdded();
             this.onNotification = onNewNotification;
         }
 
@@ -360,16 +357,19 @@ public class User extends DatabaseInstance<User> {
          */
         @Override
         public void dissolve(){
+            if(removed) return;
+            removed = true;
             reg.remove();
+            db.metrics.listenerRemoved();
         }
 
 
         private boolean init = false;
 
         @Override
-        public void onEvent(@Nullable QuerySnapshot value, @Nullable FirebaseFirestoreException error) {
-            if(value == null || error != null){
-                db.throwE(new RuntimeException(error));
+        public void accept(@Nullable Backend.Snapshot value, Boolean success) {
+            if(value == null || !success){
+                db.throwE(new RuntimeException("Listening to the notifications of " + getDocumentID() + " failed"));
                 return;
             }
             if(!init){
@@ -377,7 +377,7 @@ public class User extends DatabaseInstance<User> {
                 return;
             }
 
-            if(value.getDocumentChanges().isEmpty()){
+            if(value.changes.isEmpty()){
                 return;
             }
 
@@ -394,15 +394,15 @@ public class User extends DatabaseInstance<User> {
                         }
                     }
                     i++;
-                    if(i >= value.getDocumentChanges().size()){
+                    if(i >= value.changes.size()){
                         nots.forEach(DatabaseInstance::dissolve);
                         return;
                     }
-                    DocumentChange d = value.getDocumentChanges().get(i);
-                    if(d.getType() != DocumentChange.Type.ADDED){
+                    Backend.Change d = value.changes.get(i);
+                    if(d.type != Backend.Change.Type.ADDED){
                         this.onInitialization(null, false);
                     }else{
-                        db.getInstance(Database.Collections.NOTIFICATIONS, d.getDocument().getId(), this, d.getDocument());
+                        db.getInstance(Database.Collections.NOTIFICATIONS, d.document.id, this, d.document);
                     }
                 }
             };
@@ -0,0 +1,377 @@
+package com.syzygy.events.database;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the instances in the cache up to date with as few Firestore watch targets as possible.
+ * <p>
+ *     An instance asks to be watched once it is initialized, but nothing is attached until the next tick of the main thread, so
+ *     instances that are dissolved right after they are loaded are never watched. On each tick the waiting documents of a collection
+ *     are grouped into {@code whereIn} queries on their id of up to {@link #MAX_GROUP_SIZE} documents, each one watch target.
+ *     Documents already in the results of a live {@link DatabaseQuery} are not watched at all, as the query updates them.
+ * </p>
+ * <p>
+ *     At most {@link #getBudget() the budget} of group queries are live at once. Once it is reached, the groups that are at most
+ *     half full are merged, and documents that still do not fit wait, without updates, until a group is removed.
+ *     A group is removed once none of its documents are watched.
+ * </p>
+ * <p>
+ *     If the query of a group errors, the group is removed, and its documents are read once and grouped again on the next tick.
+ *     A document whose groups fail {@link #MAX_FAILURES} times in a row is only read, so a query that always fails is not retried forever.
+ * </p>
+ * @see Database#setWatchBudget(int)
+ * @see DatabaseInstance#initializeData(Map, boolean, Database.InitializationListener)
+ */
+class WatchManager {
+
+    /**
+     * The most documents a {@code whereIn} query may list
+     */
+    static final int MAX_GROUP_SIZE = 30;
+    /**
+     * The default number of group queries live at once
+     */
+    static final int DEFAULT_BUDGET = 100;
+    /**
+     * The number of times in a row the groups of a document may fail before it is no longer grouped
+     */
+    static final int MAX_FAILURES = 3;
+
+    private final Database db;
+    /**
+     * Posts a tick to the main thread, returning {@code false} if it could not be posted
+     */
+    private final Predicate<Runnable> post;
+    private int budget = DEFAULT_BUDGET;
+
+    /**
+     * The collection of every watched document, by database id
+     */
+    private final Map<String, Database.Collections> watched = new HashMap<>();
+    /**
+     * The watched documents that are neither in a group nor covered by a query, in the order they were watched
+     */
+    private final LinkedHashSet<String> waiting = new LinkedHashSet<>();
+    private final Map<String, Group> groupOf = new HashMap<>();
+    private final Set<Group> groups = new LinkedHashSet<>();
+    /**
+     * The number of live queries whose results hold each document
+     */
+    private final Map<String, Integer> covered = new HashMap<>();
+    private final Map<Object, Set<String>> coverage = new IdentityHashMap<>();
+    /**
+     * The number of times in a row the groups of each document failed
+     */
+    private final Map<String, Integer> failures = new HashMap<>();
+    private boolean scheduled = false;
+    private final Runnable tick = this::attach;
+
+    /**
+     * @param db The database
+     * @param post Posts a tick to the main thread, returning {@code false} if it could not be posted
+     */
+    WatchManager(Database db, Predicate<Runnable> post) {
+        this.db = db;
+        this.post = post;
+    }
+
+    /**
+     * @return The number of group queries live at once
+     */
+    int getBudget(){
+        return budget;
+    }
+
+    /**
+     * Sets the number of group queries live at once. Groups already live are kept
+     * @param budget The budget
+     * @throws IllegalArgumentException if the budget is not positive
+     */
+    void setBudget(int budget) throws IllegalArgumentException{
+        if(budget <= 0) throw new IllegalArgumentException("The watch budget must be positive");
+        this.budget = budget;
+        if(!waiting.isEmpty()) schedule();
+    }
+
+    /**
+     * @return The number of group queries live
+     */
+    int getGroupCount(){
+        return groups.size();
+    }
+
+    /**
+     * Watches the document of an instance from the next tick
+     * @param instance The initialized instance
+     */
+    void watch(DatabaseInstance<?> instance){
+        String path = instance.getDatabaseID();
+        if(watched.put(path, instance.getCollection()) != null) return;
+        if(covered.containsKey(path)) return;
+        waiting.add(path);
+        schedule();
+    }
+
+    /**
+     * Stops watching the document of an instance
+     * @param instance The instance
+     */
+    void unwatch(DatabaseInstance<?> instance){
+        String path = instance.getDatabaseID();
+        if(watched.remove(path) == null) return;
+        waiting.remove(path);
+        failures.remove(path);
+        detach(path);
+    }
+
+    /**
+     * Sets the documents in the results of a live query. They are updated by the query, so they are not watched separately.
+     * Watched documents that left the results are read once, in case they were deleted
+     * @param owner The query
+     * @param paths The database ids of its results
+     */
+    void cover(Object owner, Collection<String> paths){
+        cover(owner, paths, true);
+    }
+
+    /**
+     * Removes the documents of a query that is no longer live
+     * @param owner The query
+     */
+    void uncover(Object owner){
+        cover(owner, Collections.emptySet(), false);
+    }
+
+    /**
+     * @param owner The query
+     * @param paths The database ids of its results
+     * @param removed If the documents missing from the results were removed from them. Such documents that are still watched
+     *                are read once, as they may have been deleted
+     */
+    private void cover(Object owner, Collection<String> paths, boolean removed){
+        Set<String> now = new HashSet<>(paths);
+        Set<String> before = coverage.remove(owner);
+        if(!now.isEmpty()) coverage.put(owner, now);
+        for(String path : now){
+            if(before != null && before.remove(path)) continue;
+            Integer n = covered.get(path);
+            covered.put(path, n == null ? 1 : n + 1);
+            if(n != null) continue;
+            waiting.remove(path);
+            detach(path);
+        }
+        if(before == null) return;
+        for(String path : before){
+            int n = covered.get(path) - 1;
+            if(n > 0){
+                covered.put(path, n);
+                continue;
+            }
+            covered.remove(path);
+            Database.Collections collection = watched.get(path);
+            if(collection == null) continue;
+            waiting.add(path);
+            schedule();
+            //A document that is deleted only leaves the results of the query, which does not update its instance
+            if(removed) db.revalidate(collection, getID(path));
+        }
+    }
+
+    private void schedule(){
+        if(scheduled) return;
+        scheduled = post.test(tick);
+        //Without a looper to run it later, the documents are watched now
+        if(!scheduled) attach();
+    }
+
+    /**
+     * Groups the waiting documents and attaches their queries, as far as the budget allows
+     */
+    private void attach(){
+        scheduled = false;
+        if(waiting.isEmpty()) return;
+        if(groups.size() + groupsFor(waiting) > budget) merge();
+        EnumMap<Database.Collections, List<String>> byCollection = new EnumMap<>(Database.Collections.class);
+        for(String path : waiting){
+            Database.Collections collection = watched.get(path);
+            List<String> paths = byCollection.get(collection);
+            if(paths == null){
+                paths = new ArrayList<>();
+                byCollection.put(collection, paths);
+            }
+            paths.add(path);
+        }
+        for(Map.Entry<Database.Collections, List<String>> e : byCollection.entrySet()){
+            List<String> paths = e.getValue();
+            for(int i = 0; i < paths.size() && groups.size() < budget; i += MAX_GROUP_SIZE){
+                List<String> members = paths.subList(i, Math.min(paths.size(), i + MAX_GROUP_SIZE));
+                open(e.getKey(), members);
+                waiting.removeAll(members);
+            }
+        }
+        if(!waiting.isEmpty()){
+            db.metrics.watchesDeferred(waiting.size());
+            Log.println(Log.WARN, "watch", waiting.size() + " documents are not watched, the budget of " + budget + " is full");
+        }
+    }
+
+    /**
+     * @param paths Documents
+     * @return The number of groups needed for the documents
+     */
+    private int groupsFor(Collection<String> paths){
+        EnumMap<Database.Collections, Integer> counts = new EnumMap<>(Database.Collections.class);
+        for(String path : paths){
+            Database.Collections collection = watched.get(path);
+            Integer n = counts.get(collection);
+            counts.put(collection, n == null ? 1 : n + 1);
+        }
+        int total = 0;
+        for(int n : counts.values()){
+            total += (n + MAX_GROUP_SIZE - 1) / MAX_GROUP_SIZE;
+        }
+        return total;
+    }
+
+    /**
+     * Removes every group that is at most half full, so its documents can be grouped again with the waiting ones
+     */
+    private void merge(){
+        List<String> regroup = new ArrayList<>();
+        for(Iterator<Group> it = groups.iterator(); it.hasNext(); ){
+            Group g = it.next();
+            if(g.members.size() * 2 > MAX_GROUP_SIZE) continue;
+            it.remove();
+            close(g);
+            for(String path : g.members){
+                groupOf.remove(path);
+                regroup.add(path);
+            }
+        }
+        if(regroup.isEmpty()) return;
+        //Documents that were watched keep their place ahead of those waiting
+        regroup.addAll(waiting);
+        waiting.clear();
+        waiting.addAll(regroup);
+    }
+
+    /**
+     * Removes a document from its group, removing the group once it is empty
+     * @param path The document
+     */
+    private void detach(String path){
+        Group g = groupOf.remove(path);
+        if(g == null) return;
+        g.members.remove(path);
+        if(!g.members.isEmpty()) return;
+        groups.remove(g);
+        close(g);
+        if(!waiting.isEmpty()) schedule();
+    }
+
+    private void open(Database.Collections collection, List<String> paths){
+        Group g = new Group(paths);
+        List<String> ids = new ArrayList<>(paths.size());
+        for(String path : paths){
+            ids.add(getID(path));
+            groupOf.put(path, g);
+        }
+        groups.add(g);
+        boolean[] first = {true};
+        g.registration = db.getBackend().listen(collection.query().whereIn(Backend.DOCUMENT_ID, ids), (value, success) -> {
+            if(g.registration == null) return;
+            if(!success || value == null){
+                fail(collection, g);
+                return;
+            }
+            if(first[0]){
+                first[0] = false;
+                g.members.forEach(failures::remove);
+                //Documents deleted before the group was opened are never in its results, so they are read once
+                Set<String> missing = new HashSet<>(g.members);
+                for(Backend.Document doc : value.documents){
+                    missing.remove(collection.getDatabaseID(doc.id));
+                }
+                for(String path : missing){
+                    db.revalidate(collection, getID(path));
+                }
+            }
+            for(Backend.Change c : value.changes){
+                String path = collection.getDatabaseID(c.document.id);
+                //Documents that left the group are updated by whatever covers them now
+                if(!g.members.contains(path)) continue;
+                if(c.type == Backend.Change.Type.REMOVED){
+                    //An id only leaves the results of its query once the document is deleted
+                    db.forgetDeleted(collection, c.document.id);
+                }else{
+                    db.onDocument(c.document);
+                }
+            }
+        });
+        db.metrics.listenerAdded();
+    }
+
+    /**
+     * Removes a group whose query errored. Its documents are read once, as they may have changed unseen, and grouped again
+     * @param collection The collection of the group
+     * @param g The group
+     */
+    private void fail(Database.Collections collection, Group g){
+        Log.println(Log.WARN, "watch", "Watching " + g.members.size() + " documents of " + collection.getCollectionID() + " failed, regrouping them");
+        groups.remove(g);
+        close(g);
+        for(String path : g.members){
+            groupOf.remove(path);
+            db.revalidate(collection, getID(path));
+            Integer n = failures.get(path);
+            n = n == null ? 1 : n + 1;
+            failures.put(path, n);
+            if(n < MAX_FAILURES) waiting.add(path);
+        }
+        if(!waiting.isEmpty()) schedule();
+    }
+
+    /**
+     * @param path The database id of a document
+     * @return The id of the document in its collection
+     */
+    private static String getID(String path){
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private void close(Group g){
+        if(g.registration == null) return;
+        g.registration.remove();
+        g.registration = null;
+        db.metrics.listenerRemoved();
+    }
+
+    /**
+     * A {@code whereIn} query watching some documents of one collection
+     */
+    private static class Group {
+        /**
+         * The documents still watched through the query. Documents leave it but never join it
+         */
+        final Set<String> members;
+        Backend.Registration registration;
+
+        Group(List<String> paths) {
+            this.members = new LinkedHashSet<>(paths);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.syzygy.events.ui;
+
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+
+import com.syzygy.events.database.DatabaseInfLoadQuery;
+
+/**
+ * Loads the pages of a {@link DatabaseInfLoadQuery} as its list is scrolled, and releases the pages that are scrolled far out of view
+ * <p>
+ *     When the list comes within {@link #LOAD_THRESHOLD} results of the end of the loaded results, the next page is added.
+ *     When it comes within the threshold of the start and pages were released, the previous page is loaded back.
+ *     Once scrolling stops, pages far from the visible results are released and the list is shifted to keep its position.
+ * </p>
+ * @see DatabaseInfLoadQuery#releaseOutside(int, int)
+ */
+public class PagedScrollListener implements AbsListView.OnScrollListener {
+
+    /**
+     * How close to either end of the loaded results the list can come before another page is loaded
+     */
+    public static final int LOAD_THRESHOLD = 5;
+
+    private final ListView list;
+    private final BaseAdapter adapter;
+    private final DatabaseInfLoadQuery<?> query;
+    /**
+     * If a page requested by this listener is loading
+     */
+    private boolean loading = false;
+
+    /**
+     * @param list The list showing the results
+     * @param adapter The adapter of the list, backed by the instances of the query
+     * @param query The query
+     */
+    public PagedScrollListener(ListView list, BaseAdapter adapter, DatabaseInfLoadQuery<?> query) {
+        this.list = list;
+        this.adapter = adapter;
+        this.query = query;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState != SCROLL_STATE_IDLE || loading) return;
+        int first = list.getFirstVisiblePosition();
+        int removed = query.releaseOutside(first, list.getLastVisiblePosition());
+        if (removed > 0) {
+            shiftBy(-removed, first);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (loading || totalItemCount == 0) return;
+        if (firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_THRESHOLD && query.hasUnloadedData()) {
+            loading = true;
+            query.incrementData((q, success) -> list.post(() -> {
+                loading = false;
+                adapter.notifyDataSetChanged();
+            }));
+        } else if (firstVisibleItem <= LOAD_THRESHOLD && query.hasReleasedData()) {
+            loading = true;
+            int before = query.getInstances().size();
+            query.decrementData((q, success) -> list.post(() -> {
+                loading = false;
+                shiftBy(query.getInstances().size() - before, list.getFirstVisiblePosition());
+            }));
+        }
+    }
+
+    /**
+     * Notifies the adapter of a change at the start of the results, keeping the same results on screen
+     * @param shift The number of results added to the start. Negative if removed
+     * @param first The position of the first visible result before the change
+     */
+    private void shiftBy(int shift, int first) {
+        View top = list.getChildAt(0);
+        int offset = top == null ? 0 : top.getTop();
+        adapter.notifyDataSetChanged();
+        list.setSelectionFromTop(Math.max(first + shift, 0), offset);
+    }
+}
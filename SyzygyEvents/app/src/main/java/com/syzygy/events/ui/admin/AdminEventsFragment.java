@@ -14,6 +14,7 @@ import com.syzygy.events.database.DatabaseQuery;
 import com.syzygy.events.database.Event;
 import com.syzygy.events.databinding.FragAdminEventsListBinding;
 import com.syzygy.events.ui.AdminActivity;
+import com.syzygy.events.ui.PagedScrollListener;
 import com.syzygy.events.ui.EntrantActivity;
 
 /**
@@ -35,7 +36,7 @@ public class AdminEventsFragment extends Fragment {
         binding = FragAdminEventsListBinding.inflate(inflater, container, false);
 
         SyzygyApplication app = (SyzygyApplication)getActivity().getApplication();
-        query = new DatabaseInfLoadQuery<>(DatabaseQuery.getEvents(app.getDatabase()));
+        query = new DatabaseInfLoadQuery<>(DatabaseQuery.getEvents(app.getDatabase(), DatabaseQuery.DEFAULT_PAGE_SIZE));
 
         AdminEventsAdapter a = new AdminEventsAdapter(this.getContext(), query.getInstances());
 
@@ -44,6 +45,7 @@ public class AdminEventsFragment extends Fragment {
         });
 
         binding.adminEventsList.setAdapter(a);
+        binding.adminEventsList.setOnScrollListener(new PagedScrollListener(binding.adminEventsList, a, query));
 
         binding.adminEventsList.setOnItemClickListener((parent, view, position, id) -> {
             AdminActivity activity = (AdminActivity)getActivity();
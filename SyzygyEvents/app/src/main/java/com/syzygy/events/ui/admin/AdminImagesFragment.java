@@ -22,6 +22,7 @@ import com.syzygy.events.database.DatabaseQuery;
 import com.syzygy.events.database.Image;
 import com.syzygy.events.database.User;
 import com.syzygy.events.databinding.FragAdminImagesListBinding;
+import com.syzygy.events.ui.PagedScrollListener;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -46,13 +47,14 @@ public class AdminImagesFragment extends Fragment {
         binding = FragAdminImagesListBinding.inflate(inflater, container, false);
 
         SyzygyApplication app = (SyzygyApplication)getActivity().getApplication();
-        query = new DatabaseInfLoadQuery<>(DatabaseQuery.getImages(app.getDatabase()));
+        query = new DatabaseInfLoadQuery<>(DatabaseQuery.getImages(app.getDatabase(), DatabaseQuery.DEFAULT_PAGE_SIZE));
         AdminImagesAdapter a = new AdminImagesAdapter(this.getContext(), query.getInstances());
 
         query.refreshData((query1, success) -> {
             a.notifyDataSetChanged();
         });
         binding.adminImagesList.setAdapter(a);
+        binding.adminImagesList.setOnScrollListener(new PagedScrollListener(binding.adminImagesList, a, query));
 
         binding.adminImagesList.setOnItemClickListener((parent, view, position, id) -> {
             Image img = a.getItem(position);
@@ -21,6 +21,7 @@ import com.syzygy.events.database.Image;
 import com.syzygy.events.database.User;
 import com.syzygy.events.databinding.FragAdminProfilesListBinding;
 import com.syzygy.events.ui.AdminActivity;
+import com.syzygy.events.ui.PagedScrollListener;
 
 import java.util.List;
 
@@ -44,7 +45,7 @@ public class AdminProfilesFragment extends Fragment {
         binding = FragAdminProfilesListBinding.inflate(inflater, container, false);
 
         SyzygyApplication app = (SyzygyApplication)getActivity().getApplication();
-        query = new DatabaseInfLoadQuery<>(DatabaseQuery.getUsers(app.getDatabase()));
+        query = new DatabaseInfLoadQuery<>(DatabaseQuery.getUsers(app.getDatabase(), DatabaseQuery.DEFAULT_PAGE_SIZE));
 
         List<User> dataList = query.getInstances();
 
@@ -55,6 +56,7 @@ public class AdminProfilesFragment extends Fragment {
         });
 
         binding.adminProfilesList.setAdapter(a);
+        binding.adminProfilesList.setOnScrollListener(new PagedScrollListener(binding.adminProfilesList, a, query));
 
         binding.adminProfilesList.setOnItemClickListener((parent, view, position, id) -> {
             ((AdminActivity)getActivity()).openProfile(a.getItem(position).getDocumentID());
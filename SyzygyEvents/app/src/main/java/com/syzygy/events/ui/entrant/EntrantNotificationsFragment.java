@@ -49,12 +49,13 @@ public class EntrantNotificationsFragment extends Fragment {
 
         EntrantNotificationsAdapter a = new EntrantNotificationsAdapter(this.getContext(), query.getInstances());
 
-        query.refreshData((query1, success) -> {
+        binding.entrantNotificationsList.setAdapter(a);
+
+        query.listen(() -> {
+            if (binding == null) return;
             a.notifyDataSetChanged();
             binding.emptyNotificationsText.setVisibility(binding.entrantNotificationsList.getCount()<1 ? View.VISIBLE : View.GONE);
-        });
-
-        binding.entrantNotificationsList.setAdapter(a);
+        }, (query1, success) -> {});
 
         binding.entrantNotificationsList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
@@ -113,12 +114,6 @@ public class EntrantNotificationsFragment extends Fragment {
                     });
                 }
 
-                dialog.setOnDismissListener(d -> {
-                    query.refreshData((query1, success) -> {
-                        a.notifyDataSetChanged();
-                    });
-                });
-
             }
         });
 
@@ -49,12 +49,15 @@ import com.syzygy.events.database.DatabaseQuery;
 import com.syzygy.events.database.Event;
 import com.syzygy.events.database.EventAssociation;
 import com.syzygy.events.database.Image;
+import com.syzygy.events.database.Lottery;
 import com.syzygy.events.databinding.FragOrgEventPageBinding;
 import com.syzygy.events.ui.EntrantActivity;
 import com.syzygy.events.ui.OrganizerActivity;
 
+import java.util.ArrayList;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Random;
 
 /**
  * The fragment that the user sees when they open an event's profile in the organizer view.
@@ -121,13 +124,7 @@ public class OrganizerEventFragment extends Fragment implements Database.UpdateL
                 binding.div7.setVisibility(View.GONE);
             }
 
-            query = new DatabaseInfLoadQuery<>(DatabaseQuery.getAttachedUsers(app.getDatabase(), event, null, false));
-            OrganizerAssociatedEntrantsAdapter adapter = new OrganizerAssociatedEntrantsAdapter(getContext(), query.getInstances());
-            query.refreshData((query1, s) -> {
-                adapter.notifyDataSetChanged();
-                binding.composeNotificationButton.setVisibility(binding.eventAssociatedEntrantsList.getCount()<1 ? View.GONE : View.VISIBLE);
-            });
-            binding.eventAssociatedEntrantsList.setAdapter(adapter);
+            listenToEntrants(null);
 
             binding.eventImg.setOnClickListener(view -> {
                 app.displayImage(event);
@@ -162,13 +159,8 @@ public class OrganizerEventFragment extends Fragment implements Database.UpdateL
                     Chip chip = binding.getRoot().findViewById(checkedIds.get(0));
                     status = chip.getText().toString();
                 }
-                query = new DatabaseInfLoadQuery<>(DatabaseQuery.getAttachedUsers(app.getDatabase(), event, status, false));
-                OrganizerAssociatedEntrantsAdapter a = new OrganizerAssociatedEntrantsAdapter(getContext(), query.getInstances());
-                query.refreshData((query1, s) -> {
-                    a.notifyDataSetChanged();
-                    binding.composeNotificationButton.setVisibility(binding.eventAssociatedEntrantsList.getCount()<1 ? View.GONE : View.VISIBLE);
-                });
-                binding.eventAssociatedEntrantsList.setAdapter(a);
+                query.dissolve();
+                listenToEntrants(status);
             });
 
             binding.editPosterButton.setOnClickListener(view -> {
@@ -195,15 +187,9 @@ public class OrganizerEventFragment extends Fragment implements Database.UpdateL
                     setLotteryPopupView(dialog);
                 });
                 dialog.findViewById(R.id.lottery_run_button).setOnClickListener(v -> {
-                    event.getLottery(-1, (e, result, s) -> {
-                        result.execute(
-                                (ev, r, f) -> {
-                                    dialog.dismiss();
-                                    Toast.makeText(getContext(), "Invites Sent!", Toast.LENGTH_SHORT).show();
-                                    updateView();
-                                },
-                                !event.hasRunLottery()
-                        );
+                    event.runLottery(-1, new Random().nextLong(), !event.hasRunLottery(), (result, s) -> {
+                        dialog.dismiss();
+                        lotteryCompleted(result, s);
                     });
                 });
             });
@@ -213,12 +199,6 @@ public class OrganizerEventFragment extends Fragment implements Database.UpdateL
                 EventAssociation association = a.getItem(binding.eventAssociatedEntrantsList.getCheckedItemPosition());
                 association.setStatus(R.string.event_assoc_status_cancelled);
                 binding.eventAssociatedEntrantsList.clearChoices();
-                query.refreshData((query1, s) -> {
-                    a.notifyDataSetChanged();
-                    binding.composeNotificationButton.setVisibility(binding.eventAssociatedEntrantsList.getCount()<1 ? View.GONE : View.VISIBLE);
-                });
-                binding.eventAssociatedEntrantsList.setAdapter(a);
-
             });
 
             binding.eventAssociatedEntrantsList.setOnItemClickListener((parent, view, position, id) -> {
@@ -263,14 +243,13 @@ public class OrganizerEventFragment extends Fragment implements Database.UpdateL
                         edit_body_layout.setError("This message is too long.");
                     } else if (!subject.isEmpty()) {
                         dialog.dismiss();
-                        query.refreshData((query1, s) -> {
-                            adapter.notifyDataSetChanged();
-                            Database db = ((SyzygyApplication)getActivity().getApplication()).getDatabase();
-                            new EventAssociation.Methods<Event>(db, event, query.getInstances())
-                                    .notify(subject, body, true, true, false, (q, data, t) -> {});
-                            Toast.makeText(getContext(), "Notification Sent", Toast.LENGTH_SHORT).show();
-                            binding.composeNotificationButton.setVisibility(binding.eventAssociatedEntrantsList.getCount()<1 ? View.GONE : View.VISIBLE);
+                        Database db = ((SyzygyApplication)getActivity().getApplication()).getDatabase();
+                        EventAssociation.Methods<Event> methods = new EventAssociation.Methods<>(db, event, new ArrayList<>(query.getInstances()));
+                        methods.notify(subject, body, true, true, false, (q, data, t) -> {
+                            if(data != null) data.dissolve();
+                            methods.dissolve();
                         });
+                        Toast.makeText(getContext(), "Notification Sent", Toast.LENGTH_SHORT).show();
                     }
                 });
             });
@@ -289,6 +268,22 @@ public class OrganizerEventFragment extends Fragment implements Database.UpdateL
         binding = null;
     }
 
+    /**
+     * Lists the entrants of the event with the given status. The list follows changes to the associations as they happen
+     * @param status The status to filter by. If null, all entrants are listed
+     */
+    private void listenToEntrants(String status) {
+        SyzygyApplication app = (SyzygyApplication) getActivity().getApplication();
+        query = new DatabaseInfLoadQuery<>(DatabaseQuery.getAttachedUsers(app.getDatabase(), event, status, false));
+        OrganizerAssociatedEntrantsAdapter adapter = new OrganizerAssociatedEntrantsAdapter(getContext(), query.getInstances());
+        binding.eventAssociatedEntrantsList.setAdapter(adapter);
+        query.listen(() -> {
+            if (binding == null) return;
+            adapter.notifyDataSetChanged();
+            binding.composeNotificationButton.setVisibility(binding.eventAssociatedEntrantsList.getCount()<1 ? View.GONE : View.VISIBLE);
+        }, (query1, s) -> {});
+    }
+
     /**
      * Sets up fields that could changed. Triggered whenever the event is updated
      */
@@ -357,6 +352,32 @@ public class OrganizerEventFragment extends Fragment implements Database.UpdateL
         updateView();
     }
 
+    /**
+     * Called when a lottery run finishes. If it did not finish, offers to resume it
+     * @param result The totals of the run, null if it could not be started
+     * @param success If every chunk of the run is done
+     */
+    private void lotteryCompleted(Lottery.Result result, boolean success) {
+        if (getContext() == null) {
+            return;
+        }
+        updateView();
+        if (success) {
+            Toast.makeText(getContext(), "Invites Sent!", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String message = result == null
+                ? "The lottery could not be run. If a lottery was interrupted, it can be resumed."
+                : result.failedChunks + " batches of invites could not be sent. The lottery can be resumed to send them.";
+        new AlertDialog.Builder(getContext())
+                .setTitle("Lottery Failed")
+                .setMessage(message)
+                .setPositiveButton("Resume", (d, which) -> event.resumeLottery(this::lotteryCompleted))
+                .setNegativeButton("Cancel", null)
+                .create()
+                .show();
+    }
+
     /**
      * Called when an associated user is unselected
      */
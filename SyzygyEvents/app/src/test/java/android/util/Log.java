@@ -0,0 +1,28 @@
+package android.util;
+
+/**
+ * Stands in for the framework log on the JVM, where the model classes are run by the unit tests and the benchmarks.
+ * <p>
+ *     Warnings and errors are printed to standard error, and anything less is dropped.
+ * </p>
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    private Log() {}
+
+    public static int println(int priority, String tag, String msg) {
+        if (priority < WARN) return 0;
+        System.err.println(tag + ": " + msg);
+        return msg.length();
+    }
+
+    public static int d(String tag, String msg) {
+        return println(DEBUG, tag, msg);
+    }
+}
@@ -0,0 +1,122 @@
+package com.syzygy.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests the staging and timing of the start
+ * @see StartupOrchestrator
+ */
+public class StartupOrchestratorTest {
+
+    /**
+     * Runs queued work when told to, as a looper would
+     */
+    private static class Queue implements Executor {
+        final List<Runnable> work = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable r) {
+            work.add(r);
+        }
+
+        void drain(){
+            while(!work.isEmpty()) work.remove(0).run();
+        }
+    }
+
+    private final Queue main = new Queue();
+    private final Queue background = new Queue();
+    private final Queue idle = new Queue();
+    private final List<String> ran = new ArrayList<>();
+
+    private StartupOrchestrator newOrchestrator(){
+        return new StartupOrchestrator(main, background, idle::execute);
+    }
+
+    private StartupOrchestrator.Task record(String name){
+        return done -> {
+            ran.add(name);
+            done.run();
+        };
+    }
+
+    @Test
+    public void testStages(){
+        StartupOrchestrator.Report[] report = new StartupOrchestrator.Report[1];
+        List<Runnable> pending = new ArrayList<>();
+        StartupOrchestrator startup = newOrchestrator()
+                .add(StartupOrchestrator.Stage.CRITICAL, "user", done -> {
+                    ran.add("user");
+                    pending.add(done);
+                })
+                .add(StartupOrchestrator.Stage.DEFERRED, "icon", record("icon"))
+                .addBackground(StartupOrchestrator.Stage.DEFERRED, "listener", () -> ran.add("listener"))
+                .addBackground(StartupOrchestrator.Stage.IDLE, "location", () -> ran.add("location"))
+                .setOnComplete(r -> report[0] = r);
+
+        startup.start();
+        assertEquals(Arrays.asList("user"), ran);
+        pending.get(0).run();
+        main.drain();
+        assertEquals(Arrays.asList("user"), ran);
+
+        startup.firstActivityShown();
+        startup.firstActivityShown();
+        main.drain();
+        assertEquals(Arrays.asList("user", "icon"), ran);
+        background.drain();
+        assertEquals(Arrays.asList("user", "icon", "listener"), ran);
+        assertNull(report[0]);
+
+        idle.drain();
+        background.drain();
+        assertEquals(Arrays.asList("user", "icon", "listener", "location"), ran);
+        main.drain();
+        assertNotNull(report[0]);
+        assertEquals(4, report[0].getTimings().size());
+        assertTrue(report[0].getFirstActivityNanos() >= 0);
+        for(StartupOrchestrator.Timing t : report[0].getTimings()){
+            assertTrue(t.name, t.getDurationNanos() >= 0);
+        }
+    }
+
+    @Test
+    public void testCriticalTasksStartTogether(){
+        List<Runnable> pending = new ArrayList<>();
+        StartupOrchestrator startup = newOrchestrator()
+                .add(StartupOrchestrator.Stage.CRITICAL, "a", done -> {
+                    ran.add("a");
+                    pending.add(done);
+                })
+                .add(StartupOrchestrator.Stage.CRITICAL, "b", done -> {
+                    ran.add("b");
+                    pending.add(done);
+                });
+        startup.start();
+        assertEquals(Arrays.asList("a", "b"), ran);
+        pending.get(1).run();
+        pending.get(1).run();
+
+        StartupOrchestrator.Report report = startup.getReport();
+        assertEquals(-1, report.getTimings().get(0).getDurationNanos());
+        assertTrue(report.getTimings().get(1).getDurationNanos() >= 0);
+        assertEquals(-1, report.getFirstActivityNanos());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterStart(){
+        StartupOrchestrator startup = newOrchestrator();
+        startup.start();
+        startup.add(StartupOrchestrator.Stage.IDLE, "late", record("late"));
+    }
+}
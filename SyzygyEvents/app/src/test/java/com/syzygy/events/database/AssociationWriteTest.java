@@ -0,0 +1,92 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.syzygy.events.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that association writes whose counted transaction fails are still written, and are held again if they cannot be
+ * @see Database#flushWrites(java.util.function.Consumer)
+ * @see EventCounters#writeAssociations(java.util.List, java.util.function.Consumer)
+ */
+public class AssociationWriteTest {
+
+    private FailingBackend backend;
+    private LocalDatabase local;
+    private Event event;
+    private EventAssociation assoc;
+
+    @Before
+    public void signUp() {
+        backend = new FailingBackend();
+        local = new LocalDatabase(backend);
+        User user = local.createUser("user");
+        event = local.createEvent(local.createFacility(user), 5);
+        assoc = local.await(done -> event.addUserToWaitlist(user, null, (q, a, s) -> {
+            assertTrue("User was not admitted", s);
+            done.accept(a.result);
+        }));
+        local.settle();
+    }
+
+    @After
+    public void close() {
+        local.close();
+    }
+
+    private String storedStatus() {
+        return local.read(Database.Collections.EVENT_ASSOCIATIONS, assoc.getDocumentID()).getString(local.name(R.string.database_assoc_status));
+    }
+
+    /**
+     * The counted transaction fails, so the association must be written without it and the counts reconciled
+     */
+    @Test
+    public void testFailedTransactionFallsBackToWrite() {
+        backend.failTransactions = true;
+        boolean written = local.await(done -> {
+            assoc.setStatus(SchemaRegistry.Status.INVITED);
+            local.db.flushWrites(done);
+        });
+        assertTrue(written);
+        assertEquals(local.name(R.string.event_assoc_status_invited), storedStatus());
+        assertFalse(local.call(() -> local.db.hasPendingWrite(assoc)));
+
+        backend.failTransactions = false;
+        EventCounters.Drift drift = local.await(done -> local.db.getEventCounters().reconcile(event.getDocumentID(), (d, success) -> {
+            assertTrue(success);
+            done.accept(d);
+        }));
+        assertNotNull(drift.actual);
+        assertEquals(1, drift.actual.invited);
+        assertEquals(0, drift.actual.waitlist);
+    }
+
+    /**
+     * Nothing can be written, so the failure must be reported and the association held to be written whole later
+     */
+    @Test
+    public void testUnwrittenAssociationIsHeldAgain() {
+        backend.failTransactions = true;
+        backend.failBatches = true;
+        boolean written = local.await(done -> {
+            assoc.setStatus(SchemaRegistry.Status.INVITED);
+            local.db.flushWrites(done);
+        });
+        assertFalse(written);
+        assertEquals(local.name(R.string.event_assoc_status_waitlist), storedStatus());
+        assertTrue(local.call(() -> local.db.hasPendingWrite(assoc)));
+
+        backend.failTransactions = false;
+        backend.failBatches = false;
+        assertTrue(local.<Boolean>await(done -> local.db.flushWrites(done)));
+        assertEquals(local.name(R.string.event_assoc_status_invited), storedStatus());
+    }
+}
@@ -0,0 +1,84 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+/**
+ * Tests the reuse and bounds of the bitmap pool
+ * @see BitmapPool
+ */
+public class BitmapPoolTest {
+
+    private static Bitmap bitmap(int width, int height, boolean mutable){
+        Bitmap b = mock(Bitmap.class);
+        when(b.getWidth()).thenReturn(width);
+        when(b.getHeight()).thenReturn(height);
+        when(b.getConfig()).thenReturn(Bitmap.Config.ARGB_8888);
+        when(b.getAllocationByteCount()).thenReturn(width * height * 4);
+        when(b.isMutable()).thenReturn(mutable);
+        return b;
+    }
+
+    @Test
+    public void testReusesSameShape(){
+        BitmapPool pool = new BitmapPool();
+        Bitmap b = bitmap(128, 128, true);
+        pool.put(b);
+        assertEquals(128 * 128 * 4, pool.getBytes());
+
+        assertSame(b, pool.get(128, 128, Bitmap.Config.ARGB_8888));
+        verify(b).eraseColor(0);
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getBytes());
+
+        pool.put(b);
+        try (MockedStatic<Bitmap> bitmaps = mockStatic(Bitmap.class)) {
+            bitmaps.when(() -> Bitmap.createBitmap(anyInt(), anyInt(), any(Bitmap.Config.class))).thenReturn(bitmap(200, 200, true));
+            pool.get(200, 200, Bitmap.Config.ARGB_8888);
+        }
+        assertEquals(1, pool.getMisses());
+        assertSame(b, pool.get(128, 128, null));
+    }
+
+    @Test
+    public void testRecyclesImmutable(){
+        BitmapPool pool = new BitmapPool();
+        Bitmap b = bitmap(128, 128, false);
+        pool.put(b);
+        verify(b).recycle();
+        assertEquals(0, pool.getBytes());
+    }
+
+    @Test
+    public void testTrimsLeastRecentlyUsedShape(){
+        BitmapPool pool = new BitmapPool(128 * 128 * 4 + 200 * 200 * 4);
+        Bitmap small = bitmap(128, 128, true);
+        Bitmap small2 = bitmap(128, 128, true);
+        Bitmap large = bitmap(200, 200, true);
+        pool.put(small);
+        pool.put(small2);
+        pool.put(large);
+
+        verify(small).recycle();
+        verify(small2, never()).recycle();
+        verify(large, never()).recycle();
+        assertEquals(128 * 128 * 4 + 200 * 200 * 4, pool.getBytes());
+
+        pool.clear();
+        verify(small2).recycle();
+        verify(large).recycle();
+        assertEquals(0, pool.getBytes());
+    }
+}
@@ -0,0 +1,87 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests that a bulk mutation rejects invalid arguments, and reports the documents of the batches that fail
+ * @see BulkMutation
+ */
+public class BulkMutationTest {
+    private static final String COLLECTION = "Things";
+    private static final int DOCUMENTS = 4;
+    private static final int BATCH_SIZE = 2;
+
+    private LocalDatabase local;
+
+    @Before
+    public void createDocuments() {
+        local = new LocalDatabase();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            String id = "doc" + i;
+            assertTrue(local.<Boolean>await(done -> local.backend.set(COLLECTION, id, Collections.singletonMap("value", 0L), done)));
+        }
+    }
+
+    @After
+    public void close() {
+        local.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroParallelismIsRejected() {
+        new BulkMutation(local.backend, null, 10, BATCH_SIZE, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeRetriesAreRejected() {
+        new BulkMutation(local.backend, null, 10, BATCH_SIZE, 1, -1);
+    }
+
+    /**
+     * One document is deleted after it is read. Its batch must fail whole, and both of its documents be reported
+     */
+    @Test
+    public void testFailedBatchReportsItsDocuments() {
+        List<Backend.Document> docs = local.await(done -> local.backend.query(Backend.Query.of(COLLECTION)
+                .orderBy(Backend.DOCUMENT_ID, false), (d, success) -> done.accept(d)));
+        assertEquals(DOCUMENTS, docs.size());
+        assertTrue(local.<Boolean>await(done -> local.backend.delete(COLLECTION, "doc0", done)));
+
+        BulkMutation mutation = new BulkMutation(local.backend, null, 10, BATCH_SIZE, 1, 0);
+        boolean[] success = new boolean[1];
+        BulkMutation.Result result = local.await(done -> mutation.apply(docs, BulkMutation.update("value", 1L), (r, s) -> {
+            success[0] = s;
+            done.accept(r);
+        }));
+
+        assertFalse(success[0]);
+        assertEquals(DOCUMENTS, result.matched);
+        assertEquals(DOCUMENTS - BATCH_SIZE, result.changed);
+        assertEquals(BATCH_SIZE, result.failed);
+        assertEquals(1, result.failedBatches);
+        Set<String> failed = new HashSet<>();
+        for (Backend.Document d : result.failedDocuments) failed.add(d.id);
+        Set<String> firstBatch = new HashSet<>();
+        for (Backend.Document d : docs.subList(0, BATCH_SIZE)) firstBatch.add(d.id);
+        assertEquals(firstBatch, failed);
+        List<String> changed = new ArrayList<>();
+        for (Backend.Document d : docs.subList(BATCH_SIZE, DOCUMENTS)) {
+            if (Long.valueOf(1L).equals(local.<Backend.Document>await(done -> local.backend.get(COLLECTION, d.id, true, (doc, s) -> done.accept(doc))).get("value"))) {
+                changed.add(d.id);
+            }
+        }
+        assertEquals(DOCUMENTS - BATCH_SIZE, changed.size());
+    }
+}
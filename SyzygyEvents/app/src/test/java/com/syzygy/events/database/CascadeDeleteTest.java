@@ -0,0 +1,38 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests which cascaded collections are deleted without loading their instances
+ * @see CascadeDelete
+ */
+public class CascadeDeleteTest {
+
+    @Test
+    public void testLeavesDeleteWithoutInstances() {
+        assertTrue(CascadeDelete.deletesWithoutInstances(Database.Collections.EVENT_ASSOCIATIONS));
+        assertTrue(CascadeDelete.deletesWithoutInstances(Database.Collections.NOTIFICATIONS));
+    }
+
+    /**
+     * Events cascade to their associations and poster, so they must still be deleted through their instances
+     */
+    @Test
+    public void testCascadingCollectionsNeedInstances() {
+        assertFalse(CascadeDelete.deletesWithoutInstances(Database.Collections.EVENTS));
+        assertFalse(CascadeDelete.deletesWithoutInstances(Database.Collections.USERS));
+        assertFalse(CascadeDelete.deletesWithoutInstances(Database.Collections.FACILITIES));
+        assertFalse(CascadeDelete.deletesWithoutInstances(Database.Collections.IMAGES));
+    }
+
+    /**
+     * Chunks that also move the counts of events must fit in one transaction
+     */
+    @Test
+    public void testCountedChunksFitATransaction() {
+        assertTrue(2 * CascadeDelete.COUNTED_CHUNK_SIZE <= ChunkedCommitter.MAX_BATCH_OPERATIONS);
+    }
+}
@@ -0,0 +1,160 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Tests the chunked commit against a sink that simulates the latency of a write batch
+ * @see ChunkedCommitter
+ */
+public class ChunkedCommitterTest {
+
+    private static final long LATENCY_MILLIS = 20;
+
+    private static List<Integer> items(int n){
+        List<Integer> list = new ArrayList<>(n);
+        for(int i = 0; i < n; i++) list.add(i);
+        return list;
+    }
+
+    /**
+     * A sink that completes each chunk after a delay on another thread, recording how many chunks were in flight at once
+     */
+    private static class DelayedSink implements ChunkedCommitter.Sink<Integer> {
+        private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(8);
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+        private final Set<Integer> failing;
+
+        DelayedSink(Set<Integer> failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        public void commit(List<Integer> chunk, Consumer<Boolean> onComplete) {
+            int now = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(now, Math::max);
+            boolean success = !failing.contains(chunk.get(0));
+            executor.schedule(() -> {
+                inFlight.decrementAndGet();
+                onComplete.accept(success);
+            }, LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static ChunkedCommitter.Result<Integer> commit(ChunkedCommitter<Integer> committer, List<Integer> items, DelayedSink sink) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<ChunkedCommitter.Result<Integer>> result = new AtomicReference<>();
+        AtomicInteger chunks = new AtomicInteger();
+        committer.commit(items, sink, new ChunkedCommitter.Listener<Integer>() {
+            @Override
+            public void onChunk(int index, boolean success) {
+                chunks.incrementAndGet();
+            }
+
+            @Override
+            public void onComplete(ChunkedCommitter.Result<Integer> r) {
+                result.set(r);
+                latch.countDown();
+            }
+        });
+        if(!latch.await(30, TimeUnit.SECONDS)) fail("Commit timed out");
+        sink.executor.shutdown();
+        assertEquals(result.get().chunks, chunks.get());
+        return result.get();
+    }
+
+    @Test
+    public void testAllCommitted() throws InterruptedException {
+        List<Integer> items = items(1234);
+        DelayedSink sink = new DelayedSink(new HashSet<>());
+        ChunkedCommitter.Result<Integer> r = commit(new ChunkedCommitter<>(500, 4), items, sink);
+        assertEquals(3, r.chunks);
+        assertEquals(0, r.failedChunks);
+        assertEquals(items, r.committed);
+        assertTrue(r.failed.isEmpty());
+    }
+
+    @Test
+    public void testFailedChunksArePartitioned() throws InterruptedException {
+        List<Integer> items = items(1000);
+        Set<Integer> failing = new HashSet<>();
+        failing.add(200);
+        failing.add(700);
+        DelayedSink sink = new DelayedSink(failing);
+        ChunkedCommitter.Result<Integer> r = commit(new ChunkedCommitter<>(100, 3), items, sink);
+        assertEquals(10, r.chunks);
+        assertEquals(2, r.failedChunks);
+        assertEquals(800, r.committed.size());
+        assertEquals(200, r.failed.size());
+        assertTrue(r.failed.contains(250));
+        assertTrue(r.failed.contains(799));
+        assertTrue(!r.committed.contains(200));
+    }
+
+    /**
+     * A sink whose chunks fail a number of times before they are written
+     */
+    private static class FlakySink extends DelayedSink {
+        private final Map<Integer, AtomicInteger> failures = new ConcurrentHashMap<>();
+        private final int failuresPerChunk;
+
+        FlakySink(int failuresPerChunk) {
+            super(new HashSet<>());
+            this.failuresPerChunk = failuresPerChunk;
+        }
+
+        @Override
+        public void commit(List<Integer> chunk, Consumer<Boolean> onComplete) {
+            int failed = failures.computeIfAbsent(chunk.get(0), k -> new AtomicInteger()).getAndIncrement();
+            super.commit(chunk, success -> onComplete.accept(success && failed >= failuresPerChunk));
+        }
+    }
+
+    @Test
+    public void testFailedChunksAreRetried() throws InterruptedException {
+        List<Integer> items = items(1000);
+        ChunkedCommitter.Result<Integer> r = commit(new ChunkedCommitter<>(100, 3, 2), items, new FlakySink(2));
+        assertEquals(10, r.chunks);
+        assertEquals(0, r.failedChunks);
+        assertEquals(20, r.retries);
+        assertEquals(items.size(), r.committed.size());
+
+        r = commit(new ChunkedCommitter<>(100, 3, 1), items, new FlakySink(2));
+        assertEquals(10, r.failedChunks);
+        assertEquals(10, r.retries);
+        assertTrue(r.committed.isEmpty());
+    }
+
+    @Test
+    public void testParallelismIsBounded() throws InterruptedException {
+        DelayedSink sink = new DelayedSink(new HashSet<>());
+        commit(new ChunkedCommitter<>(10, 4), items(500), sink);
+        assertEquals(4, sink.maxInFlight.get());
+    }
+
+    @Test
+    public void testEmpty() throws InterruptedException {
+        DelayedSink sink = new DelayedSink(new HashSet<>());
+        ChunkedCommitter.Result<Integer> r = commit(new ChunkedCommitter<>(500, 4), items(0), sink);
+        assertEquals(0, r.chunks);
+        assertEquals(0, sink.maxInFlight.get());
+    }
+}
@@ -0,0 +1,110 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.syzygy.events.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that changes to an instance are merged into one partial write, and that the snapshots echoing it do not update the instance
+ * @see Database#edit(Runnable)
+ * @see Database#flushWrites()
+ */
+public class CoalescedWriteTest {
+
+    private FailingBackend backend;
+    private LocalDatabase local;
+    private User user;
+
+    @Before
+    public void createUser() {
+        backend = new FailingBackend();
+        local = new LocalDatabase(backend);
+        user = local.createUser("user");
+    }
+
+    @After
+    public void close() {
+        local.close();
+    }
+
+    /**
+     * Makes several changes in one edit. They must be written once, and the echo of that write must not notify the user's listeners
+     */
+    @Test
+    public void testEditIsOneWrite() {
+        final AtomicInteger updates = new AtomicInteger();
+        local.run(() -> {
+            local.db.getMetrics().reset();
+            user.addListener(new Database.UpdateListener() {
+                @Override
+                public <T extends DatabaseInstance<T>> void onUpdate(DatabaseInstance<T> instance, Type type) {
+                    if (type == Type.UPDATE) updates.incrementAndGet();
+                }
+            });
+            local.db.edit(() -> {
+                user.setName("first");
+                user.setName("second");
+                user.setDescription("edited");
+                user.setPhoneNumber("0987654321");
+            });
+        });
+        //Let the echo of the write arrive
+        local.settle();
+
+        DatabaseMetrics.Snapshot s = local.db.getMetrics().snapshot();
+        assertEquals(1, s.get(Database.Collections.USERS, DatabaseMetrics.Operation.WRITE));
+        assertEquals(3, s.getWritesCoalesced());
+        assertTrue(s.getEchoesSuppressed() >= 1);
+        //The changes are notified together, and the echo not at all
+        assertEquals(1, updates.get());
+
+        Backend.Document doc = local.read(Database.Collections.USERS, user.getDocumentID());
+        assertEquals("second", doc.getString(local.name(R.string.database_user_name)));
+        assertEquals("edited", doc.getString(local.name(R.string.database_user_description)));
+    }
+
+    /**
+     * A write that fails must not mark its changes as written. They must be held and sent with the next write
+     */
+    @Test
+    public void testFailedWriteIsSentAgain() {
+        backend.failWrites = true;
+        boolean written = local.await(done -> {
+            user.setName("lost");
+            local.db.flushWrites(done);
+        });
+        assertFalse(written);
+        assertTrue(local.call(() -> local.db.hasPendingWrite(user)));
+        String name = local.name(R.string.database_user_name);
+        assertEquals("testName", local.read(Database.Collections.USERS, user.getDocumentID()).getString(name));
+
+        backend.failWrites = false;
+        assertTrue(local.<Boolean>await(done -> local.db.flushWrites(done)));
+        assertEquals("lost", local.read(Database.Collections.USERS, user.getDocumentID()).getString(name));
+    }
+
+    /**
+     * Changes made within the write window are merged without an explicit edit
+     */
+    @Test
+    public void testWindowIsOneWrite() {
+        local.run(() -> {
+            local.db.getMetrics().reset();
+            local.db.setWriteWindow(500);
+            user.setName("windowed");
+            user.setDescription("windowed");
+        });
+        local.await(done -> local.backend.post(() -> done.accept(null), 1000));
+        DatabaseMetrics.Snapshot s = local.db.getMetrics().snapshot();
+        assertEquals(1, s.get(Database.Collections.USERS, DatabaseMetrics.Operation.WRITE));
+        assertEquals(1, s.getWritesCoalesced());
+    }
+}
@@ -0,0 +1,96 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the counts, snapshots and exporters of the database metrics
+ * @see DatabaseMetrics
+ */
+public class DatabaseMetricsTest {
+
+    @Test
+    public void testCounts() {
+        DatabaseMetrics m = new DatabaseMetrics(() -> 3, () -> 7);
+        m.count(Database.Collections.USERS, DatabaseMetrics.Operation.READ, 2);
+        m.count(Database.Collections.EVENTS, DatabaseMetrics.Operation.READ, 5);
+        m.count(Database.Collections.EVENTS, DatabaseMetrics.Operation.WRITE, 1);
+        m.count(null, DatabaseMetrics.Operation.DELETE, 1);
+        m.cacheHit();
+        m.cacheHit();
+        m.cacheHit();
+        m.cacheMiss();
+        m.cacheEviction();
+        m.listenerAdded();
+        m.listenerAdded();
+        m.listenerRemoved();
+        m.writeCoalesced();
+        m.writeCoalesced();
+        m.echoSuppressed();
+        m.updateBatch();
+        m.updateCollapsed();
+        m.updateCollapsed();
+        m.watchesDeferred(3);
+
+        DatabaseMetrics.Snapshot s = m.snapshot();
+        assertEquals(2, s.get(Database.Collections.USERS, DatabaseMetrics.Operation.READ));
+        assertEquals(5, s.get(Database.Collections.EVENTS, DatabaseMetrics.Operation.READ));
+        assertEquals(7, s.total(DatabaseMetrics.Operation.READ));
+        assertEquals(1, s.total(DatabaseMetrics.Operation.WRITE));
+        assertEquals(0, s.total(DatabaseMetrics.Operation.DELETE));
+        assertEquals(3, s.getCacheHits());
+        assertEquals(1, s.getCacheMisses());
+        assertEquals(1, s.getCacheEvictions());
+        assertEquals(0.75, s.getCacheHitRate(), 0);
+        assertEquals(3, s.getLiveInstances());
+        assertEquals(7, s.getReferences());
+        assertEquals(2, s.getListenerRegistrations());
+        assertEquals(1, s.getActiveListeners());
+        assertEquals(2, s.getWritesCoalesced());
+        assertEquals(1, s.getEchoesSuppressed());
+        assertEquals(1, s.getUpdateBatches());
+        assertEquals(2, s.getUpdatesCollapsed());
+        assertEquals(3, s.getWatchesDeferred());
+
+        m.reset();
+        s = m.snapshot();
+        assertEquals(0, s.total(DatabaseMetrics.Operation.READ));
+        assertEquals(0, s.getCacheHits());
+        assertEquals(0, s.getListenerRegistrations());
+        assertEquals(0, s.getWritesCoalesced());
+        assertEquals(0, s.getUpdatesCollapsed());
+        assertEquals(0, s.getWatchesDeferred());
+        assertEquals(1, s.getActiveListeners());
+    }
+
+    @Test
+    public void testTimers() {
+        DatabaseMetrics m = new DatabaseMetrics(() -> 0, () -> 0);
+        m.stop(DatabaseMetrics.Timer.GET_INSTANCE, m.start());
+        m.stop(DatabaseMetrics.Timer.GET_INSTANCE, m.start());
+        m.stop(DatabaseMetrics.Timer.LOTTERY_EXECUTE, m.start());
+        DatabaseMetrics.Snapshot s = m.snapshot();
+        assertEquals(2, s.getLatency(DatabaseMetrics.Timer.GET_INSTANCE).getCount());
+        assertEquals(1, s.getLatency(DatabaseMetrics.Timer.LOTTERY_EXECUTE).getCount());
+        assertEquals(0, s.getLatency(DatabaseMetrics.Timer.QUERY_REFRESH).getCount());
+    }
+
+    @Test
+    public void testExporters() {
+        DatabaseMetrics m = new DatabaseMetrics(() -> 0, () -> 0);
+        List<DatabaseMetrics.Snapshot> exported = new ArrayList<>();
+        DatabaseMetrics.Exporter exporter = exported::add;
+        m.addExporter(exporter);
+        DatabaseMetrics.Snapshot s = m.export();
+        assertEquals(1, exported.size());
+        assertSame(s, exported.get(0));
+        m.removeExporter(exporter);
+        m.export();
+        assertEquals(1, exported.size());
+    }
+}
@@ -0,0 +1,119 @@
+package com.syzygy.events.database;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * An in-memory backend whose operations can be made to fail, as they would if the device were offline or a write contended
+ */
+class FailingBackend extends InMemoryBackend {
+
+    /**
+     * If transactions fail without being run
+     */
+    volatile boolean failTransactions = false;
+    /**
+     * If batches fail without being applied
+     */
+    volatile boolean failBatches = false;
+    /**
+     * If single document writes fail without being applied
+     */
+    volatile boolean failWrites = false;
+    /**
+     * If snapshot listeners error instead of receiving snapshots
+     */
+    volatile boolean failListeners = false;
+    /**
+     * The registered listeners and their registrations
+     */
+    private final Map<BiConsumer<Snapshot, Boolean>, Registration> listening = new ConcurrentHashMap<>();
+
+    /**
+     * Makes every registered listener error and receive nothing more, as it would if its query were rejected
+     */
+    void breakListeners(){
+        post(() -> listening.forEach((l, registration) -> {
+            listening.remove(l);
+            registration.remove();
+            l.accept(null, false);
+        }), 0);
+    }
+
+    @Override
+    public void set(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener) {
+        if(failWrites){
+            post(() -> listener.accept(false), 0);
+            return;
+        }
+        super.set(collection, id, data, listener);
+    }
+
+    @Override
+    public void update(String collection, String id, Map<String, Object> data, Consumer<Boolean> listener) {
+        if(failWrites){
+            post(() -> listener.accept(false), 0);
+            return;
+        }
+        super.update(collection, id, data, listener);
+    }
+
+    @Override
+    public Registration listen(Query query, BiConsumer<Snapshot, Boolean> listener) {
+        if(failListeners){
+            post(() -> listener.accept(null, false), 0);
+            return () -> {};
+        }
+        Registration registration = super.listen(query, listener);
+        listening.put(listener, registration);
+        return () -> {
+            listening.remove(listener);
+            registration.remove();
+        };
+    }
+
+    @Override
+    public <R> void runTransaction(int maxAttempts, Function<Transaction, R> function, BiConsumer<R, Boolean> listener) {
+        if(failTransactions){
+            post(() -> listener.accept(null, false), 0);
+            return;
+        }
+        super.runTransaction(maxAttempts, function, listener);
+    }
+
+    @Override
+    public Batch batch() {
+        Batch batch = super.batch();
+        return new Batch() {
+            @Override
+            public Batch set(String collection, String id, Map<String, Object> data) {
+                batch.set(collection, id, data);
+                return this;
+            }
+
+            @Override
+            public Batch update(String collection, String id, Map<String, Object> data) {
+                batch.update(collection, id, data);
+                return this;
+            }
+
+            @Override
+            public Batch delete(String collection, String id) {
+                batch.delete(collection, id);
+                return this;
+            }
+
+            @Override
+            public void commit(Consumer<Boolean> listener) {
+                if(failBatches){
+                    post(() -> listener.accept(false), 0);
+                    return;
+                }
+                batch.commit(listener);
+            }
+        };
+    }
+}
@@ -0,0 +1,33 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests the sizing of the image caches by device
+ * @see ImagePipeline
+ */
+public class ImagePipelineTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testMemoryCacheBytes(){
+        assertEquals(256 * MB / 6, ImagePipeline.memoryCacheBytes(256, false));
+        assertEquals(64 * MB / 12, ImagePipeline.memoryCacheBytes(64, true));
+    }
+
+    @Test
+    public void testPoolBytes(){
+        assertEquals(8 * MB, ImagePipeline.poolBytes(256, false));
+        assertEquals(MB, ImagePipeline.poolBytes(256, true));
+    }
+
+    @Test
+    public void testDiskCacheBytes(){
+        assertEquals(5 * MB, ImagePipeline.diskCacheBytes(10 * MB));
+        assertEquals(20 * MB, ImagePipeline.diskCacheBytes(1000 * MB));
+        assertEquals(50 * MB, ImagePipeline.diskCacheBytes(100_000 * MB));
+    }
+}
@@ -0,0 +1,57 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the sizing of image variants and the choice of variant to load
+ * @see ImageVariants
+ */
+public class ImageVariantsTest {
+
+    @Test
+    public void testSampleSize(){
+        assertEquals(1, ImageVariants.sampleSize(1000, 800, ImageVariants.DECODE_SIZE));
+        assertEquals(1, ImageVariants.sampleSize(4095, 3000, ImageVariants.DECODE_SIZE));
+        assertEquals(2, ImageVariants.sampleSize(4096, 3072, ImageVariants.DECODE_SIZE));
+        assertEquals(1, ImageVariants.sampleSize(3000, 4032, ImageVariants.DECODE_SIZE));
+        assertEquals(4, ImageVariants.sampleSize(8192, 6144, ImageVariants.DECODE_SIZE));
+    }
+
+    @Test
+    public void testScaledDimensions(){
+        assertArrayEquals(new int[]{128, 128}, ImageVariants.scaledDimensions(2048, 2048, 128));
+        assertArrayEquals(new int[]{171, 128}, ImageVariants.scaledDimensions(2048, 1536, 128));
+        assertArrayEquals(new int[]{256, 341}, ImageVariants.scaledDimensions(1536, 2048, 256));
+        assertArrayEquals(new int[]{100, 80}, ImageVariants.scaledDimensions(100, 80, 128));
+    }
+
+    @Test
+    public void testSelect(){
+        Map<String, Object> variants = new HashMap<>();
+        variants.put(ImageVariants.key(Image.Options.Sizes.ICON), "icon");
+        variants.put(ImageVariants.key(Image.Options.Sizes.MEDIUM), "medium");
+
+        assertEquals("icon", ImageVariants.select(variants, "full", Image.Options.Sizes.ICON));
+        assertEquals("icon", ImageVariants.select(variants, "full", 64));
+        //The small variant failed to upload, so the next larger one is used
+        assertEquals("medium", ImageVariants.select(variants, "full", Image.Options.Sizes.SMALL));
+        assertEquals("full", ImageVariants.select(variants, "full", Image.Options.Sizes.LARGE));
+        assertEquals("full", ImageVariants.select(variants, "full", 1000));
+        assertEquals("full", ImageVariants.select(variants, "full", -1));
+        assertEquals("full", ImageVariants.select(null, "full", Image.Options.Sizes.ICON));
+    }
+
+    @Test
+    public void testOptionsSize(){
+        assertEquals(Image.Options.Sizes.ICON, Image.Options.Circle(Image.Options.Sizes.ICON).getSize());
+        assertEquals(300, new Image.Options(300, 200, false).getSize());
+        assertEquals(-1, Image.Options.LargestCircle().getSize());
+        assertEquals(-1, Image.Options.AsIs().getSize());
+    }
+}
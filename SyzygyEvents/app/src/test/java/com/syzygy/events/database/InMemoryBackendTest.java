@@ -0,0 +1,248 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Tests that the in-memory backend behaves as Firestore does
+ * @see InMemoryBackend
+ */
+public class InMemoryBackendTest {
+
+    private static final String USERS = "users";
+
+    private final InMemoryBackend backend = new InMemoryBackend();
+
+    @After
+    public void shutdown(){
+        backend.shutdown();
+    }
+
+    private static Map<String, Object> data(Object... pairs){
+        Map<String, Object> map = new HashMap<>();
+        for(int i = 0; i < pairs.length; i += 2){
+            map.put((String) pairs[i], pairs[i + 1]);
+        }
+        return map;
+    }
+
+    /**
+     * Starts an operation and waits for its result
+     */
+    private static <T> T await(Consumer<Consumer<T>> operation) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<T> result = new AtomicReference<>();
+        operation.accept(r -> {
+            result.set(r);
+            latch.countDown();
+        });
+        if(!latch.await(10, TimeUnit.SECONDS)) fail("Operation timed out");
+        return result.get();
+    }
+
+    private void set(String id, Map<String, Object> data) throws InterruptedException {
+        assertTrue(await(l -> backend.set(USERS, id, data, l)));
+    }
+
+    private Backend.Document get(String id) throws InterruptedException {
+        return InMemoryBackendTest.<Backend.Document>await(l -> backend.get(USERS, id, true, (doc, s) -> l.accept(doc)));
+    }
+
+    private List<String> ids(Backend.Query query) throws InterruptedException {
+        List<Backend.Document> docs = InMemoryBackendTest.<List<Backend.Document>>await(l -> backend.query(query, (d, s) -> l.accept(d)));
+        List<String> ids = new ArrayList<>();
+        for(Backend.Document d : docs) ids.add(d.id);
+        return ids;
+    }
+
+    @Test
+    public void testDocuments() throws InterruptedException {
+        assertFalse(get("a").exists());
+        set("a", data("name", "A", "age", 3));
+        assertEquals("A", get("a").get("name"));
+        assertEquals(3L, get("a").get("age"));
+
+        assertTrue(await(l -> backend.update(USERS, "a", data("age", Backend.increment(2)), l)));
+        assertEquals(5L, get("a").get("age"));
+        assertEquals("A", get("a").get("name"));
+        assertFalse(await(l -> backend.update(USERS, "missing", data("age", 1), l)));
+
+        assertTrue(await(l -> backend.delete(USERS, "a", l)));
+        assertFalse(get("a").exists());
+    }
+
+    @Test
+    public void testQueries() throws InterruptedException {
+        set("a", data("role", "admin", "age", 30));
+        set("b", data("role", "user", "age", 20));
+        set("c", data("role", "user", "age", 40));
+        set("d", data("role", "user"));
+
+        assertEquals(Arrays.asList("b", "c", "d"), ids(Backend.Query.of(USERS).whereEqualTo("role", "user")));
+        assertEquals(Arrays.asList("a"), ids(Backend.Query.of(USERS).whereNotEqualTo("role", "user")));
+        assertEquals(Arrays.asList("a", "c"), ids(Backend.Query.of(USERS).whereIn(Backend.DOCUMENT_ID, Arrays.asList("c", "a", "x"))));
+
+        Backend.Query byAge = Backend.Query.of(USERS).orderBy("age", true);
+        assertEquals(Arrays.asList("c", "a", "b"), ids(byAge));
+        assertEquals(Arrays.asList("c", "a"), ids(byAge.limit(2)));
+        Backend.Document a = get("a");
+        assertEquals(Arrays.asList("b"), ids(byAge.startAfter(a)));
+
+        assertEquals(Long.valueOf(3), InMemoryBackendTest.<Long>await(l -> backend.count(Backend.Query.of(USERS).whereEqualTo("role", "user"), (c, s) -> l.accept(c))));
+    }
+
+    @Test
+    public void testBatchIsAtomic() throws InterruptedException {
+        set("a", data("n", 1));
+        assertFalse(await(l -> backend.batch()
+                .set(USERS, "b", data("n", 2))
+                .update(USERS, "missing", data("n", 3))
+                .commit(l)));
+        assertFalse(get("b").exists());
+
+        assertTrue(await(l -> backend.batch()
+                .set(USERS, "b", data("n", 2))
+                .update(USERS, "a", data("n", Backend.increment(10)))
+                .commit(l)));
+        assertEquals(2L, get("b").get("n"));
+        assertEquals(11L, get("a").get("n"));
+    }
+
+    @Test
+    public void testTransactions() throws InterruptedException {
+        set("a", data("n", 0));
+        int concurrent = 50;
+        CountDownLatch latch = new CountDownLatch(concurrent);
+        for(int i = 0; i < concurrent; i++){
+            backend.runTransaction(t -> {
+                long n = (Long) t.get(USERS, "a").get("n");
+                t.update(USERS, "a", data("n", n + 1));
+                return n;
+            }, (r, s) -> {
+                assertTrue(s);
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals((long) concurrent, get("a").get("n"));
+
+        Object result = InMemoryBackendTest.await(l -> backend.runTransaction(t -> {
+            t.set(USERS, "b", data("n", 1));
+            throw new IllegalStateException("abort");
+        }, (r, s) -> l.accept(s)));
+        assertEquals(false, result);
+        assertFalse(get("b").exists());
+    }
+
+    @Test
+    public void testListenerReceivesChangesInOrder() throws InterruptedException {
+        set("a", data("score", 1));
+        set("b", data("score", 2));
+        LinkedBlockingQueue<Backend.Snapshot> snapshots = new LinkedBlockingQueue<>();
+        Backend.Registration registration = backend.listen(Backend.Query.of(USERS).orderBy("score", false), (s, success) -> snapshots.add(s));
+
+        Backend.Snapshot first = snapshots.poll(10, TimeUnit.SECONDS);
+        assertEquals(2, first.changes.size());
+        assertEquals(Backend.Change.Type.ADDED, first.changes.get(0).type);
+
+        set("c", data("score", 0));
+        Backend.Change added = snapshots.poll(10, TimeUnit.SECONDS).changes.get(0);
+        assertEquals(Backend.Change.Type.ADDED, added.type);
+        assertEquals(0, added.newIndex);
+
+        set("c", data("score", 5));
+        Backend.Snapshot moved = snapshots.poll(10, TimeUnit.SECONDS);
+        assertEquals(1, moved.changes.size());
+        assertEquals(Backend.Change.Type.MODIFIED, moved.changes.get(0).type);
+        assertEquals(0, moved.changes.get(0).oldIndex);
+        assertEquals(2, moved.changes.get(0).newIndex);
+
+        assertTrue(await(l -> backend.delete(USERS, "a", l)));
+        Backend.Change removed = snapshots.poll(10, TimeUnit.SECONDS).changes.get(0);
+        assertEquals(Backend.Change.Type.REMOVED, removed.type);
+        assertEquals(0, removed.oldIndex);
+
+        registration.remove();
+        set("d", data("score", 9));
+        assertNull(snapshots.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Applying the reported changes in order to the old results must give the new results
+     */
+    @Test
+    public void testDiffReproducesResults() {
+        List<Backend.Document> old = new ArrayList<>();
+        for(String id : new String[]{"a", "b", "c", "d", "e"}) old.add(new Backend.Document(USERS, id, data("v", 0)));
+        List<Backend.Document> next = Arrays.asList(
+                new Backend.Document(USERS, "e", data("v", 1)),
+                new Backend.Document(USERS, "b", data("v", 0)),
+                new Backend.Document(USERS, "x", data("v", 0)),
+                new Backend.Document(USERS, "a", data("v", 1)),
+                new Backend.Document(USERS, "d", data("v", 0))
+        );
+        List<Backend.Document> applied = new ArrayList<>(old);
+        for(Backend.Change c : InMemoryBackend.diff(old, next)){
+            if(c.oldIndex >= 0) assertEquals(c.document.id, applied.remove(c.oldIndex).id);
+            if(c.newIndex >= 0) applied.add(c.newIndex, c.document);
+        }
+        List<String> ids = new ArrayList<>();
+        for(Backend.Document d : applied) ids.add(d.id);
+        assertEquals(Arrays.asList("e", "b", "x", "a", "d"), ids);
+    }
+
+    @Test
+    public void testFiles() throws InterruptedException {
+        String url = await(l -> backend.putFile("images/a.jpg", "content://a", l));
+        assertTrue(url.endsWith("images/a.jpg"));
+        assertTrue(backend.hasFile("images/a.jpg"));
+        assertTrue(await(l -> backend.deleteFile("images/a.jpg", l)));
+        assertFalse(await(l -> backend.deleteFile("images/a.jpg", l)));
+
+        url = await(l -> backend.putBytes("images/a.jpg_128", new byte[16], "image/webp", l));
+        assertTrue(url.endsWith("images/a.jpg_128"));
+        assertTrue(backend.hasFile("images/a.jpg_128"));
+    }
+
+    /**
+     * Operations started together complete together after the latency, in the order they were started
+     */
+    @Test
+    public void testLatency() throws InterruptedException {
+        backend.setLatency(100);
+        int operations = 20;
+        List<Integer> order = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(operations);
+        long start = System.nanoTime();
+        for(int i = 0; i < operations; i++){
+            final int index = i;
+            backend.set(USERS, "u" + i, data("n", i), s -> {
+                order.add(index);
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 100);
+        assertTrue("Operations should overlap, took " + elapsed + "ms", elapsed < 100L * operations / 2);
+        for(int i = 0; i < operations; i++) assertEquals(i, (int) order.get(i));
+        assertEquals(operations, backend.getWrites());
+    }
+}
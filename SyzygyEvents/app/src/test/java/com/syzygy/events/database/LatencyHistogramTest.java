@@ -0,0 +1,60 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the buckets and percentiles of the latency histogram
+ * @see LatencyHistogram
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for(long v = 0; v < LatencyHistogram.SUB_BUCKET_COUNT; v++){
+            assertEquals(v, LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(v)));
+        }
+        long[] values = {32, 33, 63, 64, 1000, 123_456_789L, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for(long v : values){
+            int bucket = LatencyHistogram.bucketOf(v);
+            long high = LatencyHistogram.highestValueOf(bucket);
+            assertTrue(v + " above its bucket", high >= v);
+            assertTrue(v + " below its bucket", bucket == 0 || LatencyHistogram.highestValueOf(bucket - 1) < v);
+            assertTrue(v + " imprecise", high - v <= v / LatencyHistogram.SUB_BUCKETS_PER_MAGNITUDE);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for(long v = 1; v <= 1000; v++){
+            h.record(v * 1000);
+        }
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(1000, s.getCount());
+        assertEquals(1_000_000, s.getMax());
+        assertEquals(500_500, s.getMean(), 0.5);
+        assertEquals(500_000, s.getValueAtPercentile(50), 500_000 / LatencyHistogram.SUB_BUCKETS_PER_MAGNITUDE);
+        assertEquals(990_000, s.getValueAtPercentile(99), 990_000 / LatencyHistogram.SUB_BUCKETS_PER_MAGNITUDE);
+        assertEquals(1_000_000, s.getValueAtPercentile(100));
+        assertEquals(1000, s.getValueAtPercentile(0), 1000 / LatencyHistogram.SUB_BUCKETS_PER_MAGNITUDE);
+    }
+
+    @Test
+    public void testEmptyAndReset() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.snapshot().getValueAtPercentile(50));
+        h.record(-5);
+        h.record(40);
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(2, s.getCount());
+        assertEquals(0, s.getValueAtPercentile(50));
+        h.reset();
+        s = h.snapshot();
+        assertEquals(0, s.getCount());
+        assertEquals(0, s.getMax());
+        assertEquals(0, s.getMean(), 0);
+    }
+}
@@ -0,0 +1,129 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that a live query applies changes to its instances in place
+ * @see DatabaseQuery#listen(DatabaseQuery.ChangeListener, Database.Querrier.Listener)
+ */
+public class LiveQueryTest {
+    private static final int NOTIFICATIONS = 3;
+
+    private FailingBackend backend;
+    private LocalDatabase local;
+    private User testUser;
+
+    @Before
+    public void createUser() {
+        backend = new FailingBackend();
+        local = new LocalDatabase(backend);
+        testUser = local.createUser("user");
+    }
+
+    @After
+    public void close() {
+        local.close();
+    }
+
+    /**
+     * Counts the changes passed to the listener
+     */
+    private static class CountingListener implements DatabaseQuery.ChangeListener<Notification> {
+        final AtomicInteger inserted = new AtomicInteger();
+        final AtomicInteger updated = new AtomicInteger();
+        final AtomicInteger removed = new AtomicInteger();
+        final AtomicInteger resets = new AtomicInteger();
+
+        @Override
+        public void onInserted(int index, Notification instance) {
+            inserted.incrementAndGet();
+        }
+
+        @Override
+        public void onUpdated(int index, Notification instance) {
+            updated.incrementAndGet();
+        }
+
+        @Override
+        public void onRemoved(int index, Notification instance) {
+            removed.incrementAndGet();
+        }
+
+        @Override
+        public void onReset() {
+            resets.incrementAndGet();
+        }
+
+        @Override
+        public void onChanged() {}
+    }
+
+    /**
+     * Adds, modifies and deletes notifications while listening. Each must arrive as a single change
+     */
+    @Test
+    public void testChangesAreAppliedInPlace() {
+        CountingListener changes = new CountingListener();
+        DatabaseInfLoadQuery<Notification> query = local.call(() -> new DatabaseInfLoadQuery<>(DatabaseQuery.getMyNotifications(local.db, testUser)));
+
+        boolean loaded = local.await(done -> query.listen(changes, (q, s) -> done.accept(s)));
+        assertTrue(loaded);
+        assertEquals(0, (int) local.call(() -> query.getInstances().size()));
+
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            final int n = i;
+            boolean created = local.await(done -> Notification.NewInstance(local.db, "Subject" + n, "Body", "", testUser.getDocumentID(), "", false, (instance, success) -> done.accept(success)));
+            assertTrue(created);
+            local.settle();
+        }
+        assertEquals(NOTIFICATIONS, changes.inserted.get());
+        assertEquals(NOTIFICATIONS, (int) local.call(() -> query.getInstances().size()));
+
+        Notification first = local.call(() -> query.getInstances().get(0));
+        local.run(() -> first.setIsRead(true));
+        local.settle();
+        assertTrue(changes.updated.get() >= 1);
+        assertEquals(NOTIFICATIONS, (int) local.call(() -> query.getInstances().size()));
+
+        assertTrue(local.<Boolean>await(done -> local.backend.delete(Database.Collections.NOTIFICATIONS.getCollectionID(), first.getDocumentID(), done)));
+        local.settle();
+        assertEquals(1, changes.removed.get());
+        assertEquals(NOTIFICATIONS - 1, (int) local.call(() -> query.getInstances().size()));
+        assertEquals(0, changes.resets.get());
+
+        local.run(query::dissolve);
+    }
+
+    /**
+     * The listener errors. The query must stop listening, fail the load, and read the page once instead
+     */
+    @Test
+    public void testFailedListenerRefreshesOnce() {
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            final int n = i;
+            assertTrue(local.<Boolean>await(done -> Notification.NewInstance(local.db, "Subject" + n, "Body", "", testUser.getDocumentID(), "", false, (instance, success) -> done.accept(success))));
+        }
+        local.settle();
+
+        CountingListener changes = new CountingListener();
+        DatabaseInfLoadQuery<Notification> query = local.call(() -> new DatabaseInfLoadQuery<>(DatabaseQuery.getMyNotifications(local.db, testUser)));
+        backend.failListeners = true;
+        boolean loaded = local.await(done -> query.listen(changes, (q, s) -> done.accept(s)));
+        assertFalse(loaded);
+        local.settle();
+
+        assertFalse(local.call(query::isLive));
+        assertEquals(1, changes.resets.get());
+        assertEquals(NOTIFICATIONS, (int) local.call(() -> query.getInstances().size()));
+
+        local.run(query::dissolve);
+    }
+}
@@ -0,0 +1,195 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.res.Resources;
+import android.net.Uri;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.GeoPoint;
+import com.syzygy.events.R;
+
+import java.lang.reflect.Field;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A database over an in-memory backend, for unit tests of the model.
+ * <p>
+ *     The app only uses the model on the thread its listeners are called on, so each step of a test is run on the thread
+ *     of the backend through {@link #run(Runnable)}, and asynchronous results are waited for with {@link #await(Consumer)}.
+ *     The resources map each string id to the name of its field in {@code R.string}.
+ * </p>
+ */
+final class LocalDatabase implements AutoCloseable {
+
+    private static final long TIMEOUT_SECONDS = 10;
+    /**
+     * How long {@link #settle()} waits for delayed work, such as held writes and snapshot listeners, to finish
+     */
+    private static final long SETTLE_MILLIS = 4 * Database.DEFAULT_WRITE_WINDOW_MILLIS;
+
+    final InMemoryBackend backend;
+    final Database db;
+
+    LocalDatabase(){
+        this(new InMemoryBackend());
+    }
+
+    /**
+     * @param backend The backend of the database
+     */
+    LocalDatabase(InMemoryBackend backend){
+        Map<Integer, String> strings = new HashMap<>();
+        for(Field f : R.string.class.getFields()){
+            try {
+                strings.put(f.getInt(null), f.getName());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        Resources resources = mock(Resources.class);
+        when(resources.getString(anyInt())).thenAnswer(i -> strings.get((Integer) i.getArgument(0)));
+        this.backend = backend;
+        this.db = new Database(resources, backend);
+    }
+
+    /**
+     * @param id The string id of a property
+     * @return The name of the property in the documents
+     */
+    String name(int id){
+        return db.constants.getString(id);
+    }
+
+    /**
+     * Runs a step on the thread of the backend and waits for it
+     * @param step The step
+     */
+    void run(Runnable step){
+        call(() -> {
+            step.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs a step on the thread of the backend and waits for its result
+     * @param step The step
+     * @return The result of the step
+     * @param <T> The type of result
+     */
+    <T> T call(Supplier<T> step){
+        return await(done -> done.accept(step.get()));
+    }
+
+    /**
+     * Runs a step on the thread of the backend and waits until it completes
+     * @param step The step, which is given the callback to complete with
+     * @return The value the step completed with
+     * @param <T> The type of value
+     */
+    <T> T await(Consumer<Consumer<T>> step){
+        AtomicReference<T> value = new AtomicReference<>();
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        assertTrue("The backend was shut down", backend.post(() -> {
+            try {
+                step.accept(v -> {
+                    value.set(v);
+                    latch.countDown();
+                });
+            } catch (Throwable t) {
+                thrown.set(t);
+                latch.countDown();
+            }
+        }, 0));
+        try {
+            if(!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) fail("Timed out");
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        if(thrown.get() instanceof RuntimeException) throw (RuntimeException) thrown.get();
+        if(thrown.get() instanceof Error) throw (Error) thrown.get();
+        if(thrown.get() != null) throw new AssertionError(thrown.get());
+        return value.get();
+    }
+
+    /**
+     * Waits until the work started so far, including held writes and the snapshots they cause, is done
+     */
+    void settle(){
+        await(done -> backend.post(() -> done.accept(null), SETTLE_MILLIS));
+        run(() -> {});
+    }
+
+    /**
+     * Creates a user and waits for its instance
+     * @param id The id of the user
+     * @return The user
+     */
+    User createUser(String id){
+        User user = await(done -> User.NewInstance(db, id, "testName", "TEST", null, "", "abc@xyz.com", "1234567890", false, false, false, (instance, success) -> {
+            assertTrue("User was not created", success);
+            done.accept(instance);
+        }));
+        settle();
+        return user;
+    }
+
+    /**
+     * Creates a facility and waits for its instance
+     * @param owner The owner of the facility
+     * @return The facility
+     */
+    Facility createFacility(User owner){
+        return await(done -> Facility.NewInstance(db, "Test", new GeoPoint(51.5074, 0.1278), "test", "test", null, owner.getDocumentID(), (instance, success) -> {
+            assertTrue("Facility was not created", success);
+            done.accept(instance);
+        }));
+    }
+
+    /**
+     * Creates an event whose waitlist is open and waits for its instance
+     * @param facility The facility of the event
+     * @param waitlistCapacity The capacity of the waitlist
+     * @return The event
+     */
+    Event createEvent(Facility facility, long waitlistCapacity){
+        long now = System.currentTimeMillis();
+        Event event = await(done -> Event.NewInstance(db, "Crowded Event", (Uri) null, facility.getDocumentID(), false, "Everyone wants in", 2L, waitlistCapacity, 0.0,
+                new Timestamp(new Date(now - 60 * 60 * 1000)), new Timestamp(new Date(now + 24 * 60 * 60 * 1000)),
+                new Timestamp(new Date(now + 48 * 60 * 60 * 1000)), new Timestamp(new Date(now + 49 * 60 * 60 * 1000)),
+                Event.Dates.NO_REPEAT, (instance, success) -> {
+                    assertTrue("Event was not created", success);
+                    done.accept(instance);
+                }));
+        settle();
+        return event;
+    }
+
+    /**
+     * Reads a stored document
+     * @param collection The collection of the document
+     * @param id The id of the document
+     * @return The document
+     */
+    Backend.Document read(Database.Collections collection, String id){
+        return await(done -> backend.get(collection.getCollectionID(), id, true, (doc, success) -> done.accept(doc)));
+    }
+
+    @Override
+    public void close() {
+        backend.shutdown();
+    }
+}
@@ -0,0 +1,175 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.GeoPoint;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the durability, limits and recovery of the local store
+ * @see LocalInstanceStore
+ */
+public class LocalInstanceStoreTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalInstanceStore open(File file, long maxBytes){
+        return new LocalInstanceStore(file, maxBytes, DAY, Runnable::run);
+    }
+
+    private static Map<String, Object> user(String name){
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", name);
+        data.put("admin", false);
+        data.put("count", 3L);
+        data.put("ratio", 0.5);
+        data.put("joined", new Timestamp(1_700_000_000L, 1234));
+        data.put("location", new GeoPoint(53.5, -113.5));
+        data.put("image", null);
+        data.put("tags", Arrays.asList("a", 1L));
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("k", "v");
+        data.put("nested", nested);
+        return data;
+    }
+
+    @Test
+    public void testSurvivesReopen() throws IOException {
+        File file = folder.newFile();
+        LocalInstanceStore store = open(file, LocalInstanceStore.DEFAULT_MAX_BYTES);
+        assertTrue(store.put("users/a", user("a")));
+        assertTrue(store.put("users/b", user("b")));
+        assertTrue(store.put("users/a", user("a2")));
+        store.remove("users/b");
+
+        LocalInstanceStore reopened = open(file, LocalInstanceStore.DEFAULT_MAX_BYTES);
+        assertEquals(1, reopened.size());
+        assertEquals(user("a2"), reopened.get("users/a"));
+        assertNull(reopened.get("users/b"));
+        assertEquals(store.getBytes(), reopened.getBytes());
+        assertEquals(1, reopened.getHits());
+        assertEquals(1, reopened.getMisses());
+    }
+
+    /**
+     * The log is read on the executor. Nothing is served until then, and changes made meanwhile win over what is read
+     */
+    @Test
+    public void testLoadsOnExecutor() throws IOException {
+        File file = folder.newFile();
+        LocalInstanceStore store = open(file, LocalInstanceStore.DEFAULT_MAX_BYTES);
+        store.put("users/a", user("a"));
+        store.put("users/b", user("b"));
+        store.put("users/c", user("c"));
+
+        List<Runnable> io = new ArrayList<>();
+        LocalInstanceStore reopened = new LocalInstanceStore(file, LocalInstanceStore.DEFAULT_MAX_BYTES, DAY, io::add);
+        boolean[] loaded = {false};
+        reopened.whenLoaded(Runnable::run, () -> loaded[0] = true);
+        assertFalse(reopened.isLoaded());
+        assertNull(reopened.get("users/a"));
+        reopened.put("users/a", user("a2"));
+        reopened.remove("users/b");
+
+        while(!io.isEmpty()) io.remove(0).run();
+        assertTrue(loaded[0]);
+        assertEquals(user("a2"), reopened.get("users/a"));
+        assertNull(reopened.get("users/b"));
+        assertEquals(user("c"), reopened.get("users/c"));
+
+        LocalInstanceStore again = open(file, LocalInstanceStore.DEFAULT_MAX_BYTES);
+        assertEquals(2, again.size());
+        assertEquals(reopened.getBytes(), again.getBytes());
+    }
+
+    @Test
+    public void testUnstorableValue() throws IOException {
+        LocalInstanceStore store = open(folder.newFile(), LocalInstanceStore.DEFAULT_MAX_BYTES);
+        store.put("users/a", user("a"));
+        Map<String, Object> data = user("a");
+        data.put("other", new Object());
+        assertFalse(store.put("users/a", data));
+        assertNull(store.get("users/a"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        File file = folder.newFile();
+        LocalInstanceStore store = open(file, LocalInstanceStore.DEFAULT_MAX_BYTES);
+        store.put("users/a", user("a"));
+        long size = store.getBytes();
+        store.setLimits(size * 2, DAY);
+        store.put("users/b", user("b"));
+        store.get("users/a");
+        store.put("users/c", user("c"));
+
+        assertEquals(2, store.size());
+        assertEquals(1, store.getEvictions());
+        assertNull(store.get("users/b"));
+        assertEquals(user("a"), store.get("users/a"));
+        assertEquals(user("c"), store.get("users/c"));
+
+        LocalInstanceStore reopened = open(file, size * 2);
+        assertEquals(2, reopened.size());
+        assertNull(reopened.get("users/b"));
+    }
+
+    @Test
+    public void testExpired() throws IOException {
+        LocalInstanceStore store = new LocalInstanceStore(folder.newFile(), LocalInstanceStore.DEFAULT_MAX_BYTES, -1, Runnable::run);
+        store.put("users/a", user("a"));
+        assertNull(store.get("users/a"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testTruncatedLog() throws IOException {
+        File file = folder.newFile();
+        LocalInstanceStore store = open(file, LocalInstanceStore.DEFAULT_MAX_BYTES);
+        store.put("users/a", user("a"));
+        store.put("users/b", user("b"));
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - 5);
+        }
+
+        LocalInstanceStore reopened = open(file, LocalInstanceStore.DEFAULT_MAX_BYTES);
+        assertEquals(1, reopened.size());
+        assertEquals(user("a"), reopened.get("users/a"));
+        reopened.put("users/c", user("c"));
+
+        LocalInstanceStore again = open(file, LocalInstanceStore.DEFAULT_MAX_BYTES);
+        assertEquals(2, again.size());
+        assertEquals(user("c"), again.get("users/c"));
+    }
+
+    @Test
+    public void testCompacts() throws IOException {
+        File file = folder.newFile();
+        LocalInstanceStore store = open(file, LocalInstanceStore.DEFAULT_MAX_BYTES);
+        for(int i = 0; i < 100; i++){
+            store.put("users/a", user("a" + i));
+        }
+        assertTrue(file.length() < 20 * store.getBytes());
+        LocalInstanceStore reopened = open(file, LocalInstanceStore.DEFAULT_MAX_BYTES);
+        assertEquals(user("a99"), reopened.get("users/a"));
+    }
+}
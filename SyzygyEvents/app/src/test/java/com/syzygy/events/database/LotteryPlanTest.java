@@ -0,0 +1,66 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests the lottery draw
+ * @see LotteryPlan
+ */
+public class LotteryPlanTest {
+
+    private static List<String> ids(String prefix, int n){
+        List<String> list = new ArrayList<>(n);
+        for(int i = 0; i < n; i++) list.add(prefix + i);
+        return list;
+    }
+
+    @Test
+    public void testDrawIsCompleteAndDistinct() {
+        int n = 1200, count = 300;
+        LotteryPlan plan = LotteryPlan.draw(ids("a", n), ids("u", n), count, 42, true);
+
+        Set<String> chosen = new HashSet<>();
+        Set<String> rejected = new HashSet<>();
+        for(LotteryPlan.Chunk c : plan.chunks){
+            assertTrue(c.operations() <= LotteryPlan.MAX_BATCH_OPERATIONS);
+            chosen.addAll(c.chosenAssocIDs);
+            rejected.addAll(c.rejectedAssocIDs);
+            for(int i = 0; i < c.chosenAssocIDs.size(); i++){
+                assertEquals(c.chosenAssocIDs.get(i).substring(1), c.chosenUserIDs.get(i).substring(1));
+            }
+        }
+        assertEquals(count, plan.chosen);
+        assertEquals(count, chosen.size());
+        assertEquals(n - count, plan.rejected);
+        assertEquals(n - count, rejected.size());
+        chosen.retainAll(rejected);
+        assertTrue(chosen.isEmpty());
+    }
+
+    @Test
+    public void testDrawIsDeterministicBySeed() {
+        int n = 1000;
+        LotteryPlan a = LotteryPlan.draw(ids("a", n), ids("u", n), 100, 7, false);
+        LotteryPlan b = LotteryPlan.draw(ids("a", n), ids("u", n), 100, 7, false);
+        LotteryPlan c = LotteryPlan.draw(ids("a", n), ids("u", n), 100, 8, false);
+        assertEquals(a.chunks.get(0).chosenAssocIDs, b.chunks.get(0).chosenAssocIDs);
+        assertTrue(!a.chunks.get(0).chosenAssocIDs.equals(c.chunks.get(0).chosenAssocIDs));
+        assertEquals(0, a.rejected);
+    }
+
+    @Test
+    public void testCountLargerThanWaitlist() {
+        LotteryPlan plan = LotteryPlan.draw(ids("a", 10), ids("u", 10), 50, 1, true);
+        assertEquals(10, plan.chosen);
+        assertEquals(0, plan.rejected);
+        assertEquals(1, plan.chunks.size());
+    }
+}
@@ -0,0 +1,111 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.syzygy.events.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that a lottery that is interrupted only reports the chunks each attempt commits, and does not reach entrants that left
+ * the waitlist since the draw
+ * @see Lottery
+ */
+public class LotteryTest {
+    private static final int USERS = 4;
+    private static final long WAITLIST_CAPACITY = 10;
+
+    private FailingBackend backend;
+    private LocalDatabase local;
+    private Event event;
+
+    @Before
+    public void signUp() {
+        backend = new FailingBackend();
+        local = new LocalDatabase(backend);
+        User owner = local.createUser("owner");
+        event = local.createEvent(local.createFacility(owner), WAITLIST_CAPACITY);
+        for (int i = 0; i < USERS; i++) {
+            User user = local.createUser("user" + i);
+            EventAssociation assoc = local.await(done -> event.addUserToWaitlist(user, null, (q, a, s) -> {
+                assertTrue("User was not admitted", s);
+                done.accept(a.result);
+            }));
+            local.run(assoc::dissolve);
+        }
+        local.settle();
+    }
+
+    @After
+    public void close() {
+        local.close();
+    }
+
+    private Lottery.Result run(boolean resume, boolean expectSuccess) {
+        return local.await(done -> {
+            Lottery.Listener listener = (result, success) -> {
+                assertEquals(expectSuccess, success);
+                done.accept(result);
+            };
+            if (resume) event.resumeLottery(listener);
+            else event.runLottery(1, 42, true, listener);
+        });
+    }
+
+    private List<Backend.Document> notifications() {
+        return local.await(done -> backend.query(Database.Collections.NOTIFICATIONS.query(), (docs, success) -> done.accept(docs)));
+    }
+
+    /**
+     * The chunks fail to commit the first time. The first attempt must report nothing done, and the resumed attempt what it did
+     */
+    @Test
+    public void testResultCountsCommittedChunks() {
+        backend.failTransactions = true;
+        Lottery.Result first = run(false, false);
+        assertNotNull(first);
+        assertEquals(0, first.invited);
+        assertEquals(0, first.rejected);
+        assertEquals(1, first.failedChunks);
+        assertTrue(notifications().isEmpty());
+
+        backend.failTransactions = false;
+        Lottery.Result resumed = run(true, true);
+        assertEquals(1, resumed.invited);
+        assertEquals(USERS - 1, resumed.rejected);
+        assertEquals(0, resumed.failedChunks);
+        assertEquals(USERS, notifications().size());
+    }
+
+    /**
+     * Every entrant leaves the waitlist between the draw and the commit. None of them may be invited or notified
+     */
+    @Test
+    public void testEntrantsThatLeftAreNotNotified() {
+        backend.failTransactions = true;
+        run(false, false);
+
+        String status = local.name(R.string.database_assoc_status);
+        String cancelled = local.name(R.string.event_assoc_status_cancelled);
+        List<Backend.Document> assocs = local.await(done -> backend.query(Database.Collections.EVENT_ASSOCIATIONS.query()
+                .whereEqualTo(local.name(R.string.database_assoc_event), event.getDocumentID()), (docs, success) -> done.accept(docs)));
+        assertEquals(USERS, assocs.size());
+        for (Backend.Document a : assocs) {
+            assertTrue(local.<Boolean>await(done -> backend.update(Database.Collections.EVENT_ASSOCIATIONS.getCollectionID(), a.id, Collections.singletonMap(status, cancelled), done)));
+        }
+
+        backend.failTransactions = false;
+        Lottery.Result resumed = run(true, true);
+        assertEquals(0, resumed.invited);
+        assertEquals(0, resumed.rejected);
+        assertEquals(1, resumed.skipped);
+        assertTrue(notifications().isEmpty());
+    }
+}
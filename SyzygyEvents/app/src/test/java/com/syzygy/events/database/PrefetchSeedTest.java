@@ -0,0 +1,73 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that a document seeded by several queries is kept until each of them has released it
+ * @see Database#seedDocument(Database.Collections, Backend.Document)
+ * @see Database#releaseSeededDocuments(java.util.Collection)
+ */
+public class PrefetchSeedTest {
+    private static final Database.Collections COLLECTION = Database.Collections.USERS;
+    private static final String ID = "seeded";
+
+    private LocalDatabase local;
+    private Backend.Document document;
+
+    @Before
+    public void createDatabase() {
+        local = new LocalDatabase();
+        document = new Backend.Document(COLLECTION.getCollectionID(), ID, Collections.emptyMap());
+    }
+
+    @After
+    public void close() {
+        local.close();
+    }
+
+    /**
+     * Two queries read the same document, the second after the first seeded it. Releasing the first must keep it for the second
+     */
+    @Test
+    public void testSeedIsHeldByEveryQuery() {
+        List<String> ids = Collections.singletonList(COLLECTION.getDatabaseID(ID));
+        local.run(() -> {
+            assertTrue(local.db.seedDocument(COLLECTION, document));
+            assertTrue(local.db.seedDocument(COLLECTION, document));
+            local.db.releaseSeededDocuments(ids);
+            assertNotNull(local.db.acquireSeededDocument(COLLECTION, ID));
+            local.db.releaseSeededDocuments(ids);
+            local.db.releaseSeededDocuments(ids);
+            assertNull(local.db.acquireSeededDocument(COLLECTION, ID));
+        });
+    }
+
+    /**
+     * A query that finds the document already seeded takes its own reference, so the seed outlives the query that read it
+     */
+    @Test
+    public void testAcquiredSeedOutlivesItsReader() {
+        List<String> ids = Collections.singletonList(COLLECTION.getDatabaseID(ID));
+        local.run(() -> {
+            assertNull(local.db.acquireSeededDocument(COLLECTION, ID));
+            assertTrue(local.db.seedDocument(COLLECTION, document));
+            assertNotNull(local.db.acquireSeededDocument(COLLECTION, ID));
+            local.db.releaseSeededDocuments(ids);
+            assertFalse(local.db.isCached(COLLECTION, ID));
+            assertNotNull(local.db.acquireSeededDocument(COLLECTION, ID));
+            local.db.releaseSeededDocuments(ids);
+            local.db.releaseSeededDocuments(ids);
+            assertNull(local.db.acquireSeededDocument(COLLECTION, ID));
+        });
+    }
+}
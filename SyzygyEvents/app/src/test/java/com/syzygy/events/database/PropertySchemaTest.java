@@ -0,0 +1,74 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import com.syzygy.events.database.DatabaseInstance.PropertyField;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the slot layout of the properties of a collection
+ * @see PropertySchema
+ */
+public class PropertySchemaTest {
+
+    private static final int NAME = 30, EVENT = 10, COUNT = 20, USER = 5;
+
+    private static PropertySchema schema(){
+        return new PropertySchema(new PropertyField<?,?>[]{
+                new PropertyField<String, PropertyField.NullInstance>(NAME, o -> o instanceof String, true),
+                new PropertyField<String, Event>(EVENT, o -> o instanceof String, false, true, Database.Collections.EVENTS, false, false),
+                new PropertyField<Long, PropertyField.NullInstance>(COUNT, o -> o instanceof Long, true),
+                new PropertyField<String, User>(USER, o -> o instanceof String, false, true, Database.Collections.USERS, true, false)
+        }, id -> "p" + id);
+    }
+
+    @Test
+    public void testSlots() {
+        PropertySchema schema = schema();
+        assertEquals(4, schema.size());
+        assertEquals(0, schema.slotOf(NAME));
+        assertEquals(1, schema.slotOf(EVENT));
+        assertEquals(2, schema.slotOf(COUNT));
+        assertEquals(3, schema.slotOf(USER));
+        assertEquals(-1, schema.slotOf(7));
+        assertEquals(2, schema.slotOf("p" + COUNT));
+        assertEquals(-1, schema.slotOf("missing"));
+
+        assertEquals(2, schema.instanceCount());
+        assertEquals(-1, schema.instanceIndexOf(0));
+        assertEquals(0, schema.instanceIndexOf(1));
+        assertEquals(1, schema.instanceIndexOf(3));
+        assertEquals(3, schema.instanceSlots[1]);
+    }
+
+    @Test
+    public void testToMap() {
+        PropertySchema schema = schema();
+        Object[] values = {"name", "event", 4L, ""};
+        Map<String, Object> map = schema.toMap(values);
+        values[2] = 5L;
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("p" + NAME, "name");
+        expected.put("p" + EVENT, "event");
+        expected.put("p" + COUNT, 4L);
+        expected.put("p" + USER, "");
+        assertEquals(expected, map);
+        assertEquals(expected.hashCode(), map.hashCode());
+        assertEquals(4L, map.get("p" + COUNT));
+        assertTrue(map.containsKey("p" + USER));
+        assertFalse(map.containsKey("missing"));
+        assertNull(map.get("missing"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testMapIsUnmodifiable() {
+        schema().toMap(new Object[4]).put("p" + NAME, "other");
+    }
+}
@@ -0,0 +1,69 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.syzygy.events.R;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests that the schema registry resolves names and statuses without Android resources
+ * @see SchemaRegistry
+ */
+public class SchemaRegistryTest {
+
+    /**
+     * Resolves each string id to a new copy of the name of its field in {@code R.string}
+     */
+    private static SchemaRegistry registry(){
+        Map<Integer, String> strings = new HashMap<>();
+        for(Field f : R.string.class.getFields()){
+            try {
+                strings.put(f.getInt(null), f.getName());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return new SchemaRegistry(id -> new String(strings.get(id)));
+    }
+
+    @Test
+    public void testNamesAreInterned() {
+        SchemaRegistry registry = registry();
+        assertEquals("database_assoc_status", registry.name(R.string.database_assoc_status));
+        assertSame(registry.name(R.string.database_assoc_status), registry.name(R.string.database_assoc_status));
+        assertSame("database_assoc_status", registry.name(R.string.database_assoc_status));
+        //Not a property, resolved on first use
+        assertSame(registry.name(R.string.notification_cancelled_subject), registry.name(R.string.notification_cancelled_subject));
+    }
+
+    @Test
+    public void testStatuses() {
+        SchemaRegistry registry = registry();
+        for(SchemaRegistry.Status s : SchemaRegistry.Status.values()){
+            assertSame(s, SchemaRegistry.Status.fromCode(s.code()));
+            assertSame(s, registry.statusOf(s.resID));
+            assertSame(s, registry.statusOf(new String(registry.status(s))));
+            assertSame(registry.name(s.resID), registry.status(s));
+        }
+        assertEquals("event_assoc_status_waitlist", registry.status(SchemaRegistry.Status.WAITLIST));
+        assertNull(registry.statusOf("Unknown"));
+        assertNull(registry.statusOf((String) null));
+        assertNull(registry.statusOf(R.string.database_assoc_status));
+    }
+
+    @Test
+    public void testSchemas() {
+        SchemaRegistry registry = registry();
+        PropertySchema schema = registry.getSchema(Database.Collections.EVENT_ASSOCIATIONS, EventAssociation.fields);
+        assertSame(schema, registry.getSchema(Database.Collections.EVENT_ASSOCIATIONS, EventAssociation.fields));
+        int slot = schema.slotOf(R.string.database_assoc_status);
+        assertSame(registry.name(R.string.database_assoc_status), schema.names[slot]);
+    }
+}
@@ -0,0 +1,106 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress test for concurrent requests of the same instances
+ * @see Database#getInstance(Database.Collections, String, Database.InitializationListener)
+ */
+public class SingleFlightTest {
+    private static final int KEYS = 5;
+    private static final int REQUESTS = 2000;
+
+    private LocalDatabase local;
+    private final List<String> userIDs = new ArrayList<>();
+
+    @Before
+    public void createUsers() {
+        local = new LocalDatabase();
+        for (int i = 0; i < KEYS; i++) {
+            User user = local.createUser("user" + i);
+            userIDs.add(user.getDocumentID());
+            //Forget the instance so the next request must read it again
+            local.run(user::dissolve);
+        }
+        local.run(() -> local.db.getRetainedCache().clear());
+        local.settle();
+    }
+
+    @After
+    public void close() {
+        local.close();
+    }
+
+    /**
+     * Fires overlapping requests for a small set of users. Every request must be answered exactly once
+     * with the same instance as every other request for that user
+     */
+    @Test
+    public void testOverlappingRequests() {
+        final AtomicInteger[] calls = new AtomicInteger[REQUESTS];
+        final User[] results = new User[REQUESTS];
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger answered = new AtomicInteger();
+
+        local.<Void>await(done -> {
+            for (int i = 0; i < REQUESTS; i++) {
+                final int index = i;
+                calls[i] = new AtomicInteger();
+                local.db.<User>getInstance(Database.Collections.USERS, userIDs.get(i % KEYS), (instance, success) -> {
+                    if (!success) failures.incrementAndGet();
+                    results[index] = instance;
+                    calls[index].incrementAndGet();
+                    if (answered.incrementAndGet() == REQUESTS) done.accept(null);
+                });
+            }
+        });
+        //Give any duplicate callbacks a chance to arrive
+        local.settle();
+
+        assertEquals(0, failures.get());
+        for (int i = 0; i < REQUESTS; i++) {
+            assertEquals("Listener " + i + " was not called exactly once", 1, calls[i].get());
+            assertSame(results[i % KEYS], results[i]);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(results[i].isLegalState());
+        }
+
+        local.run(() -> {
+            for (User u : results) u.dissolve();
+        });
+    }
+
+    /**
+     * Fires overlapping requests for a user that does not exist. Every request must be told of the failure exactly once
+     */
+    @Test
+    public void testOverlappingFailures() {
+        final int requests = REQUESTS / 10;
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger answered = new AtomicInteger();
+
+        local.<Void>await(done -> {
+            for (int i = 0; i < requests; i++) {
+                local.db.<User>getInstance(Database.Collections.USERS, "missing", (instance, success) -> {
+                    if (!success) failures.incrementAndGet();
+                    if (answered.incrementAndGet() == requests) done.accept(null);
+                });
+            }
+        });
+        //Give any duplicate callbacks a chance to arrive
+        local.settle();
+        assertEquals(requests, answered.get());
+        assertEquals(requests, failures.get());
+    }
+}
@@ -0,0 +1,78 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests the propagation and output of the tracer
+ * @see Tracer
+ */
+public class TracerTest {
+
+    @Test
+    public void testDisabled() {
+        Tracer t = new Tracer();
+        Tracer.Span s = t.begin("getInstance", "users/a");
+        assertSame(Tracer.Span.NOOP, s);
+        assertSame(Tracer.Span.NOOP, s.child("firestore.get", null));
+        try(Tracer.Scope sc = s.enter()){
+            assertSame(Tracer.Span.NOOP, t.current());
+        }
+        s.end();
+        assertTrue(t.getSpans().isEmpty());
+    }
+
+    @Test
+    public void testPropagation() {
+        Tracer t = new Tracer();
+        t.setEnabled(true);
+        Tracer.Span root = t.begin("refreshData", "events");
+        Tracer.Span read = root.child("firestore.query", "events");
+        Tracer.Span child;
+        //As if in the callback of the read
+        read.end();
+        try(Tracer.Scope sc = read.parent().enter()){
+            assertSame(root, t.current());
+            child = t.begin("getInstance", "events/a");
+        }
+        assertSame(Tracer.Span.NOOP, t.current());
+        child.end();
+        root.end();
+        root.end();
+
+        assertEquals(3, t.getSpans().size());
+        assertTrue(root.isRoot());
+        assertFalse(child.isRoot());
+        assertSame(root, child.parent());
+        assertSame(root, read.parent());
+        assertSame(Tracer.Span.NOOP, root.parent());
+        assertTrue(root.getDurationNanos() >= child.getDurationNanos());
+    }
+
+    @Test
+    public void testBoundedAndChromeTrace() {
+        Tracer t = new Tracer(2);
+        t.setEnabled(true);
+        t.begin("a", null).end();
+        t.begin("b", "quote\"d").end();
+        t.begin("c", null).end();
+        List<Tracer.Span> spans = t.getSpans();
+        assertEquals(2, spans.size());
+        assertEquals("b", spans.get(0).getName());
+
+        String json = t.toChromeTrace();
+        assertTrue(json.startsWith("{\"traceEvents\":["));
+        assertTrue(json.contains("\"ph\":\"b\""));
+        assertTrue(json.contains("\"ph\":\"e\""));
+        assertTrue(json.contains("\"detail\":\"quote\\\"d\""));
+        assertFalse(json.contains("\"name\":\"a\""));
+        t.clear();
+        assertEquals("{\"traceEvents\":[],\"displayTimeUnit\":\"ms\"}", t.toChromeTrace());
+    }
+}
@@ -0,0 +1,67 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that the update notifications of a tick are collapsed and delivered in one batch
+ * @see Database#addUpdateBatchListener(Database.UpdateBatchListener)
+ */
+public class UpdateDispatchTest {
+
+    private LocalDatabase local;
+    private User user;
+
+    @Before
+    public void createUser() {
+        local = new LocalDatabase();
+        user = local.createUser("user");
+    }
+
+    @After
+    public void close() {
+        local.close();
+    }
+
+    /**
+     * Changes the user several times in one tick. Its listeners must be notified once, after the tick, in one batch
+     */
+    @Test
+    public void testTickIsOneNotification() {
+        final AtomicInteger updates = new AtomicInteger();
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger beforeTick = new AtomicInteger(-1);
+        final Database.UpdateBatchListener batchListener = instances -> {
+            if (instances.contains(user)) batches.incrementAndGet();
+        };
+        local.run(() -> {
+            local.db.getMetrics().reset();
+            user.addListener(new Database.UpdateListener() {
+                @Override
+                public <T extends DatabaseInstance<T>> void onUpdate(DatabaseInstance<T> instance, Type type) {
+                    if (type == Type.UPDATE) updates.incrementAndGet();
+                }
+            });
+            local.db.addUpdateBatchListener(batchListener);
+            user.setName("first");
+            user.setName("second");
+            user.setDescription("changed");
+            beforeTick.set(updates.get());
+        });
+        local.settle();
+        local.run(() -> local.db.removeUpdateBatchListener(batchListener));
+
+        assertEquals(0, beforeTick.get());
+        assertEquals(1, updates.get());
+        assertEquals(1, batches.get());
+        DatabaseMetrics.Snapshot s = local.db.getMetrics().snapshot();
+        assertEquals(2, s.getUpdatesCollapsed());
+        assertTrue(s.getUpdateBatches() >= 1);
+    }
+}
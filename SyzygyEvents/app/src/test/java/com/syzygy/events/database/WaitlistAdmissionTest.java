@@ -0,0 +1,97 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.firebase.firestore.GeoPoint;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates simultaneous sign ups to the waitlist of an event
+ * @see Event#addUserToWaitlist(User, GeoPoint, Database.Querrier.DataListener)
+ */
+public class WaitlistAdmissionTest {
+    private static final int USERS = 20;
+    private static final long WAITLIST_CAPACITY = 5;
+    private static final int REPEATS = 10;
+
+    private LocalDatabase local;
+    private final List<User> users = new ArrayList<>();
+    private Facility testFacility;
+
+    @Before
+    public void createUsers() {
+        local = new LocalDatabase();
+        for (int i = 0; i < USERS; i++) {
+            users.add(local.createUser("user" + i));
+        }
+        testFacility = local.createFacility(users.get(0));
+    }
+
+    @After
+    public void close() {
+        local.close();
+    }
+
+    /**
+     * Signs users up at once
+     * @return The number of users admitted
+     */
+    private int signUp(Event event, List<User> signUps) {
+        final AtomicInteger admitted = new AtomicInteger();
+        final AtomicInteger answered = new AtomicInteger();
+        local.<Void>await(done -> {
+            for (User u : signUps) {
+                event.addUserToWaitlist(u, null, (q, a, s) -> {
+                    if (s) admitted.incrementAndGet();
+                    if (a != null) a.result.dissolve();
+                    if (answered.incrementAndGet() == signUps.size()) done.accept(null);
+                });
+            }
+        });
+        return admitted.get();
+    }
+
+    /**
+     * Every user joins at once. Exactly the capacity of the waitlist must be admitted
+     */
+    @Test
+    public void testCapacityIsExact() {
+        Event event = local.createEvent(testFacility, WAITLIST_CAPACITY);
+        assertEquals(WAITLIST_CAPACITY, signUp(event, users));
+
+        EventCounters.Drift drift = local.await(done -> local.db.getEventCounters().reconcile(event.getDocumentID(), (d, success) -> {
+            assertTrue(success);
+            done.accept(d);
+        }));
+        assertFalse(drift.toString(), drift.hasDrift());
+        assertEquals(WAITLIST_CAPACITY, drift.actual.waitlist);
+    }
+
+    /**
+     * One user joins many times at once. Exactly one association must be created
+     */
+    @Test
+    public void testNoDuplicateAssociations() {
+        Event event = local.createEvent(testFacility, WAITLIST_CAPACITY);
+        List<User> signUps = new ArrayList<>();
+        for (int i = 0; i < REPEATS; i++) {
+            signUps.add(users.get(0));
+        }
+        assertEquals(1, signUp(event, signUps));
+
+        EventCounters.Drift drift = local.await(done -> local.db.getEventCounters().reconcile(event.getDocumentID(), (d, success) -> {
+            assertTrue(success);
+            done.accept(d);
+        }));
+        assertEquals(1, drift.actual.waitlist);
+    }
+}
@@ -0,0 +1,113 @@
+package com.syzygy.events.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.syzygy.events.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that the documents of cached instances are watched together, and still update their instances
+ * @see Database#setWatchBudget(int)
+ */
+public class WatchGroupTest {
+
+    private static final int USERS = 3;
+
+    private FailingBackend backend;
+    private LocalDatabase local;
+    private final List<User> users = new ArrayList<>();
+
+    @Before
+    public void createUsers() {
+        backend = new FailingBackend();
+        local = new LocalDatabase(backend);
+        local.run(() -> {
+            local.db.getMetrics().reset();
+            //Every user must then share one watch
+            local.db.setWatchBudget(1);
+        });
+        for (int i = 0; i < USERS; i++) {
+            users.add(local.createUser("user" + i));
+        }
+    }
+
+    @After
+    public void close() {
+        local.close();
+    }
+
+    /**
+     * The users watched apart must have been merged into one watch
+     */
+    @Test
+    public void testBudgetIsKept() {
+        assertTrue(local.db.getMetrics().snapshot().getActiveListeners() <= 1);
+    }
+
+    /**
+     * A change made outside the model must still reach every user through the shared watch
+     */
+    @Test
+    public void testRemoteChangesReachInstances() {
+        String description = local.name(R.string.database_user_description);
+        for (User user : users) {
+            boolean updated = local.await(done -> local.backend.update(Database.Collections.USERS.getCollectionID(), user.getDocumentID(), Collections.singletonMap(description, "remote"), done));
+            assertTrue(updated);
+        }
+        local.settle();
+        for (User user : users) {
+            assertEquals("remote", local.call(user::getDescription));
+        }
+    }
+
+    /**
+     * The shared watch errors. Its users must be watched again, and changes made since must still reach them
+     */
+    @Test
+    public void testFailedWatchIsRegrouped() {
+        backend.breakListeners();
+        String description = local.name(R.string.database_user_description);
+        for (User user : users) {
+            boolean updated = local.await(done -> local.backend.update(Database.Collections.USERS.getCollectionID(), user.getDocumentID(), Collections.singletonMap(description, "remote"), done));
+            assertTrue(updated);
+        }
+        local.settle();
+        for (User user : users) {
+            assertEquals("remote", local.call(user::getDescription));
+        }
+        assertEquals(1, local.db.getMetrics().snapshot().getActiveListeners());
+    }
+
+    /**
+     * A document deleted while a live query covers it only leaves the results of the query, and must still delete its instance
+     */
+    @Test
+    public void testDeletedCoveredDocumentsAreForgotten() {
+        List<String> ids = new ArrayList<>();
+        for (User user : users) {
+            ids.add(user.getDocumentID());
+        }
+        DatabaseQuery<User> query = new DatabaseQuery<>(local.db, Database.Collections.USERS.query().whereIn(Backend.DOCUMENT_ID, ids), Database.Collections.USERS, null);
+        boolean loaded = local.await(done -> query.listen(() -> {}, (q, s) -> done.accept(s)));
+        assertTrue(loaded);
+
+        User deleted = users.remove(0);
+        assertTrue(local.<Boolean>await(done -> local.backend.delete(Database.Collections.USERS.getCollectionID(), deleted.getDocumentID(), done)));
+        local.settle();
+        boolean legal = local.call(deleted::isLegalState);
+        local.run(() -> {
+            query.stopListening();
+            query.dissolve();
+        });
+        assertFalse(legal);
+    }
+}
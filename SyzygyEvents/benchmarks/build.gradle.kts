@@ -0,0 +1,49 @@
+import java.util.concurrent.Callable
+
+/*
+ * JMH benchmarks for the hot paths of the database model.
+ *
+ * The benchmarks run the app classes on a plain JVM, on the same classpath as the app unit tests: the compiled app classes,
+ * the class jars of its Firebase and AndroidX dependencies, and the mockable android.jar. The app's test sources stand in for
+ * the framework classes the model calls at runtime, such as android.util.Log.
+ *
+ *   ./gradlew :benchmarks:jmh                                  runs every benchmark
+ *   ./gradlew :benchmarks:jmh -PjmhArgs="Hydration -f 1"       passes arguments to JMH (a benchmark regex, options)
+ *
+ * Results are written as JSON to benchmarks/results/jmh.json, so a change to a hot path can include its new results
+ * and regressions show up in review. The gc profiler is on by default to report allocations per operation.
+ */
+plugins {
+    java
+}
+
+evaluationDependsOn(":app")
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+val appUnitTest = project(":app").tasks.named<Test>("testDebugUnitTest")
+
+dependencies {
+    // A callable so the classpath brings the tasks that build it, but not the unit test task itself
+    implementation(files(Callable { appUnitTest.get().classpath }))
+    implementation("org.openjdk.jmh:jmh-core:1.37")
+    annotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+    implementation("org.mockito:mockito-core:5.2.0")
+}
+
+val jmhResults = layout.projectDirectory.file("results/jmh.json")
+
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks and writes the results to results/jmh.json"
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    outputs.upToDateWhen { false }
+    doFirst { jmhResults.asFile.parentFile.mkdirs() }
+    args("-rf", "json", "-rff", jmhResults.asFile.absolutePath)
+    (findProperty("jmhProfilers") as String? ?: "gc").split(",").filter { it.isNotBlank() }.forEach { args("-prof", it) }
+    (findProperty("jmhArgs") as String?)?.let { args(it.trim().split(Regex("\\s+"))) }
+}
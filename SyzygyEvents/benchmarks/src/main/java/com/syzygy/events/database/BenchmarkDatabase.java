@@ -0,0 +1,106 @@
+package com.syzygy.events.database;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import android.content.res.Resources;
+
+import com.google.firebase.Timestamp;
+import com.syzygy.events.R;
+
+import org.mockito.MockSettings;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * A database for benchmarks. Nothing is read from or written to Firebase.
+ * <p>
+ *     The resources map each string id to the name of its field in {@code R.string}, stubbed stub-only so calls are not recorded
+ *     while measuring. The in-memory backend runs posted ticks inline and never delivers snapshots, so only the model code is measured.
+ * </p>
+ */
+final class BenchmarkDatabase {
+
+    private static MockSettings stub(){
+        return withSettings().stubOnly();
+    }
+
+    private BenchmarkDatabase(){}
+
+    /**
+     * @return A new database over an in-memory backend
+     */
+    static Database create(){
+        Map<Integer, String> strings = new HashMap<>();
+        for(Field f : R.string.class.getFields()){
+            try {
+                strings.put(f.getInt(null), f.getName());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        Resources resources = mock(Resources.class, stub());
+        when(resources.getString(anyInt())).thenAnswer(i -> strings.get((Integer) i.getArgument(0)));
+
+        return new Database(resources, new InMemoryBackend() {
+            @Override
+            public boolean post(Runnable task, long delayMillis) {
+                return false;
+            }
+
+            @Override
+            public Registration listen(Query query, BiConsumer<Snapshot, Boolean> listener) {
+                return () -> {};
+            }
+        });
+    }
+
+    /**
+     * @param db The database
+     * @param n A number that makes the user unique
+     * @return The data of a valid user, by property name
+     */
+    static Map<String, Object> userData(Database db, int n){
+        Map<Integer, Object> map = new HashMap<>();
+        map.put(R.string.database_user_name, "User " + n);
+        map.put(R.string.database_user_description, "Description of user " + n);
+        map.put(R.string.database_user_profileID, "");
+        map.put(R.string.database_user_facilityID, "");
+        map.put(R.string.database_user_email, "user" + n + "@example.com");
+        map.put(R.string.database_user_phoneNumber, "7801234567");
+        map.put(R.string.database_user_adminNotifications, false);
+        map.put(R.string.database_user_orgNotifications, true);
+        map.put(R.string.database_user_isAdmin, false);
+        map.put(R.string.database_user_createdTime, new Timestamp(1700000000L + n, 0));
+        return db.convertIDMapToNames(map);
+    }
+
+    /**
+     * @param id The id of the document
+     * @param data The fields of the document
+     * @return An existing user document
+     */
+    static Backend.Document document(String id, Map<String, Object> data){
+        return new Backend.Document(Database.Collections.USERS.getCollectionID(), id, data);
+    }
+
+    /**
+     * @param db The database
+     * @param size The number of users
+     * @return The documents of a query for that many distinct users
+     */
+    static List<Backend.Document> users(Database db, int size){
+        List<Backend.Document> docs = new ArrayList<>(size);
+        for(int i = 0; i < size; i++){
+            docs.add(document("user" + i, userData(db, i)));
+        }
+        return docs;
+    }
+}
@@ -0,0 +1,47 @@
+package com.syzygy.events.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures formatting every combination of repeating days
+ * @see Event.Dates#format(Long)
+ * @see Event.Dates#numberOfDays(long)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatesBenchmark {
+
+    /**
+     * Every set of days
+     */
+    private static final int COMBINATIONS = 1 << 7;
+
+    @Benchmark
+    public void format(Blackhole bh){
+        for(long days = 0; days < COMBINATIONS; days++){
+            bh.consume(Event.Dates.format(days));
+        }
+    }
+
+    @Benchmark
+    public void numberOfDays(Blackhole bh){
+        for(long days = 0; days < COMBINATIONS; days++){
+            bh.consume(Event.Dates.numberOfDays(days));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.syzygy.events.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning a page of documents into instances. The documents are already read, so only the model code is measured
+ * @see DatabaseQuery#loadFromSnapshot(List, Database.Querrier.Listener)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HydrationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int documents;
+
+    @Param({"SEQUENTIAL", "PARALLEL"})
+    public DatabaseQuery.Hydration hydration;
+
+    private Database db;
+    private Backend.Query usersQuery;
+    private List<Backend.Document> snapshot;
+    private DatabaseQuery<User> query;
+
+    @Setup
+    public void setup(){
+        db = BenchmarkDatabase.create();
+        usersQuery = Database.Collections.USERS.query();
+        snapshot = BenchmarkDatabase.users(db, documents);
+    }
+
+    @Benchmark
+    public DatabaseQuery<User> loadFromSnapshot(){
+        query = new DatabaseQuery<User>(db, usersQuery, Database.Collections.USERS, null)
+                .setHydration(hydration)
+                .setPrefetchDepth(0);
+        query.loadFromSnapshot(snapshot, (q, success) -> {
+            if(!success) throw new IllegalStateException("The page was not loaded");
+        });
+        return query;
+    }
+
+    /**
+     * Dissolves the loaded instances so the next page is hydrated from the snapshot again rather than found in the cache
+     */
+    @TearDown(Level.Invocation)
+    public void release(){
+        if(query != null) query.dissolve();
+        db.getRetainedCache().clear();
+        db.getTrackedInstances().clear();
+    }
+}
@@ -0,0 +1,105 @@
+package com.syzygy.events.database;
+
+import com.syzygy.events.R;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creating an instance and reading, writing and validating the properties of a single instance.
+ * With {@code -prof gc}, the normalized allocation of {@link #construct()} is the property storage of an empty instance
+ * @see DatabaseInstance#modifyData(Map, java.util.function.Consumer)
+ * @see DatabaseInstance#getData()
+ * @see DatabaseInstance#isDataValid(Map, Database.Collections)
+ * @see Database#convertIDMapToNames(Map)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstanceBenchmark {
+
+    private Database db;
+    private User user;
+    /**
+     * Two sets of changes that are applied in turn, so every modification changes the instance
+     */
+    private final Map<String, Object>[] changes = newChanges();
+    private int next = 0;
+    private Map<Integer, Object> idData;
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object>[] newChanges(){
+        return new Map[2];
+    }
+
+    @Setup
+    public void setup(){
+        db = BenchmarkDatabase.create();
+        Map<String, Object> data = BenchmarkDatabase.userData(db, 0);
+        db.<User>getInstance(Database.Collections.USERS, "user0", (instance, success) -> {
+            if(!success) throw new IllegalStateException("The user was not initialized");
+            user = instance;
+        }, BenchmarkDatabase.document("user0", data));
+
+        String description = db.constants.getString(R.string.database_user_description);
+        String phone = db.constants.getString(R.string.database_user_phoneNumber);
+        for(int i = 0; i < changes.length; i++){
+            changes[i] = new HashMap<>();
+            changes[i].put(description, "Changed description " + i);
+            changes[i].put(phone, "780555000" + i);
+        }
+
+        idData = new HashMap<>();
+        idData.put(R.string.database_user_name, "Name");
+        idData.put(R.string.database_user_description, "Description");
+        idData.put(R.string.database_user_profileID, "");
+        idData.put(R.string.database_user_facilityID, "");
+        idData.put(R.string.database_user_email, "name@example.com");
+        idData.put(R.string.database_user_phoneNumber, "7801234567");
+        idData.put(R.string.database_user_adminNotifications, false);
+        idData.put(R.string.database_user_orgNotifications, false);
+        idData.put(R.string.database_user_isAdmin, false);
+    }
+
+    @Benchmark
+    public User construct(){
+        return new User(db, "user1");
+    }
+
+    @Benchmark
+    public boolean modifyData(){
+        next ^= 1;
+        return user.modifyData(changes[next], s -> {});
+    }
+
+    @Benchmark
+    public Map<String, Object> getData(){
+        return user.getData();
+    }
+
+    @Benchmark
+    public Set<Integer> isDataValid(){
+        return DatabaseInstance.isDataValid(idData, Database.Collections.USERS);
+    }
+
+    @Benchmark
+    public Map<String, Object> convertIDMapToNames(){
+        return db.convertIDMapToNames(idData);
+    }
+}
@@ -0,0 +1,69 @@
+package com.syzygy.events.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures drawing the chosen users from a waitlist, including the copy of the waitlist made for each draw,
+ * and planning a lottery run over the ids of the waitlist
+ * @see Event#drawFromWaitlist(List, int, Random)
+ * @see LotteryPlan#draw(List, List, int, long, boolean)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LotteryDrawBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int waitlist;
+
+    /**
+     * The share of the waitlist that is chosen
+     */
+    @Param({"0.1", "0.5"})
+    public double chosen;
+
+    private List<String> users;
+    private List<String> assocs;
+    private final Random random = new Random(42);
+    private long seed = 0;
+
+    @Setup
+    public void setup(){
+        users = new ArrayList<>(waitlist);
+        assocs = new ArrayList<>(waitlist);
+        for(int i = 0; i < waitlist; i++){
+            users.add("user" + i);
+            assocs.add("assoc" + i);
+        }
+    }
+
+    @Benchmark
+    public List<String> draw(){
+        List<String> copy = new ArrayList<>(users);
+        int drawn = Event.drawFromWaitlist(copy, (int) (waitlist * chosen), random);
+        return copy.subList(0, drawn);
+    }
+
+    @Benchmark
+    public LotteryPlan plan(){
+        return LotteryPlan.draw(assocs, users, (int) (waitlist * chosen), seed++, true);
+    }
+}
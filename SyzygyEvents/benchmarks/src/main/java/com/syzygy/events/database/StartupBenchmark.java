@@ -0,0 +1,96 @@
+package com.syzygy.events.database;
+
+import com.syzygy.events.StartupOrchestrator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the critical path of a cold start, from the application being created to the first activity being chosen.
+ * The user of the device is read from the local store, opened from its file as on a cold start, or from a seeded document
+ * standing in for the database read. Deferred and idle work is not measured, as it is started after the first activity
+ * @see StartupOrchestrator
+ * @see LocalInstanceStore
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+
+    private static final String DEVICE = "device";
+
+    public enum Source {
+        LOCAL_STORE,
+        DOCUMENT
+    }
+
+    @Param({"LOCAL_STORE", "DOCUMENT"})
+    public Source source;
+
+    private Database db;
+    private File file;
+    private User user;
+
+    @Setup
+    public void setup() throws IOException {
+        db = BenchmarkDatabase.create();
+        file = File.createTempFile("startup", ".log");
+        LocalInstanceStore store = new LocalInstanceStore(file, LocalInstanceStore.DEFAULT_MAX_BYTES, LocalInstanceStore.DEFAULT_MAX_AGE_MILLIS, Runnable::run);
+        store.put(Database.Collections.USERS.getDatabaseID(DEVICE), BenchmarkDatabase.userData(db, 0));
+    }
+
+    @Benchmark
+    public long firstActivity(){
+        if(source == Source.LOCAL_STORE){
+            db.setLocalStore(new LocalInstanceStore(file, LocalInstanceStore.DEFAULT_MAX_BYTES, LocalInstanceStore.DEFAULT_MAX_AGE_MILLIS, Runnable::run));
+        }else{
+            db.seedDocument(Database.Collections.USERS, new Backend.Document(Database.Collections.USERS.getCollectionID(), DEVICE, BenchmarkDatabase.userData(db, 0)));
+        }
+        StartupOrchestrator startup = new StartupOrchestrator(Runnable::run, Runnable::run, r -> {});
+        startup.add(StartupOrchestrator.Stage.CRITICAL, "user", done -> {
+            db.<User>getInstance(Database.Collections.USERS, DEVICE, (instance, success) -> {
+                if(!success) throw new IllegalStateException("The user was not initialized");
+                user = instance;
+                done.run();
+                startup.firstActivityShown();
+            });
+        });
+        startup.start();
+        return startup.getReport().getFirstActivityNanos();
+    }
+
+    /**
+     * Dissolves the user so the next start reads it again rather than finding it in the cache
+     */
+    @TearDown(Level.Invocation)
+    public void release(){
+        if(user != null) user.dissolve();
+        user = null;
+        db.setLocalStore(null);
+        db.getRetainedCache().clear();
+        db.getTrackedInstances().clear();
+    }
+
+    @TearDown
+    public void delete(){
+        file.delete();
+    }
+}